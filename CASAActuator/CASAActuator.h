@@ -11,13 +11,90 @@ const int COMMAND_ENABLE = 99;
 const int COMMAND_CHECK = 98;
 const int COMMAND_GENERIC_IR = 3;
 const int COMMAND_GENERIC_RELAY = 4;
+const int COMMAND_VERSION = 97;
+const int COMMAND_SPEED = 96;
 // IR command
 const String GENERIC_IR = "IR";
 // Relay command
 const String GENERIC_RELAY = "RL";
+// Protocol version query - answered with "V<protocol version>|<max baud rate>;"
+const String VERSION = "V";
+// Switch to the compact protocol - "S<baud rate>", answered with "K;"
+const String SPEED = "S";
 // For how long the touch button should be pressed to trigger a RING command to PC
 const int BUTTON_PRESSED_TIME = 3000;
 
+/** Compact protocol */
+const int PROTOCOL_VERSION = 2;
+const unsigned long ASCII_BAUD_RATE = 9600;
+const unsigned long MAX_BAUD_RATE = 115200;
+// Go back to ASCII if no valid frame is received within this time after switching (CommPort.SWITCH_BACK_TIMEOUT)
+const unsigned long SWITCH_BACK_TIMEOUT = 2000;
+const byte FRAME_START = 0x02;
+const byte FRAME_END = 0x03;
+// Frame length byte - sequence number plus operations, high bit restarts the sequence
+const int MAX_LENGTH = 59;
+const byte LENGTH_MASK = 0x7F;
+const byte FLAG_SYNC = 0x80;
+// Frames kept while an earlier one is missing (SendWindow.WINDOW_SIZE in CASASynthProxy)
+const int RECEIVE_WINDOW = 4;
+// Operations - see CompactCodec in CASASynthProxy
+const byte OP_IR = 0x10;
+const byte OP_RELAY = 0x20;
+const byte OP_ENABLE = 0x30;
+const byte OP_CHECK = 0x31;
+const byte OP_TABLE_INFO = 0x40;
+const byte OP_TABLE_BEGIN = 0x41;
+const byte OP_TABLE_CHUNK = 0x42;
+const byte OP_TABLE_COMMIT = 0x43;
+const byte OP_RUN_MACRO = 0x50;
+const byte OP_TEXT = 0x7F;
+// Frame reading states
+const int FRAME_WAIT_START = 0;
+const int FRAME_WAIT_LENGTH = 1;
+const int FRAME_READ_PAYLOAD = 2;
+const int FRAME_READ_CRC_HIGH = 3;
+const int FRAME_READ_CRC_LOW = 4;
+const int FRAME_WAIT_END = 5;
+// IR protocol IDs - see IRProtocol in CASASynthProxy
+const byte IR_PROTOCOL_RC5 = 1;
+const byte IR_PROTOCOL_RC6 = 2;
+const byte IR_PROTOCOL_NEC = 3;
+const byte IR_PROTOCOL_SONY = 4;
+const byte IR_PROTOCOL_PANASONIC = 5;
+const byte IR_PROTOCOL_JVC = 6;
+const byte IR_PROTOCOL_SAMSUNG = 7;
+const byte IR_PROTOCOL_WHYNTER = 8;
+const byte IR_PROTOCOL_AIWA_RC_T501 = 9;
+const byte IR_PROTOCOL_LG = 10;
+const byte IR_PROTOCOL_DENON = 11;
+boolean compact = false;
+boolean compactConfirmed = false;
+unsigned long compactSince = 0;
+// Frame being read - sequence number followed by operations
+byte frameBuffer[MAX_LENGTH];
+int frameState = FRAME_WAIT_START;
+int frameLength = 0;
+int framePosition = 0;
+boolean frameSync = false;
+unsigned int frameChecksum = 0;
+unsigned int frameCrc = 0;
+// Next sequence number to be executed, and frames received ahead of it
+byte expectedSeq = 0;
+byte slotBuffer[RECEIVE_WINDOW][MAX_LENGTH];
+int slotLength[RECEIVE_WINDOW];
+boolean slotUsed[RECEIVE_WINDOW];
+
+/** Macro table in EEPROM - see MacroTable in CASASynthProxy */
+const int TABLE_FORMAT_VERSION = 1;
+const int TABLE_HEADER_SIZE = 8;
+const int TABLE_MAX_ENTRY = 255;
+byte macroBuffer[TABLE_MAX_ENTRY];
+// Table being uploaded
+unsigned int uploadLength = 0;
+unsigned int uploadChecksum = 0;
+byte uploadCount = 0;
+
 /** Pin definition */
 const int PIN_RELAY_1 = 35;
 const int PIN_RELAY_2 = 36;
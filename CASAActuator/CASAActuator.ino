@@ -1,5 +1,6 @@
 #include <IRremote.h>
 #include <BitVoicer11.h>
+#include <EEPROM.h>
 #include "CASAActuator.h"
 
 //The setup function is called once at startup of the sketch
@@ -38,11 +39,51 @@ void setup()
 // The loop function is called in an endless loop
 void loop()
 {
+  if (compact) {
+    // Compact protocol
+    if (readCompactFrame()) {
+      compactConfirmed = true;
+      handleCompactFrame();
+    } else if (!compactConfirmed && millis() - compactSince > SWITCH_BACK_TIMEOUT) {
+      // CASASynthProxy did not manage to talk at the new speed - go back to ASCII
+      switchProtocol(false, ASCII_BAUD_RATE);
+    }
+  } else {
+    handleAsciiCommand();
+  }
+
+  // Ensure that all ditital outs are set to HIGH
+  resetPins();
+
+  // Check if button is pressed continuously (more than 3s) - that should trigger a command as well.
+  if (buttonPressed > 0 && buttonPressed + BUTTON_PRESSED_TIME < millis()) {
+    Serial.print("R;");
+    buttonPressed = 0;
+  }
+
+  // Check if there is a IR code reading
+  receiveIR();
+}
+
+// Handle a command in the ASCII protocol
+void handleAsciiCommand() {
   // get command nature
   int type = getCommandNature();
 
   // Only analyse command if global switch is enabled
-  if (type == COMMAND_CHECK) {
+  if (type == COMMAND_VERSION) {
+    Serial.print("V");
+    Serial.print(PROTOCOL_VERSION, DEC);
+    Serial.print("|");
+    Serial.print(MAX_BAUD_RATE, DEC);
+    Serial.print(";");
+  } else if (type == COMMAND_SPEED) {
+    unsigned long baudRate = bitVoicer.strData.substring(SPEED.length()).toInt();
+    if (baudRate > 0 && baudRate <= MAX_BAUD_RATE) {
+      Serial.print("K;");
+      switchProtocol(true, baudRate);
+    }
+  } else if (type == COMMAND_CHECK) {
         if (enabled) {
           Serial.print("E;");
         } else {
@@ -65,18 +106,299 @@ void loop()
         digitalWrite(PIN_ENABLED_INDICATOR, LOW);
     }
   }
+}
 
-  // Ensure that all ditital outs are set to HIGH
-  resetPins();
+// Switch between ASCII and compact protocols
+void switchProtocol(boolean toCompact, unsigned long baudRate) {
+  // Wait for pending answers to be sent at the current speed
+  Serial.flush();
+  Serial.end();
+  Serial.begin(baudRate);
+  compact = toCompact;
+  compactConfirmed = false;
+  expectedSeq = 0;
+  for (int s = 0; s < RECEIVE_WINDOW; s++) {
+    slotUsed[s] = false;
+  }
+  compactSince = millis();
+  frameState = FRAME_WAIT_START;
+}
 
-  // Check if button is pressed continuously (more than 3s) - that should trigger a command as well.
-  if (buttonPressed > 0 && buttonPressed + BUTTON_PRESSED_TIME < millis()) {
-    Serial.print("R;");
-    buttonPressed = 0;
+// Read compact frame bytes. Returns true when there is a whole frame, with a valid CRC, in frameBuffer.
+boolean readCompactFrame() {
+  while (Serial.available() > 0) {
+    byte b = Serial.read();
+    if (frameState == FRAME_WAIT_START) {
+      if (b == FRAME_START) {
+        frameState = FRAME_WAIT_LENGTH;
+      }
+    } else if (frameState == FRAME_WAIT_LENGTH) {
+      frameLength = b & LENGTH_MASK;
+      if (frameLength < 1 || frameLength > MAX_LENGTH) {
+        frameState = FRAME_WAIT_START;
+      } else {
+        frameSync = (b & FLAG_SYNC) != 0;
+        frameChecksum = crc16Update(0xFFFF, b);
+        framePosition = 0;
+        frameState = FRAME_READ_PAYLOAD;
+      }
+    } else if (frameState == FRAME_READ_PAYLOAD) {
+      frameBuffer[framePosition++] = b;
+      frameChecksum = crc16Update(frameChecksum, b);
+      if (framePosition == frameLength) {
+        frameState = FRAME_READ_CRC_HIGH;
+      }
+    } else if (frameState == FRAME_READ_CRC_HIGH) {
+      frameCrc = (unsigned int)b << 8;
+      frameState = FRAME_READ_CRC_LOW;
+    } else if (frameState == FRAME_READ_CRC_LOW) {
+      frameCrc |= b;
+      frameState = FRAME_WAIT_END;
+    } else {
+      // Frames without the end byte are dropped - the ACK timeout in CASASynthProxy takes care of them
+      frameState = FRAME_WAIT_START;
+      if (b == FRAME_END) {
+        if (frameCrc == frameChecksum) {
+          return true;
+        }
+        // Broken frame - ask for it again
+        sendAck('N', frameBuffer[0]);
+      }
+    }
   }
+  return false;
+}
 
-  // Check if there is a IR code reading
-  receiveIR();
+// Handle a valid frame: execute frames in sequence order, keeping frames that arrive ahead of a missing one
+void handleCompactFrame() {
+  byte seq = frameBuffer[0];
+  if (frameSync && (byte)(seq + 1) != expectedSeq) {
+    // CASASynthProxy gave up on earlier frames - restart the sequence here. A restart frame that was
+    // just executed is a copy sent again because its ACK was late - it is acknowledged again below
+    expectedSeq = seq;
+    for (int s = 0; s < RECEIVE_WINDOW; s++) {
+      slotUsed[s] = false;
+    }
+  }
+  byte ahead = seq - expectedSeq;
+  if (ahead == 0) {
+    runFrame(frameBuffer, frameLength);
+    // Run the frames that were waiting for this one
+    int slot = expectedSeq % RECEIVE_WINDOW;
+    while (slotUsed[slot]) {
+      slotUsed[slot] = false;
+      runFrame(slotBuffer[slot], slotLength[slot]);
+      slot = expectedSeq % RECEIVE_WINDOW;
+    }
+  } else if (ahead < RECEIVE_WINDOW) {
+    // A frame is missing - keep this one and ask for the missing one
+    int slot = seq % RECEIVE_WINDOW;
+    memcpy(slotBuffer[slot], frameBuffer, frameLength);
+    slotLength[slot] = frameLength;
+    slotUsed[slot] = true;
+    sendAck('N', expectedSeq);
+  } else {
+    // Already executed - the ACK was lost
+    sendAck('A', seq);
+  }
+}
+
+// Execute a frame (sequence number followed by operations) and acknowledge it
+void runFrame(byte *buffer, int length) {
+  executeOps(buffer + 1, length - 1);
+  sendAck('A', buffer[0]);
+  expectedSeq++;
+}
+
+// Send an ACK ('A') or NAK ('N')
+void sendAck(char type, byte seq) {
+  Serial.print(type);
+  Serial.print(seq, DEC);
+  Serial.print(";");
+}
+
+// CRC-16/CCITT (polynomial 0x1021) - one more byte
+unsigned int crc16Update(unsigned int crc, byte b) {
+  crc ^= (unsigned int)b << 8;
+  for (int bit = 0; bit < 8; bit++) {
+    crc = (crc & 0x8000) ? (crc << 1) ^ 0x1021 : crc << 1;
+  }
+  return crc;
+}
+
+// Read an unsigned LEB128 number from a buffer
+unsigned long readVarint(byte *buffer, int length, int &i) {
+  unsigned long value = 0;
+  int shift = 0;
+  while (i < length) {
+    byte b = buffer[i++];
+    value |= (unsigned long)(b & 0x7F) << shift;
+    if ((b & 0x80) == 0) {
+      break;
+    }
+    shift += 7;
+  }
+  return value;
+}
+
+// Check if commands can be run now - global switch enabled and inside the activation period
+boolean isActivated() {
+  if (!enabled) {
+    return false;
+  }
+  if (time > millis()) {
+    return true;
+  }
+  digitalWrite(PIN_ENABLED_INDICATOR, LOW);
+  return false;
+}
+
+// Execute compact protocol operations - from a frame or from a macro
+void executeOps(byte *buffer, int length) {
+  int i = 0;
+  while (i < length) {
+    byte op = buffer[i++];
+    if (op == OP_CHECK) {
+      if (enabled) {
+        Serial.print("E;");
+      } else {
+        Serial.print("D;");
+      }
+    } else if (op == OP_ENABLE) {
+      unsigned long period = readVarint(buffer, length, i);
+      if (enabled) {
+        time = millis() + period;
+        digitalWrite(PIN_ENABLED_INDICATOR, HIGH);
+      }
+    } else if (op == OP_IR) {
+      byte protocol = buffer[i++];
+      unsigned long irCode = 0;
+      for (int b = 0; b < 4; b++) {
+        irCode = (irCode << 8) | buffer[i++];
+      }
+      int bits = buffer[i++];
+      int repeat = buffer[i++];
+      unsigned long delayInMs = readVarint(buffer, length, i);
+      if (isActivated()) {
+        for (int r = 0; r < repeat; r++) {
+          sendIR(protocol, irCode, bits);
+          if (delayInMs > 0) {
+            delay(delayInMs);
+          }
+        }
+      }
+    } else if (op == OP_RELAY) {
+      int relayNumber = buffer[i++];
+      unsigned long enabledForMs = readVarint(buffer, length, i);
+      unsigned long delayInMs = readVarint(buffer, length, i);
+      if (isActivated()) {
+        runRelay(relayNumber, enabledForMs, delayInMs);
+      }
+    } else if (op == OP_RUN_MACRO) {
+      byte id = buffer[i++];
+      if (isActivated()) {
+        runMacro(id);
+      }
+    } else if (op == OP_TABLE_INFO) {
+      Serial.print("T");
+      if (isTableValid()) {
+        Serial.print(readTableWord(6), DEC);
+        Serial.print("|");
+        Serial.print(EEPROM.read(3), DEC);
+      } else {
+        Serial.print("0|0");
+      }
+      Serial.print(";");
+    } else if (op == OP_TABLE_BEGIN) {
+      uploadLength = readVarint(buffer, length, i);
+      uploadChecksum = ((unsigned int)buffer[i] << 8) | buffer[i+1];
+      i += 2;
+      uploadCount = buffer[i++];
+      // Invalidate the current table until the new one is committed
+      EEPROM.update(0, 0);
+    } else if (op == OP_TABLE_CHUNK) {
+      unsigned int offset = readVarint(buffer, length, i);
+      int chunkLength = buffer[i++];
+      for (int c = 0; c < chunkLength && i < length; c++) {
+        if (TABLE_HEADER_SIZE + offset + c < EEPROM.length()) {
+          EEPROM.update(TABLE_HEADER_SIZE + offset + c, buffer[i]);
+        }
+        i++;
+      }
+    } else if (op == OP_TABLE_COMMIT) {
+      if (TABLE_HEADER_SIZE + uploadLength <= EEPROM.length()
+          && tableChecksum(uploadLength) == uploadChecksum) {
+        EEPROM.update(1, 'M');
+        EEPROM.update(2, TABLE_FORMAT_VERSION);
+        EEPROM.update(3, uploadCount);
+        EEPROM.update(4, uploadLength >> 8);
+        EEPROM.update(5, uploadLength & 0xFF);
+        EEPROM.update(6, uploadChecksum >> 8);
+        EEPROM.update(7, uploadChecksum & 0xFF);
+        // Magic byte goes last, so a partial header is never taken as valid
+        EEPROM.update(0, 'C');
+        Serial.print("K;");
+      } else {
+        Serial.print("N;");
+      }
+    } else if (op == OP_TEXT) {
+      int textLength = buffer[i++];
+      String command = "";
+      for (int c = 0; c < textLength && i < length; c++) {
+        command += (char)buffer[i++];
+      }
+      if (isActivated()) {
+        if (command.startsWith(GENERIC_IR)) {
+          handleGenericIR(command);
+        } else if (command.startsWith(GENERIC_RELAY)) {
+          handleGenericRelay(command);
+        }
+      }
+    } else {
+      // Unknown operation - the rest of the frame can not be parsed
+      break;
+    }
+  }
+}
+
+// Read a big endian 16 bit number from EEPROM
+unsigned int readTableWord(int address) {
+  return ((unsigned int)EEPROM.read(address) << 8) | EEPROM.read(address + 1);
+}
+
+// CRC-16/CCITT (polynomial 0x1021, initial value 0xFFFF) of the table data in EEPROM
+unsigned int tableChecksum(unsigned int length) {
+  unsigned int crc = 0xFFFF;
+  for (unsigned int a = 0; a < length; a++) {
+    crc = crc16Update(crc, EEPROM.read(TABLE_HEADER_SIZE + a));
+  }
+  return crc;
+}
+
+// Check if there is a valid macro table in EEPROM
+boolean isTableValid() {
+  if (EEPROM.read(0) != 'C' || EEPROM.read(1) != 'M' || EEPROM.read(2) != TABLE_FORMAT_VERSION) {
+    return false;
+  }
+  unsigned int length = readTableWord(4);
+  return TABLE_HEADER_SIZE + length <= EEPROM.length() && tableChecksum(length) == readTableWord(6);
+}
+
+// Run a macro from the table in EEPROM
+void runMacro(byte id) {
+  if (EEPROM.read(0) != 'C' || id >= EEPROM.read(3)) {
+    return;
+  }
+  // Walk the table up to the macro - each entry is its length followed by its operations
+  unsigned int address = TABLE_HEADER_SIZE;
+  for (byte m = 0; m < id; m++) {
+    address += 1 + EEPROM.read(address);
+  }
+  int length = EEPROM.read(address++);
+  for (int b = 0; b < length; b++) {
+    macroBuffer[b] = EEPROM.read(address + b);
+  }
+  executeOps(macroBuffer, length);
 }
 
 // Reset pins and global switch
@@ -126,16 +448,14 @@ void checkGlobalSwitch() {
 // Receive IR code
 void receiveIR() {
   if (irrecv.decode(&results)) {
-    // Send the command only if global switch is set to false
-    if (!enabled) {
-      Serial.print("I");
-      Serial.print(getIRCommandFamily(results.decode_type));
-      Serial.print("|0x");
-      Serial.print(results.value, HEX);
-      Serial.print("|");
-      Serial.print(results.bits, DEC);
-      Serial.print(";");
-    }
+    // Always report the code: CASASynthProxy learns codes and maps them to macros
+    Serial.print("I");
+    Serial.print(getIRCommandFamily(results.decode_type));
+    Serial.print("|0x");
+    Serial.print(results.value, HEX);
+    Serial.print("|");
+    Serial.print(results.bits, DEC);
+    Serial.print(";");
     irrecv.resume(); // Receive the next value
   }
 }
@@ -200,6 +520,10 @@ int getCommandNature() {
             return COMMAND_GENERIC_RELAY;
         } else if (bitVoicer.strData.startsWith(GENERIC_IR)) {
             return COMMAND_GENERIC_IR;
+        } else if (bitVoicer.strData.startsWith(VERSION)) {
+            return COMMAND_VERSION;
+        } else if (bitVoicer.strData.startsWith(SPEED)) {
+            return COMMAND_SPEED;
         } else {
             return COMMAND_EMPTY;
         }
@@ -218,7 +542,6 @@ void handleGenericRelay(String command) {
 void runRelayCommand(String commandData) {
   // Relay number
   int relayNumber = commandData.substring(0, commandData.indexOf("|")).toInt();
-  int relayPin = RELAY_ARRAY[relayNumber-1];
   commandData = commandData.substring(commandData.indexOf("|")+1);
 
   // Relay enabling duration
@@ -228,8 +551,14 @@ void runRelayCommand(String commandData) {
   // Delay
   int delayInMs = commandData.toInt();
 
+  runRelay(relayNumber, enabledForMs, delayInMs);
+}
+
+// Trigger a relay
+void runRelay(int relayNumber, unsigned long enabledForMs, unsigned long delayInMs) {
   // Up to 8 relays
   if (relayNumber > 0 && relayNumber <= 7) {
+    int relayPin = RELAY_ARRAY[relayNumber-1];
     digitalWrite(relayPin, LOW);
     delay(enabledForMs);
     digitalWrite(relayPin, HIGH);
@@ -285,32 +614,79 @@ void runIRCommand(String commandData) {
   int delayInMs = commandData.toInt();
 
   // Send command
+  sendIR(getIRProtocolId(irType), irCode, bits);
+
+  // Delay until return
+  if (delayInMs > 0) {
+    delay(delayInMs);
+  }
+}
+
+// Retrieve IR protocol ID from its name
+byte getIRProtocolId(String irType) {
   if (irType == "RC5") {
-    irsend.sendRC5(irCode, bits);
+    return IR_PROTOCOL_RC5;
   } else if (irType == "RC6") {
-    irsend.sendRC6(irCode, bits);
+    return IR_PROTOCOL_RC6;
   } else if (irType == "NEC") {
-    irsend.sendNEC(irCode, bits);
+    return IR_PROTOCOL_NEC;
   } else if (irType == "SONY") {
-    irsend.sendSony(irCode, bits);
+    return IR_PROTOCOL_SONY;
   } else if (irType == "PANASONIC") {
-    irsend.sendPanasonic(irCode, bits);
+    return IR_PROTOCOL_PANASONIC;
   } else if (irType == "JVC") {
-    irsend.sendJVC(irCode, bits, false);
+    return IR_PROTOCOL_JVC;
   } else if (irType == "SAMSUNG") {
-    irsend.sendSAMSUNG(irCode, bits);
+    return IR_PROTOCOL_SAMSUNG;
   } else if (irType == "WHYNTER") {
-    irsend.sendWhynter(irCode, bits);
+    return IR_PROTOCOL_WHYNTER;
   } else if (irType == "AIWA_RC_T501") {
-    irsend.sendAiwaRCT501(irCode);
+    return IR_PROTOCOL_AIWA_RC_T501;
   } else if (irType == "LG") {
-    irsend.sendLG(irCode, bits);
+    return IR_PROTOCOL_LG;
   } else if (irType == "DENON") {
-    irsend.sendDenon(irCode, bits);
+    return IR_PROTOCOL_DENON;
   }
+  return 0;
+}
 
-  // Delay until return
-  if (delayInMs > 0) {
-    delay(delayInMs);
+// Send an IR code
+void sendIR(byte protocol, unsigned long irCode, int bits) {
+  switch(protocol) {
+    case IR_PROTOCOL_RC5:
+      irsend.sendRC5(irCode, bits);
+      break;
+    case IR_PROTOCOL_RC6:
+      irsend.sendRC6(irCode, bits);
+      break;
+    case IR_PROTOCOL_NEC:
+      irsend.sendNEC(irCode, bits);
+      break;
+    case IR_PROTOCOL_SONY:
+      irsend.sendSony(irCode, bits);
+      break;
+    case IR_PROTOCOL_PANASONIC:
+      irsend.sendPanasonic(irCode, bits);
+      break;
+    case IR_PROTOCOL_JVC:
+      irsend.sendJVC(irCode, bits, false);
+      break;
+    case IR_PROTOCOL_SAMSUNG:
+      irsend.sendSAMSUNG(irCode, bits);
+      break;
+    case IR_PROTOCOL_WHYNTER:
+      irsend.sendWhynter(irCode, bits);
+      break;
+    case IR_PROTOCOL_AIWA_RC_T501:
+      irsend.sendAiwaRCT501(irCode);
+      break;
+    case IR_PROTOCOL_LG:
+      irsend.sendLG(irCode, bits);
+      break;
+    case IR_PROTOCOL_DENON:
+      irsend.sendDenon(irCode, bits);
+      break;
   }
+  // Sending reconfigures the IR timer - receive again
+  irrecv.enableIRIn();
 }
@@ -0,0 +1,130 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy.bench;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.casa.synthproxy.Command;
+import org.casa.synthproxy.FrameEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the command envelope hot path: building the byte array that goes
+ * to the network or to CASAActuator, parsing command data and splitting composite commands.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+
+	/** Composite command, the same as TVIOS macro in the sample configuration **/
+	private static final String COMPOSITE_DATA =
+			"IR[RC6|0x38|20|50,RC6|0x38|20|50,RC6|0x38|20|500]#IR[RC6|0x59|20|50,RC6|0x59|20|50,RC6|0x59|20|500]#IR[RC6|0x5C|20|50,RC6|0x5C|20|50,RC6|0x5C|20|0]";
+	/** Single command with voice feedback, as sent by BitVoicer **/
+	private static final String SINGLE_DATA_WITH_TTS = "IR[NEC|0xE17AA05F|32|200];espr tev";
+
+	/** Single command, ready to be serialized **/
+	private Command single;
+	/** Composite command, ready to be split **/
+	private Command composite;
+	/** Caller supplied buffer for the encoder benchmarks **/
+	private final ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+	/**
+	 * Build the commands used by the benchmarks
+	 */
+	@Setup
+	public void setup() {
+		single = new Command().setCommandTp(Command.TP_STRING).setData(SINGLE_DATA_WITH_TTS);
+		composite = new Command().setCommandTp(Command.TP_STRING).setData(COMPOSITE_DATA);
+	}
+
+	/**
+	 * Envelope sent to CASAActuator - no voice part
+	 * @return Envelope bytes
+	 */
+	@Benchmark
+	public byte[] toBytesSerial() {
+		return single.toBytes(false);
+	}
+
+	/**
+	 * Envelope sent through the network - with voice part
+	 * @return Envelope bytes
+	 */
+	@Benchmark
+	public byte[] toBytesNetwork() {
+		return single.toBytes(true);
+	}
+
+	/**
+	 * Envelope sent to CASAActuator, written into a caller supplied buffer
+	 * @return Number of envelopes written
+	 */
+	@Benchmark
+	public int encodeSerial() {
+		buffer.clear();
+		return FrameEncoder.serial().encode(single, false, buffer);
+	}
+
+	/**
+	 * Envelopes sent through the network for a composite command, written into a caller supplied buffer
+	 * @return Number of envelopes written
+	 */
+	@Benchmark
+	public int encodeNetworkComposite() {
+		buffer.clear();
+		return FrameEncoder.network().encode(composite, true, buffer);
+	}
+
+	/**
+	 * Command data parsing, including the voice part
+	 * @return Parsed command
+	 */
+	@Benchmark
+	public Command setData() {
+		return new Command().setCommandTp(Command.TP_STRING).setData(SINGLE_DATA_WITH_TTS);
+	}
+
+	/**
+	 * Composite command split
+	 * @return Command list
+	 */
+	@Benchmark
+	public List<Command> splitCommand() {
+		return composite.splitCommand();
+	}
+}
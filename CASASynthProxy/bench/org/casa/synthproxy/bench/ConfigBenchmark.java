@@ -0,0 +1,140 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.casa.synthproxy.config.Config;
+import org.casa.synthproxy.config.Macro;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for configuration loading and macro lookup, with generated
+ * configuration files of several sizes.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConfigBenchmark {
+
+	/** Number of macros in the generated configuration file **/
+	@Param({"10", "1000", "10000"})
+	private int macros;
+
+	/** Generated configuration file **/
+	private File configFile;
+	/** Configuration loaded from the generated file **/
+	private Config config;
+	/** Keys that will be looked up - all of them exist in the configuration **/
+	private String[] keys;
+	/** Next key to be looked up **/
+	private int next;
+
+	/**
+	 * Generate the configuration file and load it once for the lookup benchmark
+	 * @throws IOException Error writing the configuration file
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		configFile = File.createTempFile("casa-bench-config", ".xml");
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(configFile), StandardCharsets.UTF_8)) {
+			w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<config>\n\t<macros>\n");
+			for (int i = 0; i < macros; i++) {
+				w.write("\t\t<macro key=\"M" + i + "\" data=\"IR[NEC|0x" + Integer.toHexString(0xE17A0000 + i).toUpperCase()
+						+ "|32|200]#IR[NEC|0xE17AA857|32|0]\" />\n");
+			}
+			w.write("\t</macros>\n\t<groups>\n\t\t<group name=\"Bench\">\n");
+			for (int i = 0; i < Math.min(macros, 16); i++) {
+				w.write("\t\t\t<command label=\"Macro " + i + "\" macro=\"M" + i + "\" tts=\"Macro " + i + "\" />\n");
+			}
+			w.write("\t\t</group>\n\t</groups>\n\t<generalConfig>\n\t\t<entry name=\"bindPort\" value=\"11000\" />\n\t</generalConfig>\n</config>\n");
+		}
+		config = new Config(configFile);
+		keys = new String[macros];
+		for (int i = 0; i < macros; i++) {
+			keys[i] = "M" + i;
+		}
+	}
+
+	/**
+	 * Remove the generated configuration file
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		configFile.delete();
+	}
+
+	/**
+	 * Full configuration load: XML parsing, macro list and command groups
+	 * @return Loaded configuration
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public Config load() {
+		return new Config(configFile);
+	}
+
+	/**
+	 * Macro lookup by key, as done for every command received from the network
+	 * @return Macro found
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public Macro lookup() {
+		if (next == keys.length) {
+			next = 0;
+		}
+		return config.getMacros().get(keys[next++]);
+	}
+
+	/**
+	 * Macro lookup for a key that is not a macro (raw commands)
+	 * @return Always null
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public Macro lookupMiss() {
+		return config.getMacros().get("IR[NEC|0xE17A48B7|32|0]");
+	}
+}
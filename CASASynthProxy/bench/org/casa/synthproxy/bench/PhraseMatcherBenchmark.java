@@ -0,0 +1,96 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy.bench;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.casa.synthproxy.config.PhraseMatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for transcript matching, with generated phrase catalogs of several sizes. Phrases are
+ * made of a small vocabulary, so that trigrams are shared by many phrases - the worst case for the index.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PhraseMatcherBenchmark {
+
+	/** Words the phrases are made of **/
+	private static final String[] WORDS = {"ligar", "desligar", "subir", "descer", "canal", "volume", "luz", "quarto",
+			"sala", "cozinha", "ar", "televiso", "cama", "ventilador", "cortina", "porta"};
+
+	/** Number of phrases in the catalog **/
+	@Param({"100", "1000", "5000"})
+	private int phrases;
+
+	/** Phrase matcher **/
+	private PhraseMatcher matcher;
+	/** Transcripts - misrecognized, with extra and missing words **/
+	private String[] transcripts;
+	/** Next transcript **/
+	private int next;
+
+	/**
+	 * Build the catalog and the transcripts
+	 */
+	@Setup(Level.Trial)
+	public void setup() {
+		Random random = new Random(phrases);
+		Map<String, String> catalog = new LinkedHashMap<String, String>();
+		while (catalog.size() < phrases) {
+			catalog.put(WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)] + " "
+					+ WORDS[random.nextInt(WORDS.length)] + " " + random.nextInt(100), "M" + catalog.size());
+		}
+		matcher = new PhraseMatcher(catalog);
+		transcripts = new String[] {"ligar a luz da sala 12", "desliga ventilador do quarto", "subir cortina", "Televisao canal 5"};
+	}
+
+	/**
+	 * Match a transcript against the whole catalog
+	 * @return Best match
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public PhraseMatcher.Match match() {
+		if (next == transcripts.length) {
+			next = 0;
+		}
+		return matcher.match(transcripts[next++]);
+	}
+}
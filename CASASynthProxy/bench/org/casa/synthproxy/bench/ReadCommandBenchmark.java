@@ -0,0 +1,116 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.casa.synthproxy.Command;
+import org.casa.synthproxy.ConnectionHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the network envelope parser ({@link ConnectionHandler#readCommand(java.io.InputStream)}),
+ * fed from an in-memory stream so that no socket is involved.
+ *
+ * Activation ("E") frames are left out on purpose: parsing them logs a message, and that
+ * would be measured instead of the parser.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadCommandBenchmark {
+
+	/** How many frames are kept in the in-memory stream **/
+	private static final int FRAMES = 1024;
+
+	/** Envelopes of macro key commands, like the ones sent by BitVoicer **/
+	private byte[] macroFrames;
+	/** Envelopes of raw IR commands with voice feedback **/
+	private byte[] rawFrames;
+	/** Stream over macro key envelopes **/
+	private ByteArrayInputStream macroStream;
+	/** Stream over raw IR envelopes **/
+	private ByteArrayInputStream rawStream;
+
+	/**
+	 * Build the in-memory streams
+	 */
+	@Setup
+	public void setup() {
+		macroFrames = frames(new Command().setCommandTp(Command.TP_STRING).setData("TDC517;Globo"));
+		rawFrames = frames(new Command().setCommandTp(Command.TP_STRING).setData("IR[NEC|0xE17AA05F|32|200]#IR[NEC|0xE17A807F|32|200];Mudando"));
+		macroStream = new ByteArrayInputStream(macroFrames);
+		rawStream = new ByteArrayInputStream(rawFrames);
+	}
+
+	/**
+	 * Parse a macro key envelope
+	 * @return Parsed command
+	 */
+	@Benchmark
+	public Command readMacroKey() {
+		if (macroStream.available() == 0) {
+			macroStream.reset();
+		}
+		return ConnectionHandler.readCommand(macroStream);
+	}
+
+	/**
+	 * Parse a raw composite command envelope
+	 * @return Parsed command
+	 */
+	@Benchmark
+	public Command readRawCommand() {
+		if (rawStream.available() == 0) {
+			rawStream.reset();
+		}
+		return ConnectionHandler.readCommand(rawStream);
+	}
+
+	/**
+	 * Build a byte array with the same envelope repeated several times
+	 * @param command Command to be repeated
+	 * @return Envelopes
+	 */
+	private static byte[] frames(Command command) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] frame = command.toBytes(true);
+		for (int i = 0; i < FRAMES; i++) {
+			out.write(frame, 0, frame.length);
+		}
+		return out.toByteArray();
+	}
+}
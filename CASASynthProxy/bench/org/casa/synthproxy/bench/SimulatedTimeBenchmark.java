@@ -0,0 +1,407 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.casa.synthproxy.Clock;
+import org.casa.synthproxy.Command;
+import org.casa.synthproxy.CommPort;
+import org.casa.synthproxy.CommandBus;
+import org.casa.synthproxy.CommandDispatcher;
+import org.casa.synthproxy.LinkSupervisor;
+import org.casa.synthproxy.SimulatedClock;
+import org.casa.synthproxy.TimerWheel;
+import org.casa.synthproxy.config.CommandGroup;
+import org.casa.synthproxy.config.Config;
+import org.casa.synthproxy.ide.GUI;
+import org.casa.synthproxy.ide.ScanEngine;
+import org.casa.synthproxy.ide.ScanNode;
+import org.casa.synthproxy.ide.ScanView;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for timing logic run against a {@link SimulatedClock}: a whole day of command schedules,
+ * link supervision, scanning sessions and activation periods, each taking milliseconds instead of a day.
+ *
+ * The simulated clock is installed ({@link Clock#setInstance(Clock)}) before any component is created,
+ * so the link supervisor, the command dispatchers and the scan engine - whose single instance keeps the
+ * clock it was loaded with - all run on it. CASAActuator is a {@link SimulatedActuator} that answers at
+ * once. Messages are dropped instead of being printed.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SimulatedTimeBenchmark {
+
+	/** Simulated time, in milliseconds **/
+	private static final long DAY = TimeUnit.DAYS.toMillis(1);
+	/** Timers armed for the day **/
+	private static final int TIMERS = 1000;
+	/** The simulated CASAActuator is unplugged for this long at the start of every hour, in milliseconds **/
+	private static final long OUTAGE = TimeUnit.MINUTES.toMillis(1);
+	/** Scanning sessions in a day **/
+	private static final int SESSIONS = 48;
+	/** Activation periods in a day, one every hour **/
+	private static final long ACTIVATION_EVERY = TimeUnit.HOURS.toMillis(1);
+	/** Activation period, in milliseconds **/
+	private static final long ACTIVATION = TimeUnit.MINUTES.toMillis(1);
+	/** Time between commands, in and out of the activation periods, in milliseconds **/
+	private static final long COMMAND_EVERY = TimeUnit.SECONDS.toMillis(15);
+	/** Macros in the generated configuration - the scanning tree has one command for each **/
+	private static final int MACROS = 24;
+	/** Command groups in the generated configuration **/
+	private static final int GROUPS = 4;
+
+	/** Simulated time shared by the components of this trial **/
+	private SimulatedClock clock;
+	/** Generated configuration file **/
+	private File configFile;
+	/** File the scanning usage model is saved to **/
+	private File usageFile;
+	/** Configuration loaded from the generated file **/
+	private Config config;
+	/** Standard output, restored after the trial **/
+	private PrintStream out;
+	/** Internal bus the commands picked while scanning are published to **/
+	private CommandBus bus;
+	/** Commands of the scanning tree, in configuration order **/
+	private List<ScanNode> leaves;
+	/** User who picks commands while scanning **/
+	private SimulatedUser user;
+
+	/**
+	 * Install the simulated clock, generate the configuration and set the scan engine up
+	 * @throws IOException Error writing the configuration file
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		clock = new SimulatedClock(0);
+		Clock.setInstance(clock);
+		out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		}));
+
+		configFile = File.createTempFile("casa-bench-config", ".xml");
+		usageFile = File.createTempFile("casa-bench-usage", ".properties");
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(configFile), StandardCharsets.UTF_8)) {
+			w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<config>\n\t<macros>\n");
+			for (int i = 0; i < MACROS; i++) {
+				w.write("\t\t<macro key=\"M" + i + "\" data=\"IR[NEC|0x" + Integer.toHexString(0xE17A0000 + i).toUpperCase()
+						+ "|32|200]#IR[NEC|0xE17AA857|32|0]\" />\n");
+			}
+			w.write("\t</macros>\n\t<groups>\n");
+			for (int g = 0; g < GROUPS; g++) {
+				w.write("\t\t<group name=\"Grupo " + g + "\">\n");
+				for (int i = g; i < MACROS; i += GROUPS) {
+					w.write("\t\t\t<command label=\"Macro " + i + "\" macro=\"M" + i + "\" tts=\"\" />\n");
+				}
+				w.write("\t\t</group>\n");
+			}
+			w.write("\t</groups>\n\t<generalConfig>\n\t\t<entry name=\"usageFile\" value=\"" + usageFile.getAbsolutePath()
+					+ "\" />\n\t</generalConfig>\n</config>\n");
+		}
+		config = new Config(configFile);
+		// Picked commands are not spoken
+		for (CommandGroup group : config.getGroups()) {
+			for (org.casa.synthproxy.config.Command command : group.getCommands()) {
+				command.setTts(null);
+			}
+		}
+
+		bus = new CommandBus(new SimulatedActuator(), config);
+		CommandBus.setInstance(bus);
+		GUI.initHeadless(config);
+		leaves = new ArrayList<ScanNode>();
+		for (ScanNode group : ScanEngine.getInstance().getRoot().getChildren()) {
+			leaves.addAll(group.getChildren());
+		}
+		user = new SimulatedUser(clock);
+		ScanEngine.getInstance().setView(user);
+	}
+
+	/**
+	 * Close the bus, remove the generated files and restore the standard output
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		CommandBus.setInstance(null);
+		bus.close();
+		configFile.delete();
+		usageFile.delete();
+		System.setOut(out);
+	}
+
+	/**
+	 * A day of command schedules: timers spread over the day, expired by the timer wheel tick by tick
+	 * @return Timers expired
+	 */
+	@Benchmark
+	public int timerWheelDay() {
+		SimulatedClock clock = new SimulatedClock(0);
+		TimerWheel wheel = new TimerWheel(clock);
+		final int[] expired = new int[1];
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				expired[0]++;
+			}
+		};
+		wheel.start();
+		for (int i = 1; i <= TIMERS; i++) {
+			wheel.schedule(i * (DAY / TIMERS), task);
+		}
+		clock.advance(DAY);
+		wheel.close();
+		return expired[0];
+	}
+
+	/**
+	 * A day of link supervision: the {@link LinkSupervisor} heartbeat backs off while CASAActuator answers,
+	 * takes the link as lost when it is unplugged for a minute every hour, and finds it again
+	 * @return Links recovered
+	 * @throws Exception Error closing the supervisor
+	 */
+	@Benchmark
+	public int linkSupervisionDay() throws Exception {
+		final SimulatedActuator actuator = new SimulatedActuator();
+		actuator.setOutages(OUTAGE);
+		final String[] ports = new String[] {"COM3"};
+		LinkSupervisor supervisor = new LinkSupervisor(config) {
+			@Override
+			protected CommPort discover() throws Exception {
+				actuator.getGlobalSwitchStatus();
+				return actuator;
+			}
+
+			@Override
+			protected String[] listPorts() {
+				return ports;
+			}
+		};
+		supervisor.start();
+		clock.advance(DAY);
+		supervisor.close();
+		return supervisor.getRecoveries();
+	}
+
+	/**
+	 * A day of scanning sessions on the {@link ScanEngine}: every half hour the user starts scanning and
+	 * picks a command, some much more often than others, after a reaction time. Dwell times and favorites
+	 * carry over from one day to the next, as they would.
+	 * @return Items highlighted
+	 */
+	@Benchmark
+	public int scanningDay() {
+		Random random = new Random(1);
+		int highlights = user.getHighlights();
+		for (int i = 0; i < SESSIONS; i++) {
+			// Exponential choice: the first commands are picked far more often than the last ones
+			int pick = (int)Math.min(leaves.size() - 1, -Math.log(1 - random.nextDouble()) * leaves.size() / 6);
+			user.want(leaves.get(pick), 400 + random.nextInt(300));
+			ScanEngine.getInstance().buttonPressed();
+			clock.advance(DAY / SESSIONS);
+		}
+		return user.getHighlights() - highlights;
+	}
+
+	/**
+	 * A day of activation periods on the {@link CommandDispatcher}: an activation every hour, and a command
+	 * every 15 seconds - only those within a minute of the activation are sent
+	 * @return Commands sent
+	 * @throws Exception Error sending a command
+	 */
+	@Benchmark
+	public int activationDay() throws Exception {
+		CommandDispatcher dispatcher = new CommandDispatcher(new SimulatedActuator(), config);
+		int sent = 0;
+		int next = 0;
+		for (long elapsed = 0; elapsed < DAY; elapsed += COMMAND_EVERY) {
+			if (elapsed % ACTIVATION_EVERY == 0) {
+				dispatcher.dispatch(new Command().setCommandTp(Command.TP_ENABLE).setData("E" + ACTIVATION)
+						.setActivatedUntil(ACTIVATION));
+			}
+			if (dispatcher.dispatch(new Command().setCommandTp(Command.TP_STRING).setData("M" + next++ % MACROS))) {
+				sent++;
+			}
+			clock.advance(COMMAND_EVERY);
+		}
+		return sent;
+	}
+
+	/**
+	 * Simulated CASAActuator: status checks and commands are answered at once, except during outages
+	 */
+	public static class SimulatedActuator extends CommPort {
+		/** Unplugged for this long at the start of every hour, in milliseconds, or 0 **/
+		private long outage = 0;
+
+		/**
+		 * Unplug the actuator at the start of every hour
+		 * @param outage How long it stays unplugged, in milliseconds
+		 */
+		public void setOutages(long outage) {
+			this.outage = outage;
+		}
+
+		@Override
+		public void sendCommand(Command command) {
+			check();
+		}
+
+		@Override
+		public boolean getGlobalSwitchStatus() {
+			check();
+			return true;
+		}
+
+		@Override
+		public void syncMacroTable(Config config) {
+		}
+
+		@Override
+		public void close() {
+		}
+
+		/**
+		 * Fail if the actuator is unplugged
+		 */
+		private void check() {
+			if (clock.currentTimeMillis() % TimeUnit.HOURS.toMillis(1) < outage) {
+				throw new IllegalStateException("CASAActuator desconectado");
+			}
+		}
+	}
+
+	/**
+	 * Simulated user: presses the button a reaction time after the command wanted, or a group that leads
+	 * to it, is highlighted
+	 */
+	private static class SimulatedUser implements ScanView {
+		/** The user's hand - presses are scheduled on the simulated clock **/
+		private final ScheduledExecutorService hand;
+		/** Command wanted **/
+		private ScanNode wanted;
+		/** Reaction time, in milliseconds **/
+		private long reaction;
+		/** Items highlighted **/
+		private int highlights = 0;
+
+		/**
+		 * Constructor
+		 * @param clock Simulated clock
+		 */
+		private SimulatedUser(SimulatedClock clock) {
+			this.hand = clock.newScheduler("SimulatedUser");
+		}
+
+		/**
+		 * Set the command the user wants next
+		 * @param wanted Command node
+		 * @param reaction Reaction time, in milliseconds
+		 */
+		private void want(ScanNode wanted, long reaction) {
+			this.wanted = wanted;
+			this.reaction = reaction;
+		}
+
+		/**
+		 * Get the number of items highlighted so far
+		 * @return Items highlighted
+		 */
+		private int getHighlights() {
+			return highlights;
+		}
+
+		@Override
+		public boolean isOnTV() {
+			return false;
+		}
+
+		@Override
+		public void scanStarted() {
+		}
+
+		@Override
+		public void highlight(ScanNode node) {
+			highlights++;
+			if (leadsTo(node)) {
+				hand.schedule(new Runnable() {
+					@Override
+					public void run() {
+						ScanEngine.getInstance().buttonPressed();
+					}
+				}, reaction, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		@Override
+		public void unhighlight(ScanNode node) {
+		}
+
+		/**
+		 * Check if picking a node gets the user closer to the command wanted
+		 * @param node Highlighted node
+		 * @return true if the node is the command wanted (or a favorite standing for it) or holds it
+		 */
+		private boolean leadsTo(ScanNode node) {
+			if (node.getTarget() == wanted) {
+				return true;
+			}
+			for (ScanNode child : node.getChildren()) {
+				if (leadsTo(child)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
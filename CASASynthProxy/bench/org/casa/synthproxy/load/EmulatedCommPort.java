@@ -0,0 +1,160 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy.load;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.casa.synthproxy.Command;
+import org.casa.synthproxy.CommPort;
+import org.casa.synthproxy.CompactCodec;
+import org.casa.synthproxy.FrameEncoder;
+import org.casa.synthproxy.MacroTable;
+import org.casa.synthproxy.config.Config;
+
+/**
+ * Emulated CASAActuator serial port. Nothing is written anywhere - the port only
+ * takes as long as the real link would take to transfer the bytes, answers status checks
+ * as an enabled CASAActuator and tells the load generator when each command was written.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class EmulatedCommPort extends CommPort {
+
+	/** Size of the status check round trip: "C" envelope plus "E;" answer **/
+	private static final int CHECK_ROUND_TRIP_BYTES = 7;
+	/** Size of the status check round trip in the compact protocol: CHECK frame plus "E;" answer and "A&lt;seq&gt;;" ACK **/
+	private static final int COMPACT_CHECK_ROUND_TRIP_BYTES = 13;
+	/** Size of an ACK **/
+	private static final int ACK_BYTES = 5;
+
+	/** Time to transfer one byte, in nanoseconds. Zero means an infinitely fast link **/
+	private final long nanosPerByte;
+	/** Emulate the compact protocol instead of ASCII **/
+	private final boolean compact;
+	/** Compact protocol encoder **/
+	private final CompactCodec compactCodec = new CompactCodec();
+	/** Load generator that is waiting for serial writes **/
+	private final LoadGenerator generator;
+	/** Frames written to the emulated port **/
+	private final AtomicLong frames = new AtomicLong();
+	/** Bytes written to the emulated port **/
+	private final AtomicLong bytes = new AtomicLong();
+
+	/**
+	 * Constructor
+	 * @param baudRate Emulated baud rate (8N1, so 10 bits per byte). Zero or less means no transfer delay.
+	 * @param compact Emulate the compact protocol instead of ASCII
+	 * @param generator Load generator that will be notified of each serial write
+	 */
+	public EmulatedCommPort(int baudRate, boolean compact, LoadGenerator generator) {
+		this.nanosPerByte = baudRate > 0 ? 10_000_000_000L / baudRate : 0;
+		this.compact = compact;
+		this.generator = generator;
+	}
+
+	/**
+	 * "Write" the command: wait for the emulated transfer time, including the status checks between
+	 * frames, and report it to the load generator.
+	 * @param command Command to be sent
+	 */
+	@Override
+	public void sendCommand(Command command) {
+		synchronized (this) {
+			ByteBuffer encoded = compact ? compactCodec.encode(command) : FrameEncoder.serial().encode(command, false);
+			int length = encoded.remaining();
+			int count = 0;
+			// Walk the frames: compact length is the second byte, ASCII length is the third one
+			for (int i = encoded.position(); i < encoded.limit(); count++) {
+				i += compact ? (encoded.get(i + 1) & CompactCodec.LENGTH_MASK) + CompactCodec.FRAME_OVERHEAD
+						: (encoded.get(i + 2) & 0xFF) + 4;
+			}
+			transfer(length);
+			if (compact) {
+				// Frames are pipelined by the send window - only the last ACK adds to the time
+				transfer(ACK_BYTES);
+			} else {
+				for (int i = 1; i < count; i++) {
+					getGlobalSwitchStatus();
+				}
+			}
+			frames.addAndGet(count);
+			bytes.addAndGet(length);
+		}
+		generator.serialWrite(command.getData(), System.nanoTime());
+	}
+
+	/**
+	 * Emulated CASAActuator always holds the current macro table, so macros are sent by ID in the compact protocol.
+	 * @param config CASASynthProxy configuration
+	 */
+	@Override
+	public void syncMacroTable(Config config) {
+		if (compact) {
+			compactCodec.setMacroTable(MacroTable.compile(config.getMacros()));
+		}
+	}
+
+	/**
+	 * Emulated CASAActuator is always enabled. The round trip still takes the link time.
+	 * @return Always true
+	 */
+	@Override
+	public boolean getGlobalSwitchStatus() {
+		synchronized (this) {
+			transfer(compact ? COMPACT_CHECK_ROUND_TRIP_BYTES : CHECK_ROUND_TRIP_BYTES);
+			return true;
+		}
+	}
+
+	/**
+	 * Nothing to close
+	 */
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * Get the number of frames written so far
+	 * @return Frames written so far
+	 */
+	public long getFrames() {
+		return frames.get();
+	}
+
+	/**
+	 * Get the number of bytes written so far
+	 * @return Bytes written so far
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * Wait as long as the link would take to transfer the bytes
+	 * @param length Number of bytes
+	 */
+	private void transfer(int length) {
+		if (nanosPerByte > 0) {
+			LockSupport.parkNanos(nanosPerByte * length);
+		}
+	}
+}
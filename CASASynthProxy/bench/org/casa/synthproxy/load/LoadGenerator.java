@@ -0,0 +1,381 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy.load;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.casa.synthproxy.CASASynthProxy;
+import org.casa.synthproxy.Command;
+import org.casa.synthproxy.config.Config;
+
+/**
+ * Load generator that simulates several BitVoicer clients talking to CASASynthProxy.
+ *
+ * Each client keeps one connection open (as BitVoicer does) and sends activation ("E") envelopes
+ * and STRING commands at a fixed rate. By default the proxy runs in this very JVM, with an
+ * {@link EmulatedCommPort} in place of CASAActuator, so that the time between a command being written
+ * to the socket and the proxy writing it to the serial port can be measured.
+ *
+ * Options (all of them optional):
+ * <ul>
+ * <li>--connections: number of concurrent clients. Default 16.</li>
+ * <li>--duration: test duration in seconds. Default 30.</li>
+ * <li>--rate: commands per second sent by each client. Default 2.</li>
+ * <li>--activation-every: send an activation envelope before every n commands. Default 1, like CASASynthProxy's own GUI.</li>
+ * <li>--macro-ratio: fraction (0 to 1) of commands that are macro keys from the configuration. The remaining ones
+ * are raw commands tagged so that their latency can be measured. Default 0.2.</li>
+ * <li>--baud: emulated serial baud rate. 0 means an infinitely fast link. Default 9600.</li>
+ * <li>--compact: true to emulate the compact binary protocol (see CompactCodec), with macros sent by ID. Default false.</li>
+ * <li>--drain: seconds to wait for in-flight commands after the clients stop. Default 10.</li>
+ * <li>--config: configuration file. Default config.xml.</li>
+ * <li>--target: host:port of an already running CASASynthProxy. Only throughput is reported in this case,
+ * as serial writes cannot be observed.</li>
+ * </ul>
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class LoadGenerator {
+
+	/** Prefix of raw commands whose latency is measured: LT[connection|sequence] **/
+	private static final String TAG = "LT[";
+
+	/** Send timestamp (nanos) of tagged commands that were not written to the serial port yet **/
+	private final Map<Long, Long> pending = new ConcurrentHashMap<Long, Long>();
+	/** Measured latencies, in nanoseconds **/
+	private long[] latencies = new long[1024];
+	/** Number of measured latencies **/
+	private int latencyCount;
+
+	/** Commands sent by all clients **/
+	private final AtomicLong sentCommands = new AtomicLong();
+	/** Tagged (raw) commands sent by all clients **/
+	private final AtomicLong sentTagged = new AtomicLong();
+	/** Activation envelopes sent by all clients **/
+	private final AtomicLong sentActivations = new AtomicLong();
+	/** Clients that failed (connection refused or broken) **/
+	private final AtomicLong failedClients = new AtomicLong();
+
+	/** Test options **/
+	private final Map<String, String> options;
+	/** Clients keep sending while this flag is set **/
+	private volatile boolean running = true;
+
+	/**
+	 * Constructor
+	 * @param options Test options, without the leading "--"
+	 */
+	public LoadGenerator(Map<String, String> options) {
+		this.options = options;
+	}
+
+	/**
+	 * Main method - parse the options and run the test
+	 * @param args Command line arguments, in "--name value" pairs
+	 * @throws Exception Error running the test
+	 */
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+		}
+		new LoadGenerator(options).run();
+		// Connection handlers may still be draining commands that were dropped - do not wait for them
+		System.exit(0);
+	}
+
+	/**
+	 * Called by the emulated port every time a command is written to it.
+	 * @param data Command data written to the port
+	 * @param nanoTime Write timestamp (System.nanoTime())
+	 */
+	void serialWrite(String data, long nanoTime) {
+		if (data == null || !data.startsWith(TAG)) {
+			return;
+		}
+		int sep = data.indexOf('|');
+		long key = ((long)Integer.parseInt(data.substring(TAG.length(), sep)) << 32)
+				| Integer.parseInt(data.substring(sep + 1, data.length() - 1));
+		Long sentAt = pending.remove(key);
+		if (sentAt != null) {
+			recordLatency(nanoTime - sentAt);
+		}
+	}
+
+	/**
+	 * Run the test and print the report
+	 * @throws Exception Error starting the proxy or the clients
+	 */
+	public void run() throws Exception {
+		int connections = intOption("connections", 16);
+		int duration = intOption("duration", 30);
+		double rate = Double.parseDouble(option("rate", "2"));
+		int activationEvery = intOption("activation-every", 1);
+		double macroRatio = Double.parseDouble(option("macro-ratio", "0.2"));
+		int drain = intOption("drain", 10);
+		String target = option("target", null);
+
+		Config config = new Config(new File(option("config", "config.xml")));
+		final String[] macroKeys = config.getMacros().keySet().toArray(new String[0]);
+
+		// The proxy logs every command - keep it out of the report
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		}));
+
+		// Start the proxy in this JVM, unless an external one was given
+		EmulatedCommPort commPort = null;
+		ServerSocket server = null;
+		InetSocketAddress address;
+		if (target == null) {
+			commPort = new EmulatedCommPort(intOption("baud", 9600), Boolean.parseBoolean(option("compact", "false")), this);
+			commPort.syncMacroTable(config);
+			server = new ServerSocket(0, 512, InetAddress.getLoopbackAddress());
+			final ServerSocket s = server;
+			final EmulatedCommPort p = commPort;
+			Thread acceptor = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						CASASynthProxy.acceptConnections(s, p, config);
+					} catch (Exception e) {
+						// Server socket closed at the end of the test
+					}
+				}
+			}, "load-proxy-acceptor");
+			acceptor.setDaemon(true);
+			acceptor.start();
+			address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+		} else {
+			String[] hostPort = target.split(":");
+			address = new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1]));
+		}
+
+		// Resource sampling
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		final int baseThreads = threads.getThreadCount();
+		final long[] peaks = new long[2];
+		Thread sampler = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (running) {
+					peaks[0] = Math.max(peaks[0], threads.getThreadCount());
+					peaks[1] = Math.max(peaks[1], memory.getHeapMemoryUsage().getUsed());
+					LockSupport.parkNanos(100_000_000L);
+				}
+			}
+		}, "load-sampler");
+		sampler.setDaemon(true);
+		sampler.start();
+
+		// Start the clients
+		long intervalNanos = (long)(1_000_000_000L / rate);
+		List<Thread> clients = new ArrayList<Thread>();
+		long start = System.nanoTime();
+		for (int i = 0; i < connections; i++) {
+			Thread client = new Thread(new Client(i, address, intervalNanos, activationEvery, macroRatio, macroKeys),
+					"load-client-" + i);
+			clients.add(client);
+			client.start();
+		}
+
+		Thread.sleep(duration * 1000L);
+		running = false;
+		for (Thread client : clients) {
+			client.join();
+		}
+		long elapsed = System.nanoTime() - start;
+
+		// Wait for queued commands to reach the serial port
+		long drainUntil = System.nanoTime() + drain * 1_000_000_000L;
+		while (commPort != null && !pending.isEmpty() && System.nanoTime() < drainUntil) {
+			Thread.sleep(50);
+		}
+		long drained = System.nanoTime() - start;
+		if (server != null) {
+			server.close();
+		}
+
+		// Report
+		out.println("CASASynthProxy load test");
+		out.println(String.format("Clients: %d (%d failed), duration %.1f s, rate %.1f cmd/s per client, activation every %d command(s)",
+				connections, failedClients.get(), elapsed / 1e9, rate, activationEvery));
+		out.println(String.format("Sent: %d commands (%d tagged, %d macro), %d activations",
+				sentCommands.get(), sentTagged.get(), sentCommands.get() - sentTagged.get(), sentActivations.get()));
+		out.println(String.format("Client throughput: %.1f commands/s", sentCommands.get() / (elapsed / 1e9)));
+		if (commPort != null) {
+			out.println(String.format("Serial: %d frames, %d bytes, %.1f frames/s (until drained)",
+					commPort.getFrames(), commPort.getBytes(), commPort.getFrames() / (drained / 1e9)));
+			synchronized (this) {
+				long[] sorted = Arrays.copyOf(latencies, latencyCount);
+				Arrays.sort(sorted);
+				out.println(String.format("Command to serial write latency (ms): p50 %.2f, p99 %.2f, p999 %.2f, max %.2f (%d samples)",
+						percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999),
+						percentile(sorted, 1), sorted.length));
+			}
+			out.println(String.format("Dropped (tagged commands never written): %d", pending.size()));
+		} else {
+			out.println("External proxy: serial latency and dropped commands are not available");
+		}
+		out.println(String.format("Peak threads: %d (%d before the test, %d clients), peak heap: %.1f MB",
+				peaks[0], baseThreads, connections, peaks[1] / (1024.0 * 1024.0)));
+	}
+
+	/**
+	 * Store a measured latency
+	 * @param nanos Latency in nanoseconds
+	 */
+	private synchronized void recordLatency(long nanos) {
+		if (latencyCount == latencies.length) {
+			latencies = Arrays.copyOf(latencies, latencies.length * 2);
+		}
+		latencies[latencyCount++] = nanos;
+	}
+
+	/**
+	 * Get a percentile, in milliseconds
+	 * @param sorted Sorted latencies, in nanoseconds
+	 * @param p Percentile, from 0 to 1
+	 * @return Percentile in milliseconds, or 0 if there are no samples
+	 */
+	private static double percentile(long[] sorted, double p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int index = (int)Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+	}
+
+	/**
+	 * Get an option value
+	 * @param name Option name
+	 * @param defaultValue Value returned if the option is not set
+	 * @return Option value
+	 */
+	private String option(String name, String defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	/**
+	 * Get an integer option value
+	 * @param name Option name
+	 * @param defaultValue Value returned if the option is not set
+	 * @return Option value
+	 */
+	private int intOption(String name, int defaultValue) {
+		return Integer.parseInt(option(name, String.valueOf(defaultValue)));
+	}
+
+	/**
+	 * One simulated BitVoicer client: a keep-alive connection sending commands at a fixed rate.
+	 */
+	private class Client implements Runnable {
+
+		/** Client number **/
+		private final int id;
+		/** Proxy address **/
+		private final InetSocketAddress address;
+		/** Time between commands **/
+		private final long intervalNanos;
+		/** Send an activation envelope before every n commands **/
+		private final int activationEvery;
+		/** Fraction of macro key commands **/
+		private final double macroRatio;
+		/** Macro keys available in the configuration **/
+		private final String[] macroKeys;
+
+		/**
+		 * Constructor
+		 * @param id Client number
+		 * @param address Proxy address
+		 * @param intervalNanos Time between commands
+		 * @param activationEvery Send an activation envelope before every n commands
+		 * @param macroRatio Fraction of macro key commands
+		 * @param macroKeys Macro keys available in the configuration
+		 */
+		Client(int id, InetSocketAddress address, long intervalNanos, int activationEvery, double macroRatio, String[] macroKeys) {
+			this.id = id;
+			this.address = address;
+			this.intervalNanos = intervalNanos;
+			this.activationEvery = Math.max(1, activationEvery);
+			this.macroRatio = macroKeys.length == 0 ? 0 : macroRatio;
+			this.macroKeys = macroKeys;
+		}
+
+		@Override
+		public void run() {
+			Random random = new Random(id);
+			byte[] activation = new Command().setCommandTp(Command.TP_STRING).setData("E10000").toBytes(false);
+			try (Socket socket = new Socket()) {
+				socket.setTcpNoDelay(true);
+				socket.connect(address);
+				OutputStream os = socket.getOutputStream();
+				// Spread clients over the first interval so they do not fire all at once
+				long next = System.nanoTime() + (long)(random.nextDouble() * intervalNanos);
+				for (int seq = 0; running; seq++) {
+					long wait = next - System.nanoTime();
+					if (wait > 0) {
+						LockSupport.parkNanos(wait);
+					}
+					next += intervalNanos;
+
+					if (seq % activationEvery == 0) {
+						os.write(activation);
+						sentActivations.incrementAndGet();
+					}
+					Command command = new Command().setCommandTp(Command.TP_STRING);
+					if (random.nextDouble() < macroRatio) {
+						command.setData(macroKeys[random.nextInt(macroKeys.length)]);
+					} else {
+						command.setData(TAG + id + "|" + seq + "]");
+						pending.put(((long)id << 32) | seq, System.nanoTime());
+						sentTagged.incrementAndGet();
+					}
+					os.write(command.toBytes(false));
+					sentCommands.incrementAndGet();
+				}
+			} catch (Exception e) {
+				failedClients.incrementAndGet();
+			}
+		}
+	}
+}
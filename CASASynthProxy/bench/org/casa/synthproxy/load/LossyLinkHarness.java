@@ -0,0 +1,315 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy.load;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.casa.synthproxy.Clock;
+import org.casa.synthproxy.CompactCodec;
+import org.casa.synthproxy.SendWindow;
+import org.casa.synthproxy.SimulatedClock;
+
+/**
+ * Delivery test of the compact protocol send window ({@link SendWindow}) over a lossy serial link.
+ *
+ * An emulated CASAActuator follows the firmware's rules: frames are executed in sequence order and
+ * acknowledged after they run, frames ahead of a missing one are kept while the missing one is NAKed, broken
+ * frames (bad CRC) are NAKed, and frames executed already are acknowledged again. The link in between drops
+ * a share of the frames and corrupts another share - a random bit of the sequence number, operations or CRC
+ * is flipped.
+ *
+ * Everything runs in one thread on a {@link SimulatedClock} with auto advance: the window's waits jump to
+ * the next emulated answer or timeout, so thousands of commands take a moment and a seed always gives the
+ * same run.
+ *
+ * The run fails (exit code 1) if a frame is executed twice or out of order, or if a command reported as
+ * delivered was not executed in full. Commands given up after all retries are counted, not failed - that
+ * is what the window does when a frame is lost too many times in a row.
+ *
+ * Options (all of them optional):
+ * <ul>
+ * <li>--commands: number of commands sent. Default 2000.</li>
+ * <li>--drop: fraction (0 to 1) of frames dropped by the link. Default 0.1.</li>
+ * <li>--corrupt: fraction (0 to 1) of frames corrupted by the link. Default 0.1.</li>
+ * <li>--baud: emulated serial baud rate. Default 115200.</li>
+ * <li>--seed: random seed. Default 1.</li>
+ * </ul>
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class LossyLinkHarness {
+
+	/** Frames in each command, at most **/
+	private static final int MAX_FRAMES = 4;
+	/** Execution time of each frame, in milliseconds, at most **/
+	private static final int MAX_DURATION = 200;
+	/** Frame payload: sequence number and frame ID (4 bytes, big endian) **/
+	private static final int PAYLOAD = 5;
+	/** Frame size **/
+	private static final int FRAME = PAYLOAD + CompactCodec.FRAME_OVERHEAD;
+
+	/** Simulated time **/
+	private final SimulatedClock clock = new SimulatedClock(0);
+	/** Runs the emulated transfers and answers **/
+	private final ScheduledExecutorService actuator;
+	/** Window under test **/
+	private final SendWindow window;
+	/** Link losses and frame contents **/
+	private final Random random;
+	/** Fraction of frames dropped **/
+	private final double drop;
+	/** Fraction of frames corrupted **/
+	private final double corrupt;
+	/** Time to transfer one byte, in milliseconds **/
+	private final double millisPerByte;
+
+	/** Execution time of each frame, by frame ID **/
+	private int[] durations = new int[1024];
+	/** Next frame ID **/
+	private int nextId = 0;
+	/** Times each frame was executed, by frame ID **/
+	private int[] executions = new int[1024];
+	/** Last frame executed, -1 if none **/
+	private int lastExecuted = -1;
+	/** Next sequence number expected by the emulated CASAActuator **/
+	private int expectedSeq = 0;
+	/** Frames kept ahead of a missing one, by slot **/
+	private final byte[][] slots = new byte[SendWindow.WINDOW_SIZE][];
+	/** When the emulated CASAActuator is done with the frames it is running **/
+	private long busyUntil = 0;
+
+	/** Frames written by the window, retransmissions included **/
+	private long transmissions;
+	/** Frames dropped by the link **/
+	private long dropped;
+	/** Frames corrupted by the link **/
+	private long corrupted;
+	/** NAKs sent by the emulated CASAActuator **/
+	private long naks;
+	/** Frames executed twice or out of order **/
+	private long misordered;
+
+	/**
+	 * Constructor
+	 * @param options Test options, without the leading "--"
+	 */
+	public LossyLinkHarness(Map<String, String> options) {
+		this.random = new Random(Long.parseLong(option(options, "seed", "1")));
+		this.drop = Double.parseDouble(option(options, "drop", "0.1"));
+		this.corrupt = Double.parseDouble(option(options, "corrupt", "0.1"));
+		int baudRate = Integer.parseInt(option(options, "baud", "115200"));
+		this.millisPerByte = 10000.0 / baudRate;
+		clock.setAutoAdvance(true);
+		Clock.setInstance(clock);
+		this.actuator = clock.newScheduler("CASAActuator");
+		this.window = new SendWindow(new SendWindow.Link() {
+			@Override
+			public void write(byte[] frame, int length) {
+				transmit(Arrays.copyOf(frame, length));
+			}
+		}, baudRate);
+	}
+
+	/**
+	 * Main method - parse the options and run the test
+	 * @param args Command line arguments, in "--name value" pairs
+	 * @throws Exception Error running the test
+	 */
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+		}
+		System.exit(new LossyLinkHarness(options).run(Integer.parseInt(option(options, "commands", "2000"))) ? 0 : 1);
+	}
+
+	/**
+	 * Get an option
+	 * @param options Test options
+	 * @param name Option name
+	 * @param defaultValue Value used when the option is not given
+	 * @return Option value
+	 */
+	private static String option(Map<String, String> options, String name, String defaultValue) {
+		return options.containsKey(name) ? options.get(name) : defaultValue;
+	}
+
+	/**
+	 * Send the commands and check what the emulated CASAActuator executed
+	 * @param commands Number of commands
+	 * @return true if every frame was executed at most once, in order, and every delivered command in full
+	 */
+	public boolean run(int commands) {
+		long delivered = 0;
+		long givenUp = 0;
+		long incomplete = 0;
+		long start = System.nanoTime();
+		for (int c = 0; c < commands; c++) {
+			int frames = 1 + random.nextInt(MAX_FRAMES);
+			int first = nextId;
+			ByteBuffer buffer = ByteBuffer.allocate(frames * FRAME);
+			int frameDurations[] = new int[frames];
+			for (int f = 0; f < frames; f++) {
+				frameDurations[f] = random.nextInt(MAX_DURATION + 1);
+				buffer.put(frame(nextId++, frameDurations[f]));
+			}
+			buffer.flip();
+			try {
+				window.send(buffer, frameDurations);
+				delivered++;
+				for (int id = first; id < nextId; id++) {
+					if (executions[id] == 0) {
+						incomplete++;
+						break;
+					}
+				}
+			} catch (Exception e) {
+				givenUp++;
+			}
+		}
+		// Let the answers still on their way arrive
+		clock.advance(MAX_FRAMES * MAX_DURATION * 10);
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println("Comandos: " + commands + " (" + delivered + " entregues, " + givenUp + " desistidos)");
+		System.out.println("Frames: " + nextId + ", transmisses: " + transmissions + ", descartados: " + dropped
+				+ ", corrompidos: " + corrupted + ", NAKs: " + naks);
+		System.out.println("Tempo simulado: " + clock.currentTimeMillis() + " ms, tempo real: "
+				+ TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+		System.out.println("Frames executados fora de ordem ou repetidos: " + misordered
+				+ ", comandos entregues incompletos: " + incomplete);
+		return misordered == 0 && incomplete == 0;
+	}
+
+	/**
+	 * Build a frame, not sealed yet (the window sets its sequence number and CRC)
+	 * @param id Frame ID
+	 * @param duration Execution time, in milliseconds
+	 * @return Frame
+	 */
+	private byte[] frame(int id, int duration) {
+		if (id == durations.length) {
+			durations = Arrays.copyOf(durations, id * 2);
+			executions = Arrays.copyOf(executions, id * 2);
+		}
+		durations[id] = duration;
+		ByteBuffer frame = ByteBuffer.allocate(FRAME);
+		frame.put(CompactCodec.FRAME_START).put((byte)PAYLOAD).put((byte)0).putInt(id).putShort((short)0)
+				.put(CompactCodec.FRAME_END);
+		return frame.array();
+	}
+
+	/**
+	 * The window wrote a frame - the link drops it, corrupts it or delivers it after its transfer time
+	 * @param frame Frame
+	 */
+	private void transmit(final byte[] frame) {
+		transmissions++;
+		double r = random.nextDouble();
+		if (r < drop) {
+			dropped++;
+			return;
+		}
+		if (r < drop + corrupt) {
+			corrupted++;
+			// Sequence number, payload or CRC - a broken start, length or end byte is a dropped frame
+			frame[2 + random.nextInt(frame.length - 3)] ^= 1 << random.nextInt(8);
+		}
+		actuator.schedule(new Runnable() {
+			@Override
+			public void run() {
+				receive(frame);
+			}
+		}, (long)Math.ceil(frame.length * millisPerByte), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * The emulated CASAActuator received a frame
+	 * @param frame Frame
+	 */
+	private void receive(byte[] frame) {
+		int covered = (frame[1] & CompactCodec.LENGTH_MASK) + 1;
+		int crc = ((frame[1 + covered] & 0xFF) << 8) | (frame[2 + covered] & 0xFF);
+		int seq = frame[2] & 0xFF;
+		if (crc != CompactCodec.crc16(frame, 1, covered)) {
+			answer(false, seq);
+			return;
+		}
+		if ((frame[1] & CompactCodec.FLAG_SYNC) != 0 && ((seq + 1) & 0xFF) != expectedSeq) {
+			expectedSeq = seq;
+			Arrays.fill(slots, null);
+		}
+		int ahead = (seq - expectedSeq) & 0xFF;
+		if (ahead == 0) {
+			execute(frame);
+			for (byte[] kept = slots[expectedSeq % slots.length]; kept != null; kept = slots[expectedSeq % slots.length]) {
+				slots[expectedSeq % slots.length] = null;
+				execute(kept);
+			}
+		} else if (ahead < slots.length) {
+			slots[seq % slots.length] = frame;
+			answer(false, expectedSeq);
+		} else {
+			answer(true, seq);
+		}
+	}
+
+	/**
+	 * Execute a frame and acknowledge it once it ran
+	 * @param frame Frame
+	 */
+	private void execute(byte[] frame) {
+		int id = ByteBuffer.wrap(frame, 3, 4).getInt();
+		if (executions[id]++ > 0 || id < lastExecuted) {
+			misordered++;
+		}
+		lastExecuted = Math.max(lastExecuted, id);
+		busyUntil = Math.max(busyUntil, clock.currentTimeMillis()) + durations[id];
+		answer(true, frame[2] & 0xFF);
+		expectedSeq = (expectedSeq + 1) & 0xFF;
+	}
+
+	/**
+	 * Answer a frame, once the emulated CASAActuator is done with the frames it is running
+	 * @param ack true for an ACK, false for a NAK
+	 * @param seq Sequence number
+	 */
+	private void answer(final boolean ack, final int seq) {
+		if (!ack) {
+			naks++;
+		}
+		actuator.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (ack) {
+					window.ack(seq);
+				} else {
+					window.nak(seq);
+				}
+			}
+		}, Math.max(0, busyUntil - clock.currentTimeMillis()), TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,150 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.casa.synthproxy.ide.GUI;
+
+/**
+ * Dispatcher of events sent by CASAActuator on its own (a button press, an IR code, and so on).
+ *
+ * The serial event thread only posts events to a bounded queue and goes back to reading the port; a
+ * dedicated thread takes them from the queue and hands each one to the handler registered for its type
+ * (the first character of the event). A slow handler only delays other events, never serial reception.
+ * When the queue is full, an event is dropped according to the {@link OverflowPolicy}.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class ActuatorEventDispatcher implements Runnable {
+
+	/** Events waiting to be handled **/
+	public static final int QUEUE_SIZE = 32;
+
+	/**
+	 * Handler of one type of event
+	 */
+	public interface Handler {
+		/**
+		 * Handle an event. Runs in the dispatcher thread.
+		 * @param event Event, as sent by CASAActuator (Ex.: "B;")
+		 */
+		void handle(String event);
+	}
+
+	/**
+	 * What to do with an event that arrives when the queue is full
+	 */
+	public enum OverflowPolicy {
+		/** Drop the event that arrived - events already queued are kept **/
+		DROP_NEWEST,
+		/** Drop the oldest queued event to make room - the most recent events are kept **/
+		DROP_OLDEST
+	}
+
+	/** Events waiting to be handled **/
+	private final BlockingQueue<String> queue = new ArrayBlockingQueue<String>(QUEUE_SIZE);
+	/** Handlers by event type - only changed before the dispatcher is started **/
+	private final Map<Character, Handler> handlers = new HashMap<Character, Handler>();
+	/** Overflow policy **/
+	private final OverflowPolicy policy;
+	/** Dispatcher thread **/
+	private Thread thread;
+
+	/**
+	 * Constructor
+	 * @param policy What to do with an event that arrives when the queue is full
+	 */
+	public ActuatorEventDispatcher(OverflowPolicy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * Register the handler of a type of event. Handlers have to be registered before the dispatcher is started.
+	 * @param type Event type - the first character of the event
+	 * @param handler Event handler
+	 */
+	public void register(char type, Handler handler) {
+		handlers.put(type, handler);
+	}
+
+	/**
+	 * Start the dispatcher thread
+	 */
+	public void start() {
+		thread = new Thread(this, "ActuatorEventDispatcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop the dispatcher thread. Events still in the queue are not handled.
+	 */
+	public void close() {
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Queue an event. Never blocks - when the queue is full, an event is dropped.
+	 * @param event Event, as sent by CASAActuator
+	 */
+	public void post(String event) {
+		if (queue.offer(event)) {
+			return;
+		}
+		String dropped = event;
+		if (policy == OverflowPolicy.DROP_OLDEST) {
+			dropped = queue.poll();
+			queue.offer(event);
+		}
+		GUI.addMessage("Fila de eventos do CASAActuator cheia, descartando evento: " + dropped);
+	}
+
+	/**
+	 * Dispatcher thread: hand each event to its handler, in arrival order
+	 */
+	@Override
+	public void run() {
+		while (!Thread.currentThread().isInterrupted()) {
+			String event;
+			try {
+				event = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			Handler handler = event.isEmpty() ? null : handlers.get(event.charAt(0));
+			if (handler == null) {
+				GUI.addMessage("Evento do CASAActuator sem tratamento: " + event);
+				continue;
+			}
+			try {
+				handler.handle(event);
+			} catch (Exception e) {
+				// A failed handler must not stop the dispatcher
+				e.printStackTrace();
+			}
+		}
+	}
+}
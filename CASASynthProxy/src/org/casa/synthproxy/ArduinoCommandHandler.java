@@ -19,8 +19,14 @@
  */
 package org.casa.synthproxy;
 
-import org.casa.synthproxy.ide.CycleThread;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.casa.synthproxy.config.Config;
 import org.casa.synthproxy.ide.GUI;
+import org.casa.synthproxy.ide.ScanEngine;
 
 /**
  * Arduino Command Handler is the class that handles all commands received from 
@@ -30,41 +36,79 @@ import org.casa.synthproxy.ide.GUI;
  */
 public class ArduinoCommandHandler extends CommandSender {
 
+	/** A code received again within this time, in milliseconds, is a key held down and is ignored **/
+	private static final long REPEAT_INTERVAL = 400;
+
+	/** Macro index by IR code (see {@link IRCode}) **/
+	private final IRCodeMap irMacros;
+	/** Macro keys, by index **/
+	private final List<String> macroKeys = new ArrayList<String>();
+	/** Learned IR codes, or null if learning mode is off **/
+	private final IRLibrary irLibrary;
+	/** Last IR code received - dispatcher thread only **/
+	private long lastIRCode = IRCode.INVALID;
+	/** When the last IR code was received, in milliseconds - dispatcher thread only **/
+	private long lastIRCodeAt = 0;
+	/** Time source **/
+	private final Clock clock = Clock.getInstance();
+
 	/**
-	 * This is the main command handling method. Commands received
-	 * from CASAActuator will be sorted and delegated from within
-	 * this method
-	 * @param commandData Command information received from CASAActuator.
+	 * Constructor. Builds the IR code map from the irmap configuration, and opens the IR code library
+	 * when learning mode (irLearning) is on.
+	 * @param config CASASynthProxy configuration
 	 */
-	public void handleCommand(String commandData) {
-		if ("B;".equals(commandData)) {
-			buttonPressed();
-		} else if ("R;".equals(commandData)) {
-			ring();
-		} else if (commandData.startsWith("I")) {
-			irCode(commandData);
+	public ArduinoCommandHandler(Config config) {
+		irMacros = new IRCodeMap(config.getIrMap().size());
+		for (Map.Entry<String, String> entry : config.getIrMap().entrySet()) {
+			long key = IRCode.parse(entry.getKey(), 0, entry.getKey().length());
+			if (key == IRCode.INVALID) {
+				GUI.addMessage("Cdigo IR invlido na configurao: " + entry.getKey());
+				continue;
+			}
+			irMacros.put(key, macroKeys.size());
+			macroKeys.add(entry.getValue());
+		}
+		if (Boolean.parseBoolean(Config.getGeneralConfigEntry("irLearning", "false"))) {
+			irLibrary = new IRLibrary(new File(Config.getGeneralConfigEntry("irLibraryFile", "irlibrary.txt")));
+			GUI.addMessage("Modo de aprendizado IR ligado: " + irLibrary.size() + " cdigos conhecidos");
+		} else {
+			irLibrary = null;
 		}
 	}
+
+	/**
+	 * Register the handlers of the commands received from CASAActuator.
+	 * Each type of command is delegated to its own method.
+	 * @param dispatcher Dispatcher of the events sent by CASAActuator
+	 */
+	public void register(ActuatorEventDispatcher dispatcher) {
+		dispatcher.register('B', new ActuatorEventDispatcher.Handler() {
+			@Override
+			public void handle(String event) {
+				buttonPressed();
+			}
+		});
+		dispatcher.register('R', new ActuatorEventDispatcher.Handler() {
+			@Override
+			public void handle(String event) {
+				ring();
+			}
+		});
+		dispatcher.register('I', new ActuatorEventDispatcher.Handler() {
+			@Override
+			public void handle(String event) {
+				irCode(event);
+			}
+		});
+	}
 	
 	/**
 	 * This method will handle a simple "button pressed" event.
-	 * It interacts with the cycling thread that interacts with the
-	 * user. 			
+	 * It interacts with the scan engine that interacts with the
+	 * user: scanning starts, or the highlighted item is selected.
 	 */
 	public void buttonPressed() {
-		try {
-			// First we need to know if we are in sleep mode or in Cycle mode.
-			if (CycleThread.getInstance().isAlive()) {
-				// There is a cycling thread, request selecion
-				CycleThread.getInstance().selectionRequested();
-			} else {
-				// Sleep mode, as there is no active thread. Start it
-				CycleThread.getInstance().start();
-			}
-		} catch (Exception e) {
-			// Nothing to do here, just print the error
-			e.printStackTrace();
-		}
+		ScanEngine.getInstance().buttonPressed();
 	}
 	
 	/**
@@ -79,13 +123,37 @@ public class ArduinoCommandHandler extends CommandSender {
 	
 	/**
 	 * This method will handle a CASAActuator IR receiving event.
-	 * The goal is to print the command information in the console
-	 * so that the CASA system could be configured. 
-	 * @param commandData IRCode information received from CASAActuator
+	 * In learning mode, new codes are added to the IR code library, so that the CASA system
+	 * could be configured. Otherwise, the macro mapped to the code, if any, is sent - the code
+	 * is parsed and looked up without building any string.
+	 * @param commandData IRCode information received from CASAActuator (Ex.: "INEC|0xE17A48B7|32;")
 	 */
 	public void irCode(String commandData) {
-		String irData = commandData.substring(1);
-		
-		GUI.addMessage("Comando IR recebido: " + irData);
+		int end = commandData.endsWith(";") ? commandData.length() - 1 : commandData.length();
+		long key = IRCode.parse(commandData, 1, end);
+		if (key == IRCode.INVALID) {
+			GUI.addMessage("Comando IR recebido: " + commandData.substring(1));
+			return;
+		}
+
+		long now = clock.currentTimeMillis();
+		boolean repeated = key == lastIRCode && now - lastIRCodeAt < REPEAT_INTERVAL;
+		lastIRCode = key;
+		lastIRCodeAt = now;
+		if (repeated) {
+			return;
+		}
+
+		if (irLibrary != null) {
+			if (irLibrary.learn(key)) {
+				GUI.addMessage("Cdigo IR aprendido: <ir code=\"" + IRCode.toString(key) + "\" macro=\"\" />");
+			}
+			return;
+		}
+		int macro = irMacros.get(key);
+		if (macro != IRCodeMap.NOT_FOUND) {
+			GUI.addMessage("Comando IR recebido, enviando macro " + macroKeys.get(macro));
+			sendCommand(new Command().setCommandTp(Command.TP_STRING).setData(macroKeys.get(macro)));
+		}
 	}
 }
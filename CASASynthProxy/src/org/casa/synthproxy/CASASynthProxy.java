@@ -20,6 +20,9 @@
 package org.casa.synthproxy;
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 
@@ -31,6 +34,9 @@ import org.casa.synthproxy.ide.GUI;
  * 
  * It reads the configuration and starts the IDE and network daemon.
  * 
+ * With the "-headless" argument (or headless set to true in the configuration) no window is created:
+ * CASASynthProxy runs as a daemon, scanning is announced by prompts and messages go to the log file.
+ * 
  * @author Daniel Parra Tucunduva
  */
 public class CASASynthProxy {
@@ -47,29 +53,90 @@ public class CASASynthProxy {
 
 		// Read config file
 		Config config = new Config(new File("config.xml"));
-		
-		GUI.initGUI(config);
 
-		GUI.addMessage("Iniciando CASASynthProxy...");
+		boolean headless = Boolean.parseBoolean(Config.getGeneralConfigEntry("headless", "false"));
+		for (String arg : args) {
+			headless |= "-headless".equals(arg);
+		}
+		String logFile = Config.getGeneralConfigEntry("logFile", null);
+		if (logFile != null) {
+			try {
+				GUI.initLog(new File(logFile));
+			} catch (IOException e) {
+				GUI.addMessage("Erro abrindo arquivo de log " + logFile);
+				e.printStackTrace();
+			}
+		}
+		if (headless) {
+			System.setProperty("java.awt.headless", "true");
+			GUI.initHeadless(config);
+		} else {
+			GUI.initGUI(config);
+		}
+
+		GUI.addMessage("Iniciando CASASynthProxy" + (headless ? " sem interface grfica" : "") + "...");
 
 		// Check IP and port.
 		host = Config.getGeneralConfigEntry("bindHost", "localhost");
 		port = Integer.parseInt(Config.getGeneralConfigEntry("bindPort", "11000"));
 		GUI.addMessage("HOSTNAME/PORTA: " + host + ":" + port);
 		
-		// Search for arduino in all COM ports
-		GUI.addMessage("Procurando Arduino...");
-		CommPort commPort = null;
-		try {
-			commPort = CommPort.getArduinoCommPort();
-			GUI.addMessage("Conexo serial com arduino iniciada com sucesso na porta " + commPort.getSerialPort().getPortName());
-		} catch (Exception e) {
-			GUI.addMessage("Erro abrindo porta serial - " + e.getMessage());
+		// Events sent by CASAActuator are handled in their own thread, started once everything they reach is set up
+		ActuatorEventDispatcher eventDispatcher = new ActuatorEventDispatcher(
+				"dropNewest".equals(Config.getGeneralConfigEntry("actuatorEventOverflow", "dropOldest"))
+				? ActuatorEventDispatcher.OverflowPolicy.DROP_NEWEST : ActuatorEventDispatcher.OverflowPolicy.DROP_OLDEST);
+		new ArduinoCommandHandler(config).register(eventDispatcher);
+
+		// Composite commands are compiled for the configured devices, with the calibrated delays - before the
+		// macro table is built from them
+		DelayProfile delayProfile = new DelayProfile(new File(Config.getGeneralConfigEntry("delayProfileFile", "delays.properties")));
+		if (!config.getDevices().isEmpty()) {
+			SceneCompiler sceneCompiler = new SceneCompiler(config.getDevices(), delayProfile);
+			sceneCompiler.report(config.getExpandedMacros());
+			SceneCompiler.setInstance(sceneCompiler);
 		}
 
+		// Link to CASAActuator. It is only started below, after the bus and the scheduler the events reach.
+		LinkSupervisor commPort = new LinkSupervisor(config);
+		commPort.setEventDispatcher(eventDispatcher);
+
+		// Delays between IR codes calibrated through the network
+		DelayCalibrator.setInstance(new DelayCalibrator(commPort, config, delayProfile));
+
+		// Known device state, so that commands that would not change anything are not sent
+		DeviceState.setInstance(new DeviceState(Long.parseLong(Config.getGeneralConfigEntry("stateTTL", "1800000"))));
+
+		// Commands produced inside CASASynthProxy are run through the internal bus
+		CommandBus.setInstance(new CommandBus(commPort, config));
+
+		// Timed and recurring commands
+		CommandScheduler.setInstance(new CommandScheduler(config,
+				new File(Config.getGeneralConfigEntry("scheduleFile", "schedules.properties"))));
+
 		// Bind port to wait for connections
 		ServerSocket s = new ServerSocket();
 		s.bind(new InetSocketAddress(host, port));
+
+		// Search for arduino in all COM ports. The link supervisor looks for it again whenever it is lost,
+		// setting up the event dispatcher and uploading the macro table on each port found.
+		eventDispatcher.start();
+		commPort.start();
+
+		// Fire-and-forget commands over UDP, if a port is set
+		DatagramListener datagramListener = null;
+		String udpPort = Config.getGeneralConfigEntry("udpPort", null);
+		if (udpPort != null) {
+			try {
+				datagramListener = new DatagramListener(host, Integer.parseInt(udpPort), commPort, config);
+				datagramListener.start();
+				GUI.addMessage("Aguardando datagramas na porta UDP " + udpPort);
+			} catch (Exception e) {
+				GUI.addMessage("Erro abrindo porta UDP " + udpPort);
+				e.printStackTrace();
+			}
+		}
+
+		reportStartup(headless);
 		GUI.addMessage("Aguardando comando...");
 		
 		// Start BitVoicer if configuration is set
@@ -83,13 +150,7 @@ public class CASASynthProxy {
 		}
 
 		// For each connection, starts a thread that will handle commands 
-		while (s.isBound()) {
-			ConnectionHandler n = new ConnectionHandler(commPort, config);
-			Thread thread = new Thread(n);
-			n.setSocket(s.accept());
-			GUI.addMessage("Conexo de rede recebida!");
-			thread.start();
-		}
+		acceptConnections(s, commPort, config);
 		
 		// Bind has ended, shut down.
 		try {
@@ -100,7 +161,43 @@ public class CASASynthProxy {
 			e.printStackTrace();
 		}
 
+		if (datagramListener != null) {
+			datagramListener.close();
+		}
+
 		GUI.addMessage("Finalizando CASASynthProxy.");
 		s.close();
 	}
+
+	/**
+	 * Log how long CASASynthProxy took to start and how much memory it is using, so that both modes
+	 * can be compared
+	 * @param headless true if running without GUI
+	 */
+	private static void reportStartup(boolean headless) {
+		long startup = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+		MemoryUsage nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+		GUI.addMessage("Modo " + (headless ? "headless" : "GUI") + " iniciado em " + startup + " ms. Memria: heap "
+				+ heap.getUsed() / 1024 + " KB usados / " + heap.getCommitted() / 1024 + " KB alocados, fora do heap "
+				+ nonHeap.getUsed() / 1024 + " KB usados");
+	}
+
+	/**
+	 * Wait for network connections and start a {@link ConnectionHandler} thread for each one.
+	 * This method only returns when the server socket is no longer bound.
+	 * @param s Server socket, already bound
+	 * @param commPort Serial port that commands will be sent to
+	 * @param config CASASynthProxy configuration
+	 * @throws IOException Error accepting a connection (for instance, the server socket was closed)
+	 */
+	public static void acceptConnections(ServerSocket s, CommPort commPort, Config config) throws IOException {
+		while (s.isBound()) {
+			ConnectionHandler n = new ConnectionHandler(commPort, config);
+			Thread thread = new Thread(n);
+			n.setSocket(s.accept());
+			GUI.addMessage("Conexo de rede recebida!");
+			thread.start();
+		}
+	}
 }
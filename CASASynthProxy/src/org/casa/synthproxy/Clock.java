@@ -0,0 +1,133 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Time source of CASASynthProxy. Activation windows, scanning dwells, heartbeats, ACK timeouts, poll loops
+ * and command schedules all read the time, sleep, wait and schedule through a clock instead of calling
+ * System.currentTimeMillis(), Thread.sleep() and Object.wait() directly, so that tests and benchmarks can
+ * run them against a {@link SimulatedClock} - deterministically and far faster than real time.
+ *
+ * Components take the clock that is set when they are created, so a different clock has to be set before
+ * CASASynthProxy is started (or before the scan engine class is loaded, as it is created with its class).
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public abstract class Clock {
+
+	/** System time - the clock used when no other was set **/
+	public static final Clock SYSTEM = new SystemClock();
+
+	/** Clock used by this CASASynthProxy instance **/
+	private static volatile Clock instance = SYSTEM;
+
+	/**
+	 * Get the clock used by this CASASynthProxy instance
+	 * @return Clock
+	 */
+	public static Clock getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Set the clock used by this CASASynthProxy instance
+	 * @param clock Clock
+	 */
+	public static void setInstance(Clock clock) {
+		instance = clock;
+	}
+
+	/**
+	 * Get the current time, as System.currentTimeMillis() does
+	 * @return Current time, in milliseconds
+	 */
+	public abstract long currentTimeMillis();
+
+	/**
+	 * Get a time to measure elapsed time with, as System.nanoTime() does
+	 * @return Current time, in nanoseconds from an arbitrary origin
+	 */
+	public abstract long nanoTime();
+
+	/**
+	 * Sleep, as Thread.sleep() does
+	 * @param millis Time to sleep, in milliseconds
+	 * @throws InterruptedException The thread was interrupted
+	 */
+	public abstract void sleep(long millis) throws InterruptedException;
+
+	/**
+	 * Wait on a lock until it is notified or the time is up, as Object.wait(long) does. The caller must
+	 * hold the lock, and must check its condition and the time again when this returns.
+	 * @param lock Lock to wait on
+	 * @param millis Longest wait, in milliseconds (more than 0)
+	 * @throws InterruptedException The thread was interrupted
+	 */
+	public abstract void waitOn(Object lock, long millis) throws InterruptedException;
+
+	/**
+	 * Create a single threaded scheduler whose delays are measured by this clock
+	 * @param name Scheduler thread name
+	 * @return Scheduler
+	 */
+	public abstract ScheduledExecutorService newScheduler(String name);
+
+	/**
+	 * System time
+	 */
+	private static class SystemClock extends Clock {
+
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+
+		@Override
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+
+		@Override
+		public void sleep(long millis) throws InterruptedException {
+			Thread.sleep(millis);
+		}
+
+		@Override
+		public void waitOn(Object lock, long millis) throws InterruptedException {
+			lock.wait(millis);
+		}
+
+		@Override
+		public ScheduledExecutorService newScheduler(final String name) {
+			return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, name);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+}
@@ -19,6 +19,8 @@
  */
 package org.casa.synthproxy;
 
+import java.nio.ByteBuffer;
+
 import org.casa.synthproxy.config.Config;
 import org.casa.synthproxy.ide.GUI;
 
@@ -33,17 +35,50 @@ import jssc.SerialPortList;
  * 
  * It uses JSSC as a library to achieve serial communication.
  * 
+ * Serial conversations (a command followed by its status check) must hold this object's
+ * monitor, so that commands from different connections are not interleaved.
+ * 
  * @author Daniel Parra Tucunduva
  */
 public class CommPort implements SerialPortEventListener {
 
+	/** Status check envelope - it never changes, so it is encoded only once **/
+	private static final byte[] CHECK_FRAME = new Command().setCommandTp(Command.TP_CHECK).setData("C").toBytes(false);
+	/** Lowest compact protocol version supported - version 2 added sequence numbers, CRC and ACKs **/
+	private static final int COMPACT_PROTOCOL_VERSION = 2;
+	/** Baud rate used when the port is opened and by the ASCII protocol **/
+	private static final int ASCII_BAUD_RATE = SerialPort.BAUDRATE_9600;
+	/** Time, in milliseconds, that CASAActuator waits for a valid compact frame before going back to ASCII
+	 * (SWITCH_BACK_TIMEOUT in CASAActuator.h) **/
+	private static final int SWITCH_BACK_TIMEOUT = 2000;
+	/** How long to wait for a status check answer, in milliseconds **/
+	private static final int CHECK_TIMEOUT = 5000;
+
 	/** Serial Port that will be used in communication **/
 	private SerialPort serialPort;
 	/** Data buffer that will be used to store received data **/ 
-	private String dataBuffer;
+	private volatile String dataBuffer;
 	/** Local communication flag - if it is true, it is a communication issued by this class. If set
 	to false, it is a communication that came from CASAActuator **/
-	private boolean local = true;
+	private volatile boolean local = true;
+	/** Compact binary protocol flag - set when it was negotiated with CASAActuator **/
+	private boolean compact = false;
+	/** Current baud rate **/
+	private int baudRate = ASCII_BAUD_RATE;
+	/** Compact protocol encoder **/
+	private final CompactCodec compactCodec = new CompactCodec();
+	/** Compact protocol send window, null in ASCII **/
+	private volatile SendWindow window;
+	/** Buffer for compact protocol frames holding a single operation **/
+	private final ByteBuffer operationBuffer = ByteBuffer.allocate(CompactCodec.MAX_FRAME);
+	/** Received data not split in messages yet, in the compact protocol **/
+	private final StringBuilder pending = new StringBuilder();
+	/** Write buffers, one per envelope size, so that writes do not allocate **/
+	private final byte[][] frameBuffers = new byte[FrameEncoder.NETWORK_MAX_PAYLOAD + 5][];
+	/** Dispatcher of the events sent by CASAActuator on its own **/
+	private volatile ActuatorEventDispatcher eventDispatcher;
+	/** Time source **/
+	protected final Clock clock = Clock.getInstance();
 
 	/** 
 	 * This method will get all COM ports available in the computer and issue a command
@@ -93,10 +128,10 @@ public class CommPort implements SerialPortEventListener {
 	public CommPort(String serial) throws Exception {
 		serialPort = new SerialPort(serial);
 		serialPort.openPort();
-		serialPort.setParams(SerialPort.BAUDRATE_9600, SerialPort.DATABITS_8, SerialPort.STOPBITS_1,
+		serialPort.setParams(ASCII_BAUD_RATE, SerialPort.DATABITS_8, SerialPort.STOPBITS_1,
 				SerialPort.PARITY_NONE);
 		serialPort.addEventListener(this, SerialPort.MASK_RXCHAR);
-		Thread.sleep(2000);
+		clock.sleep(2000);
 		try {
 			getGlobalSwitchStatus();
 		} catch (Exception e) {
@@ -104,6 +139,78 @@ public class CommPort implements SerialPortEventListener {
 			serialPort.closePort();
 			throw new RuntimeException("Arduino no encontrado!");
 		}
+
+		// The compact protocol is opt-in
+		if (Boolean.parseBoolean(Config.getGeneralConfigEntry("compactProtocol", "false"))) {
+			try {
+				negotiateCompactProtocol();
+			} catch (Exception e) {
+				serialPort.removeEventListener();
+				serialPort.closePort();
+				throw new RuntimeException("Falha ao negociar o protocolo com o Arduino!");
+			}
+		}
+	}
+
+	/**
+	 * Negotiate the compact binary protocol (see {@link CompactCodec}) and a higher baud rate with CASAActuator.
+	 * 
+	 * The handshake is done in ASCII: "V" asks for the protocol version and the highest baud rate
+	 * supported by CASAActuator ("V2|115200;"), and "S&lt;baud rate&gt;" switches to the compact protocol at
+	 * that baud rate ("K;"). Then a status check is done in the new protocol. CASAActuator versions that do not
+	 * know the compact protocol do not answer "V", and if the status check fails CASAActuator goes back to
+	 * ASCII at 9600 by itself - either way, this port keeps using ASCII.
+	 * @throws Exception Error talking to CASAActuator after falling back to ASCII, or a malformed version reply
+	 */
+	private void negotiateCompactProtocol() throws Exception {
+		synchronized(this) {
+			String version = request(asciiFrame("V"), 1000);
+			if (version == null || !version.startsWith("V") || version.indexOf('|') < 0
+					|| Integer.parseInt(version.substring(1, version.indexOf('|'))) < COMPACT_PROTOCOL_VERSION) {
+				GUI.addMessage("CASAActuator no suporta o protocolo compacto, usando ASCII");
+				return;
+			}
+			int maxBaudRate = Integer.parseInt(version.substring(version.indexOf('|') + 1, version.length() - 1));
+			int requested = Math.min(Integer.parseInt(Config.getGeneralConfigEntry("baudRate", "115200")), maxBaudRate);
+			if (!"K;".equals(request(asciiFrame("S" + requested), 1000))) {
+				GUI.addMessage("CASAActuator recusou o protocolo compacto, usando ASCII");
+				return;
+			}
+
+			serialPort.setParams(requested, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+			compact = true;
+			baudRate = requested;
+			window = new SendWindow(new SendWindow.Link() {
+				@Override
+				public void write(byte[] frame, int length) throws Exception {
+					byte[] buffer = frameBuffer(length);
+					System.arraycopy(frame, 0, buffer, 0, length);
+					serialPort.writeBytes(buffer);
+				}
+			}, requested);
+			clock.sleep(100);
+			try {
+				getGlobalSwitchStatus();
+				GUI.addMessage("Protocolo compacto ativado a " + requested + " bps");
+			} catch (Exception e) {
+				// No answer - wait for CASAActuator to go back to ASCII
+				compact = false;
+				window = null;
+				baudRate = ASCII_BAUD_RATE;
+				serialPort.setParams(ASCII_BAUD_RATE, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+				clock.sleep(SWITCH_BACK_TIMEOUT);
+				getGlobalSwitchStatus();
+				GUI.addMessage("Falha ao ativar o protocolo compacto, usando ASCII");
+			}
+		}
+	}
+
+	/**
+	 * Constructor for ports that are not backed by a real serial port, like the emulated
+	 * CASAActuator used by load tests. Subclasses must override everything that touches
+	 * the serial port.
+	 */
+	protected CommPort() {
 	}
 
 	/**
@@ -115,20 +222,121 @@ public class CommPort implements SerialPortEventListener {
 	}
 	
 	/**
-	 * Send a command to this Serial port.
+	 * Check if the compact binary protocol was negotiated with CASAActuator
+	 * @return true if commands are sent in the compact protocol, false if they are sent in ASCII
+	 */
+	public boolean isCompact() {
+		return compact;
+	}
+
+	/**
+	 * Get the current baud rate
+	 * @return Current baud rate
+	 */
+	public int getBaudRate() {
+		return baudRate;
+	}
+
+	/**
+	 * Send a command, possibly composite, to this Serial port.
+	 * In ASCII, each "#" command goes in its own envelope, and commands that do not fit in a single envelope
+	 * are fragmented (see {@link FrameEncoder}). In the compact protocol, commands are packed in as few frames
+	 * as possible (see {@link CompactCodec}). In ASCII a status check is done between envelopes, so that
+	 * CASAActuator receive buffer is not overrun; in the compact protocol the send window does that job
+	 * (see {@link SendWindow}) and this method only returns once every frame was executed.
 	 * @param command Command to be sent
 	 * @throws Exception Error writing bytes to the port
 	 */
 	public void sendCommand(Command command) throws Exception {
-		serialPort.writeBytes(command.toBytes(false));
+		synchronized(this) {
+			writeFrames(compact ? compactCodec.encode(command) : FrameEncoder.serial().encode(command, false));
+		}
+	}
+
+	/**
+	 * Upload the macro table compiled from the configuration to CASAActuator's EEPROM, if it is not there
+	 * yet (see {@link MacroTable}). From then on, macros in the table are sent by ID.
+	 * Only available in the compact protocol - nothing is done otherwise.
+	 * @param config CASASynthProxy configuration
+	 * @throws Exception Error talking to CASAActuator
+	 */
+	public void syncMacroTable(Config config) throws Exception {
+		if (!compact) {
+			return;
+		}
+		MacroTable table = MacroTable.compile(config.getExpandedMacros(), SceneCompiler.getInstance());
+		synchronized(this) {
+			compactCodec.setMacroTable(null);
+			String info = compactRequest(CompactCodec.OP_TABLE_INFO);
+			if (info == null || !info.startsWith("T")) {
+				GUI.addMessage("CASAActuator no suporta tabela de macros");
+				return;
+			}
+			if (!info.equals("T" + table.getChecksum() + "|" + table.size() + ";")) {
+				GUI.addMessage("Enviando tabela de macros ao CASAActuator: " + table.size() + " macros, "
+						+ table.getData().length + " bytes");
+				writeFrames(compactCodec.encodeTableUpload(table));
+				if (!"K;".equals(compactRequest(CompactCodec.OP_TABLE_COMMIT))) {
+					GUI.addMessage("CASAActuator recusou a tabela de macros");
+					return;
+				}
+			}
+			compactCodec.setMacroTable(table);
+			GUI.addMessage("Tabela de macros sincronizada: " + table.size() + " macros enviados por ID");
+		}
+	}
+
+	/**
+	 * Write frames to this Serial port. In ASCII, a status check is done between envelopes. In the compact
+	 * protocol, frames go through the send window and this method returns once all of them were acknowledged.
+	 * @param frames Frames to be written, in the protocol in use (the compact frames must come from compactCodec)
+	 * @throws Exception Error writing bytes to the port
+	 */
+	private void writeFrames(ByteBuffer frames) throws Exception {
+		synchronized(this) {
+			if (compact) {
+				window.send(frames, compactCodec.getFrameDurations());
+				return;
+			}
+			while (frames.hasRemaining()) {
+				if (frames.position() > 0) {
+					getGlobalSwitchStatus();
+				}
+				// Envelope size is the payload length (third byte) plus start, type, length and end bytes.
+				byte[] frame = frameBuffer((frames.get(frames.position() + 2) & 0xFF) + 4);
+				frames.get(frame);
+				serialPort.writeBytes(frame);
+			}
+		}
+	}
+
+	/**
+	 * Get the write buffer for envelopes of a given size
+	 * @param size Envelope size
+	 * @return Write buffer with exactly this size
+	 */
+	private byte[] frameBuffer(int size) {
+		if (frameBuffers[size] == null) {
+			frameBuffers[size] = new byte[size];
+		}
+		return frameBuffers[size];
 	}
 	
+	/**
+	 * Set the dispatcher that will handle the events sent by CASAActuator on its own. Events received
+	 * while there is no dispatcher are dropped.
+	 * @param eventDispatcher Event dispatcher
+	 */
+	public void setEventDispatcher(ActuatorEventDispatcher eventDispatcher) {
+		this.eventDispatcher = eventDispatcher;
+	}
+
 	/**
 	 * Close this serial connection
 	 * @throws Exception Error closing this serial connection
 	 */
 	public void close() throws Exception {
-		synchronized(serialPort) {
+		synchronized(this) {
 			serialPort.closePort();
 		}
 	}
@@ -172,34 +380,43 @@ public class CommPort implements SerialPortEventListener {
 	 * @throws Exception There is no valid connection with CASAActuator
 	 */
 	public boolean getGlobalSwitchStatus() throws Exception {
-		synchronized(serialPort) {
+		String answer = compact ? compactRequest(CompactCodec.OP_CHECK) : request(CHECK_FRAME, CHECK_TIMEOUT);
+		if (answer == null) {
+			throw new RuntimeException("Resposta no recebida ou envelope incompleto!");
+		}
+		
+		if (!"E;".equals(answer) && !"D;".equals(answer)) {
+			throw new RuntimeException("Resposta invlida!");
+		}
+		
+		return "E;".equals(answer);
+	}
+
+	/**
+	 * Send a frame and wait for CASAActuator's answer (anything ending with ";").
+	 * @param frame Frame to be sent
+	 * @param timeout How long to wait for the answer, in milliseconds
+	 * @return Answer, or null if there was no complete answer in time
+	 * @throws Exception Error writing to the port
+	 */
+	private String request(byte[] frame, int timeout) throws Exception {
+		synchronized(this) {
 			try {
 				// Set LOCAL communication sets a data buffer to store the response
 				setDataBuffer(new String());
 				setLocalCommunication();
 				
 				// Send command
-				Command command = new Command();
-				command.setCommandTp(Command.TP_CHECK);
-				command.setData("C");
-				sendCommand(command);
+				serialPort.writeBytes(frame);
 				
 				// Read return byte
 				int i=0;
-				while (!getDataBuffer().endsWith(";") && i < 200) {
+				while (!getDataBuffer().endsWith(";") && i < timeout / 25) {
 					i++;
-					Thread.sleep(25);
-				}
-		
-				if (!getDataBuffer().endsWith(";")) {
-					throw new RuntimeException("Resposta no recebida ou envelope incompleto!");
-				}
-				
-				if (!"E;".equals(getDataBuffer()) && !"D;".equals(getDataBuffer())) {
-					throw new RuntimeException("Resposta invlida!");
+					clock.sleep(25);
 				}
 				
-				return "E;".equals(getDataBuffer());
+				return getDataBuffer().endsWith(";") ? getDataBuffer() : null;
 			} finally {
 				// Set global communication behavior back
 				setDataBuffer(new String(""));
@@ -208,6 +425,41 @@ public class CommPort implements SerialPortEventListener {
 		}
 	}
 
+	/**
+	 * Send a compact protocol operation and return CASAActuator's answer. The answer is sent before the ACK,
+	 * so it is already in the data buffer when the send window returns.
+	 * @param operation Operation without arguments (Ex.: {@link CompactCodec#OP_CHECK})
+	 * @return Answer, or null if there was no complete answer
+	 * @throws Exception Error writing to the port, or the frame was not acknowledged
+	 */
+	private String compactRequest(byte operation) throws Exception {
+		synchronized(this) {
+			try {
+				setDataBuffer(new String());
+				setLocalCommunication();
+
+				operationBuffer.clear();
+				compactCodec.encodeOperation(operation, operationBuffer);
+				operationBuffer.flip();
+				window.send(operationBuffer, compactCodec.getFrameDurations());
+
+				return getDataBuffer().endsWith(";") ? getDataBuffer() : null;
+			} finally {
+				setDataBuffer(new String(""));
+				setGlobalCommunication();
+			}
+		}
+	}
+
+	/**
+	 * Build an ASCII envelope
+	 * @param data Envelope data
+	 * @return ASCII envelope
+	 */
+	private static byte[] asciiFrame(String data) {
+		return new Command().setCommandTp(Command.TP_STRING).setData(data).toBytes(false);
+	}
+
 	/**
 	 * This method handles serial communication events, including data receiving.
 	 * @param event Event information. This should contain everything (including data) related to the event
@@ -218,15 +470,20 @@ public class CommPort implements SerialPortEventListener {
 		if(event.isRXCHAR() && event.getEventValue() > 0) {
 			try {
                 String receivedData = serialPort.readString(event.getEventValue());
-                setDataBuffer(getDataBuffer() + receivedData);
-                if (receivedData.endsWith(";")) {
-
-                    if (!this.local) {
-                    	// This is an external triggered command - hand it to a Command Handler
-                    	String data = getDataBuffer();
-                    	setDataBuffer(new String(""));
-                    	new ArduinoCommandHandler().handleCommand(data);
-                    }
+                if (window == null) {
+                	receive(receivedData);
+                } else {
+                	// Compact protocol: ACK and NAK messages go to the send window, in the order they arrive
+                	pending.append(receivedData);
+                	int start = 0;
+                	for (int end = pending.indexOf(";"); end >= 0; end = pending.indexOf(";", start)) {
+                		String message = pending.substring(start, end + 1);
+                		start = end + 1;
+                		if (!handleAck(message)) {
+                			receive(message);
+                		}
+                	}
+                	pending.delete(0, start);
                 }
             }
             catch (SerialPortException ex) {
@@ -234,4 +491,54 @@ public class CommPort implements SerialPortEventListener {
             }
 		}
 	}
+
+	/**
+	 * Handle data received from CASAActuator - either the answer to a local request or
+	 * a command issued by CASAActuator
+	 * @param receivedData Received data
+	 */
+	private void receive(String receivedData) {
+		setDataBuffer(getDataBuffer() + receivedData);
+		if (receivedData.endsWith(";")) {
+
+			if (!this.local) {
+				// This is an external triggered command - queue it, so that the serial event thread
+				// goes back to reading at once
+				String data = getDataBuffer();
+				setDataBuffer(new String(""));
+				ActuatorEventDispatcher dispatcher = eventDispatcher;
+				if (dispatcher != null) {
+					dispatcher.post(data);
+				} else {
+					GUI.addMessage("Evento do CASAActuator descartado: " + data);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hand an ACK ("A&lt;seq&gt;;") or NAK ("N&lt;seq&gt;;") message to the send window
+	 * @param message Message received from CASAActuator
+	 * @return true if this was an ACK or NAK message
+	 */
+	private boolean handleAck(String message) {
+		char type = message.charAt(0);
+		if ((type != 'A' && type != 'N') || message.length() < 3) {
+			return false;
+		}
+		int seq = 0;
+		for (int i = 1; i < message.length() - 1; i++) {
+			char c = message.charAt(i);
+			if (c < '0' || c > '9') {
+				return false;
+			}
+			seq = seq * 10 + c - '0';
+		}
+		if (type == 'A') {
+			window.ack(seq);
+		} else {
+			window.nak(seq);
+		}
+		return true;
+	}
 }
@@ -19,6 +19,9 @@
  */
 package org.casa.synthproxy;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
@@ -44,6 +47,13 @@ public class Command {
 	/** STRING Command - This command type is the one that is used to send data to CASAActuator. This
 	 * is the type that contain the real commands, like changing the channel or turning the TV set on **/ 
 	public static final byte TP_STRING = (byte)0x04;
+	/** TRANSCRIPT Command - Free text, like a speech transcript, run as the configured command whose label,
+	 * text to be synthesized or macro key is the closest to it (see {@link org.casa.synthproxy.config.PhraseMatcher}) **/
+	public static final byte TP_TRANSCRIPT = (byte)0x05;
+
+	/** Charset used to encode and decode command data and text in envelopes. It keeps Portuguese
+	 * accents in a single byte, so that envelope lengths match character counts **/
+	public static final Charset CHARSET = StandardCharsets.ISO_8859_1;
 	
 	// Command type
 	private byte commandTp;
@@ -53,6 +63,8 @@ public class Command {
 	private String svoice;
 	// If this is a ENABLE command, this is the activation period in miliseconds.
 	private long activatedUntil;
+	// Request ID, in protocol v2 - -1 when the command has none (see ConnectionHandler)
+	private int requestId = -1;
 
 	/**
 	 * Get command data
@@ -100,6 +112,24 @@ public class Command {
 		return this;
 	}
 
+	/**
+	 * Get the request ID, in protocol v2
+	 * @return Request ID, or -1 if the command has none
+	 */
+	public int getRequestId() {
+		return requestId;
+	}
+
+	/**
+	 * Set the request ID, in protocol v2
+	 * @param requestId Request ID, or -1 for none
+	 * @return this very same object
+	 */
+	public Command setRequestId(int requestId) {
+		this.requestId = requestId;
+		return this;
+	}
+
 	/**
 	 * Get command type
 	 * @return command type
@@ -142,36 +172,32 @@ public class Command {
 	}
 
 	/**
-	 * Retrieve a byte array representing this command. This byte array is the one 
-	 * to be sent to CASAActuator though COM port.
+	 * Clear this command, so that the same object can be reused for another command
+	 * @return this very same object
+	 */
+	public Command reset() {
+		this.commandTp = 0;
+		this.data = null;
+		this.svoice = null;
+		this.activatedUntil = 0;
+		this.requestId = -1;
+		return this;
+	}
+
+	/**
+	 * Retrieve a byte array representing this command, as it would be sent through the network.
+	 * If the command is too long for a single envelope, the array holds several envelopes (see {@link FrameEncoder}).
+	 * 
+	 * This method allocates a new array on each call - hot paths should use {@link FrameEncoder} directly.
 	 * @param includeTTS Boolean flag to tell this method if the voice part should be included. 
 	 * When sending command to CASAActuator, because of package size limitations, it is a good
 	 * idea to exclude voice information as it is not relevant to CASAActuator.
 	 * @return Byte array representation of this command
 	 */
 	public byte[] toBytes(boolean includeTTS) {
-		int dataLength = getData() == null ? 0 : getData().length();
-		int ttsLength = 0;
-		if (includeTTS) {
-			ttsLength = getSvoice() == null ? 0 : getSvoice().length() + 1;
-		}
-		
-		byte b[] = new byte[dataLength+ttsLength+4];
-		b[0] = 1;
-		b[1] = 4;
-		b[2] = (byte)(dataLength+ttsLength);
-		int i=0;
-		for (; i < dataLength; i++) {
-			b[3+i] = (byte) getData().charAt(i);
-		}
-		if (includeTTS) {
-			b[3+i] = ';';
-			for (int j=0; j < ttsLength-1; j++) {
-				b[4+i+j] = (byte) getSvoice().charAt(j);
-			}
-		}
-		
-		b[dataLength+ttsLength+3] = 4;
+		ByteBuffer frames = FrameEncoder.network().encode(this, includeTTS);
+		byte b[] = new byte[frames.remaining()];
+		frames.get(b);
 		return b;
 	}
 	
@@ -202,7 +228,7 @@ public class Command {
 	@Override
 	public String toString() {
 		return new StringBuffer("Command Type=[").append(String.format("%02X", getCommandTp()))
-				.append("], Command data=[").append(getCommandTp() == TP_STRING || getCommandTp() == TP_ENABLE ? getData() : "")
+				.append("], Command data=[").append(getCommandTp() == TP_STRING || getCommandTp() == TP_ENABLE || getCommandTp() == TP_TRANSCRIPT ? getData() : "")
 				.append("], Command speech=[").append(getCommandTp() == TP_STRING || getCommandTp() == TP_ENABLE ? getSvoice() : "")
 				.append("]").toString();
 	}
@@ -0,0 +1,155 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.casa.synthproxy.config.Config;
+import org.casa.synthproxy.ide.GUI;
+
+/**
+ * Internal command bus. Commands produced inside CASASynthProxy (GUI buttons, scanning, commands coming
+ * from CASAActuator) are published here instead of going through the network listener, so they are not
+ * encoded, sent through a loopback connection and parsed again.
+ *
+ * Commands are run in publish order by a single thread, through a {@link CommandDispatcher} - macros,
+ * activation period and global switch are handled exactly like commands coming from the network.
+ * The bus works as one more connection, with its own activation period.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class CommandBus implements AutoCloseable {
+
+	/** Bus used by this CASASynthProxy instance **/
+	private static volatile CommandBus instance;
+
+	/** Runs the published commands **/
+	private final CommandDispatcher dispatcher;
+	/** Bus thread **/
+	private final ExecutorService executor;
+
+	/**
+	 * Constructor
+	 * @param commPort COM port for serial communication with CASAActuator.
+	 * @param config CASASynthProxy configuration, loaded by the main class
+	 */
+	public CommandBus(CommPort commPort, Config config) {
+		this.dispatcher = new CommandDispatcher(commPort, config);
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CommandBus");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Get the bus used by this CASASynthProxy instance
+	 * @return Command bus, or null if it was not started yet
+	 */
+	public static CommandBus getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Set the bus used by this CASASynthProxy instance
+	 * @param bus Command bus
+	 */
+	public static void setInstance(CommandBus bus) {
+		instance = bus;
+	}
+
+	/**
+	 * Publish a command. It is run the same way as a command read from a network connection.
+	 * @param command Command to be run
+	 * @return Future completed once the command was run, cancelled if the dispatcher ignored it (see
+	 * {@link CommandDispatcher#dispatch(Command)}), or completed exceptionally if it failed
+	 */
+	public CompletableFuture<Void> publish(Command command) {
+		return publish(null, command);
+	}
+
+	/**
+	 * Publish a command, starting an activation period before it is run.
+	 * @param activationPeriod Activation period, in milliseconds
+	 * @param command Command to be run
+	 * @return Future completed once the command was run, cancelled if the dispatcher ignored it (see
+	 * {@link CommandDispatcher#dispatch(Command)}), or completed exceptionally if it failed
+	 */
+	public CompletableFuture<Void> publishActivated(long activationPeriod, Command command) {
+		Command activation = new Command();
+		activation.setCommandTp(Command.TP_ENABLE);
+		activation.setData("E" + activationPeriod);
+		activation.setActivatedUntil(activationPeriod);
+		return publish(activation, command);
+	}
+
+	/**
+	 * Queue commands to be run by the bus thread. Cancelling the returned future before the bus
+	 * thread gets to the commands drops them; the bus cancels it too when the dispatcher ignores the command.
+	 * @param activation Activation command, or null
+	 * @param command Command
+	 * @return Future completed once the commands were run
+	 */
+	private CompletableFuture<Void> publish(final Command activation, final Command command) {
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (future.isCancelled()) {
+						return;
+					}
+					try {
+						if (activation != null) {
+							dispatcher.dispatch(activation);
+						}
+						GUI.addMessage("Comando recebido internamente:" + command);
+						if (dispatcher.dispatch(command)) {
+							future.complete(null);
+						} else {
+							future.cancel(false);
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+						future.completeExceptionally(e);
+					}
+				}
+			});
+		} catch (Exception e) {
+			// Bus already closed
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Close the bus. Commands already published are still run.
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,272 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy;
+
+import java.awt.Toolkit;
+
+import org.casa.synthproxy.config.Config;
+import org.casa.synthproxy.config.PhraseMatcher;
+import org.casa.synthproxy.ide.GUI;
+
+/**
+ * Runs commands against CASAActuator: translates macros, keeps the activation period and checks the
+ * global switch before sending anything to the serial port. Commands that would not change the
+ * {@link DeviceState} are not sent.
+ *
+ * Each command source holds its own dispatcher, so each one has its own activation period - a network
+ * connection (see {@link ConnectionHandler}) or the internal command bus (see {@link CommandBus}).
+ * Both go through this class, so the rules are the same for all of them.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class CommandDispatcher {
+
+	/** CASASynthProxy configuration **/
+	private final Config config;
+	/** Serial port that will be used to comunicate with CASAActuator **/
+	private final CommPort commPort;
+	/** Activation period limit in miliseconds **/
+	private long activatedUntil = 0L;
+	/** Time source **/
+	private final Clock clock = Clock.getInstance();
+
+	/**
+	 * Constructor
+	 * @param commPort COM port for serial communication with CASAActuator.
+	 * @param config CASASynthProxy configuration, loaded by the main class
+	 */
+	public CommandDispatcher(CommPort commPort, Config config) {
+		this.commPort = commPort;
+		this.config = config;
+	}
+
+	/**
+	 * Get COM port that is being used to communicate with CASAActuator
+	 * @return COM port that is being used to communicate with CASAActuator
+	 */
+	private CommPort getCommPort() {
+		return commPort;
+	}
+
+	/**
+	 * Set the activation period finish. This value should be set to
+	 * System.currentTimeInMillis() + ACTIVATION_PERIOD, where ACTIVATION_PERIOD
+	 * is how long commands will be executed.
+	 * @param activatedUntil Activation timestamp - system will be executing commands
+	 * until this timestamp.
+	 */
+	public void setActivatedUntil(long activatedUntil) {
+		this.activatedUntil = activatedUntil;
+	}
+
+	/**
+	 * Get the activation period finish.
+	 * @return Activation period finish.
+	 */
+	public long getActivatedUntil() {
+		return activatedUntil;
+	}
+
+	/**
+	 * Run a command. Macros are translated, activation commands start an activation period and
+	 * commands are only sent to CASAActuator when the global switch is on.
+	 * @param command Command to be run
+	 * @return true if the command was run, false if it was ignored (outside the activation period, global
+	 * switch off, devices already in the state it sets, and so on)
+	 * @throws Exception Error communicating with CASAActuator
+	 */
+	public boolean dispatch(Command command) throws Exception {
+		// Free text is run as the configured command closest to it, if it is close enough
+		if (command.getCommandTp() == Command.TP_TRANSCRIPT && !matchTranscript(command)) {
+			return false;
+		}
+
+		// A desired device state is translated into the macro that sets it, if anything has to be sent
+		String requested = command.getData();
+		String key = requested;
+		String desired = null;
+		DeviceState state = DeviceState.getInstance();
+		if (state != null && command.getCommandTp() == Command.TP_STRING && key != null && key.startsWith(DeviceState.SET_PREFIX)) {
+			desired = key.substring(DeviceState.SET_PREFIX.length());
+			try {
+				key = state.resolve(desired, config.getMacros());
+			} catch (IllegalArgumentException e) {
+				GUI.addMessage(e.getMessage() + ", ignorando...");
+				return false;
+			}
+			if (key == null) {
+				GUI.addMessage("Dispositivo j est em " + desired + ", ignorando...");
+				return false;
+			}
+			command.setData(key);
+		}
+
+		// Translate the command if there is macro with this command's data
+		command = checkMacro(command);
+		
+		// If this is an activation command, set the activation period accordingly
+		if (command.getCommandTp() == Command.TP_ENABLE) {
+			setActivatedUntil(clock.currentTimeMillis() + command.getActivatedUntil());
+		}
+
+		// Schedule commands are handled by the scheduler, during an activation period
+		CommandScheduler scheduler = CommandScheduler.getInstance();
+		if (scheduler != null && CommandScheduler.isScheduleCommand(command)) {
+			if (getActivatedUntil() >= clock.currentTimeMillis()) {
+				scheduler.handle(command);
+				return true;
+			}
+			GUI.addMessage("Comando enviado fora do perodo de ativao, ignorando...");
+			return false;
+		}
+
+		// Calibration commands are handled by the delay calibrator, during an activation period
+		DelayCalibrator calibrator = DelayCalibrator.getInstance();
+		if (calibrator != null && DelayCalibrator.isCalibrationCommand(command)) {
+			if (getActivatedUntil() >= clock.currentTimeMillis()) {
+				calibrator.handle(command);
+				return true;
+			}
+			GUI.addMessage("Comando enviado fora do perodo de ativao, ignorando...");
+			return false;
+		}
+
+		// State corrections change what is known about the devices, without sending anything
+		if (state != null && command.getCommandTp() == Command.TP_STRING && key != null && key.startsWith(DeviceState.FIX_PREFIX)) {
+			if (getActivatedUntil() >= clock.currentTimeMillis()) {
+				try {
+					state.fix(key.substring(DeviceState.FIX_PREFIX.length()));
+					GUI.addMessage("Estado dos dispositivos: " + state.describe());
+					return true;
+				} catch (IllegalArgumentException e) {
+					GUI.addMessage(e.getMessage());
+					return false;
+				}
+			}
+			GUI.addMessage("Comando enviado fora do perodo de ativao, ignorando...");
+			return false;
+		}
+		
+		boolean globalSwitch = command.getCommandTp() != Command.TP_STATUS ? 
+				(command.getCommandTp() == Command.TP_SHUTDOWN ? false : getCommPort().getGlobalSwitchStatus()): true;
+		if (globalSwitch) {
+			// Run it only if we are in an activation period
+			if (command.getCommandTp() != Command.TP_STRING || 
+					(getActivatedUntil() >= clock.currentTimeMillis() && command.getCommandTp() == Command.TP_STRING)) {
+				// Send the command to CASAActuator, unless the devices are already in the state it sets.
+				// Composite commands are framed by the port, according to the protocol in use (ASCII or compact).
+				String effects = state != null ? effectOf(key) : null;
+				synchronized(getCommPort()) {
+					if (state != null && state.isRedundant(effects)) {
+						GUI.addMessage("Dispositivo j est no estado do comando " + key + ", ignorando...");
+						return false;
+					}
+					// Only commands that are actually sent are announced
+					if (command.getSvoice() != null) {
+						// If the text to be synthesized is "beep", trigger a default notification sound from OS. 
+						if ("beep".equalsIgnoreCase(command.getSvoice())) {
+							Toolkit.getDefaultToolkit().beep();
+						} else {
+							GUI.addMessage("Sintetizando texto: " + command.getSvoice());
+							new VoiceSynth(command.getSvoice()).sayit();
+						}
+					}
+					GUI.addMessage("Enviando comando ao arduino: " + command.toString());
+					getCommPort().sendCommand(command);
+					getCommPort().getGlobalSwitchStatus();
+					if (state != null) {
+						state.apply(effects);
+						if (desired != null) {
+							// A toggle sent while the state was unknown - assume it reached the desired state
+							state.fix(desired);
+						}
+					}
+				}
+				if (scheduler != null && key != null && command.getCommandTp() == Command.TP_STRING) {
+					scheduler.commandSent(requested, key);
+				}
+				return true;
+			} else {
+				GUI.addMessage("Comando enviado fora do perodo de ativao, ignorando...");
+			}
+		} else {
+			if (command.getCommandTp() != Command.TP_SHUTDOWN) {
+				GUI.addMessage("Chave geral desligada no arduino, ignorando...");
+			} else {
+				GUI.addMessage("Shutdown solicitado, a conexo ser finalizada...");
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Turn a transcript into the configured command closest to it
+	 * @param command Transcript command - it becomes a string command with the matched macro key or data
+	 * @return true if a phrase was matched with enough confidence (transcriptThreshold)
+	 */
+	private boolean matchTranscript(Command command) {
+		PhraseMatcher.Match match = config.getPhraseMatcher().match(command.getData());
+		double threshold = Double.parseDouble(Config.getGeneralConfigEntry("transcriptThreshold", "0.6"));
+		if (match == null || match.getScore() < threshold) {
+			GUI.addMessage("Transcrio no reconhecida: \"" + command.getData() + "\""
+					+ (match != null ? " - mais prxima: " + match : "") + ", ignorando...");
+			return false;
+		}
+		GUI.addMessage("Transcrio \"" + command.getData() + "\" reconhecida: " + match);
+		command.setCommandTp(Command.TP_STRING).setData(match.getTarget());
+		return true;
+	}
+
+	/**
+	 * Get the effect of a macro invocation on the device state
+	 * @param key Command data before translation
+	 * @return Effects, or null if it is not a macro or its effect is not known
+	 */
+	private String effectOf(String key) {
+		try {
+			return key != null ? config.getMacroExpander().effectOf(key) : null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Translate this command if its content maps to a macro in CASASynthProxy configuration. IR and relay
+	 * commands then go through the scene compiler, if there is one.
+	 * @param command Command to be translated
+	 * @return Translated command. If there is no macro, the same command is returned.
+	 */
+	private Command checkMacro(Command command) {
+		try {
+			String data = config.getMacroExpander().expand(command.getData());
+			if (data != null) {
+				command.setData(data);
+				GUI.addMessage("Comando traduzido:" + command);
+			}
+		} catch (IllegalArgumentException e) {
+			GUI.addMessage("Erro traduzindo macro " + command.getData() + " - " + e.getMessage());
+		}
+		SceneCompiler sceneCompiler = SceneCompiler.getInstance();
+		if (sceneCompiler != null && command.getCommandTp() == Command.TP_STRING) {
+			command.setData(sceneCompiler.compile(command.getData()));
+		}
+		return command;
+	}
+}
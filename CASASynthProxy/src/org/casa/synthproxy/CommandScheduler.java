@@ -0,0 +1,448 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+import org.casa.synthproxy.config.Config;
+import org.casa.synthproxy.config.Schedule;
+import org.casa.synthproxy.ide.GUI;
+
+/**
+ * Runs schedules (see {@link Schedule}): macros sent at a time of the day, at an interval or a delay
+ * after another command. Pending timers are kept in a {@link TimerWheel}.
+ *
+ * Schedules come from the configuration and from the network, through STRING commands (which, as any
+ * other, are only accepted during an activation period):
+ * <ul>
+ * <li>"SCHED+&lt;id&gt;|&lt;macro&gt;|&lt;rule&gt;[|&lt;rule&gt;...][;&lt;tts&gt;]" - add or replace a schedule. Rules
+ * are at=HH:mm, every=&lt;duration&gt;, after=&lt;command key&gt; and delay=&lt;duration&gt;
+ * (Ex.: "SCHED+bed|BHD|after=TDONOFF|delay=30m").</li>
+ * <li>"SCHED-&lt;id&gt;" - remove a schedule.</li>
+ * <li>"SCHED?" - list the schedules in the log.</li>
+ * </ul>
+ * Scheduled macros are sent like any command from inside CASASynthProxy, so activation and global switch
+ * rules apply to them. Schedules added through the network and all pending deadlines are saved to a file,
+ * so they survive restarts; a deadline missed while CASASynthProxy was down still runs if it was missed by
+ * less than {@link #MISSED_GRACE}.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class CommandScheduler extends CommandSender {
+
+	/** Prefix of the schedule commands **/
+	public static final String COMMAND_PREFIX = "SCHED";
+	/** Longest delay for a deadline missed while CASASynthProxy was down to still run, in milliseconds **/
+	private static final long MISSED_GRACE = 10 * 60 * 1000;
+
+	/** Scheduler used by this CASASynthProxy instance **/
+	private static volatile CommandScheduler instance;
+
+	/** Time source **/
+	private final Clock clock = Clock.getInstance();
+	/** Timers **/
+	private final TimerWheel wheel = new TimerWheel(clock);
+	/** File schedules and deadlines are saved to **/
+	private final File file;
+	/** Schedules by ID **/
+	private final Map<String, Schedule> schedules = new LinkedHashMap<String, Schedule>();
+	/** IDs of the schedules that come from the configuration **/
+	private final Set<String> configured = new HashSet<String>();
+	/** Pending timers by schedule ID **/
+	private final Map<String, TimerWheel.Timeout> timers = new HashMap<String, TimerWheel.Timeout>();
+	/** Commands fired by the schedules and not run yet, by command data - they start no schedules **/
+	private final Map<String, Integer> firing = new HashMap<String, Integer>();
+
+	/**
+	 * Constructor. Loads the schedules from the configuration and from the file, and starts the timers.
+	 * @param config CASASynthProxy configuration
+	 * @param file File schedules and deadlines are saved to
+	 */
+	public CommandScheduler(Config config, File file) {
+		this.file = file;
+		synchronized (this) {
+			for (Schedule schedule : config.getSchedules().values()) {
+				schedules.put(schedule.getId(), schedule);
+				configured.add(schedule.getId());
+			}
+			Map<String, Long> deadlines = load();
+			long now = clock.currentTimeMillis();
+			for (Schedule schedule : schedules.values()) {
+				Long deadline = deadlines.get(schedule.getId());
+				if (deadline != null && deadline < now - MISSED_GRACE) {
+					GUI.addMessage("Agendamento " + schedule.getId() + " perdido enquanto o CASASynthProxy estava parado");
+					deadline = null;
+				}
+				if (deadline != null) {
+					arm(schedule.getId(), deadline);
+				} else {
+					armNext(schedule, now);
+				}
+			}
+			// One-shot schedules whose deadline was missed are gone
+			for (String id : new ArrayList<String>(schedules.keySet())) {
+				if (!timers.containsKey(id) && isOneShot(schedules.get(id))) {
+					schedules.remove(id);
+				}
+			}
+			save();
+		}
+		wheel.start();
+		GUI.addMessage("Agendamentos carregados: " + schedules.size());
+	}
+
+	/**
+	 * Get the scheduler used by this CASASynthProxy instance
+	 * @return Scheduler, or null if it was not started
+	 */
+	public static CommandScheduler getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Set the scheduler used by this CASASynthProxy instance
+	 * @param scheduler Scheduler
+	 */
+	public static void setInstance(CommandScheduler scheduler) {
+		instance = scheduler;
+	}
+
+	/**
+	 * Check if a command is a schedule command
+	 * @param command Command
+	 * @return true if it is a STRING command starting with {@link #COMMAND_PREFIX}
+	 */
+	public static boolean isScheduleCommand(Command command) {
+		return command.getCommandTp() == Command.TP_STRING && command.getData() != null
+				&& command.getData().startsWith(COMMAND_PREFIX);
+	}
+
+	/**
+	 * Handle a schedule command received from the network
+	 * @param command Schedule command (see the class description)
+	 */
+	public synchronized void handle(Command command) {
+		String data = command.getData().substring(COMMAND_PREFIX.length());
+		try {
+			if (data.startsWith("+")) {
+				String fields[] = data.substring(1).split("\\|");
+				Schedule schedule = parse(fields[0], fields, 1, command.getSvoice());
+				add(schedule);
+			} else if (data.startsWith("-")) {
+				remove(data.substring(1));
+			} else if (data.startsWith("?")) {
+				list();
+			} else {
+				GUI.addMessage("Comando de agendamento invlido: " + command.getData());
+			}
+		} catch (Exception e) {
+			GUI.addMessage("Comando de agendamento invlido: " + command.getData() + " - " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Add or replace a schedule
+	 * @param schedule Schedule
+	 */
+	public synchronized void add(Schedule schedule) {
+		disarm(schedule.getId());
+		schedules.put(schedule.getId(), schedule);
+		armNext(schedule, clock.currentTimeMillis());
+		save();
+		GUI.addMessage("Agendamento includo: " + schedule);
+	}
+
+	/**
+	 * Remove a schedule
+	 * @param id Schedule ID
+	 */
+	public synchronized void remove(String id) {
+		disarm(id);
+		if (schedules.remove(id) != null) {
+			configured.remove(id);
+			save();
+			GUI.addMessage("Agendamento removido: " + id);
+		}
+	}
+
+	/**
+	 * A command was sent to CASAActuator - start the schedules that run after it. Commands fired by the
+	 * schedules themselves start nothing, so that a schedule never keeps re-arming itself or another one.
+	 * @param requested Command data as it was requested (Ex.: "STATE=tv.power=off")
+	 * @param key Command key (the macro key, before translation)
+	 */
+	public synchronized void commandSent(String requested, String key) {
+		if (firing.containsKey(requested)) {
+			return;
+		}
+		boolean changed = false;
+		for (Schedule schedule : schedules.values()) {
+			if (key.equals(schedule.getAfter())) {
+				disarm(schedule.getId());
+				arm(schedule.getId(), clock.currentTimeMillis() + schedule.getDelay());
+				changed = true;
+			}
+		}
+		if (changed) {
+			save();
+		}
+	}
+
+	/**
+	 * Log all schedules and their next deadline
+	 */
+	private void list() {
+		for (Schedule schedule : schedules.values()) {
+			TimerWheel.Timeout timer = timers.get(schedule.getId());
+			GUI.addMessage("Agendamento " + schedule + (timer != null ? " - prxima execuo: " + new java.util.Date(timer.getDeadline()) : ""));
+		}
+		GUI.addMessage("Temporizadores pendentes: " + wheel.size());
+	}
+
+	/**
+	 * Run a schedule. Called by the wheel thread.
+	 * @param id Schedule ID
+	 * @param deadline Deadline the schedule ran for
+	 */
+	private synchronized void fire(String id, long deadline) {
+		timers.remove(id);
+		Schedule schedule = schedules.get(id);
+		if (schedule == null) {
+			return;
+		}
+		GUI.addMessage("Executando agendamento " + id);
+		Command command = new Command().setCommandTp(Command.TP_STRING).setData(schedule.getMacro());
+		command.setSvoice(schedule.getTts());
+		final String data = schedule.getMacro();
+		firing.put(data, firing.containsKey(data) ? firing.get(data) + 1 : 1);
+		sendCommand(command).whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void result, Throwable e) {
+				fired(data);
+			}
+		});
+
+		if (isOneShot(schedule)) {
+			schedules.remove(id);
+		} else if (schedule.getEvery() > 0 && schedule.getAt() == null) {
+			// Keep the phase of recurring schedules, unless the wheel fell behind
+			long now = clock.currentTimeMillis();
+			arm(id, deadline + schedule.getEvery() > now ? deadline + schedule.getEvery() : now + schedule.getEvery());
+		} else {
+			armNext(schedule, clock.currentTimeMillis());
+		}
+		save();
+	}
+
+	/**
+	 * A command fired by a schedule was run (or dropped)
+	 * @param data Command data
+	 */
+	private synchronized void fired(String data) {
+		Integer count = firing.remove(data);
+		if (count != null && count > 1) {
+			firing.put(data, count - 1);
+		}
+	}
+
+	/**
+	 * Start the timer of a schedule for its next deadline, if it has one without an event
+	 * @param schedule Schedule
+	 * @param now Current time, in milliseconds
+	 */
+	private void armNext(Schedule schedule, long now) {
+		if (schedule.getAt() != null) {
+			String time[] = schedule.getAt().split(":");
+			Calendar next = Calendar.getInstance();
+			next.setTimeInMillis(now);
+			next.set(Calendar.HOUR_OF_DAY, Integer.parseInt(time[0]));
+			next.set(Calendar.MINUTE, Integer.parseInt(time[1]));
+			next.set(Calendar.SECOND, 0);
+			next.set(Calendar.MILLISECOND, 0);
+			if (next.getTimeInMillis() <= now) {
+				next.add(Calendar.DAY_OF_MONTH, 1);
+			}
+			arm(schedule.getId(), next.getTimeInMillis());
+		} else if (schedule.getEvery() > 0) {
+			arm(schedule.getId(), now + schedule.getEvery());
+		} else if (isOneShot(schedule)) {
+			arm(schedule.getId(), now + schedule.getDelay());
+		}
+	}
+
+	/**
+	 * Start the timer of a schedule
+	 * @param id Schedule ID
+	 * @param deadline Deadline, in milliseconds
+	 */
+	private void arm(final String id, final long deadline) {
+		timers.put(id, wheel.schedule(deadline, new Runnable() {
+			@Override
+			public void run() {
+				fire(id, deadline);
+			}
+		}));
+	}
+
+	/**
+	 * Cancel the timer of a schedule, if there is one
+	 * @param id Schedule ID
+	 */
+	private void disarm(String id) {
+		TimerWheel.Timeout timer = timers.remove(id);
+		if (timer != null) {
+			timer.cancel();
+		}
+	}
+
+	/**
+	 * Check if a schedule runs only once, a delay after it was created
+	 * @param schedule Schedule
+	 * @return true if it has neither a time of the day, an interval nor a starting command
+	 */
+	private static boolean isOneShot(Schedule schedule) {
+		return schedule.getAt() == null && schedule.getEvery() <= 0 && schedule.getAfter() == null;
+	}
+
+	/**
+	 * Build a schedule from its macro and rules
+	 * @param id Schedule ID
+	 * @param fields Macro followed by rules (Ex.: "at=02:00")
+	 * @param start Index of the macro in fields
+	 * @param tts Text to be synthesized, or null
+	 * @return Schedule
+	 */
+	private static Schedule parse(String id, String[] fields, int start, String tts) {
+		if (id.isEmpty() || fields.length <= start + 1) {
+			throw new IllegalArgumentException("ID, macro e regra so obrigatrios");
+		}
+		Schedule schedule = new Schedule();
+		schedule.setId(id);
+		schedule.setMacro(fields[start]);
+		schedule.setTts(tts);
+		for (int i = start + 1; i < fields.length; i++) {
+			int separator = fields[i].indexOf('=');
+			String name = separator > 0 ? fields[i].substring(0, separator) : fields[i];
+			String value = separator > 0 ? fields[i].substring(separator + 1) : "";
+			if ("at".equals(name)) {
+				schedule.setAt(value);
+			} else if ("every".equals(name)) {
+				schedule.setEvery(Schedule.parseDuration(value));
+			} else if ("after".equals(name)) {
+				schedule.setAfter(value);
+			} else if ("delay".equals(name)) {
+				schedule.setDelay(Schedule.parseDuration(value));
+			} else {
+				throw new IllegalArgumentException("Regra desconhecida: " + fields[i]);
+			}
+		}
+		return schedule;
+	}
+
+	/**
+	 * Format a schedule the way it is received from the network, without the ID
+	 * @param schedule Schedule
+	 * @return Macro and rules (Ex.: "AOFF|at=02:00")
+	 */
+	private static String format(Schedule schedule) {
+		StringBuilder sb = new StringBuilder(schedule.getMacro());
+		if (schedule.getAt() != null) {
+			sb.append("|at=").append(schedule.getAt());
+		}
+		if (schedule.getEvery() > 0) {
+			sb.append("|every=").append(schedule.getEvery());
+		}
+		if (schedule.getAfter() != null) {
+			sb.append("|after=").append(schedule.getAfter());
+		}
+		if (schedule.getDelay() > 0) {
+			sb.append("|delay=").append(schedule.getDelay());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Load the schedules added through the network, and the saved deadlines
+	 * @return Deadlines by schedule ID
+	 */
+	private Map<String, Long> load() {
+		Map<String, Long> deadlines = new HashMap<String, Long>();
+		if (!file.exists()) {
+			return deadlines;
+		}
+		Properties properties = new Properties();
+		try (InputStream is = new FileInputStream(file)) {
+			properties.load(is);
+			for (String key : properties.stringPropertyNames()) {
+				String id = key.substring(0, key.lastIndexOf('.'));
+				String value = properties.getProperty(key);
+				if (key.endsWith(".schedule") && !configured.contains(id)) {
+					String fields[] = value.split("\\|");
+					schedules.put(id, parse(id, fields, 0, properties.getProperty(id + ".tts")));
+				} else if (key.endsWith(".deadline")) {
+					deadlines.put(id, Long.parseLong(value));
+				}
+			}
+		} catch (Exception e) {
+			GUI.addMessage("Erro lendo agendamentos - " + e.getMessage());
+			e.printStackTrace();
+		}
+		return deadlines;
+	}
+
+	/**
+	 * Save the schedules added through the network and the pending deadlines
+	 */
+	private void save() {
+		Properties properties = new Properties();
+		for (Schedule schedule : schedules.values()) {
+			if (!configured.contains(schedule.getId())) {
+				properties.setProperty(schedule.getId() + ".schedule", format(schedule));
+				if (schedule.getTts() != null) {
+					properties.setProperty(schedule.getId() + ".tts", schedule.getTts());
+				}
+			}
+			TimerWheel.Timeout timer = timers.get(schedule.getId());
+			if (timer != null) {
+				properties.setProperty(schedule.getId() + ".deadline", Long.toString(timer.getDeadline()));
+			}
+		}
+		try (OutputStream os = new FileOutputStream(file)) {
+			properties.store(os, "CASASynthProxy - schedules");
+		} catch (Exception e) {
+			GUI.addMessage("Erro gravando agendamentos - " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+}
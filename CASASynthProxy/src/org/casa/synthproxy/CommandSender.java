@@ -19,8 +19,11 @@
  */
 package org.casa.synthproxy;
 
-import java.net.Socket;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
+import org.casa.synthproxy.client.CASAClient;
 import org.casa.synthproxy.config.Config;
 
 /**
@@ -37,6 +40,13 @@ import org.casa.synthproxy.config.Config;
  */
 public abstract class CommandSender extends Thread {
 	
+	/** Activation period sent with each command, in milliseconds **/
+	// TODO: Move this timing info (10000) to a configurable part
+	private static final long ACTIVATION_PERIOD = 10000;
+
+	/** Connection to CASASynthProxy shared by all senders **/
+	private static CASAClient client;
+
 	/**
 	 * Get a activation command, with a fixed activation period of 10 seconds.
 	 * @return 10 second activation command
@@ -44,36 +54,66 @@ public abstract class CommandSender extends Thread {
 	protected static Command getActivationCommand() {
 		Command c = new Command();
 		c.setCommandTp(Command.TP_ENABLE);
-		// TODO: Move this timing info (10000) to a configurable part
-		c.setData("E10000");
+		c.setData("E" + ACTIVATION_PERIOD);
 		return c;
 	}
 
 	/**
-	 * Send the command to CASAActuator.
-	 * This method actually connects through the network to CASASynthProxy as any
-	 * other application would do and requests the commend to be sent.
-	 * @param c Command to be sent
+	 * Get the client shared by all senders, connected to CASASynthProxy's own bindHost and bindPort
+	 * @return CASASynthProxy client
 	 */
-	protected static void sendCommand(Command c) {
-		Socket socket = null;
-		try {
-			// Retrieve config for host and Port
+	private static synchronized CASAClient getClient() {
+		if (client == null) {
 			String host = Config.getGeneralConfigEntry("bindHost", "localhost");
 			Integer port = Integer.parseInt(Config.getGeneralConfigEntry("bindPort", "11000"));
-			socket = new Socket(host, port);
-			socket.getOutputStream().write(getActivationCommand().toBytes(false));
-			socket.getOutputStream().write(c.toBytes(true));
-		} catch (Exception e) {
-			e.printStackTrace();
-		} finally {
-			if (socket != null) {
-				try {
-					socket.close();
-				} catch (Exception e) {
+			client = new CASAClient(host, port);
+		}
+		return client;
+	}
+
+	/**
+	 * Run the command through the internal {@link CommandBus}, preceded by an activation command.
+	 * Unlike {@link #sendCommand(Command)}, the returned future tells when CASAActuator is done with
+	 * the command: commands are only completed by the bus once CASAActuator executed them, and commands
+	 * the bus ignored (global switch off, redundant state, ...) are cancelled.
+	 * @param c Command to be run
+	 * @return Future completed once the command was executed, cancelled if it was ignored, or null if
+	 * there is no internal bus (outside CASASynthProxy, where commands can only be written to the network)
+	 */
+	protected static CompletableFuture<Void> runCommand(Command c) {
+		CommandBus bus = CommandBus.getInstance();
+		return bus != null ? log(bus.publishActivated(ACTIVATION_PERIOD, c)) : null;
+	}
+
+	/**
+	 * Send the command to CASAActuator, preceded by an activation command.
+	 * Inside CASASynthProxy, the command is published to the internal {@link CommandBus}.
+	 * Otherwise this method connects through the network to CASASynthProxy as any
+	 * other application would do and requests the commend to be sent. The connection
+	 * is kept open and shared by all senders. Either way, the command is sent asynchronously.
+	 * @param c Command to be sent
+	 * @return Future completed once the command was run by the bus or written to the connection
+	 */
+	protected static CompletableFuture<Void> sendCommand(Command c) {
+		CommandBus bus = CommandBus.getInstance();
+		return log(bus != null ? bus.publishActivated(ACTIVATION_PERIOD, c)
+				: getClient().sendActivated(ACTIVATION_PERIOD, c));
+	}
+
+	/**
+	 * Print the error of a command that failed (cancelled commands are not errors)
+	 * @param future Command future
+	 * @return The same future
+	 */
+	private static CompletableFuture<Void> log(CompletableFuture<Void> future) {
+		future.whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void result, Throwable e) {
+				if (e != null && !(e instanceof CancellationException)) {
 					e.printStackTrace();
 				}
 			}
-		}
+		});
+		return future;
 	}
 }
@@ -0,0 +1,468 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encoder for the compact binary protocol between CASASynthProxy and CASAActuator.
+ *
+ * The compact protocol is negotiated by {@link CommPort} when the port is opened. Once it is on,
+ * CASAActuator no longer parses ASCII envelopes - every command is sent as a binary frame:
+ *
+ * <ul>
+ * <li>byte 1: value 0x02 - frame start</li>
+ * <li>byte 2: length of sequence number plus operations - lower 7 bits. The high bit ({@link #FLAG_SYNC})
+ * tells CASAActuator to restart the sequence at this frame.</li>
+ * <li>byte 3: sequence number - set by {@link SendWindow} when the frame is sent</li>
+ * <li>byte 4 to n: operations (up to {@link #MAX_PAYLOAD} bytes), executed in order</li>
+ * <li>bytes n+1 and n+2: CRC-16/CCITT of bytes 2 to n (big endian)</li>
+ * <li>byte n+3: value 0x03 - frame end</li>
+ * </ul>
+ * CASAActuator answers each frame with "A&lt;seq&gt;;" after executing it, or "N&lt;seq&gt;;" if it has to be sent again.
+ *
+ * Operations (numbers marked as varint are unsigned LEB128 - 7 bits per byte, lower bits first):
+ * <ul>
+ * <li>0x10 IR: protocol ID (1 byte, see {@link IRProtocol}), code (4 bytes, big endian), bits (1 byte),
+ * repeat count (1 byte), delay in milliseconds (varint). The code is sent "repeat count" times,
+ * with the delay after each one.</li>
+ * <li>0x20 RELAY: relay number (1 byte), duration in milliseconds (varint), delay in milliseconds (varint)</li>
+ * <li>0x30 ENABLE: activation period in milliseconds (varint)</li>
+ * <li>0x31 CHECK: status check, answered with "E;" or "D;" as in the ASCII protocol</li>
+ * <li>0x40 TABLE INFO: macro table query, answered with "T&lt;checksum&gt;|&lt;number of macros&gt;;" ("T0|0;" if there is no valid table)</li>
+ * <li>0x41 TABLE BEGIN: start a macro table upload - data length (varint), checksum (2 bytes, big endian), number of macros (1 byte)</li>
+ * <li>0x42 TABLE CHUNK: table data - offset (varint), length (1 byte) and bytes</li>
+ * <li>0x43 TABLE COMMIT: check and store the uploaded table, answered with "K;" or "N;"</li>
+ * <li>0x50 RUN MACRO: run a macro from the table stored in CASAActuator - macro ID (1 byte, see {@link MacroTable})</li>
+ * <li>0x7F TEXT: length (1 byte) and ASCII command - fallback for anything the compact protocol does not model</li>
+ * </ul>
+ *
+ * Composite commands are packed in as few frames as possible; a frame only holds whole operations.
+ * Once a {@link MacroTable} is set, commands found in it are sent as RUN MACRO operations.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class CompactCodec {
+
+	/** Frame start byte **/
+	public static final byte FRAME_START = 0x02;
+	/** Frame end byte **/
+	public static final byte FRAME_END = 0x03;
+	/** Biggest frame - frames must fit in CASAActuator's 64 byte serial buffer **/
+	public static final int MAX_FRAME = 64;
+	/** Frame bytes not counted by the length byte: start, length, CRC and end **/
+	public static final int FRAME_OVERHEAD = 5;
+	/** Biggest operations payload **/
+	public static final int MAX_PAYLOAD = MAX_FRAME - FRAME_OVERHEAD - 1;
+	/** Length byte bits that hold the length **/
+	public static final int LENGTH_MASK = 0x7F;
+	/** Length byte flag that restarts the sequence **/
+	public static final int FLAG_SYNC = 0x80;
+
+	/** IR operation **/
+	public static final byte OP_IR = 0x10;
+	/** Relay operation **/
+	public static final byte OP_RELAY = 0x20;
+	/** Activation operation **/
+	public static final byte OP_ENABLE = 0x30;
+	/** Status check operation **/
+	public static final byte OP_CHECK = 0x31;
+	/** Macro table query operation **/
+	public static final byte OP_TABLE_INFO = 0x40;
+	/** Macro table upload start operation **/
+	public static final byte OP_TABLE_BEGIN = 0x41;
+	/** Macro table data operation **/
+	public static final byte OP_TABLE_CHUNK = 0x42;
+	/** Macro table commit operation **/
+	public static final byte OP_TABLE_COMMIT = 0x43;
+	/** Run macro operation **/
+	public static final byte OP_RUN_MACRO = 0x50;
+	/** ASCII command fallback operation **/
+	public static final byte OP_TEXT = 0x7F;
+
+	/** Maximum repeat count of an IR operation **/
+	private static final int MAX_REPEAT = 255;
+	/** Macro table data sent in each TABLE CHUNK operation **/
+	private static final int CHUNK_SIZE = 48;
+	/** Time CASAActuator takes to write one byte to EEPROM, in milliseconds (rounded up) **/
+	private static final int EEPROM_WRITE_TIME = 4;
+
+	/** Pooled output buffer **/
+	private ByteBuffer pooled = ByteBuffer.allocate(1024);
+	/** Scratch buffer that holds one operation while it is built **/
+	private final ByteBuffer op = ByteBuffer.allocate(MAX_PAYLOAD);
+	/** Position of the length byte of the frame being written, -1 if there is none **/
+	private int lengthPosition = -1;
+	/** Number of frames written by the current encode call **/
+	private int frames;
+	/** Execution time of each frame written by the current encode call, in milliseconds **/
+	private int[] frameDurations = new int[16];
+	/** Execution time of the frame being written, in milliseconds **/
+	private int duration;
+	/** Macro table stored in CASAActuator, or null if there is none **/
+	private MacroTable macroTable;
+
+	/**
+	 * Set the macro table stored in CASAActuator. Commands found in it will be sent by ID.
+	 * @param macroTable Macro table, or null to send every command in full
+	 */
+	public void setMacroTable(MacroTable macroTable) {
+		this.macroTable = macroTable;
+	}
+
+	/**
+	 * Get the macro table stored in CASAActuator
+	 * @return Macro table, or null if there is none
+	 */
+	public MacroTable getMacroTable() {
+		return macroTable;
+	}
+
+	/**
+	 * Get the estimated execution time of each frame written by the last encode call - IR delays,
+	 * relay durations and EEPROM writes. Used by {@link SendWindow} to wait long enough for ACKs.
+	 * @return Execution time of each frame, in milliseconds (only the first frames are valid)
+	 */
+	public int[] getFrameDurations() {
+		return frameDurations;
+	}
+
+	/**
+	 * Set the sequence number of a frame and compute its CRC
+	 * @param frame Frame
+	 * @param seq Sequence number
+	 */
+	public static void seal(byte[] frame, int seq) {
+		frame[2] = (byte)seq;
+		int covered = (frame[1] & LENGTH_MASK) + 1;
+		int crc = crc16(frame, 1, covered);
+		frame[1 + covered] = (byte)(crc >> 8);
+		frame[2 + covered] = (byte)crc;
+	}
+
+	/**
+	 * Set the sync flag of a frame, so that CASAActuator restarts the sequence at it. Must be called before {@link #seal(byte[], int)}.
+	 * @param frame Frame
+	 */
+	public static void markSync(byte[] frame) {
+		frame[1] |= FLAG_SYNC;
+	}
+
+	/**
+	 * CRC-16/CCITT (polynomial 0x1021, initial value 0xFFFF) - same as crc16() in CASAActuator.
+	 * @param b Data
+	 * @param offset First byte
+	 * @param length Number of bytes
+	 * @return Checksum
+	 */
+	public static int crc16(byte[] b, int offset, int length) {
+		int crc = 0xFFFF;
+		for (int i = offset; i < offset + length; i++) {
+			crc ^= (b[i] & 0xFF) << 8;
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+			}
+			crc &= 0xFFFF;
+		}
+		return crc;
+	}
+
+	/**
+	 * Encode a command, possibly composite, into the pooled buffer of this codec. The returned buffer is
+	 * ready to be read and is only valid until the next call on this codec.
+	 * @param command Command to be encoded
+	 * @return Pooled buffer holding the frames
+	 * @throws IllegalArgumentException A single operation does not fit in a frame
+	 */
+	public ByteBuffer encode(Command command) {
+		while (true) {
+			pooled.clear();
+			try {
+				encode(command, pooled);
+				pooled.flip();
+				return pooled;
+			} catch (BufferOverflowException e) {
+				pooled = ByteBuffer.allocate(pooled.capacity() * 2);
+			}
+		}
+	}
+
+	/**
+	 * Encode a command, possibly composite, into compact frames
+	 * @param command Command to be encoded
+	 * @param out Output buffer
+	 * @return Number of frames written
+	 * @throws IllegalArgumentException A single operation does not fit in a frame
+	 */
+	public int encode(Command command, ByteBuffer out) {
+		frames = 0;
+		lengthPosition = -1;
+		duration = 0;
+		String data = command.getData() == null ? "" : command.getData();
+		if (writeRunMacro(data, out)) {
+			closeFrame(out);
+			return frames;
+		}
+		for (String commandData : data.split("#")) {
+			if (commandData.isEmpty() || writeRunMacro(commandData, out)) {
+				continue;
+			}
+			List<Step> steps = Step.parse(commandData);
+			if (steps != null) {
+				writeSteps(steps, out);
+			} else if (commandData.startsWith("E") && isNumber(commandData, 1)) {
+				op.clear();
+				op.put(OP_ENABLE);
+				putVarint(op, Long.parseLong(commandData.substring(1)));
+				writeOp(out);
+			} else if ("C".equals(commandData)) {
+				op.clear();
+				op.put(OP_CHECK);
+				writeOp(out);
+			} else {
+				byte text[] = commandData.getBytes(Command.CHARSET);
+				if (text.length + 2 > MAX_PAYLOAD) {
+					throw new IllegalArgumentException("Comando muito longo: " + commandData);
+				}
+				op.clear();
+				op.put(OP_TEXT);
+				op.put((byte)text.length);
+				op.put(text);
+				writeOp(out);
+			}
+		}
+		closeFrame(out);
+		return frames;
+	}
+
+	/**
+	 * Encode a status check frame
+	 * @param out Output buffer
+	 */
+	public void encodeCheck(ByteBuffer out) {
+		encodeOperation(OP_CHECK, out);
+	}
+
+	/**
+	 * Encode a frame holding a single operation without arguments (Ex.: {@link #OP_CHECK}, {@link #OP_TABLE_INFO})
+	 * @param operation Operation
+	 * @param out Output buffer
+	 */
+	public void encodeOperation(byte operation, ByteBuffer out) {
+		frames = 0;
+		lengthPosition = -1;
+		duration = 0;
+		op.clear();
+		op.put(operation);
+		writeOp(out);
+		closeFrame(out);
+	}
+
+	/**
+	 * Encode a macro table upload (TABLE BEGIN and TABLE CHUNK operations) into the pooled buffer of
+	 * this codec. TABLE COMMIT is left out, as its answer must be waited for.
+	 * @param table Macro table
+	 * @return Pooled buffer holding the frames
+	 */
+	public ByteBuffer encodeTableUpload(MacroTable table) {
+		byte data[] = table.getData();
+		while (true) {
+			pooled.clear();
+			try {
+				frames = 0;
+				lengthPosition = -1;
+				duration = 0;
+				op.clear();
+				op.put(OP_TABLE_BEGIN);
+				putVarint(op, data.length);
+				op.putShort((short)table.getChecksum());
+				op.put((byte)table.size());
+				writeOp(pooled);
+				for (int offset = 0; offset < data.length; offset += CHUNK_SIZE) {
+					int length = Math.min(CHUNK_SIZE, data.length - offset);
+					op.clear();
+					op.put(OP_TABLE_CHUNK);
+					putVarint(op, offset);
+					op.put((byte)length);
+					op.put(data, offset, length);
+					writeOp(pooled);
+					duration += length * EEPROM_WRITE_TIME;
+				}
+				closeFrame(pooled);
+				pooled.flip();
+				return pooled;
+			} catch (BufferOverflowException e) {
+				pooled = ByteBuffer.allocate(pooled.capacity() * 2);
+			}
+		}
+	}
+
+	/**
+	 * Write a RUN MACRO operation if the command is in the macro table
+	 * @param commandData Command data
+	 * @param out Output buffer
+	 * @return true if the operation was written
+	 */
+	private boolean writeRunMacro(String commandData, ByteBuffer out) {
+		Integer id = macroTable == null ? null : macroTable.getId(commandData);
+		if (id == null) {
+			return false;
+		}
+		op.clear();
+		op.put(OP_RUN_MACRO);
+		op.put((byte)id.intValue());
+		writeOp(out);
+		duration += macroTable.getDuration(id);
+		return true;
+	}
+
+	/**
+	 * Write IR and relay steps as operations, packed in frames.
+	 * @param steps Steps to be written
+	 * @param out Output buffer
+	 */
+	void writeSteps(List<Step> steps, ByteBuffer out) {
+		for (int i = 0; i < steps.size(); ) {
+			int first = i;
+			i += buildStepOperation(steps, i);
+			writeOp(out);
+			for (int s = first; s < i; s++) {
+				duration += steps.get(s).getDuration() + steps.get(s).getDelay();
+			}
+		}
+	}
+
+	/**
+	 * Write IR and relay steps as bare operations, without frames (used by {@link MacroTable}).
+	 * @param steps Steps to be written
+	 * @param out Output buffer
+	 */
+	void putSteps(List<Step> steps, ByteBuffer out) {
+		for (int i = 0; i < steps.size(); ) {
+			i += buildStepOperation(steps, i);
+			op.flip();
+			out.put(op);
+		}
+	}
+
+	/**
+	 * Build the operation for a step in the scratch buffer. Consecutive equal IR steps become a single operation
+	 * with a repeat count.
+	 * @param steps Steps
+	 * @param i Index of the step
+	 * @return Number of steps taken by the operation
+	 */
+	private int buildStepOperation(List<Step> steps, int i) {
+		Step step = steps.get(i);
+		op.clear();
+		if (step.getType() == Step.Type.IR) {
+			int repeat = 1;
+			while (i + repeat < steps.size() && repeat < MAX_REPEAT
+					&& step.sameAction(steps.get(i + repeat)) && step.getDelay() == steps.get(i + repeat).getDelay()) {
+				repeat++;
+			}
+			op.put(OP_IR);
+			op.put((byte)step.getProtocol().getId());
+			op.putInt((int)step.getCode());
+			op.put((byte)step.getBits());
+			op.put((byte)repeat);
+			putVarint(op, step.getDelay());
+			return repeat;
+		}
+		op.put(OP_RELAY);
+		op.put((byte)step.getRelay());
+		putVarint(op, step.getDuration());
+		putVarint(op, step.getDelay());
+		return 1;
+	}
+
+	/**
+	 * Append the operation in the scratch buffer to the current frame, starting a new frame if it does not fit
+	 * @param out Output buffer
+	 */
+	private void writeOp(ByteBuffer out) {
+		op.flip();
+		if (lengthPosition >= 0 && out.position() - lengthPosition - 2 + op.remaining() > MAX_PAYLOAD) {
+			closeFrame(out);
+		}
+		if (lengthPosition < 0) {
+			out.put(FRAME_START);
+			lengthPosition = out.position();
+			// Length and sequence number placeholders
+			out.put((byte)0);
+			out.put((byte)0);
+		}
+		out.put(op);
+	}
+
+	/**
+	 * Close the current frame, if there is one
+	 * @param out Output buffer
+	 */
+	private void closeFrame(ByteBuffer out) {
+		if (lengthPosition < 0) {
+			return;
+		}
+		out.put(lengthPosition, (byte)(out.position() - lengthPosition - 1));
+		// CRC placeholder - see seal()
+		out.putShort((short)0);
+		out.put(FRAME_END);
+		lengthPosition = -1;
+		if (frames == frameDurations.length) {
+			frameDurations = Arrays.copyOf(frameDurations, frames * 2);
+		}
+		frameDurations[frames++] = duration;
+		duration = 0;
+	}
+
+	/**
+	 * Write an unsigned LEB128 number
+	 * @param out Output buffer
+	 * @param value Value to be written (not negative)
+	 */
+	static void putVarint(ByteBuffer out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.put((byte)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte)value);
+	}
+
+	/**
+	 * Check if a string is made of digits only, from a given index
+	 * @param s String to be checked
+	 * @param from First index to be checked
+	 * @return true if there is at least one character and all of them are digits
+	 */
+	private static boolean isNumber(String s, int from) {
+		if (s.length() <= from) {
+			return false;
+		}
+		for (int i = from; i < s.length(); i++) {
+			if (!Character.isDigit(s.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -19,13 +19,15 @@
  */
 package org.casa.synthproxy;
 
-import java.awt.Toolkit;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
+import org.casa.synthproxy.client.Response;
 import org.casa.synthproxy.config.Config;
-import org.casa.synthproxy.config.Macro;
 import org.casa.synthproxy.ide.GUI;
 
 /**
@@ -37,19 +39,63 @@ import org.casa.synthproxy.ide.GUI;
  * BitVoicer has a "keep alive" behavior - i.e., when BitVoicer is started, a connection
  * is established and kept open until BitVoicer is running. So, this thread is capable of
  * receiving several commands in the same connection, until the connection is alive.
+ * 
+ * Protocol v2 is negotiated by sending an envelope with "V2" as data; CASASynthProxy echoes it back
+ * and, from then on, on this connection:
+ * <ul>
+ * <li>Envelope data may start with a request ID followed by ":" (Ex.: "12:TDC517;Ol"). Each request
+ * with an ID is answered with response frames (see {@link Response}): "accepted" once it is read, then
+ * "executed", "ignored" or "error" once it was run.</li>
+ * <li>Commands are run in order by a separate thread, so the client may send many requests without
+ * waiting for their responses. Up to {@link #MAX_OUTSTANDING} requests wait to be run; beyond that,
+ * reading stops until there is room.</li>
+ * <li>Status envelopes and empty requests are keep-alives, and state queries are answered right away -
+ * neither waits for the commands ahead of them nor touches the serial port.</li>
+ * </ul>
+ * Clients that do not negotiate keep the original behavior: commands are run as they are read, and
+ * nothing but state queries is answered.
  *  
  * @author Daniel Parra Tucunduva
  */
 public class ConnectionHandler implements Runnable {
 
-	// CASASynthProxy configuration
-	private Config config;
+	/** Requests waiting to be run, in protocol v2 **/
+	public static final int MAX_OUTSTANDING = 64;
+	/** Marks the end of the requests, for the pipeline thread **/
+	private static final Request END = new Request(null, 0);
+
 	// TCP/IP socket that this handler will use to communicate
 	private Socket socket;
-	// Activation period limit in miliseconds.
-	private long activatedUntil = 0L;
-	// Serial port that will be used to comunicate with CASAActuator 
-	private CommPort commPort;
+	// Runs the commands read from this connection, with this connection's activation period
+	private final CommandDispatcher dispatcher;
+	// Time source
+	private final Clock clock = Clock.getInstance();
+	// Protocol v2 was negotiated
+	private boolean v2 = false;
+	// Requests waiting to be run, in protocol v2
+	private BlockingQueue<Request> pipeline;
+	// Thread that runs the requests, in protocol v2
+	private Thread pipelineThread;
+
+	/**
+	 * Request waiting to be run, in protocol v2
+	 */
+	private static class Request {
+		/** Command **/
+		private final Command command;
+		/** When it was read **/
+		private final long readAt;
+
+		/**
+		 * Constructor
+		 * @param command Command
+		 * @param readAt When it was read
+		 */
+		Request(Command command, long readAt) {
+			this.command = command;
+			this.readAt = readAt;
+		}
+	}
 
 	/**
 	 * Connection Handler constructor.
@@ -62,16 +108,15 @@ public class ConnectionHandler implements Runnable {
 	 * @param config CASASynthProxy configuration, loaded by the main class
 	 */
 	public ConnectionHandler(CommPort commPort, Config config) {
-		this.commPort = commPort;
-		this.config = config;
+		this.dispatcher = new CommandDispatcher(commPort, config);
 	}
 
 	/**
-	 * Get COM port that is being used to communicate with CASAActuator
-	 * @return COM port that is being used to communicate with CASAActuator
+	 * Get the dispatcher that runs the commands read from this connection
+	 * @return Command dispatcher
 	 */
-	private CommPort getCommPort() {
-		return commPort;
+	private CommandDispatcher getDispatcher() {
+		return dispatcher;
 	}
 
 	/**
@@ -98,7 +143,7 @@ public class ConnectionHandler implements Runnable {
 	 * until this timestamp.
 	 */
 	public void setActivatedUntil(Long activatedUntil) {
-		this.activatedUntil = activatedUntil;
+		getDispatcher().setActivatedUntil(activatedUntil);
 	}
 	
 	/**
@@ -106,7 +151,7 @@ public class ConnectionHandler implements Runnable {
 	 * @return Activation period finish.
 	 */
 	public long getActivatedUntil() {
-		return activatedUntil;
+		return getDispatcher().getActivatedUntil();
 	}
 	
 	/**
@@ -122,49 +167,21 @@ public class ConnectionHandler implements Runnable {
 				command = readCommand();
 				GUI.addMessage("Comando lido via rede:" + command);
 				
-				// Translate the command if there is macro with this command's data
-				command = checkMacro(command);
-				
-				// If this is an activation command, set the activation period accordingly
-				if (command.getCommandTp() == Command.TP_ENABLE) {
-					setActivatedUntil(System.currentTimeMillis() + command.getActivatedUntil());
-				}
-				
-				boolean globalSwitch = command.getCommandTp() != Command.TP_STATUS ? 
-						(command.getCommandTp() == Command.TP_SHUTDOWN ? false : getCommPort().getGlobalSwitchStatus()): true;
-				if (globalSwitch) {
-					// Run it only if we are in an activation period
-					if (command.getCommandTp() != Command.TP_STRING || 
-							(getActivatedUntil() >= System.currentTimeMillis() && command.getCommandTp() == Command.TP_STRING)) {
-						if (command.getSvoice() != null) {
-							// If the text to be synthesized is "beep", trigger a default notification sound from OS. 
-							if ("beep".equalsIgnoreCase(command.getSvoice())) {
-								Toolkit.getDefaultToolkit().beep();
-							} else {
-								GUI.addMessage("Sintetizando texto: " + command.getSvoice());
-								new VoiceSynth(command.getSvoice()).sayit();
-							}
-						}
-						
-						// Build command list to be sent. This will split the command in a list if it is a composite command.
-						List<Command> commands = command.splitCommand();
-						
-						synchronized(getCommPort().getSerialPort()) {
-							for (Command cmdToSend : commands) {
-								// Send the command to CASAActuator
-								GUI.addMessage("Enviando comando ao arduino: " + cmdToSend.toString());
-								getCommPort().sendCommand(cmdToSend);
-								getCommPort().getGlobalSwitchStatus();
-							}
-						}
-					} else {
-						GUI.addMessage("Comando enviado fora do perodo de ativao, ignorando...");
-					}
+				if (!v2 && command.getCommandTp() == Command.TP_STRING && Response.VERSION.equals(command.getData())) {
+					startPipeline();
+					GUI.addMessage("Protocolo v2 negociado");
+					write(Response.VERSION);
+				} else if (v2) {
+					handleRequest(command);
+				} else if (command.getCommandTp() == Command.TP_STRING && DeviceState.QUERY.equals(command.getData())) {
+					replyState();
 				} else {
-					if (command.getCommandTp() != Command.TP_SHUTDOWN) {
-						GUI.addMessage("Chave geral desligada no arduino, ignorando...");
-					} else {
-						GUI.addMessage("Shutdown solicitado, a conexo ser finalizada...");
+					try {
+						getDispatcher().dispatch(command);
+					} catch (Exception e) {
+						// CASAActuator could not run this command - the connection is still good for the next ones
+						GUI.addMessage("Erro enviando comando ao arduino - " + e.getMessage());
+						e.printStackTrace();
 					}
 				}
 			} while (getSocket().isConnected() && command != null && command.getCommandTp() != Command.TP_SHUTDOWN);
@@ -172,24 +189,139 @@ public class ConnectionHandler implements Runnable {
 			// Error handling the connection. Nothing left to do.
 			e.printStackTrace();
 		}
+		stopPipeline();
 		
 		GUI.addMessage("Finalizando conexo");
 	}
-	
+
+	/**
+	 * Switch this connection to protocol v2, starting the thread that runs the requests
+	 */
+	private void startPipeline() {
+		v2 = true;
+		pipeline = new ArrayBlockingQueue<Request>(MAX_OUTSTANDING + 1);
+		pipelineThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runPipeline();
+			}
+		}, "ConnectionHandler pipeline");
+		pipelineThread.setDaemon(true);
+		pipelineThread.start();
+	}
+
 	/**
-	 * Translate this command if its content maps to a macro in CASASynthProxy configuration
-	 * @param command Command to be translated
-	 * @return Translated command. If there is no macro, the same command is returned.
+	 * Let the requests already read be run, then stop the pipeline thread
 	 */
-	private Command checkMacro(Command command) {
-		Macro macro = config.getMacros().get(command.getData());
-		if (macro != null) {
-			command.setData(macro.getData());
-			GUI.addMessage("Comando traduzido:" + command);
+	private void stopPipeline() {
+		if (pipelineThread == null) {
+			return;
+		}
+		try {
+			pipeline.put(END);
+			pipelineThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Handle a request read in protocol v2. Keep-alives and state queries are answered at once; commands
+	 * are queued to be run in order.
+	 * @param command Command read
+	 * @throws InterruptedException Interrupted while waiting for room in the queue
+	 */
+	private void handleRequest(Command command) throws InterruptedException {
+		int id = command.getRequestId();
+		if (command.getCommandTp() == Command.TP_SHUTDOWN) {
+			return;
+		}
+		if (command.getCommandTp() == Command.TP_STATUS
+				|| (command.getCommandTp() == Command.TP_STRING && (command.getData() == null || command.getData().isEmpty()))) {
+			respond(id, Response.Status.EXECUTED, 0, 0, null);
+			return;
+		}
+		if (command.getCommandTp() == Command.TP_STRING && DeviceState.QUERY.equals(command.getData())) {
+			replyState();
+			respond(id, Response.Status.EXECUTED, 0, 0, null);
+			return;
+		}
+		respond(id, Response.Status.ACCEPTED, 0, 0, null);
+		pipeline.put(new Request(command, clock.currentTimeMillis()));
+	}
+
+	/**
+	 * Pipeline thread: run the queued requests in order and answer them
+	 */
+	private void runPipeline() {
+		while (true) {
+			Request request;
+			try {
+				request = pipeline.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (request == END) {
+				return;
+			}
+			int id = request.command.getRequestId();
+			long start = clock.currentTimeMillis();
+			try {
+				boolean run = getDispatcher().dispatch(request.command);
+				respond(id, run ? Response.Status.EXECUTED : Response.Status.IGNORED,
+						start - request.readAt, clock.currentTimeMillis() - start, null);
+			} catch (Exception e) {
+				GUI.addMessage("Erro enviando comando ao arduino - " + e.getMessage());
+				e.printStackTrace();
+				respond(id, Response.Status.ERROR, start - request.readAt, clock.currentTimeMillis() - start, e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Send a response frame, if the request has an ID
+	 * @param id Request ID, or -1
+	 * @param status Status
+	 * @param queueTime Time waiting behind earlier requests, in milliseconds
+	 * @param runTime Time running, in milliseconds
+	 * @param message Error message, or null
+	 */
+	private void respond(int id, Response.Status status, long queueTime, long runTime, String message) {
+		if (id >= 0) {
+			write(new Response(id, status, queueTime, runTime, message).toData());
+		}
+	}
+
+	/**
+	 * Write an envelope to the connection. Both the reading thread and the pipeline thread write to it.
+	 * @param data Envelope data
+	 */
+	private void write(String data) {
+		try {
+			Command reply = new Command().setCommandTp(Command.TP_STRING).setData(data);
+			ByteBuffer frames = FrameEncoder.network().encode(reply, false);
+			synchronized (this) {
+				OutputStream os = getSocket().getOutputStream();
+				os.write(frames.array(), frames.arrayOffset() + frames.position(), frames.remaining());
+				os.flush();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
 		}
-		return command;
 	}
 	
+	/**
+	 * Answer a state query: an envelope with "STATE=" followed by the known device state
+	 * (Ex.: "STATE=net.channel=517,tv.power=on") is written to the connection.
+	 */
+	private void replyState() {
+		DeviceState state = DeviceState.getInstance();
+		String description = state != null ? state.describe() : "";
+		GUI.addMessage("Estado dos dispositivos: " + description
+				+ (state != null ? " - comandos redundantes ignorados: " + state.getSkipped() : ""));
+		write(DeviceState.SET_PREFIX + description);
+	}
+
 	/**
 	 * Read a command from TCP/IP connection. This method blocks until a command is received.
 	 * 
@@ -197,7 +329,8 @@ public class ConnectionHandler implements Runnable {
 	 * 
 	 * <ul>
 	 * <li>byte 1: value 0x01 - envelope start</li>
-	 * <li>byte 2: Command type as defined in {@link org.casa.synthproxy.Command} class constants (Ex.: Command.TP_STRING)</li>
+	 * <li>byte 2: Command type as defined in {@link org.casa.synthproxy.Command} class constants (Ex.: Command.TP_STRING,
+	 * or Command.TP_TRANSCRIPT for free text)</li>
 	 * <li>byte 3: Data length - up to 256 bytes when CASASynthProxy is receiving, but only 59 bytes to be sent to CASAActuator</li>
 	 * <li>byte 4 to n: Command data, n is the data length read in byte 3.</li>
 	 * <li>byte n+1:  value 0x04 - envelope end</li>
@@ -206,13 +339,44 @@ public class ConnectionHandler implements Runnable {
 	 * @return Command that was read.
 	 */
 	private Command readCommand() {
+		try {
+			return readCommand(getSocket().getInputStream(), v2);
+		} catch (Exception e) {
+			// There was an error getting the socket stream. Generate e STATUS command
+			e.printStackTrace();
+			return new Command().setCommandTp(Command.TP_STATUS);
+		}
+	}
+
+	/**
+	 * Read a command from an input stream. This method blocks until a command is received.
+	 * 
+	 * This is the envelope parser used by {@link #readCommand()}. It is kept apart from the socket
+	 * so that it can be driven by any stream - benchmarks feed it from memory, for instance.
+	 * 
+	 * @param is Stream that the envelope will be read from
+	 * @return Command that was read.
+	 */
+	public static Command readCommand(InputStream is) {
+		return readCommand(is, false);
+	}
+
+	/**
+	 * Read a command from an input stream. This method blocks until a command is received.
+	 * 
+	 * In protocol v2, a request ID at the start of the data is taken out and set in the command.
+	 * 
+	 * @param is Stream that the envelope will be read from
+	 * @param v2 Protocol v2 was negotiated
+	 * @return Command that was read.
+	 */
+	public static Command readCommand(InputStream is, boolean v2) {
 		Command command = null;
 		byte[] bAux = new byte[1];
 		byte[] bData;
 		
 		try {
 			command = new Command();
-			InputStream is = getSocket().getInputStream();
 
 			// First byte - envelope start.
 			int status = is.read(bAux);
@@ -236,6 +400,8 @@ public class ConnectionHandler implements Runnable {
 				command.setCommandTp(Command.TP_STATUS);
 			} else if (bAux[0] == Command.TP_STRING) {
 				command.setCommandTp(Command.TP_STRING);
+			} else if (bAux[0] == Command.TP_TRANSCRIPT) {
+				command.setCommandTp(Command.TP_TRANSCRIPT);
 			} else {
 				// Command type not supported or not recognized. 
 				// Assume a status command, that is a "dummy" one.
@@ -250,12 +416,22 @@ public class ConnectionHandler implements Runnable {
 			// Forth + n bytes - Data package
 			if (envelopeSize > 0) {
 				bData = new byte[envelopeSize];
-				is.read(bData, 0, envelopeSize);
-				command.setData(new String(bData));
+				for (int read = 0; read < envelopeSize; ) {
+					int count = is.read(bData, read, envelopeSize - read);
+					if (count < 0) {
+						throw new Exception ("Envelope incompleto");
+					}
+					read += count;
+				}
+				String data = new String(bData, Command.CHARSET);
+				if (v2) {
+					data = takeRequestId(data, command);
+				}
+				command.setData(data);
 				
 				// If this is a ACTIVATION command, build a activation command
 				// setting the activation period in the command.
-				if (command.getData() != null && command.getData().startsWith("E")) {
+				if (command.getCommandTp() == Command.TP_STRING && command.getData() != null && command.getData().startsWith("E")) {
 					command.setCommandTp(Command.TP_ENABLE);
 					command.setActivatedUntil(Long.parseLong(command.getData().substring(1)));
 					GUI.addMessage("Habilitando comandos por " + command.getActivatedUntil() + " milissegundos");
@@ -275,4 +451,30 @@ public class ConnectionHandler implements Runnable {
 		}
 		return command;
 	}
+
+	/**
+	 * Take the request ID out of envelope data, in protocol v2
+	 * @param data Envelope data (Ex.: "12:TDC517")
+	 * @param command Command that gets the request ID
+	 * @return Data without the request ID (Ex.: "TDC517"), or the same data if there is none
+	 */
+	private static String takeRequestId(String data, Command command) {
+		int separator = data.indexOf(Response.ID_SEPARATOR);
+		if (separator < 1 || separator > 5) {
+			return data;
+		}
+		int id = 0;
+		for (int i = 0; i < separator; i++) {
+			char c = data.charAt(i);
+			if (c < '0' || c > '9') {
+				return data;
+			}
+			id = id * 10 + (c - '0');
+		}
+		if (id > Response.MAX_ID) {
+			return data;
+		}
+		command.setRequestId(id);
+		return data.substring(separator + 1);
+	}
 }
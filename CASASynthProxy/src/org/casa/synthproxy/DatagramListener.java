@@ -0,0 +1,304 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+
+import org.casa.synthproxy.config.Config;
+import org.casa.synthproxy.ide.GUI;
+
+/**
+ * UDP listener for fire-and-forget commands, for sources that cannot afford a TCP connection (a wearable
+ * switch bridge, an eye tracker and so on). Nothing is ever answered.
+ *
+ * Each datagram has:
+ * <ul>
+ * <li>bytes 1 and 2: sequence number (big endian), counted by each sender</li>
+ * <li>byte 3 on: one or more envelopes, the same ones read from TCP connections (see {@link ConnectionHandler#readCommand(java.io.InputStream)})</li>
+ * </ul>
+ * As datagrams can be lost, senders may send the same datagram several times; a datagram whose sequence
+ * number was already seen from the same sender is dropped. A sequence number far behind the last one
+ * means the sender started over, and is accepted.
+ *
+ * Commands go through a single {@link CommandDispatcher}, so all UDP senders share an activation period.
+ * A sender usually puts an activation envelope and a command envelope in the same datagram.
+ *
+ * Datagrams are read by a single thread into the same buffer. Envelope payloads are decoded once and kept
+ * in a cache, so that a source firing the same few commands does not decode them again, and the same
+ * command object is filled for every envelope.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class DatagramListener implements Runnable {
+
+	/** Biggest datagram: sequence number and two full envelopes **/
+	private static final int MAX_DATAGRAM = 2 + 2 * (255 + 4);
+	/** Senders whose sequence numbers are kept **/
+	private static final int MAX_SENDERS = 32;
+	/** Sequence numbers behind the last one that are still checked **/
+	private static final int WINDOW = 64;
+	/** Decoded payloads kept - must be a power of 2 **/
+	private static final int CACHE_SIZE = 256;
+
+	/** UDP socket **/
+	private final DatagramSocket socket;
+	/** Runs the commands, with the activation period shared by all UDP senders **/
+	private final CommandDispatcher dispatcher;
+	/** Datagram buffer **/
+	private final byte[] buffer = new byte[MAX_DATAGRAM];
+	/** Datagram **/
+	private final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+	/** Command filled for each envelope **/
+	private final Command command = new Command();
+	/** Time source **/
+	private final Clock clock = Clock.getInstance();
+
+	/** Sender keys (address hash and port), by slot **/
+	private final long[] senders = new long[MAX_SENDERS];
+	/** Last sequence number of each sender, by slot **/
+	private final int[] lastSeqs = new int[MAX_SENDERS];
+	/** Sequence numbers seen behind the last one - bit n is last - n, by slot **/
+	private final long[] seen = new long[MAX_SENDERS];
+	/** When each sender was last heard from, by slot - 0 for a free slot **/
+	private final long[] lastHeard = new long[MAX_SENDERS];
+
+	/** Cached payloads (envelope length followed by the envelope data), by hash slot **/
+	private final byte[][] cachedPayloads = new byte[CACHE_SIZE][];
+	/** Command type of each cached payload **/
+	private final byte[] cachedTypes = new byte[CACHE_SIZE];
+	/** Decoded data of each cached payload **/
+	private final String[] cachedData = new String[CACHE_SIZE];
+	/** Activation period of each cached payload, for activation commands **/
+	private final long[] cachedActivations = new long[CACHE_SIZE];
+
+	/** Datagrams received **/
+	private volatile long received = 0;
+	/** Datagrams dropped as duplicates **/
+	private volatile long duplicates = 0;
+	/** Listener thread **/
+	private Thread thread;
+
+	/**
+	 * Constructor - binds the UDP port
+	 * @param host IP address or host to bind to
+	 * @param port UDP port
+	 * @param commPort COM port for serial communication with CASAActuator
+	 * @param config CASASynthProxy configuration
+	 * @throws Exception The port could not be bound
+	 */
+	public DatagramListener(String host, int port, CommPort commPort, Config config) throws Exception {
+		this.socket = new DatagramSocket(new InetSocketAddress(host, port));
+		this.dispatcher = new CommandDispatcher(commPort, config);
+	}
+
+	/**
+	 * Start the listener thread
+	 */
+	public void start() {
+		thread = new Thread(this, "DatagramListener");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop listening
+	 */
+	public void close() {
+		socket.close();
+	}
+
+	/**
+	 * Get the number of datagrams received
+	 * @return Datagrams received, duplicates included
+	 */
+	public long getReceived() {
+		return received;
+	}
+
+	/**
+	 * Get the number of datagrams dropped as duplicates
+	 * @return Duplicated datagrams
+	 */
+	public long getDuplicates() {
+		return duplicates;
+	}
+
+	/**
+	 * Listener thread: read datagrams until the socket is closed
+	 */
+	@Override
+	public void run() {
+		while (!socket.isClosed()) {
+			try {
+				packet.setLength(buffer.length);
+				socket.receive(packet);
+				received++;
+				if (packet.getLength() < 2) {
+					continue;
+				}
+				long sender = ((long)packet.getAddress().hashCode() << 16) | packet.getPort();
+				int seq = ((buffer[0] & 0xFF) << 8) | (buffer[1] & 0xFF);
+				if (!isNew(sender, seq, clock.currentTimeMillis())) {
+					duplicates++;
+					continue;
+				}
+				handle(2, packet.getLength());
+			} catch (Exception e) {
+				if (!socket.isClosed()) {
+					GUI.addMessage("Erro recebendo datagrama - " + e.getMessage());
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check a sequence number against the ones already seen from a sender, and record it
+	 * @param sender Sender key (address hash and port)
+	 * @param seq Sequence number
+	 * @param now Current time, in milliseconds
+	 * @return true if the datagram was not seen before
+	 */
+	boolean isNew(long sender, int seq, long now) {
+		int slot = -1;
+		int oldest = 0;
+		for (int i = 0; i < MAX_SENDERS; i++) {
+			if (lastHeard[i] != 0 && senders[i] == sender) {
+				slot = i;
+				break;
+			}
+			if (lastHeard[i] < lastHeard[oldest]) {
+				oldest = i;
+			}
+		}
+		if (slot < 0) {
+			// New sender - take a free slot or the one not heard from for the longest time
+			slot = oldest;
+			senders[slot] = sender;
+			lastSeqs[slot] = seq;
+			seen[slot] = 1L;
+			lastHeard[slot] = now;
+			return true;
+		}
+		lastHeard[slot] = now;
+		int ahead = (seq - lastSeqs[slot]) & 0xFFFF;
+		if (ahead == 0) {
+			return false;
+		}
+		if (ahead < 0x8000) {
+			seen[slot] = ahead < WINDOW ? (seen[slot] << ahead) | 1L : 1L;
+			lastSeqs[slot] = seq;
+			return true;
+		}
+		int behind = 0x10000 - ahead;
+		if (behind >= WINDOW) {
+			// Too far behind - the sender started over
+			lastSeqs[slot] = seq;
+			seen[slot] = 1L;
+			return true;
+		}
+		if ((seen[slot] & (1L << behind)) != 0) {
+			return false;
+		}
+		seen[slot] |= 1L << behind;
+		return true;
+	}
+
+	/**
+	 * Run the envelopes of a datagram
+	 * @param offset First envelope position in the buffer
+	 * @param end Datagram end
+	 */
+	private void handle(int offset, int end) {
+		while (offset + 4 <= end) {
+			int length = buffer[offset + 2] & 0xFF;
+			if (buffer[offset] != 0x01 || offset + length + 4 > end || buffer[offset + length + 3] != 0x04) {
+				GUI.addMessage("Envelope invlido recebido via UDP, ignorando datagrama");
+				return;
+			}
+			byte type = buffer[offset + 1];
+			if (type == Command.TP_STRING && length > 0) {
+				int slot = lookup(offset + 2, length + 1);
+				if (cachedTypes[slot] == Command.TP_STATUS) {
+					offset += length + 4;
+					continue;
+				}
+				command.reset().setCommandTp(cachedTypes[slot]).setData(cachedData[slot]);
+				command.setActivatedUntil(cachedActivations[slot]);
+				try {
+					dispatcher.dispatch(command);
+				} catch (Exception e) {
+					// CASAActuator could not run this command - go on with the next ones
+					GUI.addMessage("Erro enviando comando ao arduino - " + e.getMessage());
+					e.printStackTrace();
+				}
+			}
+			// Status envelopes are only keep-alives - nothing to do
+			offset += length + 4;
+		}
+	}
+
+	/**
+	 * Find a payload in the cache, decoding it if it is not there
+	 * @param offset Payload position in the buffer (the envelope length byte)
+	 * @param length Payload length, length byte included
+	 * @return Cache slot
+	 */
+	private int lookup(int offset, int length) {
+		int hash = 0;
+		for (int i = offset; i < offset + length; i++) {
+			hash = 31 * hash + buffer[i];
+		}
+		int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+		byte[] cached = cachedPayloads[slot];
+		if (cached != null && cached.length == length) {
+			int i = 0;
+			while (i < length && cached[i] == buffer[offset + i]) {
+				i++;
+			}
+			if (i == length) {
+				return slot;
+			}
+		}
+
+		// Decode the payload the way ConnectionHandler does and keep it
+		byte[] payload = new byte[length];
+		System.arraycopy(buffer, offset, payload, 0, length);
+		String data = new String(payload, 1, length - 1, Command.CHARSET);
+		byte type = Command.TP_STRING;
+		long activation = 0;
+		if (data.startsWith("E")) {
+			try {
+				activation = Long.parseLong(data.substring(1));
+				type = Command.TP_ENABLE;
+			} catch (NumberFormatException e) {
+				GUI.addMessage("Comando de ativao invlido recebido via UDP: " + data);
+				type = Command.TP_STATUS;
+			}
+		}
+		cachedPayloads[slot] = payload;
+		cachedTypes[slot] = type;
+		cachedData[slot] = data;
+		cachedActivations[slot] = activation;
+		return slot;
+	}
+}
@@ -0,0 +1,286 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.casa.synthproxy.config.Config;
+import org.casa.synthproxy.config.Device;
+import org.casa.synthproxy.ide.GUI;
+
+/**
+ * Finds the shortest reliable delay between the IR codes sent to a device, so that macros stop waiting for
+ * the padded delays written in them. A calibration takes a macro, keeps the IR codes of the device and
+ * protocol of its first IR code (see {@link SceneCompiler#getDevice(Step)}) and sends them with shorter and
+ * shorter delays - a binary search that starts from the longest delay written in the macro. Each try is
+ * checked by the user, who watches the device and answers if the macro worked. CASAActuator's own IR
+ * receiver cannot check the tries: it does not decode anything while it is sending.
+ * The delay found is stored in the {@link DelayProfile} and used by the {@link SceneCompiler} from then on;
+ * the time saved by each macro is reported and the macro table is uploaded again.
+ *
+ * Calibration is driven by STRING commands (which, as any other, are only accepted during an activation period):
+ * <ul>
+ * <li>"CALIB!&lt;macro&gt;" - calibrate the macro's device (Ex.: "CALIB!TVIOS").</li>
+ * <li>"CALIBY" and "CALIBN" - the macro worked, or did not, in the last try.</li>
+ * <li>"CALIB-&lt;device&gt;" - drop the delays calibrated for a device.</li>
+ * <li>"CALIB?" - list the calibrated delays in the log.</li>
+ * </ul>
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class DelayCalibrator {
+
+	/** Prefix of the calibration commands **/
+	public static final String COMMAND_PREFIX = "CALIB";
+	/** The search stops when the delay is known within this, in milliseconds **/
+	private static final int RESOLUTION = 25;
+	/** How long to wait for the user's answer, in milliseconds **/
+	private static final long ANSWER_TIMEOUT = 2 * 60 * 1000;
+
+	/** Calibrator used by this CASASynthProxy instance **/
+	private static volatile DelayCalibrator instance;
+
+	/** Serial port the tries are sent to **/
+	private final CommPort commPort;
+	/** CASASynthProxy configuration **/
+	private final Config config;
+	/** Calibrated delays **/
+	private final DelayProfile profile;
+	/** A calibration is running **/
+	private boolean running = false;
+	/** User's answer to the current try, or null if there is none yet **/
+	private Boolean answer;
+	/** Time source **/
+	private final Clock clock = Clock.getInstance();
+
+	/**
+	 * Constructor
+	 * @param commPort Serial port the tries are sent to
+	 * @param config CASASynthProxy configuration
+	 * @param profile Calibrated delays
+	 */
+	public DelayCalibrator(CommPort commPort, Config config, DelayProfile profile) {
+		this.commPort = commPort;
+		this.config = config;
+		this.profile = profile;
+	}
+
+	/**
+	 * Get the calibrator used by this CASASynthProxy instance
+	 * @return Delay calibrator, or null if there is none
+	 */
+	public static DelayCalibrator getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Set the calibrator used by this CASASynthProxy instance
+	 * @param calibrator Delay calibrator
+	 */
+	public static void setInstance(DelayCalibrator calibrator) {
+		instance = calibrator;
+	}
+
+	/**
+	 * Check if a command is a calibration command
+	 * @param command Command
+	 * @return true if it is a STRING command starting with {@link #COMMAND_PREFIX}
+	 */
+	public static boolean isCalibrationCommand(Command command) {
+		return command.getCommandTp() == Command.TP_STRING && command.getData() != null
+				&& command.getData().startsWith(COMMAND_PREFIX);
+	}
+
+	/**
+	 * Handle a calibration command received from the network
+	 * @param command Calibration command (see the class description)
+	 */
+	public synchronized void handle(Command command) {
+		String data = command.getData().substring(COMMAND_PREFIX.length());
+		if ("?".equals(data)) {
+			GUI.addMessage("Intervalos calibrados: " + profile.describe());
+		} else if ("Y".equals(data) || "N".equals(data)) {
+			answer = "Y".equals(data);
+			notifyAll();
+		} else if (data.startsWith("-")) {
+			if (profile.remove(data.substring(1))) {
+				profile.save();
+				GUI.addMessage("Intervalos calibrados de " + data.substring(1) + " removidos");
+				apply();
+			}
+		} else if (data.startsWith("!")) {
+			if (running) {
+				GUI.addMessage("J existe uma calibrao em andamento, ignorando...");
+				return;
+			}
+			start(data.substring(1));
+		} else {
+			GUI.addMessage("Comando de calibrao invlido: " + command.getData());
+		}
+	}
+
+	/**
+	 * Start a calibration in its own thread
+	 * @param macroKey Macro whose codes are sent
+	 */
+	private void start(final String macroKey) {
+		SceneCompiler sceneCompiler = SceneCompiler.getInstance();
+		String data = config.getMacroExpander().isMacro(macroKey) ? config.getMacroExpander().expand(macroKey) : null;
+		List<Step> steps = Step.parseAll(data);
+		Step first = null;
+		for (int i = 0; steps != null && i < steps.size() && first == null; i++) {
+			first = steps.get(i).getType() == Step.Type.IR ? steps.get(i) : null;
+		}
+		final Device device = sceneCompiler != null && first != null ? sceneCompiler.getDevice(first) : null;
+		if (device == null) {
+			GUI.addMessage("Calibrao: o macro " + macroKey + " no tem cdigos IR de um dispositivo configurado, ignorando...");
+			return;
+		}
+		final IRProtocol protocol = first.getProtocol();
+		final List<Step> trial = new ArrayList<Step>();
+		for (Step step : steps) {
+			if (step.getType() != Step.Type.IR || step.getProtocol() != protocol || sceneCompiler.getDevice(step) != device) {
+				continue;
+			}
+			// Repeats the device takes as one press are not sent, as the scene compiler drops them
+			if (device.isRepeatsOnce() && step.sameAction(trial.isEmpty() ? null : trial.get(trial.size() - 1))) {
+				trial.set(trial.size() - 1, trial.get(trial.size() - 1).withDelay(step.getDelay()));
+			} else {
+				trial.add(step);
+			}
+		}
+		int longest = 0;
+		for (int i = 0; i < trial.size() - 1; i++) {
+			longest = Math.max(longest, trial.get(i).getDelay());
+		}
+		if (longest == 0) {
+			GUI.addMessage("Calibrao: o macro " + macroKey + " no tem intervalos entre cdigos de " + device.getName() + ", ignorando...");
+			return;
+		}
+
+		running = true;
+		final int from = longest;
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					calibrate(macroKey, device, protocol, trial, from);
+				} catch (Exception e) {
+					GUI.addMessage("Calibrao de " + device.getName() + " cancelada - " + e.getMessage());
+					e.printStackTrace();
+				} finally {
+					synchronized (DelayCalibrator.this) {
+						running = false;
+						answer = null;
+					}
+				}
+			}
+		}, "DelayCalibrator");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Search for the shortest reliable delay
+	 * @param macroKey Macro whose codes are sent
+	 * @param device Device
+	 * @param protocol IR protocol
+	 * @param trial Codes sent in each try, with the delays written in the macro
+	 * @param longest Longest delay written in the macro, in milliseconds - taken as reliable
+	 * @throws Exception Error talking to CASAActuator, or the user did not answer
+	 */
+	private void calibrate(String macroKey, Device device, IRProtocol protocol, List<Step> trial, int longest)
+			throws Exception {
+		GUI.addMessage("Calibrando " + device.getName() + " (" + protocol.name() + ") com o macro " + macroKey);
+		if (!passes(macroKey, trial, longest)) {
+			GUI.addMessage("Calibrao de " + device.getName() + ": o macro no funcionou nem com " + longest
+					+ " ms, nada foi alterado");
+			return;
+		}
+		// The longest delay works; the shortest one that works is somewhere between 0 and it
+		int reliable = longest;
+		int unreliable = 0;
+		while (reliable - unreliable > RESOLUTION) {
+			int gap = (reliable + unreliable) / 2;
+			if (passes(macroKey, trial, gap)) {
+				reliable = gap;
+			} else {
+				unreliable = gap;
+			}
+		}
+		profile.setGap(device.getName(), protocol, reliable);
+		profile.save();
+		GUI.addMessage("Calibrao de " + device.getName() + " (" + protocol.name() + "): intervalo de " + reliable
+				+ " ms, em vez de at " + longest + " ms");
+		apply();
+	}
+
+	/**
+	 * Send the codes with a delay and ask the user if they worked
+	 * @param macroKey Macro whose codes are sent
+	 * @param trial Codes, with the delays written in the macro
+	 * @param gap Delay tried, in milliseconds - delays written as 0 stay 0
+	 * @return true if the codes worked
+	 * @throws Exception Error talking to CASAActuator, or the user did not answer
+	 */
+	private boolean passes(String macroKey, List<Step> trial, int gap) throws Exception {
+		List<Step> steps = new ArrayList<Step>();
+		for (int i = 0; i < trial.size(); i++) {
+			Step step = trial.get(i);
+			steps.add(step.withDelay(i == trial.size() - 1 || step.getDelay() == 0 ? 0 : gap));
+		}
+		Command command = new Command().setCommandTp(Command.TP_STRING).setData(Step.toAscii(steps));
+
+		synchronized (this) {
+			answer = null;
+		}
+		synchronized (commPort) {
+			commPort.sendCommand(command);
+		}
+		GUI.addMessage("Calibrao: intervalo de " + gap + " ms. O macro " + macroKey + " funcionou? Responda CALIBY ou CALIBN");
+		synchronized (this) {
+			long deadline = clock.currentTimeMillis() + ANSWER_TIMEOUT;
+			while (answer == null && clock.currentTimeMillis() < deadline) {
+				clock.waitOn(this, Math.max(1, deadline - clock.currentTimeMillis()));
+			}
+			if (answer == null) {
+				throw new IllegalStateException("sem resposta do usurio");
+			}
+			return answer;
+		}
+	}
+
+	/**
+	 * Use the calibrated delays from now on: macros are compiled again, the time they save is reported
+	 * and the macro table is uploaded again
+	 */
+	private void apply() {
+		SceneCompiler sceneCompiler = new SceneCompiler(config.getDevices(), profile);
+		sceneCompiler.report(config.getExpandedMacros());
+		SceneCompiler.setInstance(sceneCompiler);
+		try {
+			commPort.syncMacroTable(config);
+		} catch (Exception e) {
+			GUI.addMessage("Erro enviando a tabela de macros - " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+}
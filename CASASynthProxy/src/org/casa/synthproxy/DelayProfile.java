@@ -0,0 +1,139 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.casa.synthproxy.ide.GUI;
+
+/**
+ * Calibrated delays: the shortest reliable time between two IR codes sent to a device, for each device and
+ * IR protocol, as found by {@link DelayCalibrator}. {@link SceneCompiler} uses them instead of the delays
+ * written in the macros. The profile is saved to a properties file ("device|PROTOCOL=milliseconds").
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class DelayProfile {
+
+	/** File the profile is saved to **/
+	private final File file;
+	/** Delays by device and protocol ("tv|RC6"), in milliseconds **/
+	private final Map<String, Integer> gaps = new TreeMap<String, Integer>();
+
+	/**
+	 * Constructor. Loads the profile saved in the file, if there is one.
+	 * @param file File the profile is saved to
+	 */
+	public DelayProfile(File file) {
+		this.file = file;
+		load();
+	}
+
+	/**
+	 * Get the calibrated delay of a device and protocol
+	 * @param device Device name
+	 * @param protocol IR protocol
+	 * @return Delay, in milliseconds, or null if it was not calibrated
+	 */
+	public synchronized Integer getGap(String device, IRProtocol protocol) {
+		return gaps.get(device + "|" + protocol.name());
+	}
+
+	/**
+	 * Set the calibrated delay of a device and protocol
+	 * @param device Device name
+	 * @param protocol IR protocol
+	 * @param gap Delay, in milliseconds
+	 */
+	public synchronized void setGap(String device, IRProtocol protocol, int gap) {
+		gaps.put(device + "|" + protocol.name(), gap);
+	}
+
+	/**
+	 * Drop the calibrated delays of a device - the delays written in the macros are used again
+	 * @param device Device name
+	 * @return true if the device had calibrated delays
+	 */
+	public synchronized boolean remove(String device) {
+		boolean removed = false;
+		for (Iterator<String> i = gaps.keySet().iterator(); i.hasNext(); ) {
+			if (i.next().startsWith(device + "|")) {
+				i.remove();
+				removed = true;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Describe the profile
+	 * @return Delays by device and protocol (Ex.: "tv|RC6=120ms net|NEC=90ms")
+	 */
+	public synchronized String describe() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Integer> entry : gaps.entrySet()) {
+			sb.append(sb.length() == 0 ? "" : " ").append(entry.getKey()).append('=').append(entry.getValue()).append("ms");
+		}
+		return sb.length() == 0 ? "nenhum intervalo calibrado" : sb.toString();
+	}
+
+	/**
+	 * Load the profile from its file
+	 */
+	private void load() {
+		if (!file.exists()) {
+			return;
+		}
+		Properties properties = new Properties();
+		try (InputStream is = new FileInputStream(file)) {
+			properties.load(is);
+			for (String key : properties.stringPropertyNames()) {
+				gaps.put(key, Integer.valueOf(properties.getProperty(key).trim()));
+			}
+		} catch (Exception e) {
+			GUI.addMessage("Erro lendo intervalos calibrados - " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Save the profile to its file
+	 */
+	public synchronized void save() {
+		Properties properties = new Properties();
+		for (Map.Entry<String, Integer> entry : gaps.entrySet()) {
+			properties.setProperty(entry.getKey(), entry.getValue().toString());
+		}
+		try (OutputStream os = new FileOutputStream(file)) {
+			properties.store(os, "CASASynthProxy - calibrated delays");
+		} catch (Exception e) {
+			GUI.addMessage("Erro gravando intervalos calibrados - " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,330 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.casa.synthproxy.config.Macro;
+
+/**
+ * What CASASynthProxy knows about the state of the devices it controls - TV and set-top box power,
+ * TV input source, channel, an estimate of the volume and the position of the bed motors, for instance.
+ *
+ * Macros declare their effect on the state in the "effect" attribute, as a comma separated list of:
+ * <ul>
+ * <li>"device.property=value" - sets the property (Ex.: "tv.source=casa", "net.channel=${ch}"). The value
+ * "?" makes the property unknown again (Ex.: "net.channel=?" for the channel up button).</li>
+ * <li>"device.property=toggle" - flips an on/off property (Ex.: "tv.power=toggle").</li>
+ * <li>"device.property+=n" and "device.property-=n" - moves a numeric property, never below 0 and, when
+ * "/max" follows, never above max (Ex.: "bed.head+=3000/15000" for a relay that runs for 3 seconds out of 15
+ * seconds of travel). An unknown position with a limit is kept as a range ("low..high") that each move
+ * narrows - five 3 second moves up take the bed to its top position wherever it started.</li>
+ * </ul>
+ * A command whose effects are all already true (same value, or a move towards a limit that was reached)
+ * is redundant and is not sent to CASAActuator. Properties expire after a while (config entry stateTTL),
+ * as devices can also be driven by their own remote controls - an unknown property is never taken as true.
+ *
+ * The desired state of a property can be requested instead of a macro (see {@link #resolve(String, Map)}):
+ * the macro that sets it is looked up, and toggles are only sent when the property has to change.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class DeviceState {
+
+	/** Prefix of the commands that request a desired state (Ex.: "STATE=tv.power=on") **/
+	public static final String SET_PREFIX = "STATE=";
+	/** Prefix of the commands that correct the state without sending anything (Ex.: "STATE!tv.power=off") **/
+	public static final String FIX_PREFIX = "STATE!";
+	/** Command that queries the state **/
+	public static final String QUERY = "STATE?";
+	/** Toggle value **/
+	private static final String TOGGLE = "toggle";
+	/** Unknown value **/
+	private static final String UNKNOWN = "?";
+
+	/** State used by this CASASynthProxy instance **/
+	private static volatile DeviceState instance;
+
+	/** How long a property is trusted after it was last set, in milliseconds **/
+	private final long ttl;
+	/** Property values by name ("device.property") **/
+	private final Map<String, String> values = new TreeMap<String, String>();
+	/** When each property was last set **/
+	private final Map<String, Long> updated = new TreeMap<String, Long>();
+	/** Commands not sent because they were redundant **/
+	private long skipped = 0;
+	/** Time source **/
+	private final Clock clock = Clock.getInstance();
+
+	/**
+	 * Constructor
+	 * @param ttl How long a property is trusted after it was last set, in milliseconds
+	 */
+	public DeviceState(long ttl) {
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Get the state used by this CASASynthProxy instance
+	 * @return Device state, or null if it is not kept
+	 */
+	public static DeviceState getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Set the state used by this CASASynthProxy instance
+	 * @param state Device state
+	 */
+	public static void setInstance(DeviceState state) {
+		instance = state;
+	}
+
+	/**
+	 * Check if a command would not change anything
+	 * @param effects Effects of the command's macro, or null
+	 * @return true if all effects are already true - the command is then counted as skipped.
+	 * A command without effects is never redundant.
+	 */
+	public synchronized boolean isRedundant(String effects) {
+		if (effects == null) {
+			return false;
+		}
+		for (String effect : effects.split(",")) {
+			int op = operator(effect);
+			String name = effect.substring(0, op).trim();
+			String value = effect.substring(op + (effect.charAt(op) == '=' ? 1 : 2)).trim();
+			String current = get(name);
+			if (current == null || TOGGLE.equals(value) || UNKNOWN.equals(value)) {
+				return false;
+			}
+			if (effect.charAt(op) == '=') {
+				if (!value.equals(current)) {
+					return false;
+				}
+			} else if (effect.charAt(op) == '+') {
+				long max = max(value);
+				if (max < 0 || low(current) < max) {
+					return false;
+				}
+			} else if (high(current) > 0) {
+				return false;
+			}
+		}
+		skipped++;
+		return true;
+	}
+
+	/**
+	 * Apply the effects of a command that was sent
+	 * @param effects Effects of the command's macro, or null
+	 */
+	public synchronized void apply(String effects) {
+		if (effects == null) {
+			return;
+		}
+		for (String effect : effects.split(",")) {
+			int op = operator(effect);
+			String name = effect.substring(0, op).trim();
+			String value = effect.substring(op + (effect.charAt(op) == '=' ? 1 : 2)).trim();
+			String current = get(name);
+			if (effect.charAt(op) == '=') {
+				if (TOGGLE.equals(value)) {
+					set(name, current == null ? null : ("on".equals(current) ? "off" : "on"));
+				} else {
+					set(name, UNKNOWN.equals(value) ? null : value);
+				}
+			} else {
+				long max = max(value);
+				long delta = Long.parseLong(max < 0 ? value : value.substring(0, value.indexOf('/')));
+				if (effect.charAt(op) == '-') {
+					delta = -delta;
+				}
+				if (current == null && max < 0) {
+					continue;
+				}
+				// An unknown position could be anywhere in the travel
+				long low = current != null ? low(current) + delta : delta;
+				long high = current != null ? high(current) + delta : max + delta;
+				low = Math.max(0, max >= 0 ? Math.min(max, low) : low);
+				high = Math.max(0, max >= 0 ? Math.min(max, high) : high);
+				set(name, low == high ? Long.toString(low) : low + ".." + high);
+			}
+		}
+	}
+
+	/**
+	 * Set a property directly - to correct the state when a device was driven by other means
+	 * @param assignment "device.property=value"
+	 */
+	public synchronized void fix(String assignment) {
+		int op = assignment.indexOf('=');
+		if (op <= 0) {
+			throw new IllegalArgumentException("Estado invlido: " + assignment);
+		}
+		String value = assignment.substring(op + 1).trim();
+		set(assignment.substring(0, op).trim(), UNKNOWN.equals(value) ? null : value);
+	}
+
+	/**
+	 * Find the macro that takes a property to a desired value
+	 * @param assignment "device.property=value" (Ex.: "tv.power=on", "net.channel=517")
+	 * @param macros Macros by key
+	 * @return Macro invocation to be sent (Ex.: "TONOFF", "CH:517"), or null if the property already has this value
+	 * @throws IllegalArgumentException No macro sets this property
+	 */
+	public synchronized String resolve(String assignment, Map<String, Macro> macros) {
+		int op = assignment.indexOf('=');
+		if (op <= 0) {
+			throw new IllegalArgumentException("Estado invlido: " + assignment);
+		}
+		String name = assignment.substring(0, op).trim();
+		String value = assignment.substring(op + 1).trim();
+		String current = get(name);
+		if (value.equals(current)) {
+			return null;
+		}
+		String toggle = null;
+		String parametric = null;
+		for (Macro macro : macros.values()) {
+			if (macro.getEffect() == null) {
+				continue;
+			}
+			for (String effect : macro.getEffect().split(",")) {
+				int eop = operator(effect);
+				if (effect.charAt(eop) != '=' || !effect.substring(0, eop).trim().equals(name)) {
+					continue;
+				}
+				String effectValue = effect.substring(eop + 1).trim();
+				if (effectValue.equals(value)) {
+					return macro.getKey();
+				} else if (TOGGLE.equals(effectValue)) {
+					toggle = macro.getKey();
+				} else if (effectValue.startsWith("${") && macro.getParams() != null && macro.getParams().indexOf(',') < 0) {
+					parametric = macro.getKey() + ":" + value;
+				}
+			}
+		}
+		if (parametric != null) {
+			return parametric;
+		}
+		if (toggle != null) {
+			// When the current value is unknown, the toggle is sent and the desired value assumed
+			return toggle;
+		}
+		throw new IllegalArgumentException("Nenhum macro muda " + name + " para " + value);
+	}
+
+	/**
+	 * Describe the state
+	 * @return Known properties (Ex.: "net.channel=517,tv.power=on")
+	 */
+	public synchronized String describe() {
+		StringBuilder sb = new StringBuilder();
+		for (String name : values.keySet()) {
+			String value = get(name);
+			if (value != null) {
+				sb.append(sb.length() > 0 ? "," : "").append(name).append('=').append(value);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Get the number of commands not sent because they were redundant
+	 * @return Commands skipped
+	 */
+	public synchronized long getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * Get a property value, if it was not set too long ago
+	 * @param name Property name
+	 * @return Property value, or null if it is unknown
+	 */
+	private String get(String name) {
+		Long time = updated.get(name);
+		if (time == null || clock.currentTimeMillis() - time > ttl) {
+			return null;
+		}
+		return values.get(name);
+	}
+
+	/**
+	 * Set a property value
+	 * @param name Property name
+	 * @param value Property value, or null if it is unknown
+	 */
+	private void set(String name, String value) {
+		if (value == null) {
+			values.remove(name);
+			updated.remove(name);
+		} else {
+			values.put(name, value);
+			updated.put(name, clock.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Find the operator of an effect
+	 * @param effect Effect
+	 * @return Index of "=", "+=" or "-="
+	 */
+	private static int operator(String effect) {
+		int op = effect.indexOf('=');
+		if (op <= 0) {
+			throw new IllegalArgumentException("Efeito invlido: " + effect);
+		}
+		char c = effect.charAt(op - 1);
+		return c == '+' || c == '-' ? op - 1 : op;
+	}
+
+	/**
+	 * Get the lowest value of a numeric property
+	 * @param value Property value - a number or a range ("low..high")
+	 * @return Lowest value
+	 */
+	private static long low(String value) {
+		int range = value.indexOf("..");
+		return Long.parseLong(range < 0 ? value : value.substring(0, range));
+	}
+
+	/**
+	 * Get the highest value of a numeric property
+	 * @param value Property value - a number or a range ("low..high")
+	 * @return Highest value
+	 */
+	private static long high(String value) {
+		int range = value.indexOf("..");
+		return Long.parseLong(range < 0 ? value : value.substring(range + 2));
+	}
+
+	/**
+	 * Get the limit of a move
+	 * @param value Move value (Ex.: "3000/15000")
+	 * @return Limit, or -1 if there is none
+	 */
+	private static long max(String value) {
+		int slash = value.indexOf('/');
+		return slash < 0 ? -1 : Long.parseLong(value.substring(slash + 1).trim());
+	}
+}
@@ -0,0 +1,355 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Command envelope encoder. It writes commands into a {@link ByteBuffer} using the
+ * BitVoicer envelope (see {@link ConnectionHandler}), with an explicit charset and without
+ * allocating anything once it is warmed up.
+ *
+ * Payloads longer than the maximum size are fragmented instead of being truncated:
+ * <ul>
+ * <li>Composite commands ("#" separated) are broken between commands.</li>
+ * <li>Command lists like <code>IR[a,b,c]</code> are broken between items, each fragment
+ * keeping the prefix: <code>IR[a,b]</code> and <code>IR[c]</code>.</li>
+ * </ul>
+ * If a single item still does not fit, an {@link IllegalArgumentException} is thrown - nothing
+ * is written in this case.
+ *
+ * Network encoders pack as many "#" commands as possible in each envelope and add the text to
+ * be synthesized to the first one. Serial encoders write one command per envelope, as that is
+ * what CASAActuator expects.
+ *
+ * Instances are not thread safe. Use {@link #network()} and {@link #serial()} to get the
+ * pooled instance of the current thread.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class FrameEncoder {
+
+	/** Envelope start byte **/
+	public static final byte ENVELOPE_START = 0x01;
+	/** Envelope end byte **/
+	public static final byte ENVELOPE_END = 0x04;
+	/** Biggest payload that fits in the envelope length byte **/
+	public static final int NETWORK_MAX_PAYLOAD = 255;
+	/** Biggest payload that CASAActuator is able to receive **/
+	public static final int SERIAL_MAX_PAYLOAD = 59;
+	/** Command type written in the envelope - everything but transcripts is sent as a string **/
+	private static final byte ENVELOPE_TYPE = Command.TP_STRING;
+
+	/** Pooled network encoders, one per thread **/
+	private static final ThreadLocal<FrameEncoder> NETWORK = new ThreadLocal<FrameEncoder>() {
+		@Override
+		protected FrameEncoder initialValue() {
+			return new FrameEncoder(Command.CHARSET, NETWORK_MAX_PAYLOAD, true);
+		}
+	};
+	/** Pooled serial encoders, one per thread **/
+	private static final ThreadLocal<FrameEncoder> SERIAL = new ThreadLocal<FrameEncoder>() {
+		@Override
+		protected FrameEncoder initialValue() {
+			return new FrameEncoder(Command.CHARSET, SERIAL_MAX_PAYLOAD, false);
+		}
+	};
+
+	/** Charset encoder **/
+	private final CharsetEncoder encoder;
+	/** Maximum payload size, in bytes **/
+	private final int maxPayload;
+	/** Pack several commands in the same envelope **/
+	private final boolean pack;
+	/** Scratch char buffer used to feed the charset encoder **/
+	private CharBuffer chars = CharBuffer.allocate(256);
+	/** Pooled output buffer **/
+	private ByteBuffer pooled = ByteBuffer.allocate(1024);
+
+	/** Position of the length byte of the envelope being written, -1 if there is none **/
+	private int lengthPosition = -1;
+	/** Number of envelopes written by the current encode call **/
+	private int frames;
+	/** Bytes reserved in the first envelope for the text to be synthesized **/
+	private int reserved;
+	/** Command type written in the envelopes of the current encode call **/
+	private byte envelopeType = ENVELOPE_TYPE;
+
+	/**
+	 * Constructor
+	 * @param charset Charset used to encode command data and text
+	 * @param maxPayload Maximum payload size, in bytes (up to {@link #NETWORK_MAX_PAYLOAD})
+	 * @param pack Pack several "#" commands in the same envelope
+	 */
+	public FrameEncoder(Charset charset, int maxPayload, boolean pack) {
+		if (maxPayload < 1 || maxPayload > NETWORK_MAX_PAYLOAD) {
+			throw new IllegalArgumentException("Tamanho mximo de envelope invlido: " + maxPayload);
+		}
+		this.encoder = charset.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.maxPayload = maxPayload;
+		this.pack = pack;
+	}
+
+	/**
+	 * Get the pooled network encoder of the current thread
+	 * @return Network encoder
+	 */
+	public static FrameEncoder network() {
+		return NETWORK.get();
+	}
+
+	/**
+	 * Get the pooled serial encoder of the current thread
+	 * @return Serial encoder
+	 */
+	public static FrameEncoder serial() {
+		return SERIAL.get();
+	}
+
+	/**
+	 * Encode a command into the pooled buffer of this encoder. The returned buffer is
+	 * ready to be read and is only valid until the next call on this encoder.
+	 * @param command Command to be encoded
+	 * @param includeTTS Include the text to be synthesized
+	 * @return Pooled buffer holding the envelopes
+	 */
+	public ByteBuffer encode(Command command, boolean includeTTS) {
+		while (true) {
+			pooled.clear();
+			try {
+				encode(command, includeTTS, pooled);
+				pooled.flip();
+				return pooled;
+			} catch (BufferOverflowException e) {
+				pooled = ByteBuffer.allocate(pooled.capacity() * 2);
+			}
+		}
+	}
+
+	/**
+	 * Encode a command into a caller supplied buffer, starting at its current position.
+	 * @param command Command to be encoded
+	 * @param includeTTS Include the text to be synthesized
+	 * @param out Buffer the envelopes will be written to
+	 * @return Number of envelopes written
+	 * @throws IllegalArgumentException A single command item or the text to be synthesized is too long.
+	 * The buffer position is left untouched.
+	 * @throws BufferOverflowException The buffer is too small. The buffer position is left untouched.
+	 */
+	public int encode(Command command, boolean includeTTS, ByteBuffer out) {
+		int start = out.position();
+		String data = command.getData() == null ? "" : command.getData();
+		String tts = includeTTS ? command.getSvoice() : null;
+		frames = 0;
+		lengthPosition = -1;
+		reserved = 0;
+		envelopeType = command.getCommandTp() == Command.TP_TRANSCRIPT ? Command.TP_TRANSCRIPT : ENVELOPE_TYPE;
+		try {
+			if (tts != null) {
+				// Measure the text first, so that room is kept for it in the first envelope
+				reserved = 1 + encode(tts, 0, tts.length(), out);
+				out.position(start);
+				if (reserved > maxPayload) {
+					throw new IllegalArgumentException("Texto a ser sintetizado muito longo: " + tts);
+				}
+			}
+
+			int from = 0;
+			do {
+				int to = data.indexOf('#', from);
+				if (to < 0) {
+					to = data.length();
+				}
+				// Empty commands ("A##B") are skipped, but an empty command is still an envelope
+				if (to > from || data.isEmpty()) {
+					writeCommand(data, from, to, tts, out);
+				}
+				from = to + 1;
+			} while (from <= data.length());
+			closeFrame(tts, out);
+			return frames;
+		} catch (RuntimeException e) {
+			out.position(start);
+			throw e;
+		}
+	}
+
+	/**
+	 * Write a single command (no "#" inside) - pack it in the current envelope if possible,
+	 * otherwise start a new one, breaking it between list items if it is still too long.
+	 * @param data Command data
+	 * @param from Command start index in data
+	 * @param to Command end index in data (exclusive)
+	 * @param tts Text to be synthesized, or null
+	 * @param out Output buffer
+	 */
+	private void writeCommand(String data, int from, int to, String tts, ByteBuffer out) {
+		// Try to append it to the current envelope
+		if (pack && lengthPosition >= 0) {
+			int mark = out.position();
+			out.put((byte)'#');
+			encode(data, from, to, out);
+			if (payloadLength(out) <= limit()) {
+				return;
+			}
+			out.position(mark);
+			closeFrame(tts, out);
+		} else if (lengthPosition >= 0) {
+			closeFrame(tts, out);
+		}
+
+		// Now in a new envelope
+		int frameStart = out.position();
+		openFrame(out);
+		encode(data, from, to, out);
+		if (payloadLength(out) <= limit()) {
+			if (!pack) {
+				closeFrame(tts, out);
+			}
+			return;
+		}
+
+		// Too long - break it between list items
+		out.position(frameStart);
+		lengthPosition = -1;
+		int open = data.indexOf('[', from);
+		if (open < 0 || open >= to || data.charAt(to - 1) != ']') {
+			throw new IllegalArgumentException("Comando muito longo e no divisvel: " + data.substring(from, to));
+		}
+		int itemsEnd = to - 1;
+		int item = open + 1;
+		while (item < itemsEnd) {
+			int itemEnd = data.indexOf(',', item);
+			if (itemEnd < 0 || itemEnd > itemsEnd) {
+				itemEnd = itemsEnd;
+			}
+			int mark = out.position();
+			if (lengthPosition >= 0) {
+				out.put((byte)',');
+				encode(data, item, itemEnd, out);
+				if (payloadLength(out) + 1 > limit()) {
+					out.position(mark);
+					out.put((byte)']');
+					closeFrame(tts, out);
+				}
+			}
+			if (lengthPosition < 0) {
+				openFrame(out);
+				encode(data, from, open + 1, out);
+				encode(data, item, itemEnd, out);
+				if (payloadLength(out) + 1 > limit()) {
+					throw new IllegalArgumentException("Item de comando muito longo: " + data.substring(item, itemEnd));
+				}
+			}
+			item = itemEnd + 1;
+		}
+		out.put((byte)']');
+		closeFrame(tts, out);
+	}
+
+	/**
+	 * Start a new envelope. The length byte is written when it is closed.
+	 * @param out Output buffer
+	 */
+	private void openFrame(ByteBuffer out) {
+		out.put(ENVELOPE_START);
+		out.put(envelopeType);
+		lengthPosition = out.position();
+		out.put((byte)0);
+	}
+
+	/**
+	 * Close the current envelope, if there is one. The first envelope also gets the text to be synthesized.
+	 * @param tts Text to be synthesized, or null
+	 * @param out Output buffer
+	 */
+	private void closeFrame(String tts, ByteBuffer out) {
+		if (lengthPosition < 0) {
+			return;
+		}
+		if (frames == 0 && tts != null) {
+			out.put((byte)';');
+			encode(tts, 0, tts.length(), out);
+		}
+		int length = payloadLength(out);
+		if (length > maxPayload) {
+			// Should never happen, as every step checks the limit.
+			throw new IllegalStateException("Envelope excedeu o tamanho mximo: " + length);
+		}
+		out.put(lengthPosition, (byte)length);
+		out.put(ENVELOPE_END);
+		lengthPosition = -1;
+		frames++;
+	}
+
+	/**
+	 * Get the payload size available for commands in the current envelope
+	 * @return Payload size available for commands
+	 */
+	private int limit() {
+		return frames == 0 ? maxPayload - reserved : maxPayload;
+	}
+
+	/**
+	 * Get the payload length of the envelope being written
+	 * @param out Output buffer
+	 * @return Payload length written so far
+	 */
+	private int payloadLength(ByteBuffer out) {
+		return out.position() - lengthPosition - 1;
+	}
+
+	/**
+	 * Encode part of a string with this encoder's charset
+	 * @param s String to be encoded
+	 * @param from Start index
+	 * @param to End index (exclusive)
+	 * @param out Output buffer
+	 * @return Number of bytes written
+	 */
+	private int encode(String s, int from, int to, ByteBuffer out) {
+		int length = to - from;
+		if (chars.capacity() < length) {
+			chars = CharBuffer.allocate(Math.max(length, chars.capacity() * 2));
+		}
+		chars.clear();
+		s.getChars(from, to, chars.array(), 0);
+		chars.limit(length);
+
+		int start = out.position();
+		encoder.reset();
+		CoderResult result = encoder.encode(chars, out, true);
+		if (!result.isOverflow()) {
+			result = encoder.flush(out);
+		}
+		if (result.isOverflow()) {
+			throw new BufferOverflowException();
+		}
+		return out.position() - start;
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy;
+
+/**
+ * IR codes packed in a long, so that they can be looked up without building strings:
+ * protocol ID (see {@link IRProtocol}) in bits 40 to 47, code length in bits in bits 32 to 39
+ * and the code itself in the lower 32 bits. As protocol IDs start at 1, a packed code is never 0.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class IRCode {
+
+	/** Value returned when a code cannot be parsed **/
+	public static final long INVALID = -1;
+	/** Supported protocols - values() copies the array on each call **/
+	private static final IRProtocol[] PROTOCOLS = IRProtocol.values();
+
+	/**
+	 * Utility class, not to be instantiated
+	 */
+	private IRCode() {
+	}
+
+	/**
+	 * Pack an IR code
+	 * @param protocol IR protocol
+	 * @param code Code
+	 * @param bits Code length, in bits
+	 * @return Packed code
+	 */
+	public static long pack(IRProtocol protocol, long code, int bits) {
+		return ((long)protocol.getId() << 40) | ((long)(bits & 0xFF) << 32) | (code & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Parse an IR code as reported by CASAActuator (Ex.: "NEC|0xE17A48B7|32"), character by character,
+	 * without creating any object.
+	 * @param s String holding the code
+	 * @param start Index of the first character of the code
+	 * @param end Index after the last character of the code
+	 * @return Packed code, or {@link #INVALID} if it is not a valid code of a supported protocol
+	 */
+	public static long parse(String s, int start, int end) {
+		int separator = s.indexOf('|', start);
+		if (separator < 0 || separator + 3 >= end || s.charAt(separator + 1) != '0'
+				|| (s.charAt(separator + 2) != 'x' && s.charAt(separator + 2) != 'X')) {
+			return INVALID;
+		}
+		IRProtocol protocol = null;
+		for (IRProtocol p : PROTOCOLS) {
+			if (p.name().length() == separator - start && s.regionMatches(start, p.name(), 0, separator - start)) {
+				protocol = p;
+				break;
+			}
+		}
+		if (protocol == null) {
+			return INVALID;
+		}
+
+		long code = 0;
+		int i = separator + 3;
+		for (int digits = 0; i < end && s.charAt(i) != '|'; i++, digits++) {
+			int digit = Character.digit(s.charAt(i), 16);
+			if (digit < 0 || digits == 8) {
+				return INVALID;
+			}
+			code = (code << 4) | digit;
+		}
+		if (i == separator + 3 || i >= end) {
+			return INVALID;
+		}
+
+		int bits = 0;
+		for (i++; i < end; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9' || bits > 64) {
+				return INVALID;
+			}
+			bits = bits * 10 + c - '0';
+		}
+		return pack(protocol, code, bits);
+	}
+
+	/**
+	 * Format a packed code the way CASAActuator reports it
+	 * @param packed Packed code
+	 * @return Code (Ex.: "NEC|0xE17A48B7|32")
+	 */
+	public static String toString(long packed) {
+		IRProtocol protocol = IRProtocol.fromId((int)(packed >>> 40) & 0xFF);
+		return (protocol == null ? "UNKNOWN" : protocol.name()) + "|0x"
+				+ Long.toHexString(packed & 0xFFFFFFFFL).toUpperCase() + "|" + ((packed >>> 32) & 0xFF);
+	}
+}
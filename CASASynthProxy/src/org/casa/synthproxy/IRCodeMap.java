@@ -0,0 +1,133 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy;
+
+/**
+ * Map from packed IR codes (see {@link IRCode}) to int values, with open addressing and linear probing
+ * over primitive arrays - looking a code up neither allocates nor boxes anything.
+ *
+ * Packed codes are never 0, so 0 marks an empty slot. The table is kept at most half full.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class IRCodeMap {
+
+	/** Empty slot **/
+	private static final long EMPTY = 0;
+	/** Value returned for codes that are not in the map **/
+	public static final int NOT_FOUND = -1;
+
+	/** Keys, by slot **/
+	private long[] keys;
+	/** Values, by slot **/
+	private int[] values;
+	/** Number of keys **/
+	private int size = 0;
+
+	/**
+	 * Constructor
+	 * @param expected Expected number of codes
+	 */
+	public IRCodeMap(int expected) {
+		int capacity = 16;
+		while (capacity < expected * 2) {
+			capacity <<= 1;
+		}
+		keys = new long[capacity];
+		values = new int[capacity];
+	}
+
+	/**
+	 * Get the value of a code
+	 * @param key Packed code
+	 * @return Value, or {@link #NOT_FOUND}
+	 */
+	public int get(long key) {
+		int mask = keys.length - 1;
+		for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return values[i];
+			}
+			if (keys[i] == EMPTY) {
+				return NOT_FOUND;
+			}
+		}
+	}
+
+	/**
+	 * Set the value of a code
+	 * @param key Packed code, not 0
+	 * @param value Value
+	 */
+	public void put(long key, int value) {
+		if (key == EMPTY) {
+			throw new IllegalArgumentException("Cdigo IR invlido");
+		}
+		if ((size + 1) * 2 > keys.length) {
+			grow();
+		}
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (keys[i] != EMPTY && keys[i] != key) {
+			i = (i + 1) & mask;
+		}
+		if (keys[i] == EMPTY) {
+			keys[i] = key;
+			size++;
+		}
+		values[i] = value;
+	}
+
+	/**
+	 * Get the number of codes in the map
+	 * @return Number of codes
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Double the table size
+	 */
+	private void grow() {
+		long oldKeys[] = keys;
+		int oldValues[] = values;
+		keys = new long[oldKeys.length * 2];
+		values = new int[oldKeys.length * 2];
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) {
+				put(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+
+	/**
+	 * Spread the key bits (MurmurHash3 finalizer), as codes of the same remote only differ in a few bits
+	 * @param key Packed code
+	 * @return Hash
+	 */
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xFF51AFD7ED558CCDL;
+		key ^= key >>> 33;
+		return (int)key;
+	}
+}
@@ -0,0 +1,103 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.casa.synthproxy.ide.GUI;
+
+/**
+ * Library of IR codes learned from remote controls. In learning mode, every code received by CASAActuator
+ * is added to the library once, and the library is saved to a text file, one code per line, in the
+ * format used by the irmap configuration (Ex.: "NEC|0xE17A48B7|32").
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class IRLibrary {
+
+	/** File the library is saved to **/
+	private final File file;
+	/** Learned codes, in learning order **/
+	private final List<String> codes = new ArrayList<String>();
+	/** Learned codes, packed, for de-duplication **/
+	private final IRCodeMap index = new IRCodeMap(64);
+
+	/**
+	 * Constructor. Loads the codes saved in the file, if there is one.
+	 * @param file File the library is saved to
+	 */
+	public IRLibrary(File file) {
+		this.file = file;
+		if (!file.exists()) {
+			return;
+		}
+		try {
+			for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+				long key = IRCode.parse(line.trim(), 0, line.trim().length());
+				if (key != IRCode.INVALID && index.get(key) == IRCodeMap.NOT_FOUND) {
+					index.put(key, codes.size());
+					codes.add(IRCode.toString(key));
+				}
+			}
+		} catch (Exception e) {
+			GUI.addMessage("Erro lendo biblioteca de cdigos IR - " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Add a code to the library, if it is not there yet
+	 * @param key Packed code
+	 * @return true if the code is new
+	 */
+	public boolean learn(long key) {
+		if (index.get(key) != IRCodeMap.NOT_FOUND) {
+			return false;
+		}
+		index.put(key, codes.size());
+		codes.add(IRCode.toString(key));
+		save();
+		return true;
+	}
+
+	/**
+	 * Get the number of learned codes
+	 * @return Number of codes
+	 */
+	public int size() {
+		return codes.size();
+	}
+
+	/**
+	 * Save the library to its file
+	 */
+	private void save() {
+		try {
+			Files.write(file.toPath(), codes, StandardCharsets.UTF_8);
+		} catch (Exception e) {
+			GUI.addMessage("Erro gravando biblioteca de cdigos IR - " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy;
+
+/**
+ * IR protocols supported by CASAActuator. The name is the one used in ASCII commands
+ * (Ex.: IR[NEC|0xE17AA05F|32|200]) and the ID is the one used in the compact binary protocol.
+ * IDs must match IR_PROTOCOL_* constants in CASAActuator.h.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public enum IRProtocol {
+
+	/** Philips RC5 **/
+	RC5(1),
+	/** Philips RC6 **/
+	RC6(2),
+	/** NEC **/
+	NEC(3),
+	/** Sony **/
+	SONY(4),
+	/** Panasonic **/
+	PANASONIC(5),
+	/** JVC **/
+	JVC(6),
+	/** Samsung **/
+	SAMSUNG(7),
+	/** Whynter **/
+	WHYNTER(8),
+	/** Aiwa RC-T501 **/
+	AIWA_RC_T501(9),
+	/** LG **/
+	LG(10),
+	/** Denon **/
+	DENON(11);
+
+	/** Protocol ID in the compact binary protocol **/
+	private final int id;
+
+	/**
+	 * Constructor
+	 * @param id Protocol ID in the compact binary protocol
+	 */
+	private IRProtocol(int id) {
+		this.id = id;
+	}
+
+	/**
+	 * Get the protocol ID in the compact binary protocol
+	 * @return Protocol ID
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Get a protocol by its ASCII name
+	 * @param name Protocol name (Ex.: NEC)
+	 * @return Protocol, or null if it is not supported
+	 */
+	public static IRProtocol fromName(String name) {
+		for (IRProtocol protocol : values()) {
+			if (protocol.name().equals(name)) {
+				return protocol;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get a protocol by its ID
+	 * @param id Protocol ID
+	 * @return Protocol, or null if there is no protocol with this ID
+	 */
+	public static IRProtocol fromId(int id) {
+		for (IRProtocol protocol : values()) {
+			if (protocol.id == id) {
+				return protocol;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,439 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy;
+
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.casa.synthproxy.config.Config;
+import org.casa.synthproxy.ide.GUI;
+
+import jssc.SerialPort;
+import jssc.SerialPortList;
+
+/**
+ * Serial link supervisor. It stands in for the {@link CommPort} connected to CASAActuator, so that
+ * dispatchers keep working with the same object while the actual port is lost and found again (a USB
+ * cable that was bumped, for instance).
+ *
+ * Liveness is checked with a heartbeat - a status check - at an adaptive interval: it starts at
+ * heartbeatMinInterval and doubles after each quiet, successful check up to heartbeatMaxInterval. Commands
+ * count as heartbeats, so a busy link is never checked. A failed check or a port that is no longer listed
+ * by the system brings the interval back to the minimum; a second failure in a row takes the link as lost.
+ *
+ * While the link is lost, discovery runs again in the background - at once when a new serial port shows
+ * up (a re-plug), and at the maximum interval otherwise. When CASAActuator is found, the event dispatcher
+ * and the macro table are set up again and the recovery time is logged (see {@link #getLastRecoveryTime()}).
+ *
+ * Commands sent while the link is lost are handled according to the {@link FailurePolicy}.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class LinkSupervisor extends CommPort {
+
+	/**
+	 * What to do with commands sent while the link is lost
+	 */
+	public enum FailurePolicy {
+		/** Hold the command until the link is recovered, up to linkBufferTimeout, then fail it **/
+		BUFFER,
+		/** Fail the command at once **/
+		FAIL
+	}
+
+	/** Failed heartbeats in a row that make the link be taken as lost **/
+	private static final int MAX_FAILURES = 2;
+
+	/** CASASynthProxy configuration **/
+	private final Config config;
+	/** What to do with commands sent while the link is lost **/
+	private final FailurePolicy policy;
+	/** Longest time a command is held while the link is lost, in milliseconds **/
+	private final long bufferTimeout;
+	/** Shortest heartbeat interval, in milliseconds **/
+	private final long minInterval;
+	/** Longest heartbeat interval, in milliseconds **/
+	private final long maxInterval;
+	/** Heartbeat and discovery thread **/
+	private final ScheduledExecutorService executor;
+	/** Held commands wait on this lock for the link to be recovered **/
+	private final Object linkLock = new Object();
+
+	/** Current port, or null while the link is lost **/
+	private volatile CommPort port;
+	/** Dispatcher of the events sent by CASAActuator, set on every port found **/
+	private volatile ActuatorEventDispatcher eventDispatcher;
+	/** Last time CASAActuator answered **/
+	private volatile long lastSeen;
+	/** Current heartbeat interval, in milliseconds - only touched by the supervisor thread **/
+	private long interval;
+	/** Failed heartbeats in a row - only touched by the supervisor thread **/
+	private int failures = 0;
+	/** When the link was lost, or 0 **/
+	private volatile long lostAt = 0;
+	/** Serial ports listed at the last failed discovery - only touched by the supervisor thread **/
+	private String[] knownPorts = new String[0];
+	/** Last failed discovery - only touched by the supervisor thread **/
+	private long lastDiscovery = 0;
+	/** Links recovered **/
+	private volatile int recoveries = 0;
+	/** Time the last recovery took, in milliseconds **/
+	private volatile long lastRecoveryTime = 0;
+	/** Time all recoveries took, in milliseconds **/
+	private volatile long totalRecoveryTime = 0;
+
+	/**
+	 * Constructor. The link is only looked for when the supervisor is started.
+	 * @param config CASASynthProxy configuration - the macro table is uploaded again on every port found
+	 */
+	public LinkSupervisor(Config config) {
+		this.config = config;
+		this.policy = "fail".equalsIgnoreCase(Config.getGeneralConfigEntry("linkFailurePolicy", "buffer"))
+				? FailurePolicy.FAIL : FailurePolicy.BUFFER;
+		this.bufferTimeout = Long.parseLong(Config.getGeneralConfigEntry("linkBufferTimeout", "30000"));
+		this.minInterval = Long.parseLong(Config.getGeneralConfigEntry("heartbeatMinInterval", "2000"));
+		this.maxInterval = Long.parseLong(Config.getGeneralConfigEntry("heartbeatMaxInterval", "30000"));
+		this.interval = minInterval;
+		this.executor = clock.newScheduler("LinkSupervisor");
+	}
+
+	/**
+	 * Look for CASAActuator - this first attempt is done in the calling thread - and start supervising the link
+	 */
+	public void start() {
+		if (!connect()) {
+			lost();
+		}
+		schedule(interval);
+	}
+
+	/**
+	 * Find CASAActuator. Overridden by tests to replace discovery.
+	 * @return Port connected to CASAActuator
+	 * @throws Exception CASAActuator was not found
+	 */
+	protected CommPort discover() throws Exception {
+		return CommPort.getArduinoCommPort();
+	}
+
+	/**
+	 * List the serial ports of the system. Overridden by tests.
+	 * @return Serial port names
+	 */
+	protected String[] listPorts() {
+		return SerialPortList.getPortNames();
+	}
+
+	/**
+	 * Check if the link is up
+	 * @return true if there is a port connected to CASAActuator
+	 */
+	public boolean isConnected() {
+		return port != null;
+	}
+
+	/**
+	 * Get the number of times the link was recovered
+	 * @return Recoveries
+	 */
+	public int getRecoveries() {
+		return recoveries;
+	}
+
+	/**
+	 * Get the time between the link being lost and being recovered, the last time it happened
+	 * @return Recovery time, in milliseconds, or 0 if the link was never recovered
+	 */
+	public long getLastRecoveryTime() {
+		return lastRecoveryTime;
+	}
+
+	/**
+	 * Get the average time between the link being lost and being recovered
+	 * @return Average recovery time, in milliseconds, or 0 if the link was never recovered
+	 */
+	public long getAverageRecoveryTime() {
+		return recoveries == 0 ? 0 : totalRecoveryTime / recoveries;
+	}
+
+	/**
+	 * Run the next heartbeat or discovery
+	 * @param delay Delay, in milliseconds
+	 */
+	private void schedule(long delay) {
+		try {
+			executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					long next;
+					try {
+						next = port != null ? heartbeat() : rediscover();
+					} catch (Exception e) {
+						e.printStackTrace();
+						next = minInterval;
+					}
+					schedule(next);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (Exception e) {
+			// Supervisor closed
+		}
+	}
+
+	/**
+	 * Check if CASAActuator is still there. Runs in the supervisor thread.
+	 * @return Delay until the next heartbeat, in milliseconds
+	 */
+	private long heartbeat() {
+		CommPort current = port;
+		long quiet = clock.currentTimeMillis() - lastSeen;
+		if (quiet < interval && failures == 0) {
+			// Commands were answered recently - no need to check yet
+			return interval - quiet;
+		}
+		SerialPort serialPort = current.getSerialPort();
+		boolean listed = serialPort == null || Arrays.asList(listPorts()).contains(serialPort.getPortName());
+		try {
+			if (!listed) {
+				throw new RuntimeException("Porta serial " + serialPort.getPortName() + " removida");
+			}
+			current.getGlobalSwitchStatus();
+			lastSeen = clock.currentTimeMillis();
+			failures = 0;
+			interval = Math.min(maxInterval, interval * 2);
+			return interval;
+		} catch (Exception e) {
+			failures++;
+			interval = minInterval;
+			GUI.addMessage("Falha no heartbeat do CASAActuator (" + failures + ") - " + e.getMessage());
+			if (failures >= MAX_FAILURES || !listed) {
+				lost();
+				return 0;
+			}
+			return interval;
+		}
+	}
+
+	/**
+	 * Look for CASAActuator again, if a port showed up or it was not looked for in a while. Runs in the
+	 * supervisor thread.
+	 * @return Delay until the next attempt, in milliseconds
+	 */
+	private long rediscover() {
+		String[] ports = listPorts();
+		boolean replugged = false;
+		for (String name : ports) {
+			if (!Arrays.asList(knownPorts).contains(name)) {
+				replugged = true;
+			}
+		}
+		if (!replugged && clock.currentTimeMillis() - lastDiscovery < maxInterval) {
+			knownPorts = ports;
+			return minInterval;
+		}
+		if (connect()) {
+			return interval;
+		}
+		knownPorts = ports;
+		lastDiscovery = clock.currentTimeMillis();
+		return minInterval;
+	}
+
+	/**
+	 * Look for CASAActuator and set the port up
+	 * @return true if CASAActuator was found
+	 */
+	private boolean connect() {
+		GUI.addMessage("Procurando Arduino...");
+		CommPort found;
+		try {
+			found = discover();
+		} catch (Exception e) {
+			GUI.addMessage("Erro abrindo porta serial - " + e.getMessage());
+			return false;
+		}
+		GUI.addMessage("Conexo serial com arduino iniciada com sucesso na porta "
+				+ (found.getSerialPort() != null ? found.getSerialPort().getPortName() : "emulada"));
+		found.setEventDispatcher(eventDispatcher);
+		try {
+			// Upload macros to CASAActuator, so that they are sent by ID
+			found.syncMacroTable(config);
+		} catch (Exception e) {
+			GUI.addMessage("Erro sincronizando tabela de macros - " + e.getMessage());
+		}
+		lastSeen = clock.currentTimeMillis();
+		failures = 0;
+		interval = minInterval;
+		synchronized (linkLock) {
+			port = found;
+			if (lostAt > 0) {
+				long recovery = clock.currentTimeMillis() - lostAt;
+				lostAt = 0;
+				lastRecoveryTime = recovery;
+				totalRecoveryTime += recovery;
+				recoveries++;
+				GUI.addMessage("Conexo com o CASAActuator recuperada em " + recovery + " ms (mdia: "
+						+ getAverageRecoveryTime() + " ms em " + recoveries + " recuperaes)");
+			}
+			linkLock.notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * Take the link as lost: close the port and start looking for CASAActuator again
+	 */
+	private void lost() {
+		CommPort current;
+		synchronized (linkLock) {
+			current = port;
+			port = null;
+			if (lostAt == 0) {
+				lostAt = clock.currentTimeMillis();
+			}
+		}
+		knownPorts = listPorts();
+		lastDiscovery = clock.currentTimeMillis();
+		if (current != null) {
+			GUI.addMessage("Conexo com o CASAActuator perdida"
+					+ (policy == FailurePolicy.BUFFER ? ", comandos aguardam a reconexo" : ", comandos sero descartados"));
+			try {
+				current.close();
+			} catch (Exception e) {
+				// The port is gone anyway
+			}
+		}
+	}
+
+	/**
+	 * Get the port to send a command to, according to the failure policy
+	 * @return Port connected to CASAActuator
+	 * @throws Exception The link is lost and the command cannot be held (any longer)
+	 */
+	private CommPort awaitPort() throws Exception {
+		CommPort current = port;
+		if (current != null) {
+			return current;
+		}
+		if (policy == FailurePolicy.BUFFER) {
+			long deadline = clock.currentTimeMillis() + bufferTimeout;
+			synchronized (linkLock) {
+				for (long wait = bufferTimeout; port == null && wait > 0; wait = deadline - clock.currentTimeMillis()) {
+					clock.waitOn(linkLock, wait);
+				}
+				current = port;
+			}
+		}
+		if (current == null) {
+			throw new RuntimeException("Conexo com o CASAActuator perdida");
+		}
+		return current;
+	}
+
+	/**
+	 * A command failed - check the link at once instead of waiting for the next heartbeat
+	 */
+	private void suspect() {
+		lastSeen = 0;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (port != null) {
+					heartbeat();
+				}
+			}
+		});
+	}
+
+	@Override
+	public void sendCommand(Command command) throws Exception {
+		CommPort current = awaitPort();
+		try {
+			current.sendCommand(command);
+			lastSeen = clock.currentTimeMillis();
+		} catch (Exception e) {
+			suspect();
+			throw e;
+		}
+	}
+
+	@Override
+	public boolean getGlobalSwitchStatus() throws Exception {
+		CommPort current = awaitPort();
+		try {
+			boolean status = current.getGlobalSwitchStatus();
+			lastSeen = clock.currentTimeMillis();
+			return status;
+		} catch (Exception e) {
+			suspect();
+			throw e;
+		}
+	}
+
+	@Override
+	public void syncMacroTable(Config config) throws Exception {
+		CommPort current = port;
+		if (current != null) {
+			current.syncMacroTable(config);
+		}
+	}
+
+	@Override
+	public void setEventDispatcher(ActuatorEventDispatcher eventDispatcher) {
+		this.eventDispatcher = eventDispatcher;
+		CommPort current = port;
+		if (current != null) {
+			current.setEventDispatcher(eventDispatcher);
+		}
+	}
+
+	@Override
+	public SerialPort getSerialPort() {
+		CommPort current = port;
+		return current != null ? current.getSerialPort() : null;
+	}
+
+	@Override
+	public boolean isCompact() {
+		CommPort current = port;
+		return current != null && current.isCompact();
+	}
+
+	@Override
+	public int getBaudRate() {
+		CommPort current = port;
+		return current != null ? current.getBaudRate() : SerialPort.BAUDRATE_9600;
+	}
+
+	/**
+	 * Stop supervising the link and close the port
+	 * @throws Exception Error closing the port
+	 */
+	@Override
+	public void close() throws Exception {
+		executor.shutdownNow();
+		CommPort current = port;
+		port = null;
+		if (current != null) {
+			current.close();
+		}
+	}
+}
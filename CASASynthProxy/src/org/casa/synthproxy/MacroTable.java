@@ -0,0 +1,183 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.casa.synthproxy.config.Macro;
+
+/**
+ * Macro table stored in CASAActuator's EEPROM. Macros made only of IR and relay commands are compiled
+ * into compact protocol operations (see {@link CompactCodec}), so that CASASynthProxy only has to send
+ * the macro ID once the table is on the device.
+ *
+ * EEPROM layout:
+ * <ul>
+ * <li>bytes 0 and 1: "CM" - table present</li>
+ * <li>byte 2: table format version ({@link #FORMAT_VERSION})</li>
+ * <li>byte 3: number of macros</li>
+ * <li>bytes 4 and 5: table data length (big endian)</li>
+ * <li>bytes 6 and 7: table data checksum - CRC-16/CCITT, see {@link CompactCodec#crc16(byte[], int, int)} (big endian)</li>
+ * <li>byte 8 on: table data - for each macro, its length (1 byte) followed by its operations</li>
+ * </ul>
+ * The checksum also works as the table version: CASASynthProxy only uploads the table when the
+ * checksum reported by CASAActuator is different from the one compiled from the configuration.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class MacroTable {
+
+	/** Table format version **/
+	public static final int FORMAT_VERSION = 1;
+	/** Header size, in bytes **/
+	public static final int HEADER_SIZE = 8;
+	/** Biggest table data - the EEPROM in Arduino Mega has 4KB **/
+	public static final int MAX_SIZE = 4096 - HEADER_SIZE;
+	/** Biggest macro, in bytes **/
+	public static final int MAX_ENTRY = 255;
+	/** Biggest number of macros **/
+	public static final int MAX_MACROS = 255;
+
+	/** Macro IDs by macro data **/
+	private final Map<String, Integer> ids;
+	/** Table data **/
+	private final byte[] data;
+	/** Execution time of each macro, in milliseconds **/
+	private final int[] durations;
+	/** Table data checksum **/
+	private final int checksum;
+
+	/**
+	 * Constructor
+	 * @param ids Macro IDs by macro data
+	 * @param data Table data
+	 * @param durations Execution time of each macro, in milliseconds
+	 */
+	private MacroTable(Map<String, Integer> ids, byte[] data, int[] durations) {
+		this.ids = ids;
+		this.data = data;
+		this.durations = durations;
+		this.checksum = CompactCodec.crc16(data, 0, data.length);
+	}
+
+	/**
+	 * Compile the macros from the configuration, as they are written.
+	 * @param macros Macros from the configuration
+	 * @return Macro table
+	 */
+	public static MacroTable compile(Map<String, Macro> macros) {
+		return compile(macros, null);
+	}
+
+	/**
+	 * Compile the macros from the configuration. Macros are taken in key order, so that the same
+	 * configuration always gives the same table. Macros with anything but IR and relay commands, and
+	 * macros that do not fit in the table, are left out - they are still sent in full.
+	 * @param macros Macros from the configuration
+	 * @param sceneCompiler Compiler the macro data goes through before it is stored, as it is when the
+	 * macro is dispatched - macros are found by their compiled data. Null to store macros as they are written.
+	 * @return Macro table
+	 */
+	public static MacroTable compile(Map<String, Macro> macros, SceneCompiler sceneCompiler) {
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		ByteBuffer table = ByteBuffer.allocate(MAX_SIZE);
+		ByteBuffer entry = ByteBuffer.allocate(MAX_ENTRY * 2);
+		CompactCodec codec = new CompactCodec();
+		int durations[] = new int[MAX_MACROS];
+		for (Macro macro : new TreeMap<String, Macro>(macros).values()) {
+			String data = sceneCompiler != null ? sceneCompiler.compile(macro.getData()) : macro.getData();
+			if (ids.containsKey(data) || ids.size() == MAX_MACROS) {
+				continue;
+			}
+			List<Step> steps = Step.parseAll(data);
+			if (steps == null || steps.isEmpty()) {
+				continue;
+			}
+			entry.clear();
+			try {
+				codec.putSteps(steps, entry);
+			} catch (RuntimeException e) {
+				// Too long for a single entry
+				continue;
+			}
+			if (entry.position() > MAX_ENTRY || table.remaining() < entry.position() + 1) {
+				continue;
+			}
+			entry.flip();
+			table.put((byte)entry.remaining());
+			table.put(entry);
+			for (Step step : steps) {
+				durations[ids.size()] += step.getDuration() + step.getDelay();
+			}
+			ids.put(data, ids.size());
+		}
+		byte data[] = new byte[table.position()];
+		table.flip();
+		table.get(data);
+		return new MacroTable(ids, data, Arrays.copyOf(durations, ids.size()));
+	}
+
+	/**
+	 * Get the ID of the macro with this data
+	 * @param commandData Command data
+	 * @return Macro ID, or null if there is no macro with this data in the table
+	 */
+	public Integer getId(String commandData) {
+		return ids.get(commandData);
+	}
+
+	/**
+	 * Get the number of macros in the table
+	 * @return Number of macros
+	 */
+	public int size() {
+		return ids.size();
+	}
+
+	/**
+	 * Get the estimated execution time of a macro - IR delays and relay durations
+	 * @param id Macro ID
+	 * @return Execution time, in milliseconds
+	 */
+	public int getDuration(int id) {
+		return durations[id];
+	}
+
+	/**
+	 * Get the table data (without the header)
+	 * @return Table data
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * Get the table data checksum
+	 * @return CRC-16/CCITT of the table data
+	 */
+	public int getChecksum() {
+		return checksum;
+	}
+}
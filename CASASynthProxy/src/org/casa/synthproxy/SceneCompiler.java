@@ -0,0 +1,300 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.casa.synthproxy.config.Device;
+import org.casa.synthproxy.config.Macro;
+import org.casa.synthproxy.ide.GUI;
+
+/**
+ * Compiles composite IR and relay commands - expanded macros and scenes that touch several devices - into
+ * a faster sequence of steps. Steps are told apart by the {@link Device} they are sent to, and:
+ * <ul>
+ * <li>the same IR code sent again to a device that takes repeats as one press is dropped (the delay of the
+ * last repeat is kept);</li>
+ * <li>each step waits only for the previous step of its own device - its delay, and never less than the
+ * device gap. Meanwhile, the steps of the other devices are sent, so their delays overlap;</li>
+ * <li>IR delays calibrated for the device and protocol ({@link DelayProfile}) are used instead of the ones
+ * written in the macro - delays written as 0 stay 0;</li>
+ * <li>when more than one device is ready, the step written first goes first - but a step equal to the one
+ * just sent goes before it, so that equal steps stay together and {@link CompactCodec} sends them as one
+ * operation with a repeat count.</li>
+ * </ul>
+ * Steps keep their order within each device. Steps of devices that are not configured are taken as a single
+ * device, so they keep their order and delays. The actuator is busy while a relay is on - relay durations
+ * are never overlapped.
+ *
+ * Compiled command data is memoized in a bounded cache, as {@link org.casa.synthproxy.config.MacroExpander}
+ * does with expansions.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class SceneCompiler {
+
+	/** Biggest number of memoized compilations **/
+	private static final int MAX_ENTRIES = 256;
+
+	/** Compiler used by this CASASynthProxy instance **/
+	private static volatile SceneCompiler instance;
+
+	/** Devices, in configuration order **/
+	private final List<Device> devices;
+	/** Calibrated delays, or null **/
+	private final DelayProfile profile;
+	/** Memoized compilations by command data, least recently used first **/
+	private final Map<String, String> cache = new LinkedHashMap<String, String>(64, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	/**
+	 * Constructor
+	 * @param devices Devices, in configuration order
+	 * @param profile Calibrated delays, or null to use the delays written in the macros
+	 */
+	public SceneCompiler(List<Device> devices, DelayProfile profile) {
+		this.devices = devices;
+		this.profile = profile;
+	}
+
+	/**
+	 * Get the compiler used by this CASASynthProxy instance
+	 * @return Scene compiler, or null if commands are sent as they are
+	 */
+	public static SceneCompiler getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Set the compiler used by this CASASynthProxy instance
+	 * @param compiler Scene compiler
+	 */
+	public static void setInstance(SceneCompiler compiler) {
+		instance = compiler;
+	}
+
+	/**
+	 * Compile command data
+	 * @param data Command data, possibly composite ("#" separated)
+	 * @return Compiled command data, or the same data if it is not made of IR and relay commands only
+	 */
+	public String compile(String data) {
+		if (data == null || devices.isEmpty()) {
+			return data;
+		}
+		synchronized (cache) {
+			String compiled = cache.get(data);
+			if (compiled != null) {
+				return compiled;
+			}
+		}
+		List<Step> steps = Step.parseAll(data);
+		String compiled = steps == null || steps.isEmpty() ? data : Step.toAscii(compile(steps));
+		synchronized (cache) {
+			cache.put(data, compiled);
+		}
+		return compiled;
+	}
+
+	/**
+	 * Compile steps
+	 * @param steps Steps, in the order they were written
+	 * @return Compiled steps
+	 */
+	public List<Step> compile(List<Step> steps) {
+		Step work[] = steps.toArray(new Step[steps.size()]);
+		// Indexes of the steps of each device, in order - the last queue holds the steps of devices that are not configured
+		List<List<Integer>> queues = new ArrayList<List<Integer>>();
+		for (int d = 0; d <= devices.size(); d++) {
+			queues.add(new ArrayList<Integer>());
+		}
+		int total = 0;
+		for (int i = 0; i < work.length; i++) {
+			int d = deviceOf(work[i]);
+			List<Integer> queue = queues.get(d);
+			int last = queue.isEmpty() ? -1 : queue.get(queue.size() - 1);
+			if (last >= 0 && d < devices.size() && devices.get(d).isRepeatsOnce() && work[i].getType() == Step.Type.IR
+					&& work[i].sameAction(work[last])) {
+				work[last] = work[last].withDelay(work[i].getDelay());
+				continue;
+			}
+			queue.add(i);
+			total++;
+		}
+
+		// Each step is sent as soon as the actuator is free and its device is ready
+		List<Step> compiled = new ArrayList<Step>(total);
+		int next[] = new int[queues.size()];
+		long ready[] = new long[queues.size()];
+		long settled[] = new long[queues.size()];
+		long time = 0;
+		while (compiled.size() < total) {
+			Step previous = compiled.isEmpty() ? null : compiled.get(compiled.size() - 1);
+			int d = -1;
+			long start = Long.MAX_VALUE;
+			for (int candidate = 0; candidate < queues.size(); candidate++) {
+				if (next[candidate] == queues.get(candidate).size()) {
+					continue;
+				}
+				long candidateStart = Math.max(time, ready[candidate]);
+				if (candidateStart < start || (candidateStart == start && goesFirst(work, queues.get(candidate).get(next[candidate]),
+						queues.get(d).get(next[d]), previous))) {
+					d = candidate;
+					start = candidateStart;
+				}
+			}
+			Step step = work[queues.get(d).get(next[d]++)];
+			if (previous != null) {
+				compiled.set(compiled.size() - 1, previous.withDelay((int)(start - time)));
+			}
+			compiled.add(step);
+			time = start + step.getDuration();
+			ready[d] = time + getGap(d, step);
+			settled[d] = time + getDelay(d, step);
+		}
+
+		// The last step waits for every device to settle, as the original sequence did
+		if (!compiled.isEmpty()) {
+			long end = time;
+			for (long s : settled) {
+				end = Math.max(end, s);
+			}
+			int last = compiled.size() - 1;
+			compiled.set(last, compiled.get(last).withDelay((int)(end - time)));
+		}
+		return compiled;
+	}
+
+	/**
+	 * Choose between two steps that can start at the same time
+	 * @param work Steps
+	 * @param i Index of a step
+	 * @param j Index of the other step
+	 * @param previous Step just sent, or null
+	 * @return true if step i goes before step j
+	 */
+	private static boolean goesFirst(Step work[], int i, int j, Step previous) {
+		boolean iRepeats = work[i].sameAction(previous);
+		if (iRepeats != work[j].sameAction(previous)) {
+			return iRepeats;
+		}
+		return i < j;
+	}
+
+	/**
+	 * Report how much faster each macro gets once compiled, and the total
+	 * @param macros Expanded macros
+	 */
+	public void report(Map<String, Macro> macros) {
+		int faster = 0;
+		long saved = 0;
+		for (Macro macro : new TreeMap<String, Macro>(macros).values()) {
+			List<Step> steps = Step.parseAll(macro.getData());
+			if (steps == null || steps.isEmpty()) {
+				continue;
+			}
+			long before = getDuration(steps);
+			long after = getDuration(Step.parseAll(compile(macro.getData())));
+			if (after != before) {
+				GUI.addMessage("Macro " + macro.getKey() + ": " + before + " ms -> " + after + " ms ("
+						+ (before - after) + " ms economizados)");
+			}
+			if (after < before) {
+				faster++;
+			}
+			saved += before - after;
+		}
+		GUI.addMessage("Cenas compiladas para " + devices.size() + " dispositivos: " + faster + " macros mais rpidos, "
+				+ saved + " ms economizados no total");
+	}
+
+	/**
+	 * Get the execution time of steps - relay durations and delays
+	 * @param steps Steps
+	 * @return Execution time, in milliseconds
+	 */
+	public static long getDuration(List<Step> steps) {
+		long duration = 0;
+		for (Step step : steps) {
+			duration += step.getDuration() + step.getDelay();
+		}
+		return duration;
+	}
+
+	/**
+	 * Get the time a device needs after a step, before its next step
+	 * @param d Device index
+	 * @param step Step
+	 * @return Time, in milliseconds
+	 */
+	private int getGap(int d, Step step) {
+		return d < devices.size() ? Math.max(devices.get(d).getGap(), getDelay(d, step)) : step.getDelay();
+	}
+
+	/**
+	 * Get the delay after a step - the calibrated one, if there is one
+	 * @param d Device index
+	 * @param step Step
+	 * @return Delay, in milliseconds
+	 */
+	private int getDelay(int d, Step step) {
+		if (profile == null || d == devices.size() || step.getType() != Step.Type.IR || step.getDelay() == 0) {
+			return step.getDelay();
+		}
+		Integer calibrated = profile.getGap(devices.get(d).getName(), step.getProtocol());
+		return calibrated != null ? calibrated : step.getDelay();
+	}
+
+	/**
+	 * Find the device of a step
+	 * @param step Step
+	 * @return Device, or null if the step belongs to no configured device
+	 */
+	public Device getDevice(Step step) {
+		int d = deviceOf(step);
+		return d < devices.size() ? devices.get(d) : null;
+	}
+
+	/**
+	 * Find the device of a step
+	 * @param step Step
+	 * @return Device index, or the number of devices if the step belongs to none
+	 */
+	private int deviceOf(Step step) {
+		for (int d = 0; d < devices.size(); d++) {
+			Device device = devices.get(d);
+			if (step.getType() == Step.Type.IR ? device.matchesIR(step.getProtocol().name(), step.getCode(), step.getBits())
+					: device.getRelays().contains(step.getRelay())) {
+				return d;
+			}
+		}
+		return devices.size();
+	}
+}
@@ -0,0 +1,272 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sliding send window for compact protocol frames (see {@link CompactCodec}).
+ *
+ * Each frame gets a sequence number and a CRC when it is sent. CASAActuator executes frames in sequence
+ * order and answers "A&lt;seq&gt;;" once a frame was executed, or "N&lt;seq&gt;;" when a frame arrived broken
+ * or a gap in the sequence was found. Up to {@link #WINDOW_SIZE} frames are kept in flight; a frame is
+ * retransmitted alone when it is NAKed or when its ACK does not arrive in time.
+ *
+ * After a failure, the frame that restarts the sequence is sent alone: until it is acknowledged,
+ * CASAActuator may still expect the frames given up on.
+ *
+ * The window also keeps CASAActuator's serial buffer from being overrun: frames waiting behind the one
+ * being executed never add up to more than {@link #RECEIVE_BUFFER} bytes.
+ *
+ * {@link #send(ByteBuffer, int[])} blocks until every frame was acknowledged, so it is the completion
+ * signal of a command. {@link #ack(int)} and {@link #nak(int)} are called by the serial event thread.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class SendWindow {
+
+	/** Frames in flight **/
+	public static final int WINDOW_SIZE = 4;
+	/** CASAActuator serial receive buffer, in bytes **/
+	public static final int RECEIVE_BUFFER = 64;
+	/** How long to wait for an ACK, on top of the frame's transfer and execution time, in milliseconds **/
+	private static final long ACK_TIMEOUT = 250;
+	/** Retransmissions of a single frame before giving up **/
+	private static final int MAX_RETRIES = 3;
+
+	/**
+	 * Serial link the frames are written to
+	 */
+	public interface Link {
+		/**
+		 * Write a frame
+		 * @param frame Frame buffer
+		 * @param length Frame length
+		 * @throws Exception Error writing to the link
+		 */
+		void write(byte[] frame, int length) throws Exception;
+	}
+
+	/** Serial link **/
+	private final Link link;
+	/** Time to transfer one byte, in milliseconds **/
+	private final double millisPerByte;
+	/** Frames in flight, by slot (sequence number modulo window size) **/
+	private final byte[][] frames = new byte[WINDOW_SIZE][CompactCodec.MAX_FRAME];
+	/** Frame lengths, by slot **/
+	private final int[] lengths = new int[WINDOW_SIZE];
+	/** Execution time of each frame, by slot, in milliseconds **/
+	private final int[] durations = new int[WINDOW_SIZE];
+	/** ACK deadlines, by slot **/
+	private final long[] deadlines = new long[WINDOW_SIZE];
+	/** Retransmissions, by slot **/
+	private final int[] retries = new int[WINDOW_SIZE];
+	/** Acknowledged flags, by slot **/
+	private final boolean[] acked = new boolean[WINDOW_SIZE];
+	/** Retransmission requested flags, by slot **/
+	private final boolean[] naked = new boolean[WINDOW_SIZE];
+	/** Oldest sequence number not acknowledged **/
+	private int base = 0;
+	/** Next sequence number **/
+	private int next = 0;
+	/** CASAActuator has to be told about a new sequence start (after a failure) **/
+	private boolean resync = false;
+	/** A frame restarting the sequence is in flight - nothing is sent behind it until it is acknowledged **/
+	private boolean syncing = false;
+	/** Time source **/
+	private final Clock clock = Clock.getInstance();
+
+	/**
+	 * Constructor
+	 * @param link Serial link the frames are written to
+	 * @param baudRate Link baud rate (8N1, so 10 bits per byte)
+	 */
+	public SendWindow(Link link, int baudRate) {
+		this.link = link;
+		this.millisPerByte = 10000.0 / baudRate;
+	}
+
+	/**
+	 * Send frames and wait until all of them were executed by CASAActuator.
+	 * @param buffer Frames, as written by {@link CompactCodec}
+	 * @param frameDurations Execution time of each frame, in milliseconds (see {@link CompactCodec#getFrameDurations()})
+	 * @throws Exception Error writing to the link, or a frame was not acknowledged after all retries
+	 */
+	public void send(ByteBuffer buffer, int[] frameDurations) throws Exception {
+		synchronized (this) {
+			try {
+				sendFrames(buffer, frameDurations);
+			} catch (Exception e) {
+				// Give up on everything in flight - CASAActuator is told to start over with the next frame
+				base = next;
+				resync = true;
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Send frames and wait for their ACKs
+	 * @param buffer Frames
+	 * @param frameDurations Execution time of each frame, in milliseconds
+	 * @throws Exception Error writing to the link, or a frame was not acknowledged after all retries
+	 */
+	private void sendFrames(ByteBuffer buffer, int[] frameDurations) throws Exception {
+		int frame = 0;
+		while (buffer.hasRemaining()) {
+			int length = (buffer.get(buffer.position() + 1) & CompactCodec.LENGTH_MASK) + CompactCodec.FRAME_OVERHEAD;
+			while (!fits(length)) {
+				waitAndRetransmit();
+			}
+			int seq = next;
+			int slot = seq % WINDOW_SIZE;
+			buffer.get(frames[slot], 0, length);
+			if (resync) {
+				CompactCodec.markSync(frames[slot]);
+				resync = false;
+				syncing = true;
+			}
+			CompactCodec.seal(frames[slot], seq);
+			lengths[slot] = length;
+			durations[slot] = frameDurations[frame++];
+			retries[slot] = 0;
+			acked[slot] = false;
+			naked[slot] = false;
+			next = (next + 1) & 0xFF;
+			transmit(slot);
+		}
+		while (base != next) {
+			waitAndRetransmit();
+		}
+	}
+
+	/**
+	 * A frame was executed by CASAActuator
+	 * @param seq Frame sequence number
+	 */
+	public void ack(int seq) {
+		synchronized (this) {
+			if (!inFlight(seq)) {
+				return;
+			}
+			acked[seq % WINDOW_SIZE] = true;
+			// Slide the window over every acknowledged frame
+			while (base != next && acked[base % WINDOW_SIZE]) {
+				base = (base + 1) & 0xFF;
+			}
+			if (base == next) {
+				syncing = false;
+			}
+			notifyAll();
+		}
+	}
+
+	/**
+	 * A frame has to be sent again
+	 * @param seq Frame sequence number
+	 */
+	public void nak(int seq) {
+		synchronized (this) {
+			if (!inFlight(seq) || acked[seq % WINDOW_SIZE]) {
+				return;
+			}
+			naked[seq % WINDOW_SIZE] = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Check if a sequence number is in flight
+	 * @param seq Sequence number
+	 * @return true if the frame was sent and the window did not slide over it yet
+	 */
+	private boolean inFlight(int seq) {
+		return ((seq - base) & 0xFF) < ((next - base) & 0xFF);
+	}
+
+	/**
+	 * Check if a new frame can be sent now
+	 * @param length Frame length
+	 * @return true if there is a free slot and the frames waiting behind the oldest one leave room for it
+	 */
+	private boolean fits(int length) {
+		int inFlight = (next - base) & 0xFF;
+		if (inFlight == 0) {
+			return true;
+		}
+		if (inFlight >= WINDOW_SIZE || syncing) {
+			// Until the sequence restart is acknowledged, CASAActuator still expects the frames given up on and
+			// would take the frames behind it as executed already
+			return false;
+		}
+		int waiting = length;
+		for (int seq = (base + 1) & 0xFF; seq != next; seq = (seq + 1) & 0xFF) {
+			waiting += lengths[seq % WINDOW_SIZE];
+		}
+		return waiting <= RECEIVE_BUFFER;
+	}
+
+	/**
+	 * Wait for ACKs, retransmitting NAKed frames and frames whose ACK deadline has passed
+	 * @throws Exception Error writing to the link, or a frame was not acknowledged after all retries
+	 */
+	private void waitAndRetransmit() throws Exception {
+		long now = clock.currentTimeMillis();
+		long wait = Long.MAX_VALUE;
+		for (int seq = base; seq != next; seq = (seq + 1) & 0xFF) {
+			int slot = seq % WINDOW_SIZE;
+			if (acked[slot]) {
+				continue;
+			}
+			if (naked[slot] || deadlines[slot] <= now) {
+				if (retries[slot]++ == MAX_RETRIES) {
+					throw new RuntimeException("CASAActuator no confirmou o frame " + seq);
+				}
+				naked[slot] = false;
+				transmit(slot);
+			}
+			wait = Math.min(wait, deadlines[slot] - now);
+		}
+		if (base != next) {
+			clock.waitOn(this, Math.max(1, wait));
+		}
+	}
+
+	/**
+	 * Write a frame and set its ACK deadline. Frames are executed in order, so the deadline
+	 * also counts the execution time of the frames sent before it.
+	 * @param slot Frame slot
+	 * @throws Exception Error writing to the link
+	 */
+	private void transmit(int slot) throws Exception {
+		link.write(frames[slot], lengths[slot]);
+		long start = clock.currentTimeMillis();
+		for (int seq = base; seq != next; seq = (seq + 1) & 0xFF) {
+			int s = seq % WINDOW_SIZE;
+			if (s == slot) {
+				break;
+			}
+			if (!acked[s]) {
+				start = Math.max(start, deadlines[s] - ACK_TIMEOUT);
+			}
+		}
+		deadlines[slot] = start + (long)(lengths[slot] * millisPerByte) + durations[slot] + ACK_TIMEOUT;
+	}
+}
@@ -0,0 +1,377 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulated {@link Clock} for tests and benchmarks. Time only moves when it is advanced - by
+ * {@link #advance(long)} or by a sleep, which advances the clock at once instead of blocking - so
+ * scanning, activation expiry, heartbeats and retries run as fast as the code allows, and always in the
+ * same order.
+ *
+ * Tasks of the schedulers created by this clock run in the thread that advances the clock, in due time
+ * order (tasks due at the same time run in the order they were scheduled), with the clock set to their
+ * due time. Tasks given to execute() run on the next advance - advance(0) runs them. Threads waiting on
+ * a lock ({@link #waitOn(Object, long)}) wake up when they are notified or when the clock is advanced
+ * past their deadline; they never time out while the clock stands still.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class SimulatedClock extends Clock {
+
+	/** Current time, in milliseconds **/
+	private long now;
+	/** Scheduled tasks, by due time **/
+	private final PriorityQueue<Task<?>> tasks = new PriorityQueue<Task<?>>();
+	/** Tasks scheduled so far - orders tasks due at the same time **/
+	private long sequence = 0;
+	/** Threads waiting on a lock **/
+	private final List<Waiter> waiters = new ArrayList<Waiter>();
+	/** Waits advance the clock instead of blocking **/
+	private volatile boolean autoAdvance = false;
+
+	/**
+	 * Constructor
+	 * @param start Initial time, in milliseconds since the epoch
+	 */
+	public SimulatedClock(long start) {
+		this.now = start;
+	}
+
+	@Override
+	public synchronized long currentTimeMillis() {
+		return now;
+	}
+
+	@Override
+	public synchronized long nanoTime() {
+		return TimeUnit.MILLISECONDS.toNanos(now);
+	}
+
+	/**
+	 * Advance the clock by the sleep time, running the tasks that fall due
+	 * @param millis Time to sleep, in milliseconds
+	 * @throws InterruptedException The thread was interrupted
+	 */
+	@Override
+	public void sleep(long millis) throws InterruptedException {
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+		advance(millis);
+	}
+
+	/**
+	 * Wait on a lock until it is notified or the clock is advanced past the deadline. With auto advance on,
+	 * the clock is advanced at once to the deadline or to the next scheduled task, whichever comes first,
+	 * and the call returns - as a wait woken by a notification would, so the caller checks its condition again.
+	 * @param lock Lock to wait on
+	 * @param millis Longest wait, in milliseconds
+	 * @throws InterruptedException The thread was interrupted
+	 */
+	@Override
+	public void waitOn(Object lock, long millis) throws InterruptedException {
+		if (autoAdvance) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			long wait;
+			synchronized (this) {
+				Task<?> task = tasks.peek();
+				wait = task != null ? Math.min(millis, Math.max(0, task.time - now)) : millis;
+			}
+			advance(wait);
+			return;
+		}
+		Waiter waiter;
+		synchronized (this) {
+			waiter = new Waiter(lock, now + millis);
+			waiters.add(waiter);
+		}
+		try {
+			// Advancing the clock past the deadline notifies the lock, so there is no timeout here
+			lock.wait();
+		} finally {
+			synchronized (this) {
+				waiters.remove(waiter);
+			}
+		}
+	}
+
+	@Override
+	public ScheduledExecutorService newScheduler(String name) {
+		return new Scheduler();
+	}
+
+	/**
+	 * Advance the clock, running the tasks that fall due and waking the threads whose wait is over
+	 * @param millis Time to advance, in milliseconds
+	 */
+	public void advance(long millis) {
+		long target;
+		synchronized (this) {
+			target = now + millis;
+		}
+		while (true) {
+			Task<?> task;
+			synchronized (this) {
+				task = tasks.peek();
+				if (task == null || task.time > target) {
+					break;
+				}
+				tasks.poll();
+				// A task may have advanced the clock itself (by sleeping), so time never goes back
+				now = Math.max(now, task.time);
+			}
+			wakeWaiters();
+			task.run();
+		}
+		synchronized (this) {
+			now = Math.max(now, target);
+		}
+		wakeWaiters();
+	}
+
+	/**
+	 * Turn auto advance on or off. With auto advance on, waits advance the clock instead of blocking, so a
+	 * single thread runs the whole simulation - the code under test and the scheduled tasks that answer it -
+	 * without ever blocking. Only for simulations where scheduled tasks are the only thing a wait is woken by.
+	 * @param autoAdvance true to advance the clock on waits
+	 */
+	public void setAutoAdvance(boolean autoAdvance) {
+		this.autoAdvance = autoAdvance;
+	}
+
+	/**
+	 * Get the number of scheduled tasks, cancelled ones included
+	 * @return Scheduled tasks
+	 */
+	public synchronized int getPendingTasks() {
+		return tasks.size();
+	}
+
+	/**
+	 * Notify the locks of the threads whose wait is over
+	 */
+	private void wakeWaiters() {
+		List<Object> locks = new ArrayList<Object>();
+		synchronized (this) {
+			for (Waiter waiter : waiters) {
+				if (waiter.deadline <= now) {
+					locks.add(waiter.lock);
+				}
+			}
+		}
+		// The clock's own lock is not held here - waiting threads hold their locks while they call the clock
+		for (Object lock : locks) {
+			synchronized (lock) {
+				lock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Add a task to the schedule
+	 * @param task Task
+	 */
+	private synchronized void add(Task<?> task) {
+		task.seq = sequence++;
+		tasks.add(task);
+	}
+
+	/**
+	 * A thread waiting on a lock
+	 */
+	private static class Waiter {
+		/** Lock the thread waits on **/
+		private final Object lock;
+		/** When the wait is over, in milliseconds **/
+		private final long deadline;
+
+		/**
+		 * Constructor
+		 * @param lock Lock the thread waits on
+		 * @param deadline When the wait is over, in milliseconds
+		 */
+		private Waiter(Object lock, long deadline) {
+			this.lock = lock;
+			this.deadline = deadline;
+		}
+	}
+
+	/**
+	 * A scheduled task
+	 * @param <V> Task result type
+	 */
+	private class Task<V> extends FutureTask<V> implements ScheduledFuture<V> {
+		/** Scheduler the task belongs to **/
+		private final Scheduler scheduler;
+		/** Period, in milliseconds - positive for a fixed rate, negative for a fixed delay, 0 to run once **/
+		private final long period;
+		/** Due time, in milliseconds **/
+		private long time;
+		/** Order the task was scheduled in **/
+		private long seq;
+
+		/**
+		 * Constructor
+		 * @param scheduler Scheduler the task belongs to
+		 * @param callable Task
+		 * @param time Due time, in milliseconds
+		 * @param period Period, in milliseconds (see {@link #period})
+		 */
+		private Task(Scheduler scheduler, Callable<V> callable, long time, long period) {
+			super(callable);
+			this.scheduler = scheduler;
+			this.time = time;
+			this.period = period;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(time - currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			if (other instanceof Task) {
+				Task<?> task = (Task<?>)other;
+				return time != task.time ? Long.compare(time, task.time) : Long.compare(seq, task.seq);
+			}
+			return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
+		}
+
+		@Override
+		public void run() {
+			if (scheduler.shutdown) {
+				cancel(false);
+			} else if (period == 0) {
+				super.run();
+			} else if (runAndReset()) {
+				time = period > 0 ? time + period : currentTimeMillis() - period;
+				add(this);
+			}
+		}
+	}
+
+	/**
+	 * Scheduler whose tasks run when the clock is advanced
+	 */
+	private class Scheduler extends AbstractExecutorService implements ScheduledExecutorService {
+		/** The scheduler was shut down - its tasks do not run anymore **/
+		private volatile boolean shutdown = false;
+
+		/**
+		 * Schedule a task
+		 * @param callable Task
+		 * @param delay Delay, in milliseconds
+		 * @param period Period, in milliseconds (see {@link Task#period})
+		 * @return Task
+		 */
+		private <V> Task<V> schedule(Callable<V> callable, long delay, long period) {
+			if (shutdown) {
+				throw new RejectedExecutionException("Scheduler encerrado");
+			}
+			Task<V> task = new Task<V>(this, callable, currentTimeMillis() + Math.max(0, delay), period);
+			add(task);
+			return task;
+		}
+
+		@Override
+		public void execute(Runnable command) {
+			schedule(Executors.callable(command), 0, 0);
+		}
+
+		@Override
+		public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+			return schedule(Executors.callable(command), unit.toMillis(delay), 0);
+		}
+
+		@Override
+		public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+			return schedule(callable, unit.toMillis(delay), 0);
+		}
+
+		@Override
+		public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+			if (period <= 0) {
+				throw new IllegalArgumentException();
+			}
+			return schedule(Executors.callable(command), unit.toMillis(initialDelay), Math.max(1, unit.toMillis(period)));
+		}
+
+		@Override
+		public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+			if (delay <= 0) {
+				throw new IllegalArgumentException();
+			}
+			return schedule(Executors.callable(command), unit.toMillis(initialDelay), -Math.max(1, unit.toMillis(delay)));
+		}
+
+		@Override
+		public void shutdown() {
+			shutdown = true;
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			shutdown = true;
+			List<Runnable> pending = new ArrayList<Runnable>();
+			synchronized (SimulatedClock.this) {
+				for (Iterator<Task<?>> i = tasks.iterator(); i.hasNext();) {
+					Task<?> task = i.next();
+					if (task.scheduler == this) {
+						i.remove();
+						pending.add(task);
+					}
+				}
+			}
+			return pending;
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return shutdown;
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return shutdown;
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) {
+			return shutdown;
+		}
+	}
+}
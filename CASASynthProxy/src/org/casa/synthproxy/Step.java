@@ -0,0 +1,280 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class maps a single CASAActuator step: one IR code being sent or one relay being triggered,
+ * followed by a delay.
+ *
+ * ASCII commands hold lists of steps:
+ * <ul>
+ * <li>IR[PROTOCOL|CODE|BITS|DELAY,PROTOCOL|CODE|BITS|DELAY,...] - Ex.: IR[NEC|0xE17AA05F|32|200]</li>
+ * <li>RL[RELAY|DURATION|DELAY] - Ex.: RL[3|3000|0]</li>
+ * </ul>
+ * Several commands can be put together with "#" as separator.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class Step {
+
+	/** Step type **/
+	public enum Type {
+		/** IR code **/
+		IR,
+		/** Relay **/
+		RELAY
+	}
+
+	/** IR command prefix **/
+	public static final String IR_PREFIX = "IR[";
+	/** Relay command prefix **/
+	public static final String RELAY_PREFIX = "RL[";
+
+	/** Step type **/
+	private final Type type;
+	/** IR protocol, for IR steps **/
+	private final IRProtocol protocol;
+	/** IR code, for IR steps **/
+	private final long code;
+	/** IR code length in bits, for IR steps **/
+	private final int bits;
+	/** Relay number, for relay steps **/
+	private final int relay;
+	/** How long the relay stays on, in milliseconds, for relay steps **/
+	private final int duration;
+	/** Delay after this step, in milliseconds **/
+	private final int delay;
+
+	/**
+	 * Constructor
+	 * @param type Step type
+	 * @param protocol IR protocol, for IR steps
+	 * @param code IR code, for IR steps
+	 * @param bits IR code length in bits, for IR steps
+	 * @param relay Relay number, for relay steps
+	 * @param duration How long the relay stays on, in milliseconds, for relay steps
+	 * @param delay Delay after this step, in milliseconds
+	 */
+	private Step(Type type, IRProtocol protocol, long code, int bits, int relay, int duration, int delay) {
+		this.type = type;
+		this.protocol = protocol;
+		this.code = code;
+		this.bits = bits;
+		this.relay = relay;
+		this.duration = duration;
+		this.delay = delay;
+	}
+
+	/**
+	 * Build an IR step
+	 * @param protocol IR protocol
+	 * @param code IR code
+	 * @param bits IR code length in bits
+	 * @param delay Delay after this step, in milliseconds
+	 * @return IR step
+	 */
+	public static Step ir(IRProtocol protocol, long code, int bits, int delay) {
+		return new Step(Type.IR, protocol, code, bits, 0, 0, delay);
+	}
+
+	/**
+	 * Build a relay step
+	 * @param relay Relay number
+	 * @param duration How long the relay stays on, in milliseconds
+	 * @param delay Delay after this step, in milliseconds
+	 * @return Relay step
+	 */
+	public static Step relay(int relay, int duration, int delay) {
+		return new Step(Type.RELAY, null, 0, 0, relay, duration, delay);
+	}
+
+	/**
+	 * Parse command data, possibly composite ("#" separated), into steps.
+	 * @param data Command data
+	 * @return Steps, or null if any part of the data is not an IR or relay command
+	 */
+	public static List<Step> parseAll(String data) {
+		if (data == null) {
+			return null;
+		}
+		List<Step> steps = new ArrayList<Step>();
+		for (String commandData : data.split("#")) {
+			if (commandData.isEmpty()) {
+				continue;
+			}
+			List<Step> commandSteps = parse(commandData);
+			if (commandSteps == null) {
+				return null;
+			}
+			steps.addAll(commandSteps);
+		}
+		return steps;
+	}
+
+	/**
+	 * Parse a single command (no "#" inside) into steps.
+	 * @param commandData Command data
+	 * @return Steps, or null if this is not an IR or relay command
+	 */
+	public static List<Step> parse(String commandData) {
+		boolean ir = commandData.startsWith(IR_PREFIX);
+		if ((!ir && !commandData.startsWith(RELAY_PREFIX)) || !commandData.endsWith("]")) {
+			return null;
+		}
+		List<Step> steps = new ArrayList<Step>();
+		try {
+			for (String item : commandData.substring(3, commandData.length() - 1).split(",")) {
+				String fields[] = item.split("\\|");
+				if (ir) {
+					IRProtocol protocol = IRProtocol.fromName(fields[0]);
+					if (protocol == null || fields.length != 4) {
+						return null;
+					}
+					String hex = fields[1].startsWith("0x") || fields[1].startsWith("0X") ? fields[1].substring(2) : fields[1];
+					steps.add(ir(protocol, Long.parseLong(hex, 16), Integer.parseInt(fields[2]), Integer.parseInt(fields[3])));
+				} else {
+					if (fields.length != 3) {
+						return null;
+					}
+					steps.add(relay(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), Integer.parseInt(fields[2])));
+				}
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return steps;
+	}
+
+	/**
+	 * Build ASCII command data from steps. Consecutive IR steps are put in the same IR[...] list,
+	 * relay steps get one RL[...] command each.
+	 * @param steps Steps
+	 * @return ASCII command data, "#" separated
+	 */
+	public static String toAscii(List<Step> steps) {
+		StringBuilder sb = new StringBuilder();
+		Type previous = null;
+		for (Step step : steps) {
+			if (step.getType() == Type.IR && previous == Type.IR) {
+				sb.append(',');
+			} else {
+				if (previous != null) {
+					sb.append("]#");
+				}
+				sb.append(step.getType() == Type.IR ? IR_PREFIX : RELAY_PREFIX);
+			}
+			sb.append(step.toString());
+			previous = step.getType();
+		}
+		if (previous != null) {
+			sb.append(']');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Get a copy of this step with another delay
+	 * @param delay New delay, in milliseconds
+	 * @return Step with the new delay
+	 */
+	public Step withDelay(int delay) {
+		return new Step(type, protocol, code, bits, relay, duration, delay);
+	}
+
+	/**
+	 * Check if another step does the same thing (everything but the delay is equal)
+	 * @param other Other step
+	 * @return true if both steps send the same IR code or trigger the same relay for the same duration
+	 */
+	public boolean sameAction(Step other) {
+		return other != null && type == other.type && protocol == other.protocol && code == other.code
+				&& bits == other.bits && relay == other.relay && duration == other.duration;
+	}
+
+	/**
+	 * Get the step type
+	 * @return Step type
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Get the IR protocol, for IR steps
+	 * @return IR protocol
+	 */
+	public IRProtocol getProtocol() {
+		return protocol;
+	}
+
+	/**
+	 * Get the IR code, for IR steps
+	 * @return IR code
+	 */
+	public long getCode() {
+		return code;
+	}
+
+	/**
+	 * Get the IR code length in bits, for IR steps
+	 * @return IR code length in bits
+	 */
+	public int getBits() {
+		return bits;
+	}
+
+	/**
+	 * Get the relay number, for relay steps
+	 * @return Relay number
+	 */
+	public int getRelay() {
+		return relay;
+	}
+
+	/**
+	 * Get how long the relay stays on, in milliseconds, for relay steps
+	 * @return How long the relay stays on
+	 */
+	public int getDuration() {
+		return duration;
+	}
+
+	/**
+	 * Get the delay after this step, in milliseconds
+	 * @return Delay after this step
+	 */
+	public int getDelay() {
+		return delay;
+	}
+
+	/**
+	 * ASCII representation of this step, as a list item (without the IR[ or RL[ prefix)
+	 */
+	@Override
+	public String toString() {
+		if (type == Type.IR) {
+			return protocol.name() + "|0x" + Long.toHexString(code).toUpperCase() + "|" + bits + "|" + delay;
+		}
+		return relay + "|" + duration + "|" + delay;
+	}
+}
@@ -0,0 +1,327 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hierarchical timing wheel. Timers are kept in {@link #LEVELS} wheels of {@link #WHEEL_SIZE} slots:
+ * the first wheel has one slot per tick ({@link #TICK}), each next wheel has one slot per turn of the
+ * previous one. Timers are placed in the finest wheel that reaches their deadline and moved down when
+ * the wheel below gets to them, so scheduling, cancelling and expiring a timer cost the same no matter
+ * how many timers are pending. Deadlines beyond the last wheel wait in an overflow list.
+ *
+ * Deadlines are times of the wheel's {@link Clock}, with a precision of one tick. Expired timers run in the
+ * wheel thread, a scheduler of the clock woken once per tick, so they must be quick - publishing a command,
+ * for instance.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class TimerWheel implements Runnable {
+
+	/** Tick length, in milliseconds **/
+	public static final long TICK = 100;
+	/** Bits of the slot index in each wheel **/
+	private static final int WHEEL_BITS = 6;
+	/** Slots in each wheel **/
+	public static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+	/** Number of wheels - with 100 ms ticks, the last one reaches about 19 days **/
+	public static final int LEVELS = 4;
+	/** Slot index mask **/
+	private static final long MASK = WHEEL_SIZE - 1;
+
+	/**
+	 * A pending timer
+	 */
+	public static class Timeout {
+		/** Wheel the timer belongs to **/
+		private final TimerWheel wheel;
+		/** Task run when the timer expires **/
+		private final Runnable task;
+		/** Deadline, in milliseconds **/
+		private final long deadline;
+		/** Deadline, in ticks **/
+		private final long tick;
+		/** Previous timer in the same slot **/
+		private Timeout prev;
+		/** Next timer in the same slot **/
+		private Timeout next;
+		/** Wheel level the timer is in, -1 if it is not in a slot **/
+		private int level = -1;
+		/** Slot the timer is in **/
+		private int slot;
+		/** Timer is in the overflow list **/
+		private boolean overflow = false;
+
+		/**
+		 * Constructor
+		 * @param wheel Wheel the timer belongs to
+		 * @param task Task run when the timer expires
+		 * @param deadline Deadline, in milliseconds
+		 * @param tick Deadline, in ticks
+		 */
+		private Timeout(TimerWheel wheel, Runnable task, long deadline, long tick) {
+			this.wheel = wheel;
+			this.task = task;
+			this.deadline = deadline;
+			this.tick = tick;
+		}
+
+		/**
+		 * Get the deadline
+		 * @return Deadline, in milliseconds
+		 */
+		public long getDeadline() {
+			return deadline;
+		}
+
+		/**
+		 * Cancel the timer
+		 * @return true if the timer was pending, false if it had already expired or was cancelled
+		 */
+		public boolean cancel() {
+			return wheel.cancel(this);
+		}
+	}
+
+	/** Slot lists, by level and slot **/
+	private final Timeout[][] slots = new Timeout[LEVELS][WHEEL_SIZE];
+	/** Timers beyond the last wheel **/
+	private final List<Timeout> overflow = new ArrayList<Timeout>();
+	/** Time source **/
+	private final Clock clock;
+	/** Time of tick 0, in milliseconds **/
+	private final long origin;
+	/** Last tick processed **/
+	private long currentTick = 0;
+	/** Pending timers **/
+	private int size = 0;
+	/** Wheel thread **/
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * Constructor
+	 */
+	public TimerWheel() {
+		this(Clock.getInstance());
+	}
+
+	/**
+	 * Constructor
+	 * @param clock Time source
+	 */
+	public TimerWheel(Clock clock) {
+		this.clock = clock;
+		this.origin = clock.currentTimeMillis();
+	}
+
+	/**
+	 * Start the wheel thread
+	 */
+	public void start() {
+		scheduler = clock.newScheduler("TimerWheel");
+		scheduler.execute(this);
+	}
+
+	/**
+	 * Stop the wheel thread. Pending timers never expire.
+	 */
+	public void close() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	/**
+	 * Schedule a task
+	 * @param deadline When the task should run, in milliseconds. Deadlines in the past run on the next tick.
+	 * @param task Task
+	 * @return Timer, which can be cancelled
+	 */
+	public Timeout schedule(long deadline, Runnable task) {
+		synchronized (this) {
+			long tick = Math.max(currentTick + 1, (deadline - origin + TICK - 1) / TICK);
+			Timeout timeout = new Timeout(this, task, deadline, tick);
+			insert(timeout);
+			size++;
+			return timeout;
+		}
+	}
+
+	/**
+	 * Get the number of pending timers
+	 * @return Pending timers
+	 */
+	public int size() {
+		synchronized (this) {
+			return size;
+		}
+	}
+
+	/**
+	 * Cancel a timer
+	 * @param timeout Timer
+	 * @return true if the timer was pending
+	 */
+	private boolean cancel(Timeout timeout) {
+		synchronized (this) {
+			if (timeout.overflow) {
+				overflow.remove(timeout);
+				timeout.overflow = false;
+			} else if (timeout.level >= 0) {
+				unlink(timeout);
+			} else {
+				return false;
+			}
+			size--;
+			return true;
+		}
+	}
+
+	/**
+	 * Put a timer in the finest wheel that reaches its deadline
+	 * @param timeout Timer
+	 */
+	private void insert(Timeout timeout) {
+		long delta = timeout.tick - currentTick;
+		for (int level = 0; level < LEVELS; level++) {
+			if (delta < 1L << (WHEEL_BITS * (level + 1))) {
+				int slot = (int)((timeout.tick >> (WHEEL_BITS * level)) & MASK);
+				timeout.level = level;
+				timeout.slot = slot;
+				timeout.prev = null;
+				timeout.next = slots[level][slot];
+				if (timeout.next != null) {
+					timeout.next.prev = timeout;
+				}
+				slots[level][slot] = timeout;
+				return;
+			}
+		}
+		timeout.overflow = true;
+		overflow.add(timeout);
+	}
+
+	/**
+	 * Remove a timer from its slot
+	 * @param timeout Timer
+	 */
+	private void unlink(Timeout timeout) {
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			slots[timeout.level][timeout.slot] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.level = -1;
+	}
+
+	/**
+	 * Take all timers out of a slot
+	 * @param level Wheel level
+	 * @param slot Slot
+	 * @return First timer of the slot list
+	 */
+	private Timeout drain(int level, int slot) {
+		Timeout head = slots[level][slot];
+		slots[level][slot] = null;
+		for (Timeout t = head; t != null; t = t.next) {
+			t.level = -1;
+		}
+		return head;
+	}
+
+	/**
+	 * Process one tick: move the timers of the coarser wheels that reached this tick down, then
+	 * collect the timers that expired
+	 * @param expired List the expired timers are added to
+	 */
+	private void advance(List<Timeout> expired) {
+		currentTick++;
+		// Find the coarsest wheel that turned, then cascade from it down
+		int top = 0;
+		while (top < LEVELS && ((currentTick >> (WHEEL_BITS * top)) & MASK) == 0) {
+			top++;
+		}
+		if (top == LEVELS) {
+			List<Timeout> waiting = new ArrayList<Timeout>(overflow);
+			overflow.clear();
+			for (Timeout t : waiting) {
+				t.overflow = false;
+				insert(t);
+			}
+			top = LEVELS - 1;
+		}
+		for (int level = top; level > 0; level--) {
+			Timeout t = drain(level, (int)((currentTick >> (WHEEL_BITS * level)) & MASK));
+			while (t != null) {
+				Timeout next = t.next;
+				insert(t);
+				t = next;
+			}
+		}
+		Timeout t = drain(0, (int)(currentTick & MASK));
+		while (t != null) {
+			Timeout next = t.next;
+			t.prev = null;
+			t.next = null;
+			if (t.tick <= currentTick) {
+				size--;
+				expired.add(t);
+			} else {
+				insert(t);
+			}
+			t = next;
+		}
+	}
+
+	/**
+	 * Wheel thread: process the ticks up to the current time, run the expired timers and wake up again at the next tick
+	 */
+	@Override
+	public void run() {
+		List<Timeout> expired = new ArrayList<Timeout>();
+		long now = clock.currentTimeMillis();
+		synchronized (this) {
+			long target = (now - origin) / TICK;
+			while (currentTick < target) {
+				advance(expired);
+			}
+		}
+		for (Timeout t : expired) {
+			try {
+				t.task.run();
+			} catch (Exception e) {
+				// A failed task must not stop the wheel
+				e.printStackTrace();
+			}
+		}
+		if (!scheduler.isShutdown()) {
+			scheduler.schedule(this, TICK - (clock.currentTimeMillis() - origin) % TICK, TimeUnit.MILLISECONDS);
+		}
+	}
+}
@@ -22,15 +22,28 @@ package org.casa.synthproxy;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
 
+import org.casa.synthproxy.config.Config;
+import org.casa.synthproxy.ide.GUI;
+
 /**
- * Text synthesizer. This class currently only supports Microsoft Windows.
+ * Text synthesizer.
  * 
- * This helper class will create a VBS script and start it in a separate process that
- * will speak the sentence.
+ * When ttsCommand is set in the configuration, the sentence is given to that command as its last
+ * argument (Ex.: "espeak -v pt-br"). Otherwise, on Microsoft Windows this helper class will create a
+ * VBS script and start it in a separate process that will speak the sentence, and on other systems
+ * (Linux hosts and single board computers, for instance) espeak is used.
  */
 public class VoiceSynth {
+
+	// Speech command used outside Windows when ttsCommand is not set
+	private static final String DEFAULT_COMMAND = "espeak -v pt-br";
+	// A failure was reported already - it is not reported again for every sentence
+	private static volatile boolean failed = false;
 	
 	// Text to be synthesized
 	private String sentence;
@@ -47,9 +60,31 @@ public class VoiceSynth {
 	}
 	
 	/**
-	 * Say it through a VBS script
+	 * Say it, through the configured speech command or the platform's default
 	 */
 	public void sayit() {
+		String command = Config.getGeneralConfigEntry("ttsCommand", "").trim();
+		if (command.isEmpty() && System.getProperty("os.name", "").startsWith("Windows")) {
+			sayitVBS();
+			return;
+		}
+		List<String> args = new ArrayList<String>(Arrays.asList((command.isEmpty() ? DEFAULT_COMMAND : command).split("\\s+")));
+		args.add(this.sentence);
+		try {
+			new ProcessBuilder(args).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.INHERIT).start();
+		} catch (IOException e) {
+			if (!failed) {
+				failed = true;
+				GUI.addMessage("Erro sintetizando texto com \"" + args.get(0) + "\" - configure ttsCommand. " + e.getMessage());
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Say it through a VBS script (Microsoft Windows only)
+	 */
+	private void sayitVBS() {
 		FileWriter fw = null;
 		try {
 			String filename = System.getProperty("java.io.tmpdir") + File.separatorChar + UUID.randomUUID().toString() + ".vbs";
@@ -0,0 +1,499 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.casa.synthproxy.Command;
+import org.casa.synthproxy.FrameEncoder;
+
+/**
+ * Network client for CASASynthProxy. It keeps a single connection open and sends commands through it,
+ * the same way BitVoicer does, so that CASASynthProxy handles all of them in the same connection.
+ *
+ * Commands are written in order by a dedicated thread: {@link #send(Command)} returns at once and the
+ * returned future completes when the command was written to the socket. If the connection is broken,
+ * the client connects again and retries the command before failing the future.
+ *
+ * A client built for protocol v2 (see {@link #CASAClient(String, int, boolean)}) negotiates it on each
+ * connection and may also send requests ({@link #request(Command)}): each one gets a request ID, and its
+ * future completes with the {@link Response} sent by CASASynthProxy once the command was run. Many
+ * requests may be outstanding at the same time - CASASynthProxy runs them in order.
+ *
+ * This class only depends on {@link Command} and {@link FrameEncoder}, which are packaged together
+ * with it by the client-jar Ant target, so that other applications can drive CASASynthProxy too.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class CASAClient implements AutoCloseable {
+
+	/** Connection timeout, in milliseconds **/
+	private static final int CONNECT_TIMEOUT = 3000;
+	/** Attempts to write a command, reconnecting between them **/
+	private static final int MAX_ATTEMPTS = 3;
+	/** Wait between reconnection attempts, in milliseconds **/
+	private static final long RECONNECT_DELAY = 500;
+	/** Longest request ID prefix ("65535:"), in bytes **/
+	private static final int MAX_ID_PREFIX = 6;
+
+	/** CASASynthProxy host **/
+	private final String host;
+	/** CASASynthProxy port **/
+	private final int port;
+	/** Writer thread **/
+	private final ExecutorService writer;
+	/** Connection - only touched by the writer thread **/
+	private Socket socket;
+	/** Connection output stream - only touched by the writer thread **/
+	private OutputStream os;
+	/** Last connection closed by CASASynthProxy - set by the connection's reader thread **/
+	private volatile Socket closedByPeer;
+	/** Negotiate protocol v2 **/
+	private final boolean v2;
+	/** Protocol v2 negotiation of the current connection - completed by the reader thread **/
+	private volatile CompletableFuture<Void> negotiated;
+	/** Requests waiting for their final responses, by request ID **/
+	private final Map<Integer, Pending> pending = new ConcurrentHashMap<Integer, Pending>();
+	/** Next request ID - only touched by the writer thread **/
+	private int nextId = 0;
+	/** Request encoder, leaving room for the request ID in each envelope - only touched by the writer thread **/
+	private final FrameEncoder requestEncoder = new FrameEncoder(Command.CHARSET, FrameEncoder.NETWORK_MAX_PAYLOAD - MAX_ID_PREFIX, true);
+
+	/**
+	 * Request waiting for its final responses - one for each envelope it took
+	 */
+	private static class Pending {
+		/** Completed with the final response **/
+		private final CompletableFuture<Response> future;
+		/** Final responses still to come **/
+		private int remaining;
+		/** Response the future is completed with - the first one that was not "executed", or the last one **/
+		private Response result;
+
+		/**
+		 * Constructor
+		 * @param future Completed with the final response
+		 * @param envelopes Envelopes the request took
+		 */
+		Pending(CompletableFuture<Response> future, int envelopes) {
+			this.future = future;
+			this.remaining = envelopes;
+		}
+	}
+
+	/**
+	 * Constructor. The connection is only opened when the first command is sent.
+	 * @param host CASASynthProxy host
+	 * @param port CASASynthProxy port
+	 */
+	public CASAClient(String host, int port) {
+		this(host, port, false);
+	}
+
+	/**
+	 * Constructor. The connection is only opened when the first command is sent.
+	 * @param host CASASynthProxy host
+	 * @param port CASASynthProxy port
+	 * @param v2 Negotiate protocol v2 on each connection, so that requests can be sent
+	 */
+	public CASAClient(String host, int port, boolean v2) {
+		this.host = host;
+		this.port = port;
+		this.v2 = v2;
+		this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CASAClient " + host + ":" + port);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Send a command. The text to be synthesized, if any, is sent as well.
+	 * @param command Command to be sent
+	 * @return Future completed when the command was written, or completed exceptionally if it could not be written
+	 */
+	public CompletableFuture<Void> send(Command command) {
+		return send(null, command, null);
+	}
+
+	/**
+	 * Send an activation command followed by a command, in a single write. This is what local
+	 * applications do, as CASASynthProxy only runs commands during an activation period.
+	 * @param activationPeriod Activation period, in milliseconds
+	 * @param command Command to be sent
+	 * @return Future completed when both commands were written, or completed exceptionally if they could not be written
+	 */
+	public CompletableFuture<Void> sendActivated(long activationPeriod, Command command) {
+		Command activation = new Command();
+		activation.setCommandTp(Command.TP_ENABLE);
+		activation.setData("E" + activationPeriod);
+		return send(activation, command, null);
+	}
+
+	/**
+	 * Send a request, in protocol v2. The text to be synthesized, if any, is sent as well.
+	 * @param command Command to be sent
+	 * @return Future completed with the final response, or completed exceptionally if the request could
+	 * not be written, the connection was closed before the response came, or protocol v2 is not in use
+	 */
+	public CompletableFuture<Response> request(Command command) {
+		return request(null, command);
+	}
+
+	/**
+	 * Send an activation command followed by a request, in protocol v2. Only the request is answered.
+	 * @param activationPeriod Activation period, in milliseconds
+	 * @param command Command to be sent
+	 * @return Future completed with the final response of the request (see {@link #request(Command)})
+	 */
+	public CompletableFuture<Response> requestActivated(long activationPeriod, Command command) {
+		Command activation = new Command();
+		activation.setCommandTp(Command.TP_ENABLE);
+		activation.setData("E" + activationPeriod);
+		return request(activation, command);
+	}
+
+	/**
+	 * Send a request, in protocol v2
+	 * @param activation Activation command, or null
+	 * @param command Command
+	 * @return Future completed with the final response
+	 */
+	private CompletableFuture<Response> request(Command activation, Command command) {
+		final CompletableFuture<Response> response = new CompletableFuture<Response>();
+		if (!v2) {
+			response.completeExceptionally(new IllegalStateException("Cliente criado sem o protocolo v2"));
+			return response;
+		}
+		send(activation, command, response).whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void result, Throwable e) {
+				if (e != null) {
+					response.completeExceptionally(e);
+				}
+			}
+		});
+		return response;
+	}
+
+	/**
+	 * Queue commands to be written by the writer thread
+	 * @param activation Activation command, or null
+	 * @param command Command
+	 * @param response Future completed with the final response, for requests, or null
+	 * @return Future completed when the commands were written
+	 */
+	private CompletableFuture<Void> send(final Command activation, final Command command, final CompletableFuture<Response> response) {
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		try {
+			writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						write(activation, command, response);
+						future.complete(null);
+					} catch (Exception e) {
+						future.completeExceptionally(e);
+					}
+				}
+			});
+		} catch (Exception e) {
+			// Client already closed
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Write commands to the connection, connecting again if needed. Runs in the writer thread.
+	 * @param activation Activation command, or null
+	 * @param command Command
+	 * @param response Future completed with the final response, for requests, or null
+	 * @throws Exception Commands could not be written after all attempts, or CASASynthProxy does not support protocol v2
+	 */
+	private void write(Command activation, Command command, CompletableFuture<Response> response) throws Exception {
+		for (int attempt = 1; ; attempt++) {
+			int id = -1;
+			try {
+				if (socket != null && socket == closedByPeer) {
+					// CASASynthProxy closed the connection - writing to it would silently lose the command
+					disconnect();
+				}
+				if (socket == null) {
+					connect();
+				}
+				if (activation != null) {
+					write(FrameEncoder.network().encode(activation, false));
+				}
+				if (response == null) {
+					write(FrameEncoder.network().encode(command, true));
+				} else {
+					awaitNegotiation();
+					id = nextId;
+					nextId = (nextId + 1) & Response.MAX_ID;
+					ByteBuffer frames = requestEncoder.encode(command, true);
+					pending.put(id, new Pending(response, countEnvelopes(frames)));
+					write(withRequestId(frames, id));
+				}
+				os.flush();
+				return;
+			} catch (IOException e) {
+				if (id >= 0) {
+					pending.remove(id);
+				}
+				disconnect();
+				if (attempt == MAX_ATTEMPTS) {
+					throw e;
+				}
+				Thread.sleep(RECONNECT_DELAY);
+			}
+		}
+	}
+
+	/**
+	 * Write encoded envelopes to the connection
+	 * @param frames Envelopes
+	 * @throws IOException Error writing to the connection
+	 */
+	private void write(ByteBuffer frames) throws IOException {
+		os.write(frames.array(), frames.arrayOffset() + frames.position(), frames.remaining());
+	}
+
+	/**
+	 * Wait until CASASynthProxy accepted protocol v2 on the current connection
+	 * @throws Exception CASASynthProxy did not accept it in time
+	 */
+	private void awaitNegotiation() throws Exception {
+		try {
+			negotiated.get(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (Exception e) {
+			throw new IllegalStateException("CASASynthProxy no aceitou o protocolo v2", e);
+		}
+	}
+
+	/**
+	 * Count the envelopes in a buffer
+	 * @param frames Envelopes
+	 * @return Number of envelopes
+	 */
+	private static int countEnvelopes(ByteBuffer frames) {
+		int count = 0;
+		for (int position = frames.position(); position < frames.limit(); position += (frames.get(position + 2) & 0xFF) + 4) {
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Put a request ID at the start of each envelope's data
+	 * @param frames Envelopes, leaving room for the request ID
+	 * @param id Request ID
+	 * @return Envelopes with the request ID
+	 */
+	private static ByteBuffer withRequestId(ByteBuffer frames, int id) {
+		byte prefix[] = (id + String.valueOf(Response.ID_SEPARATOR)).getBytes(Command.CHARSET);
+		ByteBuffer out = ByteBuffer.allocate(frames.remaining() + countEnvelopes(frames) * prefix.length);
+		while (frames.hasRemaining()) {
+			int length = frames.get(frames.position() + 2) & 0xFF;
+			out.put(frames.get());
+			out.put(frames.get());
+			frames.get();
+			out.put((byte)(length + prefix.length));
+			out.put(prefix);
+			for (int i = 0; i <= length; i++) {
+				out.put(frames.get());
+			}
+		}
+		out.flip();
+		return out;
+	}
+
+	/**
+	 * Open the connection
+	 * @throws IOException Error connecting
+	 */
+	private void connect() throws IOException {
+		Socket s = new Socket();
+		try {
+			s.setTcpNoDelay(true);
+			s.setKeepAlive(true);
+			s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+			os = s.getOutputStream();
+			socket = s;
+		} catch (IOException e) {
+			s.close();
+			throw e;
+		}
+		if (v2) {
+			negotiated = new CompletableFuture<Void>();
+		}
+		watch(s);
+		if (v2) {
+			write(FrameEncoder.network().encode(new Command().setCommandTp(Command.TP_STRING).setData(Response.VERSION), false));
+			os.flush();
+		}
+	}
+
+	/**
+	 * Start a thread that finds out when CASASynthProxy closes the connection. In protocol v2 it also
+	 * reads the responses; otherwise CASASynthProxy only writes to the connection to answer queries,
+	 * which this client does not send, so a read only returns when the connection is closed.
+	 * @param s Connection
+	 */
+	private void watch(final Socket s) {
+		final CompletableFuture<Void> negotiation = negotiated;
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					InputStream is = s.getInputStream();
+					if (!v2) {
+						while (is.read() >= 0) {
+							// Nothing is expected - keep reading until the connection is closed
+						}
+					} else {
+						for (String data = readEnvelope(is); data != null; data = readEnvelope(is)) {
+							if (Response.VERSION.equals(data)) {
+								negotiation.complete(null);
+							} else {
+								received(Response.parse(data));
+							}
+						}
+					}
+				} catch (IOException e) {
+					// Connection closed or broken
+				}
+				closedByPeer = s;
+				if (v2) {
+					IOException closed = new IOException("Conexo encerrada pelo CASASynthProxy");
+					negotiation.completeExceptionally(closed);
+					for (Integer id : pending.keySet()) {
+						Pending p = pending.remove(id);
+						if (p != null) {
+							p.future.completeExceptionally(closed);
+						}
+					}
+				}
+			}
+		}, "CASAClient reader " + host + ":" + port);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Read an envelope's data. Runs in the reader thread.
+	 * @param is Connection input stream
+	 * @return Envelope data, or null if the connection was closed
+	 * @throws IOException Error reading, or broken envelope
+	 */
+	private static String readEnvelope(InputStream is) throws IOException {
+		int start = is.read();
+		if (start < 0) {
+			return null;
+		}
+		if (start != FrameEncoder.ENVELOPE_START) {
+			throw new IOException("Primeiro byte do envelope invlido");
+		}
+		is.read();
+		int length = is.read();
+		byte data[] = new byte[Math.max(length, 0)];
+		for (int read = 0; read < data.length; ) {
+			int count = is.read(data, read, data.length - read);
+			if (count < 0) {
+				return null;
+			}
+			read += count;
+		}
+		if (is.read() != FrameEncoder.ENVELOPE_END) {
+			throw new IOException("Fim de envelope invlido");
+		}
+		return new String(data, Command.CHARSET);
+	}
+
+	/**
+	 * A response arrived. Runs in the reader thread.
+	 * @param response Response, or null if the envelope was not a response
+	 */
+	private void received(Response response) {
+		if (response == null || !response.isFinal()) {
+			return;
+		}
+		Pending p = pending.get(response.getId());
+		if (p == null) {
+			return;
+		}
+		if (p.result == null || p.result.getStatus() == Response.Status.EXECUTED) {
+			p.result = response;
+		}
+		if (--p.remaining == 0) {
+			pending.remove(response.getId());
+			p.future.complete(p.result);
+		}
+	}
+
+	/**
+	 * Close the connection, ignoring errors
+	 */
+	private void disconnect() {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Nothing left to do
+			}
+		}
+		socket = null;
+		os = null;
+	}
+
+	/**
+	 * Close the client. Commands already queued are still written, then the connection is closed -
+	 * CASASynthProxy sees it as a shutdown of this connection only.
+	 */
+	@Override
+	public void close() {
+		if (writer.isShutdown()) {
+			return;
+		}
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				disconnect();
+			}
+		});
+		writer.shutdown();
+	}
+}
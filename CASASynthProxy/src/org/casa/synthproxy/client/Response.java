@@ -0,0 +1,206 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy.client;
+
+/**
+ * Response frame of protocol v2. CASASynthProxy answers each request that carries a request ID with an
+ * envelope whose data is
+ * <code>R&lt;id&gt;:&lt;status&gt;:&lt;queue time&gt;:&lt;run time&gt;[:&lt;message&gt;]</code>
+ * (Ex.: "R12:X:0:153"). Times are in milliseconds: how long the request waited behind the ones sent
+ * before it, and how long it took to run.
+ *
+ * A request gets an {@link Status#ACCEPTED} response as soon as it is read, then a final one - executed,
+ * ignored or error - once it was run.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class Response {
+
+	/** Sent by the client to negotiate protocol v2, and echoed back by CASASynthProxy when it supports it **/
+	public static final String VERSION = "V2";
+	/** Response envelope data prefix **/
+	public static final String PREFIX = "R";
+	/** Separator between the request ID and the command data, in requests **/
+	public static final char ID_SEPARATOR = ':';
+	/** Biggest request ID - IDs wrap around **/
+	public static final int MAX_ID = 0xFFFF;
+
+	/**
+	 * Request status
+	 */
+	public enum Status {
+		/** Request read and queued **/
+		ACCEPTED('A'),
+		/** Request run, nothing was done (outside the activation period, global switch off, devices already in that state...) **/
+		IGNORED('I'),
+		/** Request run **/
+		EXECUTED('X'),
+		/** Request failed (Ex.: CASAActuator could not be reached) **/
+		ERROR('E');
+
+		/** Status code, in the response frame **/
+		private final char code;
+
+		/**
+		 * Constructor
+		 * @param code Status code, in the response frame
+		 */
+		Status(char code) {
+			this.code = code;
+		}
+
+		/**
+		 * Get the status code
+		 * @return Status code, in the response frame
+		 */
+		public char getCode() {
+			return code;
+		}
+
+		/**
+		 * Find a status by its code
+		 * @param code Status code
+		 * @return Status, or null if the code is not known
+		 */
+		public static Status of(char code) {
+			for (Status status : values()) {
+				if (status.code == code) {
+					return status;
+				}
+			}
+			return null;
+		}
+	}
+
+	/** Request ID **/
+	private final int id;
+	/** Status **/
+	private final Status status;
+	/** Time waiting behind earlier requests, in milliseconds **/
+	private final long queueTime;
+	/** Time running, in milliseconds **/
+	private final long runTime;
+	/** Error message, or null **/
+	private final String message;
+
+	/**
+	 * Constructor
+	 * @param id Request ID
+	 * @param status Status
+	 * @param queueTime Time waiting behind earlier requests, in milliseconds
+	 * @param runTime Time running, in milliseconds
+	 * @param message Error message, or null
+	 */
+	public Response(int id, Status status, long queueTime, long runTime, String message) {
+		this.id = id;
+		this.status = status;
+		this.queueTime = queueTime;
+		this.runTime = runTime;
+		this.message = message;
+	}
+
+	/**
+	 * Get the request ID
+	 * @return Request ID
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Get the status
+	 * @return Status
+	 */
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * Get the time the request waited behind earlier requests
+	 * @return Queue time, in milliseconds
+	 */
+	public long getQueueTime() {
+		return queueTime;
+	}
+
+	/**
+	 * Get the time the request took to run
+	 * @return Run time, in milliseconds
+	 */
+	public long getRunTime() {
+		return runTime;
+	}
+
+	/**
+	 * Get the error message
+	 * @return Error message, or null
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * Check if this is a final response (anything but {@link Status#ACCEPTED})
+	 * @return true if the request was run
+	 */
+	public boolean isFinal() {
+		return status != Status.ACCEPTED;
+	}
+
+	/**
+	 * Build the response envelope data. Characters with a meaning in envelopes (";" and "#") are taken
+	 * out of the message.
+	 * @return Envelope data
+	 */
+	public String toData() {
+		StringBuilder sb = new StringBuilder(PREFIX).append(id).append(':').append(status.getCode())
+				.append(':').append(queueTime).append(':').append(runTime);
+		if (message != null) {
+			sb.append(':').append(message.replace(';', ',').replace('#', ' '));
+		}
+		return sb.length() > 255 ? sb.substring(0, 255) : sb.toString();
+	}
+
+	/**
+	 * Parse response envelope data
+	 * @param data Envelope data
+	 * @return Response, or null if the data is not a response
+	 */
+	public static Response parse(String data) {
+		if (data == null || !data.startsWith(PREFIX)) {
+			return null;
+		}
+		String fields[] = data.substring(PREFIX.length()).split(":", 5);
+		if (fields.length < 4 || fields[1].length() != 1 || Status.of(fields[1].charAt(0)) == null) {
+			return null;
+		}
+		try {
+			return new Response(Integer.parseInt(fields[0]), Status.of(fields[1].charAt(0)),
+					Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields.length > 4 ? fields[4] : null);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return toData();
+	}
+}
@@ -22,6 +22,7 @@ package org.casa.synthproxy.config;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -44,8 +45,14 @@ import org.w3c.dom.NodeList;
  * 	Each macro must have:
  * 	- key: This is the name of the macro that should be used in "macro" attribute in commands.
  * 	- data: This is the data that will be set in the command that uses this macro.
+ * 	Optionally, "params" names the macro parameters (see MacroExpander). Such a macro is used as
+ * 	"key:arguments" (Ex.: "CH:517"), and its data may use "${param}", "@{macro}" and "@{macro*param}".
+ * 	Optionally, "effect" tells what the macro changes in the device state (see DeviceState), so that
+ * 	commands that would not change anything are not sent.
  * 	-->
  * 	<macros>
+ * 		<macro key="ND5" data="IR[NEC|0xE17AA05F|32|200]" />
+ * 		<macro key="CH" params="ch" data="@{ND*ch}#IR[NEC|0xE17AA857|32|0]" effect="net.channel=${ch}" />
  * 		<macro key="TVIOD" data="IR[RC6|0x38|20|50,RC6|0x38|20|50,RC6|0x38|20|250]#IR[RC6|0x59|20|50,RC6|0x59|20|50,RC6|0x59|20|250]#IR[RC6|0x5C|20|50,RC6|0x5C|20|50,RC6|0x5C|20|0]" />
  * 	</macros>
  * 	
@@ -59,26 +66,92 @@ import org.w3c.dom.NodeList;
  * 	-->
  * 	<groups>
  * 		<group name="Canais">
- * 			<command label="Canal Globo" macro="TDC517" tts="Globo" />
+ * 			<command label="Canal Globo" macro="CH:517" tts="Globo" />
  * 		</group>
  * 		<group name="Televiso e NET">
  * 			<command label="Aumentar Volume" macro="TDVU" tts="Aumentando" />
  * 		</group>
  * 	</groups>
  * 
+ * 	<!-- IR map
+ * 	IR codes received by CASAActuator from an ordinary remote control that trigger a macro. Each entry must have:
+ * 	- code: IR code, as reported by CASAActuator in learning mode (protocol|code|bits).
+ * 	- macro: Name of the macro that will be sent when this code is received.
+ * 	-->
+ * 	<irmap>
+ * 		<ir code="NEC|0xE17A48B7|32" macro="TDVU" />
+ * 	</irmap>
+ * 
+ * 	<!-- Schedules
+ * 	Macros sent at a given time, through the same path as network commands. Each schedule must have:
+ * 	- id: Schedule name.
+ * 	- macro: Name of the macro (or command data) that will be sent.
+ * 	And at least one of:
+ * 	- at: Time of the day (HH:mm) the macro is sent, every day.
+ * 	- every: Interval the macro is sent at.
+ * 	- after: Key of the command that makes the macro be sent, after "delay".
+ * 	- delay: Delay before the macro is sent.
+ * 	"tts" is optional. Intervals and delays are in miliseconds, or followed by s, m, h or d (Ex.: "30m").
+ * 	-->
+ * 	<schedules>
+ * 		<schedule id="desligarTV" macro="TDONOFF" after="TDONOFF" delay="2h" tts="Desligando a TV" />
+ * 	</schedules>
+ * 
+ * 	<!-- Devices
+ * 	Independent devices driven by CASAActuator (see Device and SceneCompiler). Steps of different devices
+ * 	are interleaved, so that one device's delays are spent sending steps to the others. Each device must have:
+ * 	- name: Device name.
+ * 	And at least one of:
+ * 	- ir: IR protocol, optionally followed by "|" and the start of the device's codes in hexadecimal (Ex.: "NEC|E17A").
+ * 	- relays: Relay numbers, separated by commas.
+ * 	Optionally:
+ * 	- gap: Shortest time, in miliseconds, between two steps sent to the device. Default value is "0".
+ * 	- repeats: "once" if the device takes the same IR code sent again as one press - repeats are dropped.
+ * 	Steps of devices that are not listed keep their order and delays.
+ * 	-->
+ * 	<devices>
+ * 		<device name="tv" ir="RC6" gap="50" repeats="once" />
+ * 		<device name="net" ir="NEC|E17A" />
+ * 	</devices>
+ * 
  *  <!-- General configuration section. Any entry here will be set as a JVM system property, and
  *   can be retrieved anywhere in the code using System.getProperty("NAME"), where name is the property name.
  *   It is also possible to use the static method from this class "getGeneralConfigEntry(String, String)". This method
  *   will return the default value (second argument) if the configuration is not set for the provided key (first argument). 
  *   Known configurable values:
- *  - sourceTVDelay: Waiting time, in miliseconds, between an Arduino command is received and command cycling starts. Default value is "8000".
- *  - cyclingInterval: Waiting time, in miliseconds, for each command during cycling in command selection screen. Default value is "2500".
+ *  - sourceTVDelay: Longest waiting time, in miliseconds, between an Arduino command is received and command cycling starts. Cycling starts earlier when CASAActuator reports the TV source switch as done. Default value is "8000".
+ *  - sourceTVSettleTime: Waiting time, in miliseconds, between CASAActuator reporting the TV source switch as done and command cycling start. Default value is "1500".
+ *  - cyclingInterval: Waiting time, in miliseconds, for each command during cycling in command selection screen, until the user's reaction time is learned. Default value is "2500".
+ *  - cyclingMinInterval: Shortest waiting time, in miliseconds, for each command once it is learned from the user's reaction time. Default value is "800".
+ *  - cyclingMaxInterval: Longest waiting time, in miliseconds, for each command once it is learned from the user's reaction time. Default value is "6000".
+ *  - usageFile: File where the usage of the commands picked during cycling is kept, to offer the most used ones first. Default value is "usage.properties".
  *  - bindHost: IP address or Host that will be used to bind and wait for command coming from the network. Default value is "localhost".
  *  - bindPort: Port that will be used to bind and wait for command coming from the network. Default value is "11000".
+ *  - transcriptThreshold: Lowest confidence, from 0 to 1, for a free text (transcript) command to be run as the configured command closest to it. Default value is "0.6".
+ *  - udpPort: UDP port that will be used to receive fire-and-forget commands (see DatagramListener), on bindHost. There is no default value, if this is not set, UDP is not used.
  *  - COMPort: CASASynthProxy enabled Arduino COM port. There is no default value, if this is not set, the application will scan all COM ports.
+ *  - linkFailurePolicy: What to do with commands sent while the serial link with CASAActuator is lost - "buffer" (hold them until it is recovered) or "fail". Default value is "buffer".
+ *  - linkBufferTimeout: Longest time, in miliseconds, a command is held while the serial link is lost. Default value is "30000".
+ *  - heartbeatMinInterval: Shortest interval, in miliseconds, between serial link checks - used after a failure. Default value is "2000".
+ *  - heartbeatMaxInterval: Longest interval, in miliseconds, between serial link checks, and between discoveries while the link is lost. Default value is "30000".
+ *  - compactProtocol: "true" to negotiate the compact binary protocol with CASAActuator (falls back to ASCII if it is not supported). Default value is "false".
+ *  - baudRate: Baud rate requested when the compact protocol is negotiated. Default value is "115200".
+ *  - irLearning: "true" to turn IR learning mode on - IR codes received by CASAActuator are added to the IR code library instead of triggering macros. Default value is "false".
+ *  - irLibraryFile: File where the IR codes learned in learning mode are kept. Default value is "irlibrary.txt".
+ *  - delayProfileFile: File where the delays calibrated for each device and IR protocol are kept (see DelayCalibrator). Default value is "delays.properties".
+ *  - stateTTL: How long, in miliseconds, the device state set by a command is trusted - devices can also be driven by their own remote controls. Default value is "1800000".
+ *  - scheduleFile: File where the schedules added through the network and the pending schedule deadlines are kept. Default value is "schedules.properties".
+ *  - actuatorEventOverflow: What to do when events sent by CASAActuator arrive faster than they are handled - "dropOldest" or "dropNewest". Default value is "dropOldest".
+ *  - headless: "true" to run without GUI, as a daemon - the same as the "-headless" argument. Default value is "false".
+ *  - scanPrompts: How scanning is announced in headless mode - "log" (messages only) or "voice" (labels are spoken too). Default value is "log".
+ *  - ttsCommand: Command that speaks texts, given as its last argument (Ex.: "espeak -v pt-br"). There is no default value, if this is not set, Windows' own voice is used on Windows and "espeak -v pt-br" elsewhere.
+ *  - logFile: File messages are appended to, instead of the message area. There is no default value, if this is not set, messages are shown in the GUI (or printed, in headless mode).
  * 	<generalConfig>
  *		<entry name="sourceTVDelay" value="8000" />
+ *		<entry name="sourceTVSettleTime" value="1500" />
  *		<entry name="cyclingInterval" value="2500" />
+ *		<entry name="cyclingMinInterval" value="800" />
+ *		<entry name="cyclingMaxInterval" value="6000" />
  *		<entry name="bindHost" value="localhost" />
  *		<entry name="bindPort" value="11000" />
  *		<entry name="COMPort" value="COM3" />
@@ -94,9 +167,23 @@ public class Config {
 
 	/** Macro list **/
 	private Map<String, Macro> macros;
+
+	/** Expands macro invocations, memoizing them **/
+	private MacroExpander macroExpander = new MacroExpander(new HashMap<String, Macro>());
+	/** Matches free text against command labels, texts to be synthesized and macro keys **/
+	private PhraseMatcher phraseMatcher = new PhraseMatcher(new HashMap<String, String>());
 	
 	/** Command Group list **/
 	private List<CommandGroup> groups;
+
+	/** Macro keys by IR code (Ex.: "NEC|0xE17A48B7|32") **/
+	private Map<String, String> irMap = new LinkedHashMap<String, String>();
+
+	/** Schedules by ID **/
+	private Map<String, Schedule> schedules = new LinkedHashMap<String, Schedule>();
+
+	/** Devices, in configuration order **/
+	private List<Device> devices = new ArrayList<Device>();
 	
 	/**
 	 * Constructor that builds configuration objects from config file
@@ -110,12 +197,18 @@ public class Config {
 
 			// First step is to build the macro list - this list will be used in possible substitutions below.
 			buildMacroList(doc);
+			buildIRMap(doc);
+			buildScheduleList(doc);
+			buildDeviceList(doc);
 			
 			// For each group (up to 4)
 			NodeList groups = doc.getElementsByTagName("group");
 			setGroups(new ArrayList<CommandGroup>());
 			for (int i = 0; i < groups.getLength(); i++) {
 				CommandGroup commandGroup = new CommandGroup();
+				if (groups.item(i).getAttributes().getNamedItem("name") != null) {
+					commandGroup.setName(groups.item(i).getAttributes().getNamedItem("name").getTextContent());
+				}
 				
 				NodeList commands = groups.item(i).getChildNodes();
 				for (int j = 0; j < commands.getLength(); j++) {
@@ -134,9 +227,10 @@ public class Config {
 							macroKey = commandNode.getAttributes().getNamedItem("macro").getTextContent();
 						}
 						if (macroKey != null) {
-							Macro macro = getMacros().get(macroKey);
-							if (macro != null) {
-								command.setData(macro.getData());
+							command.setMacro(macroKey);
+							String data = getMacroExpander().expand(macroKey);
+							if (data != null) {
+								command.setData(data);
 							}
 						}
 						
@@ -148,6 +242,7 @@ public class Config {
 				// Add this command group to configuration.
 				getGroups().add(commandGroup);
 			}
+			setPhraseMatcher(PhraseMatcher.build(this));
 			
 			// Now general configuration
 			NodeList entries = doc.getElementsByTagName("entry");
@@ -196,7 +291,123 @@ public class Config {
 	public void setGroups(List<CommandGroup> groups) {
 		this.groups = groups;
 	}
+
+	/**
+	 * Get the macro expander, that translates macro invocations (Ex.: "CH:517") into command data
+	 * @return Macro expander
+	 */
+	public MacroExpander getMacroExpander() {
+		return macroExpander;
+	}
+
+	/**
+	 * Set the macro expander, that translates macro invocations (Ex.: "CH:517") into command data
+	 * @param macroExpander Macro expander
+	 */
+	public void setMacroExpander(MacroExpander macroExpander) {
+		this.macroExpander = macroExpander;
+	}
+
+	/**
+	 * Get the macros that can be sent as they are, expanded: macros without parameters, and the
+	 * invocations of macros with parameters used by the command groups (Ex.: "CH:517")
+	 * @return Expanded macros by invocation
+	 */
+	public Map<String, Macro> getExpandedMacros() {
+		Map<String, Macro> expanded = new HashMap<String, Macro>();
+		List<String> invocations = new ArrayList<String>();
+		for (Macro macro : getMacros().values()) {
+			if (macro.getParams() == null) {
+				invocations.add(macro.getKey());
+			}
+		}
+		for (CommandGroup group : getGroups()) {
+			for (Command command : group.getCommands()) {
+				if (command.getMacro() != null) {
+					invocations.add(command.getMacro());
+				}
+			}
+		}
+		for (String invocation : invocations) {
+			try {
+				String data = getMacroExpander().expand(invocation);
+				if (data != null) {
+					Macro macro = new Macro();
+					macro.setKey(invocation);
+					macro.setData(data);
+					expanded.put(invocation, macro);
+				}
+			} catch (IllegalArgumentException e) {
+				// Broken macro - it is reported when it is used
+			}
+		}
+		return expanded;
+	}
+
+	/**
+	 * Get the matcher of free text (Ex.: speech transcripts) against the configured phrases
+	 * @return Phrase matcher
+	 */
+	public PhraseMatcher getPhraseMatcher() {
+		return phraseMatcher;
+	}
+
+	/**
+	 * Set the matcher of free text against the configured phrases
+	 * @param phraseMatcher Phrase matcher
+	 */
+	public void setPhraseMatcher(PhraseMatcher phraseMatcher) {
+		this.phraseMatcher = phraseMatcher;
+	}
+
+	/**
+	 * Get the IR map defined in configuration file
+	 * @return Macro keys by IR code (Ex.: "NEC|0xE17A48B7|32")
+	 */
+	public Map<String, String> getIrMap() {
+		return irMap;
+	}
+
+	/**
+	 * Set the IR map defined in configuration file
+	 * @param irMap Macro keys by IR code (Ex.: "NEC|0xE17A48B7|32")
+	 */
+	public void setIrMap(Map<String, String> irMap) {
+		this.irMap = irMap;
+	}
 	
+	/**
+	 * Get the schedules defined in configuration file
+	 * @return Schedules by ID
+	 */
+	public Map<String, Schedule> getSchedules() {
+		return schedules;
+	}
+
+	/**
+	 * Set the schedules defined in configuration file
+	 * @param schedules Schedules by ID
+	 */
+	public void setSchedules(Map<String, Schedule> schedules) {
+		this.schedules = schedules;
+	}
+
+	/**
+	 * Get the devices defined in configuration file
+	 * @return Devices, in configuration order
+	 */
+	public List<Device> getDevices() {
+		return devices;
+	}
+
+	/**
+	 * Set the devices defined in configuration file
+	 * @param devices Devices, in configuration order
+	 */
+	public void setDevices(List<Device> devices) {
+		this.devices = devices;
+	}
+
 	/**
 	 * Retrieve configuration value if set. If it is not set, the default value is returned.
 	 * @param key Configuration key. It is the "key" attribute in configuration file entry node
@@ -208,6 +419,86 @@ public class Config {
 		return configValue == null ? defaultValue : configValue;
 	}
 
+	/**
+	 * Build IR map. This method takes all "ir" nodes from config file, which map IR codes
+	 * received by CASAActuator to macros
+	 * @param doc Config file DOM Document main object
+	 */
+	private void buildIRMap(Document doc) {
+		setIrMap(new LinkedHashMap<String, String>());
+		NodeList irs = doc.getElementsByTagName("ir");
+		for (int j = 0; j < irs.getLength(); j++) {
+			Node ir = irs.item(j);
+			getIrMap().put(ir.getAttributes().getNamedItem("code").getTextContent(),
+					ir.getAttributes().getNamedItem("macro").getTextContent());
+		}
+	}
+
+	/**
+	 * Build schedule list. This method takes all "schedule" nodes from config file
+	 * @param doc Config file DOM Document main object
+	 */
+	private void buildScheduleList(Document doc) {
+		setSchedules(new LinkedHashMap<String, Schedule>());
+		NodeList nodes = doc.getElementsByTagName("schedule");
+		for (int j = 0; j < nodes.getLength(); j++) {
+			Node node = nodes.item(j);
+			Schedule schedule = new Schedule();
+			schedule.setId(node.getAttributes().getNamedItem("id").getTextContent());
+			schedule.setMacro(node.getAttributes().getNamedItem("macro").getTextContent());
+			if (node.getAttributes().getNamedItem("tts") != null) {
+				schedule.setTts(node.getAttributes().getNamedItem("tts").getTextContent());
+			}
+			if (node.getAttributes().getNamedItem("at") != null) {
+				schedule.setAt(node.getAttributes().getNamedItem("at").getTextContent());
+			}
+			if (node.getAttributes().getNamedItem("every") != null) {
+				schedule.setEvery(Schedule.parseDuration(node.getAttributes().getNamedItem("every").getTextContent()));
+			}
+			if (node.getAttributes().getNamedItem("after") != null) {
+				schedule.setAfter(node.getAttributes().getNamedItem("after").getTextContent());
+			}
+			if (node.getAttributes().getNamedItem("delay") != null) {
+				schedule.setDelay(Schedule.parseDuration(node.getAttributes().getNamedItem("delay").getTextContent()));
+			}
+			getSchedules().put(schedule.getId(), schedule);
+		}
+	}
+
+	/**
+	 * Build device list. This method takes all "device" nodes from config file
+	 * @param doc Config file DOM Document main object
+	 */
+	private void buildDeviceList(Document doc) {
+		setDevices(new ArrayList<Device>());
+		NodeList nodes = doc.getElementsByTagName("device");
+		for (int j = 0; j < nodes.getLength(); j++) {
+			Node node = nodes.item(j);
+			Device device = new Device();
+			device.setName(node.getAttributes().getNamedItem("name").getTextContent());
+			if (node.getAttributes().getNamedItem("ir") != null) {
+				String ir[] = node.getAttributes().getNamedItem("ir").getTextContent().split("\\|");
+				device.setProtocol(ir[0]);
+				if (ir.length > 1) {
+					String prefix = ir[1].toUpperCase();
+					device.setCodePrefix(prefix.startsWith("0X") ? prefix.substring(2) : prefix);
+				}
+			}
+			if (node.getAttributes().getNamedItem("relays") != null) {
+				for (String relay : node.getAttributes().getNamedItem("relays").getTextContent().split(",")) {
+					device.getRelays().add(Integer.valueOf(relay.trim()));
+				}
+			}
+			if (node.getAttributes().getNamedItem("gap") != null) {
+				device.setGap(Integer.parseInt(node.getAttributes().getNamedItem("gap").getTextContent()));
+			}
+			if (node.getAttributes().getNamedItem("repeats") != null) {
+				device.setRepeatsOnce("once".equals(node.getAttributes().getNamedItem("repeats").getTextContent()));
+			}
+			getDevices().add(device);
+		}
+	}
+
 	/**
 	 * Build macro list. This method takes all "macro" nodes from config file and stores
 	 * them for further translation of commands
@@ -225,9 +516,16 @@ public class Config {
 			Macro macro = new Macro();
 			macro.setKey(command.getAttributes().getNamedItem("key").getTextContent());
 			macro.setData(command.getAttributes().getNamedItem("data").getTextContent());
+			if (command.getAttributes().getNamedItem("params") != null) {
+				macro.setParams(command.getAttributes().getNamedItem("params").getTextContent());
+			}
+			if (command.getAttributes().getNamedItem("effect") != null) {
+				macro.setEffect(command.getAttributes().getNamedItem("effect").getTextContent());
+			}
 			
 			// Add this macro to macro list
 			getMacros().put(macro.getKey(), macro);
 		}
+		setMacroExpander(new MacroExpander(getMacros()));
 	}
 }
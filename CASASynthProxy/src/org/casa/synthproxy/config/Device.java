@@ -0,0 +1,167 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from 
+ * the network and send them to CASAActuator in Arduino. 
+ * 
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy.config;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * This class maps a device in CASASynthProxy configuration - something driven by CASAActuator through IR
+ * codes or relays, like the TV, the set-top box or the air conditioner. Steps are told apart by device
+ * (see {@link org.casa.synthproxy.SceneCompiler}): an IR step belongs to the device of its protocol and code
+ * prefix, a relay step to the device of its relay.
+ *
+ * Devices must be independent: steps of different devices may be sent in any order.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class Device {
+
+	/** Device name (Ex.: "tv") **/
+	private String name;
+	/** IR protocol name (Ex.: "NEC"), or null if the device has no IR codes **/
+	private String protocol;
+	/** Start of the device's IR codes, in upper case hexadecimal without "0x" (Ex.: "E17A") - empty for any code **/
+	private String codePrefix = "";
+	/** Relay numbers **/
+	private Set<Integer> relays = new HashSet<Integer>();
+	/** Shortest time between two steps sent to the device, in milliseconds **/
+	private int gap;
+	/** The device takes the same IR code sent again as one press **/
+	private boolean repeatsOnce;
+
+	/**
+	 * Get the device name
+	 * @return Device name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Set the device name
+	 * @param name Device name
+	 */
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Get the IR protocol name
+	 * @return IR protocol name, or null if the device has no IR codes
+	 */
+	public String getProtocol() {
+		return protocol;
+	}
+
+	/**
+	 * Set the IR protocol name
+	 * @param protocol IR protocol name, or null if the device has no IR codes
+	 */
+	public void setProtocol(String protocol) {
+		this.protocol = protocol;
+	}
+
+	/**
+	 * Get the start of the device's IR codes
+	 * @return Upper case hexadecimal, without "0x" - empty for any code of the protocol
+	 */
+	public String getCodePrefix() {
+		return codePrefix;
+	}
+
+	/**
+	 * Set the start of the device's IR codes
+	 * @param codePrefix Upper case hexadecimal, without "0x" - empty for any code of the protocol
+	 */
+	public void setCodePrefix(String codePrefix) {
+		this.codePrefix = codePrefix;
+	}
+
+	/**
+	 * Get the relay numbers
+	 * @return Relay numbers
+	 */
+	public Set<Integer> getRelays() {
+		return relays;
+	}
+
+	/**
+	 * Set the relay numbers
+	 * @param relays Relay numbers
+	 */
+	public void setRelays(Set<Integer> relays) {
+		this.relays = relays;
+	}
+
+	/**
+	 * Get the shortest time between two steps sent to the device
+	 * @return Time, in milliseconds
+	 */
+	public int getGap() {
+		return gap;
+	}
+
+	/**
+	 * Set the shortest time between two steps sent to the device
+	 * @param gap Time, in milliseconds
+	 */
+	public void setGap(int gap) {
+		this.gap = gap;
+	}
+
+	/**
+	 * Check if the device takes the same IR code sent again as one press (Ex.: RC5 and RC6 remotes,
+	 * whose toggle bit only changes between presses)
+	 * @return true if repeated codes are redundant
+	 */
+	public boolean isRepeatsOnce() {
+		return repeatsOnce;
+	}
+
+	/**
+	 * Set if the device takes the same IR code sent again as one press
+	 * @param repeatsOnce true if repeated codes are redundant
+	 */
+	public void setRepeatsOnce(boolean repeatsOnce) {
+		this.repeatsOnce = repeatsOnce;
+	}
+
+	/**
+	 * Check if an IR code belongs to this device
+	 * @param protocol IR protocol name
+	 * @param code IR code
+	 * @param bits IR code length in bits
+	 * @return true if the protocol is the device's and the code starts with the device's prefix
+	 */
+	public boolean matchesIR(String protocol, long code, int bits) {
+		if (this.protocol == null || !this.protocol.equals(protocol)) {
+			return false;
+		}
+		if (codePrefix.isEmpty()) {
+			return true;
+		}
+		StringBuilder hex = new StringBuilder(Long.toHexString(code).toUpperCase());
+		while (hex.length() < (bits + 3) / 4) {
+			hex.insert(0, '0');
+		}
+		return hex.toString().startsWith(codePrefix);
+	}
+}
@@ -33,6 +33,12 @@ public class Macro {
 	/** Data that will be sent to Arduino */
 	private String data;
 
+	/** Parameter names, separated by commas (see {@link MacroExpander}) */
+	private String params;
+
+	/** Effect on the device state (see {@link org.casa.synthproxy.DeviceState}) */
+	private String effect;
+
 	/**
 	 * Get the macro key - This will be matched to the command received through the network
 	 * @return Macro key - This will be matched to the command received through the network
@@ -64,5 +70,36 @@ public class Macro {
 	public void setData(String data) {
 		this.data = data;
 	}
-	
+
+	/**
+	 * Get the macro parameter names - "${name}" in the macro data is replaced by the argument of parameter "name"
+	 * @return Parameter names, separated by commas, or null if the macro has no parameters
+	 */
+	public String getParams() {
+		return params;
+	}
+
+	/**
+	 * Set the macro parameter names - "${name}" in the macro data is replaced by the argument of parameter "name"
+	 * @param params Parameter names, separated by commas, or null if the macro has no parameters
+	 */
+	public void setParams(String params) {
+		this.params = params;
+	}
+
+	/**
+	 * Get the macro effect on the device state (Ex.: "tv.power=toggle")
+	 * @return Effects, separated by commas, or null if the macro effect is not known
+	 */
+	public String getEffect() {
+		return effect;
+	}
+
+	/**
+	 * Set the macro effect on the device state (Ex.: "tv.power=toggle")
+	 * @param effect Effects, separated by commas, or null if the macro effect is not known
+	 */
+	public void setEffect(String effect) {
+		this.effect = effect;
+	}
 }
@@ -0,0 +1,247 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy.config;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Expands macros into command data. Besides plain macros, this class handles:
+ * <ul>
+ * <li>Parameters: a macro with params="ch" is invoked as "KEY:517", and "${ch}" in its data is replaced
+ * by "517". Several parameters are separated by commas, both in "params" and in the invocation.</li>
+ * <li>Nested macros: "@{KEY}" or "@{KEY:args}" in the data is replaced by the expansion of that macro.
+ * Its arguments may use the parameters of the enclosing macro (Ex.: "@{CH:${ch}}").</li>
+ * <li>Digit expansion: "@{KEY*ch}" is replaced by the expansion of macro KEY followed by each character of
+ * parameter ch, joined with "#" - with ch = "517", "@{ND*ch}" becomes "@{ND5}#@{ND1}#@{ND7}".</li>
+ * </ul>
+ * Expansions are memoized in a bounded cache keyed by the invocation (macro key and arguments), so
+ * each one is computed only once while it is being used.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class MacroExpander {
+
+	/** Biggest number of memoized expansions **/
+	private static final int MAX_ENTRIES = 256;
+	/** Deepest macro nesting - deeper than that is taken as a macro that references itself **/
+	private static final int MAX_DEPTH = 8;
+
+	/** Macros by key **/
+	private final Map<String, Macro> macros;
+	/** Memoized expansions by invocation, least recently used first **/
+	private final Map<String, String> cache = new LinkedHashMap<String, String>(64, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	/**
+	 * Constructor
+	 * @param macros Macros by key
+	 */
+	public MacroExpander(Map<String, Macro> macros) {
+		this.macros = macros;
+	}
+
+	/**
+	 * Check if an invocation names a macro
+	 * @param invocation Macro key, optionally followed by ":" and its arguments (Ex.: "CH:517")
+	 * @return true if there is a macro with this key
+	 */
+	public boolean isMacro(String invocation) {
+		return invocation != null && macros.containsKey(keyOf(invocation));
+	}
+
+	/**
+	 * Expand a macro invocation
+	 * @param invocation Macro key, optionally followed by ":" and its arguments (Ex.: "CH:517")
+	 * @return Command data, or null if there is no macro with this key
+	 * @throws IllegalArgumentException Wrong number of arguments, unknown nested macro or parameter,
+	 * or a macro that references itself
+	 */
+	public String expand(String invocation) {
+		if (!isMacro(invocation)) {
+			return null;
+		}
+		return expand(invocation, 0);
+	}
+
+	/**
+	 * Get the effect of a macro invocation on the device state, with its parameters replaced
+	 * @param invocation Macro key, optionally followed by ":" and its arguments (Ex.: "CH:517")
+	 * @return Effects (Ex.: "net.channel=517"), or null if there is no such macro or its effect is not known
+	 * @throws IllegalArgumentException Wrong number of arguments or unknown parameter
+	 */
+	public String effectOf(String invocation) {
+		if (!isMacro(invocation)) {
+			return null;
+		}
+		String key = keyOf(invocation);
+		Macro macro = macros.get(key);
+		if (macro.getEffect() == null || macro.getParams() == null) {
+			return macro.getEffect();
+		}
+		String args[] = key.length() == invocation.length() ? new String[0] : invocation.substring(key.length() + 1).split(",", -1);
+		return substitute(macro.getEffect(), macro.getParams().split(","), args, 0);
+	}
+
+	/**
+	 * Expand a macro invocation, using the memoized expansion if there is one
+	 * @param invocation Macro invocation
+	 * @param depth Nesting depth
+	 * @return Command data
+	 */
+	private String expand(String invocation, int depth) {
+		synchronized (cache) {
+			String data = cache.get(invocation);
+			if (data != null) {
+				return data;
+			}
+		}
+		if (depth > MAX_DEPTH) {
+			throw new IllegalArgumentException("Macro referencia a si mesmo: " + invocation);
+		}
+		String key = keyOf(invocation);
+		Macro macro = macros.get(key);
+		if (macro == null) {
+			throw new IllegalArgumentException("Macro desconhecido: " + key);
+		}
+		String params[] = macro.getParams() == null ? new String[0] : macro.getParams().split(",");
+		String args[] = key.length() == invocation.length() ? new String[0] : invocation.substring(key.length() + 1).split(",", -1);
+		if (params.length != args.length) {
+			throw new IllegalArgumentException("Macro " + key + " espera " + params.length + " argumentos: " + invocation);
+		}
+		String data = substitute(macro.getData(), params, args, depth);
+		synchronized (cache) {
+			cache.put(invocation, data);
+		}
+		return data;
+	}
+
+	/**
+	 * Replace parameters and nested macros in macro data
+	 * @param data Macro data
+	 * @param params Parameter names
+	 * @param args Arguments, in parameter order
+	 * @param depth Nesting depth
+	 * @return Expanded data
+	 */
+	private String substitute(String data, String[] params, String[] args, int depth) {
+		if (data.indexOf('{') < 0) {
+			return data;
+		}
+		StringBuilder sb = new StringBuilder(data.length() * 2);
+		int i = 0;
+		while (i < data.length()) {
+			char c = data.charAt(i);
+			if ((c == '$' || c == '@') && i + 1 < data.length() && data.charAt(i + 1) == '{') {
+				int end = closing(data, i + 2);
+				if (end < 0) {
+					throw new IllegalArgumentException("Falta '}' no macro: " + data);
+				}
+				String name = data.substring(i + 2, end);
+				if (c == '$') {
+					sb.append(argument(name, params, args));
+				} else {
+					nested(sb, name, params, args, depth);
+				}
+				i = end + 1;
+			} else {
+				sb.append(c);
+				i++;
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Append the expansion of a nested macro reference
+	 * @param sb Expanded data
+	 * @param reference What is between "@{" and "}"
+	 * @param params Parameter names of the macro being expanded
+	 * @param args Arguments of the macro being expanded
+	 * @param depth Nesting depth of the macro being expanded
+	 */
+	private void nested(StringBuilder sb, String reference, String[] params, String[] args, int depth) {
+		int star = reference.indexOf('*');
+		if (star < 0) {
+			// Arguments of the nested macro may refer to the parameters of this one
+			sb.append(expand(substitute(reference, params, args, depth), depth + 1));
+			return;
+		}
+		String prefix = reference.substring(0, star);
+		String digits = argument(reference.substring(star + 1), params, args);
+		for (int d = 0; d < digits.length(); d++) {
+			if (d > 0) {
+				sb.append('#');
+			}
+			sb.append(expand(prefix + digits.charAt(d), depth + 1));
+		}
+	}
+
+	/**
+	 * Find the brace that closes a reference, skipping the references nested in it (Ex.: "@{CH:${ch}}")
+	 * @param data Macro data
+	 * @param start Index right after the opening brace
+	 * @return Index of the closing brace, or -1 if there is none
+	 */
+	private static int closing(String data, int start) {
+		int open = 1;
+		for (int i = start; i < data.length(); i++) {
+			char c = data.charAt(i);
+			if (c == '{') {
+				open++;
+			} else if (c == '}' && --open == 0) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the argument of a parameter
+	 * @param name Parameter name
+	 * @param params Parameter names
+	 * @param args Arguments, in parameter order
+	 * @return Argument
+	 */
+	private static String argument(String name, String[] params, String[] args) {
+		for (int p = 0; p < params.length; p++) {
+			if (params[p].trim().equals(name)) {
+				return args[p];
+			}
+		}
+		throw new IllegalArgumentException("Parmetro desconhecido: " + name);
+	}
+
+	/**
+	 * Get the macro key of an invocation
+	 * @param invocation Macro key, optionally followed by ":" and its arguments
+	 * @return Macro key
+	 */
+	private static String keyOf(String invocation) {
+		int colon = invocation.indexOf(':');
+		return colon < 0 ? invocation : invocation.substring(0, colon);
+	}
+}
@@ -0,0 +1,355 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy.config;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Matches free text - speech transcripts from any recognizer - against the phrases of the configuration:
+ * command labels, texts to be synthesized and macro keys. Each phrase points to what is run when it is
+ * matched (a macro key or command data).
+ *
+ * Text is folded before anything else: lower case, Portuguese accents taken out ("Televiso" becomes
+ * "televisao") and anything but letters and digits taken as a space. Phrases are indexed by the
+ * character trigrams of their words, each word padded with two spaces before and one after ("cama"
+ * gives "  c", " ca", "cam", "ama", "ma "). A transcript is scored against every phrase sharing a
+ * trigram with it, by the Dice coefficient of their trigram sets - 1 for the same words, less as words
+ * are misrecognized, missing or extra.
+ *
+ * Trigrams are coded as numbers, so the index is an array of phrase lists - matching only walks the
+ * lists of the transcript's trigrams. Instances are immutable and can be shared by all threads.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class PhraseMatcher {
+
+	/** Letters and digits kept by folding, plus the space **/
+	private static final int ALPHABET = 37;
+	/** Number of trigram codes **/
+	private static final int TRIGRAMS = ALPHABET * ALPHABET * ALPHABET;
+	/** Longest transcript that is scored, in characters - the rest is left out **/
+	private static final int MAX_TEXT = 256;
+
+	/**
+	 * Best phrase for a text
+	 */
+	public static class Match {
+		/** Phrase matched, as configured **/
+		private final String phrase;
+		/** What the phrase runs (macro key or command data) **/
+		private final String target;
+		/** Dice coefficient, from 0 to 1 **/
+		private final double score;
+
+		/**
+		 * Constructor
+		 * @param phrase Phrase matched, as configured
+		 * @param target What the phrase runs
+		 * @param score Dice coefficient, from 0 to 1
+		 */
+		Match(String phrase, String target, double score) {
+			this.phrase = phrase;
+			this.target = target;
+			this.score = score;
+		}
+
+		/**
+		 * Get the phrase matched
+		 * @return Phrase, as configured
+		 */
+		public String getPhrase() {
+			return phrase;
+		}
+
+		/**
+		 * Get what the phrase runs
+		 * @return Macro key or command data
+		 */
+		public String getTarget() {
+			return target;
+		}
+
+		/**
+		 * Get the confidence of the match
+		 * @return Dice coefficient of the trigram sets, from 0 (nothing in common) to 1 (same words)
+		 */
+		public double getScore() {
+			return score;
+		}
+
+		@Override
+		public String toString() {
+			return phrase + " -> " + target + " (" + String.format("%.2f", score) + ")";
+		}
+	}
+
+	/**
+	 * Scratch arrays of a matching thread
+	 */
+	private static class Scratch {
+		/** Shared trigrams, by phrase **/
+		private final int[] common;
+		/** Phrases with shared trigrams, to be cleared afterwards **/
+		private final int[] touched;
+		/** Trigram codes of the text **/
+		private final int[] trigrams = new int[MAX_TEXT * 2];
+
+		/**
+		 * Constructor
+		 * @param phrases Number of phrases
+		 */
+		Scratch(int phrases) {
+			common = new int[phrases];
+			touched = new int[phrases];
+		}
+	}
+
+	/** Phrases, as configured **/
+	private final String[] phrases;
+	/** Target of each phrase **/
+	private final String[] targets;
+	/** Number of distinct trigrams of each phrase **/
+	private final int[] sizes;
+	/** Phrases having each trigram, by trigram code **/
+	private final int[][] postings = new int[TRIGRAMS][];
+	/** Scratch arrays, one set per thread **/
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch(phrases.length);
+		}
+	};
+
+	/**
+	 * Constructor - builds the trigram index
+	 * @param phraseTargets Target of each phrase, by phrase. When two phrases fold into the same text, the first one is kept.
+	 */
+	public PhraseMatcher(Map<String, String> phraseTargets) {
+		Map<String, Integer> folded = new LinkedHashMap<String, Integer>();
+		List<String> phraseList = new ArrayList<String>();
+		List<String> targetList = new ArrayList<String>();
+		for (Map.Entry<String, String> entry : phraseTargets.entrySet()) {
+			String text = fold(entry.getKey());
+			if (!text.isEmpty() && !folded.containsKey(text)) {
+				folded.put(text, phraseList.size());
+				phraseList.add(entry.getKey());
+				targetList.add(entry.getValue());
+			}
+		}
+		phrases = phraseList.toArray(new String[phraseList.size()]);
+		targets = targetList.toArray(new String[targetList.size()]);
+		sizes = new int[phrases.length];
+
+		// Count the phrases of each trigram first, so that each posting list is allocated once
+		int counts[] = new int[TRIGRAMS];
+		int codes[][] = new int[phrases.length][];
+		for (Map.Entry<String, Integer> entry : folded.entrySet()) {
+			int id = entry.getValue();
+			int buffer[] = new int[entry.getKey().length() + 1];
+			int size = trigrams(entry.getKey(), buffer);
+			codes[id] = Arrays.copyOf(buffer, size);
+			sizes[id] = size;
+			for (int code : codes[id]) {
+				counts[code]++;
+			}
+		}
+		for (int code = 0; code < TRIGRAMS; code++) {
+			if (counts[code] > 0) {
+				postings[code] = new int[counts[code]];
+				counts[code] = 0;
+			}
+		}
+		for (int id = 0; id < phrases.length; id++) {
+			for (int code : codes[id]) {
+				postings[code][counts[code]++] = id;
+			}
+		}
+	}
+
+	/**
+	 * Build the matcher for a configuration: labels and texts to be synthesized of the commands in the
+	 * groups point to the command's macro (or data), and macro keys point to themselves. Macros with
+	 * parameters are left out, as they cannot run without arguments.
+	 * @param config Configuration
+	 * @return Phrase matcher
+	 */
+	public static PhraseMatcher build(Config config) {
+		Map<String, String> phraseTargets = new LinkedHashMap<String, String>();
+		for (CommandGroup group : config.getGroups()) {
+			for (Command command : group.getCommands()) {
+				String target = command.getMacro() != null ? command.getMacro() : command.getData();
+				if (target == null) {
+					continue;
+				}
+				add(phraseTargets, command.getLabel(), target);
+				if (command.getTts() != null) {
+					// Several texts may be configured, one of them picked at random
+					for (String tts : command.getTts().split("\\|")) {
+						add(phraseTargets, tts, target);
+					}
+				}
+			}
+		}
+		for (Macro macro : config.getMacros().values()) {
+			if (macro.getParams() == null) {
+				add(phraseTargets, macro.getKey(), macro.getKey());
+			}
+		}
+		return new PhraseMatcher(phraseTargets);
+	}
+
+	/**
+	 * Add a phrase, unless it is already there
+	 * @param phraseTargets Target of each phrase, by phrase
+	 * @param phrase Phrase
+	 * @param target Target
+	 */
+	private static void add(Map<String, String> phraseTargets, String phrase, String target) {
+		if (phrase != null && !phraseTargets.containsKey(phrase)) {
+			phraseTargets.put(phrase, target);
+		}
+	}
+
+	/**
+	 * Get the number of phrases indexed
+	 * @return Number of phrases
+	 */
+	public int size() {
+		return phrases.length;
+	}
+
+	/**
+	 * Find the phrase closest to a text
+	 * @param text Text (Ex.: a speech transcript)
+	 * @return Best match, or null if no phrase shares anything with the text
+	 */
+	public Match match(String text) {
+		if (text == null || phrases.length == 0) {
+			return null;
+		}
+		Scratch s = scratch.get();
+		String folded = fold(text.length() > MAX_TEXT ? text.substring(0, MAX_TEXT) : text);
+		int size = trigrams(folded, s.trigrams);
+		int touched = 0;
+		for (int i = 0; i < size; i++) {
+			int posting[] = postings[s.trigrams[i]];
+			if (posting == null) {
+				continue;
+			}
+			for (int id : posting) {
+				if (s.common[id]++ == 0) {
+					s.touched[touched++] = id;
+				}
+			}
+		}
+
+		int best = -1;
+		double bestScore = 0;
+		for (int i = 0; i < touched; i++) {
+			int id = s.touched[i];
+			double score = 2.0 * s.common[id] / (size + sizes[id]);
+			// Ties go to the phrase configured first
+			if (score > bestScore || (score == bestScore && id < best)) {
+				best = id;
+				bestScore = score;
+			}
+			s.common[id] = 0;
+		}
+		return best < 0 ? null : new Match(phrases[best], targets[best], bestScore);
+	}
+
+	/**
+	 * Fold a text: lower case, no accents, and a single space between words
+	 * @param text Text
+	 * @return Folded text
+	 */
+	static String fold(String text) {
+		String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+		StringBuilder sb = new StringBuilder(decomposed.length());
+		boolean space = true;
+		for (int i = 0; i < decomposed.length(); i++) {
+			char c = Character.toLowerCase(decomposed.charAt(i));
+			if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+				sb.append(c);
+				space = false;
+			} else if (Character.getType(c) == Character.NON_SPACING_MARK) {
+				// Accent of the previous letter
+				continue;
+			} else if (!space) {
+				sb.append(' ');
+				space = true;
+			}
+		}
+		if (sb.length() > 0 && space) {
+			sb.setLength(sb.length() - 1);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Get the distinct trigram codes of a folded text
+	 * @param folded Folded text
+	 * @param out Array the codes are written to - at least one longer than the text
+	 * @return Number of distinct trigrams
+	 */
+	private static int trigrams(String folded, int[] out) {
+		int size = 0;
+		int start = 0;
+		while (start < folded.length()) {
+			int end = folded.indexOf(' ', start);
+			if (end < 0) {
+				end = folded.length();
+			}
+			// Padded word: two spaces, the word, one space
+			int c1 = 0;
+			int c2 = 0;
+			for (int i = start; i <= end; i++) {
+				int c3 = i < end ? code(folded.charAt(i)) : 0;
+				out[size++] = (c1 * ALPHABET + c2) * ALPHABET + c3;
+				c1 = c2;
+				c2 = c3;
+			}
+			start = end + 1;
+		}
+		// Keep each trigram once
+		Arrays.sort(out, 0, size);
+		int distinct = 0;
+		for (int i = 0; i < size; i++) {
+			if (distinct == 0 || out[i] != out[distinct - 1]) {
+				out[distinct++] = out[i];
+			}
+		}
+		return distinct;
+	}
+
+	/**
+	 * Get the code of a folded character
+	 * @param c Character - a letter, a digit or a space
+	 * @return Code, from 0 (space) to 36
+	 */
+	private static int code(char c) {
+		return c >= 'a' ? c - 'a' + 1 : c >= '0' && c <= '9' ? c - '0' + 27 : 0;
+	}
+}
@@ -0,0 +1,190 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from 
+ * the network and send them to CASAActuator in Arduino. 
+ * 
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy.config;
+
+/**
+ * This class maps a schedule - a macro that is sent at a given time instead of being requested.
+ * A schedule runs in one of these ways:
+ * <ul>
+ * <li>at: every day at a time of the day (Ex.: "02:00")</li>
+ * <li>every: repeatedly, at a fixed interval</li>
+ * <li>after: once, a delay after a command with a given key was sent (Ex.: 30 minutes after "TDONOFF")</li>
+ * <li>delay only: once, a delay after the schedule was created</li>
+ * </ul>
+ * Intervals and delays are durations: a number of milliseconds, or a number followed by
+ * s (seconds), m (minutes), h (hours) or d (days) - Ex.: "30m".
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class Schedule {
+
+	/** Schedule ID **/
+	private String id;
+	/** Key of the macro (or command data) that will be sent **/
+	private String macro;
+	/** Text to be synthesized when the schedule runs **/
+	private String tts;
+	/** Time of the day, "HH:mm" **/
+	private String at;
+	/** Interval, in milliseconds **/
+	private long every;
+	/** Key of the command that starts the delay **/
+	private String after;
+	/** Delay, in milliseconds **/
+	private long delay;
+
+	/**
+	 * Parse a duration
+	 * @param duration Duration - a number of milliseconds, or a number followed by s, m, h or d
+	 * @return Duration, in milliseconds
+	 */
+	public static long parseDuration(String duration) {
+		char unit = duration.charAt(duration.length() - 1);
+		if (Character.isDigit(unit)) {
+			return Long.parseLong(duration);
+		}
+		long value = Long.parseLong(duration.substring(0, duration.length() - 1));
+		switch (unit) {
+			case 's': return value * 1000;
+			case 'm': return value * 60 * 1000;
+			case 'h': return value * 60 * 60 * 1000;
+			case 'd': return value * 24 * 60 * 60 * 1000;
+			default: throw new IllegalArgumentException("Unidade de tempo invlida: " + duration);
+		}
+	}
+
+	/**
+	 * Get the schedule ID
+	 * @return Schedule ID
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Set the schedule ID
+	 * @param id Schedule ID
+	 */
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	/**
+	 * Get the key of the macro (or command data) that will be sent
+	 * @return Macro key
+	 */
+	public String getMacro() {
+		return macro;
+	}
+
+	/**
+	 * Set the key of the macro (or command data) that will be sent
+	 * @param macro Macro key
+	 */
+	public void setMacro(String macro) {
+		this.macro = macro;
+	}
+
+	/**
+	 * Get the text to be synthesized when the schedule runs
+	 * @return Text to be synthesized, or null
+	 */
+	public String getTts() {
+		return tts;
+	}
+
+	/**
+	 * Set the text to be synthesized when the schedule runs
+	 * @param tts Text to be synthesized, or null
+	 */
+	public void setTts(String tts) {
+		this.tts = tts;
+	}
+
+	/**
+	 * Get the time of the day the schedule runs
+	 * @return Time of the day ("HH:mm"), or null
+	 */
+	public String getAt() {
+		return at;
+	}
+
+	/**
+	 * Set the time of the day the schedule runs
+	 * @param at Time of the day ("HH:mm"), or null
+	 */
+	public void setAt(String at) {
+		this.at = at;
+	}
+
+	/**
+	 * Get the interval the schedule runs at
+	 * @return Interval, in milliseconds, or 0
+	 */
+	public long getEvery() {
+		return every;
+	}
+
+	/**
+	 * Set the interval the schedule runs at
+	 * @param every Interval, in milliseconds, or 0
+	 */
+	public void setEvery(long every) {
+		this.every = every;
+	}
+
+	/**
+	 * Get the key of the command that starts the delay
+	 * @return Command key, or null
+	 */
+	public String getAfter() {
+		return after;
+	}
+
+	/**
+	 * Set the key of the command that starts the delay
+	 * @param after Command key, or null
+	 */
+	public void setAfter(String after) {
+		this.after = after;
+	}
+
+	/**
+	 * Get the delay
+	 * @return Delay, in milliseconds
+	 */
+	public long getDelay() {
+		return delay;
+	}
+
+	/**
+	 * Set the delay
+	 * @param delay Delay, in milliseconds
+	 */
+	public void setDelay(long delay) {
+		this.delay = delay;
+	}
+
+	@Override
+	public String toString() {
+		return "[id : " + id + "],[macro : " + macro + "],[at : " + at + "],[every : " + every
+				+ "],[after : " + after + "],[delay : " + delay + "],[tts : " + tts + "]";
+	}
+}
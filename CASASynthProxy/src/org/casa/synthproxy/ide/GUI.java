@@ -19,144 +19,241 @@
  */
 package org.casa.synthproxy.ide;
 
-import java.awt.BorderLayout;
-import java.awt.Dimension;
-import java.awt.Font;
-import java.awt.GridLayout;
-import java.awt.Toolkit;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
-import javax.swing.BorderFactory;
-import javax.swing.JFrame;
-import javax.swing.JPanel;
-import javax.swing.JScrollBar;
-import javax.swing.JScrollPane;
-import javax.swing.JSplitPane;
-import javax.swing.JTextArea;
-import javax.swing.ScrollPaneConstants;
+import javax.swing.SwingUtilities;
 
 import org.casa.synthproxy.config.Command;
 import org.casa.synthproxy.config.CommandGroup;
 import org.casa.synthproxy.config.Config;
 
 /**
- * This is the class that models the application's GUI.
+ * This is the class that models the application's GUI. The window itself is built by {@link MainWindow}.
+ * 
+ * Commands are shown in pages, so that catalogs of any size fit the screen: each page has up to
+ * {@link #PAGE_GROUPS} command groups, and each group up to {@link #GROUP_COMMANDS} commands - bigger
+ * groups are split. When there is more than one page, pages are the first scanning level.
+ * 
+ * In headless mode ({@link #initHeadless(Config)}) no window is created and Swing is never loaded: the
+ * scanning tree is built without components and scanning is announced by a {@link PromptScanView}.
+ * Messages go to the log file set by {@link #initLog(File)}, or to the standard output.
  * 
  * @author Daniel Parra Tucunduva
  */
 public class GUI {
 	
 	/** Date format mask **/
-	private static SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yyyy HH:mm:ss.SSS");
-	/** LOG/Message textarea **/
-	private static JTextArea textArea;
-	/** Scrollpane in which the textarea will be inserted **/
-	private static JScrollPane sp;
-	/** Main windows frame **/
-	private static JFrame frame;
-	
-	/** Upper left pannel - this is the first command group and will host commands **/
-	private static JPanel leftUpperPanel = new JPanel();
-	/** Lower left pannel - this is the second command group and will host commands **/
-	private static JPanel leftLowerPanel = new JPanel();
-	/** Upper right pannel - this is the third command group and will host commands **/
-	private static JPanel rightUpperPanel = new JPanel();
-	/** Lower right pannel - this is the forth command group and will host commands **/
-	private static JPanel rightLowerPanel = new JPanel();
-	/** Array that hosts all panels **/
-	private static JPanel panelList[] = {leftUpperPanel, rightUpperPanel, leftLowerPanel, rightLowerPanel};
+	private static final String DATE_FORMAT = "dd/MM/yyyy HH:mm:ss.SSS";
+	/** Date format - message area and standard output messages **/
+	private static final SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+	/** Log file, or null to log to the message area or standard output **/
+	private static volatile LogSink logSink;
+	/** Main window, or null if the GUI was not started **/
+	private static MainWindow window;
+	/** Rows of the command grid in each panel **/
+	static final int GRID_ROWS = 4;
+	/** Columns of the command grid in each panel **/
+	static final int GRID_COLUMNS = 4;
+	/** Command groups on each page **/
+	static final int PAGE_GROUPS = 4;
+	/** Commands of a group on a page - bigger groups go on to the next group slots **/
+	static final int GROUP_COMMANDS = GRID_ROWS * GRID_COLUMNS;
+	/** Groups with more commands than this are scanned row by row, then command by command **/
+	private static final int ROW_SCANNING_THRESHOLD = 8;
 
 	/**
 	 * Init GUI.
 	 * @param config Previously loaded configuration
 	 */
 	public static void initGUI(Config config) {
-		// Default decoration
-		JFrame.setDefaultLookAndFeelDecorated(true);
-		
-		// Window creation
-		frame = new JFrame("CASA Synthetizer Proxy");
-		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-
-		// Up to 4 command groups - that would be 4 different panes
-		JSplitPane leftVSplitPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT, leftUpperPanel, leftLowerPanel);
-		leftVSplitPane.setResizeWeight(.5d);
-		leftVSplitPane.setEnabled( false );
-		JSplitPane rightVSplitPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT, rightUpperPanel, rightLowerPanel);
-		rightVSplitPane.setResizeWeight(.5d);
-		rightVSplitPane.setEnabled( false );
-		JSplitPane hSplitPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, leftVSplitPane, rightVSplitPane);
-		hSplitPane.setResizeWeight(.5d);
-		hSplitPane.setEnabled( false );
-		frame.getContentPane().add(hSplitPane);
-		
-		// LOG and user messages area
-		textArea = new JTextArea();
-		sp = new JScrollPane(textArea); 
-		sp.setPreferredSize(new Dimension((int)Toolkit.getDefaultToolkit().getScreenSize().getWidth()
-				,100));
-		sp.setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS);
-		frame.getContentPane().add(sp, BorderLayout.SOUTH,-1);
-		
-		// Create visual entities from configuration
-		handleConfig(config);
- 
-		// Show the window
-		frame.setLocation(40, 40);
-		frame.setSize((int)Toolkit.getDefaultToolkit().getScreenSize().getWidth()-80, 
-				(int)Toolkit.getDefaultToolkit().getScreenSize().getHeight()-80);
-		frame.setVisible(true);
+		window = new MainWindow(buildPages(config));
+		ScanEngine.getInstance().setView(new SwingScanView(window));
+	}
+
+	/**
+	 * Init headless mode: no window is created. All command groups are scanned, and each highlighted
+	 * item is announced in the log - and spoken too, if scanPrompts is "voice".
+	 * @param config Previously loaded configuration
+	 */
+	public static void initHeadless(Config config) {
+		buildPages(config);
+		ScanEngine.getInstance().setView(new PromptScanView("voice".equals(Config.getGeneralConfigEntry("scanPrompts", "log"))));
+	}
+
+	/**
+	 * Send messages to a log file instead of the message area. Messages are written by a separate thread,
+	 * so that callers never wait for the disk.
+	 * @param file Log file - messages are appended to it
+	 * @throws IOException The log file could not be opened
+	 */
+	public static void initLog(File file) throws IOException {
+		logSink = new LogSink(file);
 	}
 
 	/**
 	 * Add a message to the log/message area.
 	 * This method takes this message and prefix it with a formatted timestamp.
+	 * It may be called from any thread: the message area is updated on the event dispatch thread.
 	 * @param message Message to be added.
 	 */
 	public static void addMessage(String message) {
-		textArea.append("[" + sdf.format(new Date()) + "] " + message + "\n");
-		
-		JScrollBar sb = sp.getVerticalScrollBar();
-		sb.setValue( sb.getMaximum() );
+		LogSink sink = logSink;
+		if (sink != null) {
+			sink.add(message);
+			return;
+		}
+		// GUI not started (headless mode, benchmarks and tools), just print the message
+		if (window == null) {
+			System.out.println("[" + sdf.format(new Date()) + "] " + message);
+			return;
+		}
+		final MainWindow target = window;
+		final String line = "[" + sdf.format(new Date()) + "] " + message;
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				target.append(line);
+			}
+		});
 	}
 	
 	/**
-	 * Handle configuration. This method will take the configuration and create all visual entities.
-	 * @param config Configuration that was previously loaded by CASASynthProxy
+	 * Build the scanning tree and split it in pages. Groups with more than {@link #GROUP_COMMANDS} commands
+	 * are split in numbered parts, and every {@link #PAGE_GROUPS} groups (or parts) make a page. Only
+	 * scanning nodes are created here - buttons are created by the window for the page on screen.
+	 * @param config Previously loaded configuration
+	 * @return Group nodes of each page
 	 */
-	private static void handleConfig(Config config) {
-		try {
-			// For each group (up to 4)
-			for (int i = 0; i < 4 && i < config.getGroups().size(); i++) {
-				CommandGroup commandGroup = config.getGroups().get(i);
-				CycleThread ct = CycleThread.getInstance();
-				
-				JPanel outer = new JPanel();
-				outer.setBorder(BorderFactory.createTitledBorder(commandGroup.getName()));
-				JPanel inner = new JPanel();
-				outer.add(inner);
-				inner.setLayout(new GridLayout(4,4));
-				panelList[i].add(outer);
-				
-				ct.addRootComponent(inner);
-
-				for (int j = 0; j < commandGroup.getCommands().size(); j++) {
-					Command command = commandGroup.getCommands().get(j);
-					
-					MyGUIButton jCommand = new MyGUIButton(command.getLabel(), command.getData(),
-							command.getTts());
-					Font font = new Font("Arial",Font.PLAIN,(int)Toolkit.getDefaultToolkit().getScreenSize().getWidth()/55);
-					jCommand.setPreferredSize(new Dimension(JFrame.getFrames()[0].getFontMetrics(font).stringWidth(jCommand.getText()) + 50,70));
-					jCommand.setFont(font);
-					jCommand.addActionListener(new GUICommandHandler(jCommand));
-					inner.add(jCommand);
-					ct.addSecondLevelComponent(inner, jCommand);
+	static List<List<ScanNode>> buildPages(Config config) {
+		List<ScanNode> groupNodes = new ArrayList<ScanNode>();
+		for (CommandGroup commandGroup : config.getGroups()) {
+			List<Command> commands = commandGroup.getCommands();
+			int parts = Math.max(1, (commands.size() + GROUP_COMMANDS - 1) / GROUP_COMMANDS);
+			for (int part = 0; part < parts; part++) {
+				ScanNode groupNode = new ScanNode(parts == 1 ? commandGroup.getName()
+						: commandGroup.getName() + " (" + (part + 1) + "/" + parts + ")");
+				List<ScanNode> leaves = new ArrayList<ScanNode>();
+				for (Command command : commands.subList(part * GROUP_COMMANDS,
+						Math.min(commands.size(), (part + 1) * GROUP_COMMANDS))) {
+					leaves.add(new ScanNode(command));
+				}
+				addScanNodes(groupNode, leaves);
+				groupNodes.add(groupNode);
+			}
+		}
+
+		ScanNode root = ScanEngine.getInstance().getRoot();
+		List<List<ScanNode>> pages = new ArrayList<List<ScanNode>>();
+		for (int start = 0; start < groupNodes.size(); start += PAGE_GROUPS) {
+			List<ScanNode> page = new ArrayList<ScanNode>(groupNodes.subList(start, Math.min(groupNodes.size(), start + PAGE_GROUPS)));
+			// A single page is not a scanning level of its own
+			ScanNode pageNode = groupNodes.size() <= PAGE_GROUPS ? root
+					: root.addChild(new ScanNode("Pgina " + (pages.size() + 1)));
+			for (ScanNode groupNode : page) {
+				pageNode.addChild(groupNode).setPage(pages.size());
+			}
+			if (pageNode != root) {
+				pageNode.setPage(pages.size());
+			}
+			pages.add(page);
+		}
+		return pages;
+	}
+
+	/**
+	 * Add a group's commands to the scanning tree. Big groups get an extra level with the grid rows,
+	 * so that the user does not have to wait for every command of the group.
+	 * @param groupNode Group scanning node
+	 * @param leaves Group commands, in grid order
+	 */
+	static void addScanNodes(ScanNode groupNode, List<ScanNode> leaves) {
+		if (leaves.size() <= ROW_SCANNING_THRESHOLD) {
+			for (ScanNode leaf : leaves) {
+				groupNode.addChild(leaf);
+			}
+			return;
+		}
+		// GridLayout fills the grid row by row, with as many columns as needed for its rows.
+		// Rows have no components of their own - they are painted through their buttons
+		int columns = (leaves.size() + GRID_ROWS - 1) / GRID_ROWS;
+		for (int start = 0; start < leaves.size(); start += columns) {
+			List<ScanNode> row = leaves.subList(start, Math.min(leaves.size(), start + columns));
+			ScanNode rowNode = groupNode.addChild(new ScanNode("Linha " + (start / columns + 1)));
+			for (ScanNode leaf : row) {
+				rowNode.addChild(leaf);
+			}
+		}
+	}
+
+	/**
+	 * Log file writer. Messages are queued with their time and written by a daemon thread; when the
+	 * queue is full, messages are dropped and the loss is written once the queue drains.
+	 */
+	private static class LogSink implements Runnable {
+
+		/** Messages waiting to be written **/
+		private static final int QUEUE_SIZE = 4096;
+
+		/** Queued messages **/
+		private final BlockingQueue<Object[]> queue = new ArrayBlockingQueue<Object[]>(QUEUE_SIZE);
+		/** Log file writer - log thread only **/
+		private final Writer writer;
+		/** Date format - log thread only **/
+		private final SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
+		/** Messages dropped because the queue was full **/
+		private volatile int dropped = 0;
+
+		/**
+		 * Constructor - opens the log file and starts the log thread
+		 * @param file Log file
+		 * @throws IOException The log file could not be opened
+		 */
+		LogSink(File file) throws IOException {
+			writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+			Thread t = new Thread(this, "LogSink");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		/**
+		 * Queue a message
+		 * @param message Message
+		 */
+		void add(String message) {
+			if (!queue.offer(new Object[] {System.currentTimeMillis(), message})) {
+				dropped++;
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Object[] entry = queue.take();
+					do {
+						writer.write("[" + format.format(new Date((Long)entry[0])) + "] " + entry[1] + "\n");
+						entry = queue.poll();
+					} while (entry != null);
+					if (dropped > 0) {
+						writer.write("[" + format.format(new Date()) + "] " + dropped + " mensagens descartadas\n");
+						dropped = 0;
+					}
+					writer.flush();
 				}
+			} catch (Exception e) {
+				e.printStackTrace();
 			}
-		} catch (Exception e) {
-			GUI.addMessage("Erro lendo configurao!");
-			e.printStackTrace();
 		}
 	}
 }
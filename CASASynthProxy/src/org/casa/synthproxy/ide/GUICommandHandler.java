@@ -47,7 +47,7 @@ public class GUICommandHandler extends CommandSender implements ActionListener {
 	 */
 	@Override
 	public void actionPerformed(ActionEvent e) {
-		if (CycleThread.getInstance().isAlive()) {
+		if (ScanEngine.getInstance().isScanning()) {
 			GUI.addMessage("Comando \"" + button.getText() + "\" est sendo ignorado pois um comando enviado pelo Arduino est em execuo");
 		} else {
 			sendCommand(button.toCommand());
@@ -0,0 +1,265 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from 
+ * the network and send them to CASAActuator in Arduino. 
+ * 
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy.ide;
+
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.GridLayout;
+import java.awt.Toolkit;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.List;
+
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollBar;
+import javax.swing.JScrollPane;
+import javax.swing.JSplitPane;
+import javax.swing.JTextArea;
+import javax.swing.ScrollPaneConstants;
+
+import org.casa.synthproxy.config.Command;
+
+/**
+ * Main window of the GUI: a page of up to 4 command group panels and the log/message area. All Swing code
+ * is kept in this class, so that headless mode never loads it.
+ *
+ * Only the page on screen has buttons. When another page is shown, the buttons of the previous one are
+ * dropped and the new ones are created, so the window costs the same whatever the size of the catalog.
+ * All methods but the constructor run in the Swing EDT.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+class MainWindow {
+
+	/** LOG/Message textarea **/
+	private final JTextArea textArea;
+	/** Scrollpane in which the textarea will be inserted **/
+	private final JScrollPane sp;
+	/** Main windows frame **/
+	private final JFrame frame;
+	
+	/** Upper left pannel - this is the first command group and will host commands **/
+	private final JPanel leftUpperPanel = new JPanel();
+	/** Lower left pannel - this is the second command group and will host commands **/
+	private final JPanel leftLowerPanel = new JPanel();
+	/** Upper right pannel - this is the third command group and will host commands **/
+	private final JPanel rightUpperPanel = new JPanel();
+	/** Lower right pannel - this is the forth command group and will host commands **/
+	private final JPanel rightLowerPanel = new JPanel();
+	/** Array that hosts all panels **/
+	private final JPanel panelList[] = {leftUpperPanel, rightUpperPanel, leftLowerPanel, rightLowerPanel};
+
+	/** Group nodes of each page **/
+	private final List<List<ScanNode>> pages;
+	/** Page on screen, or -1 before the first one is shown **/
+	private int page = -1;
+	/** Page number shown above the panels **/
+	private final JLabel pageLabel = new JLabel();
+	/** Button font - the same for every button **/
+	private final Font font;
+	/** Button font metrics **/
+	private final FontMetrics metrics;
+
+	/**
+	 * Constructor - creates and shows the window
+	 * @param pages Group nodes of each page (see {@link GUI#buildPages(org.casa.synthproxy.config.Config)})
+	 */
+	MainWindow(List<List<ScanNode>> pages) {
+		this.pages = pages;
+
+		// Default decoration
+		JFrame.setDefaultLookAndFeelDecorated(true);
+		
+		// Window creation
+		frame = new JFrame("CASA Synthetizer Proxy");
+		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		font = new Font("Arial",Font.PLAIN,(int)Toolkit.getDefaultToolkit().getScreenSize().getWidth()/55);
+		metrics = frame.getFontMetrics(font);
+
+		// 4 command groups per page - that would be 4 different panes
+		JSplitPane leftVSplitPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT, leftUpperPanel, leftLowerPanel);
+		leftVSplitPane.setResizeWeight(.5d);
+		leftVSplitPane.setEnabled( false );
+		JSplitPane rightVSplitPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT, rightUpperPanel, rightLowerPanel);
+		rightVSplitPane.setResizeWeight(.5d);
+		rightVSplitPane.setEnabled( false );
+		JSplitPane hSplitPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, leftVSplitPane, rightVSplitPane);
+		hSplitPane.setResizeWeight(.5d);
+		hSplitPane.setEnabled( false );
+		frame.getContentPane().add(hSplitPane);
+
+		// Page navigation, only when there is more than one page
+		if (pages.size() > 1) {
+			frame.getContentPane().add(createPageBar(), BorderLayout.NORTH);
+			// Highlighting a page node brings the page up and paints all of its panels
+			for (List<ScanNode> groups : pages) {
+				groups.get(0).getParent().setComponents(panelList);
+			}
+		}
+		
+		// LOG and user messages area
+		textArea = new JTextArea();
+		sp = new JScrollPane(textArea); 
+		sp.setPreferredSize(new Dimension((int)Toolkit.getDefaultToolkit().getScreenSize().getWidth()
+				,100));
+		sp.setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS);
+		frame.getContentPane().add(sp, BorderLayout.SOUTH,-1);
+		
+		// Create visual entities of the first page
+		if (!pages.isEmpty()) {
+			showPage(0);
+		}
+ 
+		// Show the window
+		frame.setLocation(40, 40);
+		frame.setSize((int)Toolkit.getDefaultToolkit().getScreenSize().getWidth()-80, 
+				(int)Toolkit.getDefaultToolkit().getScreenSize().getHeight()-80);
+		frame.setVisible(true);
+	}
+
+	/**
+	 * Add a line to the log/message area
+	 * @param line Line, already prefixed with its timestamp
+	 */
+	void append(String line) {
+		textArea.append(line + "\n");
+		
+		JScrollBar sb = sp.getVerticalScrollBar();
+		sb.setValue( sb.getMaximum() );
+	}
+
+	/**
+	 * Show a page: the buttons of the page on screen are dropped and the ones of the new page are created.
+	 * @param index Page index
+	 * @return true if the page was not on screen
+	 */
+	boolean showPage(int index) {
+		if (index == page) {
+			return false;
+		}
+		if (page >= 0) {
+			for (ScanNode groupNode : pages.get(page)) {
+				clearComponents(groupNode);
+			}
+		}
+		for (JPanel panel : panelList) {
+			panel.removeAll();
+		}
+		page = index;
+		try {
+			List<ScanNode> groups = pages.get(index);
+			for (int i = 0; i < groups.size(); i++) {
+				handleGroup(groups.get(i), panelList[i]);
+			}
+		} catch (Exception e) {
+			GUI.addMessage("Erro montando a pgina " + (index + 1) + "!");
+			e.printStackTrace();
+		}
+		pageLabel.setText("Pgina " + (index + 1) + " de " + pages.size());
+		for (JPanel panel : panelList) {
+			panel.revalidate();
+			panel.repaint();
+		}
+		return true;
+	}
+
+	/**
+	 * Create the page navigation bar
+	 * @return Navigation bar
+	 */
+	private JPanel createPageBar() {
+		JPanel bar = new JPanel();
+		JButton previous = new JButton("< Anterior");
+		previous.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				showPage((page + pages.size() - 1) % pages.size());
+			}
+		});
+		JButton next = new JButton("Prxima >");
+		next.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				showPage((page + 1) % pages.size());
+			}
+		});
+		bar.add(previous);
+		bar.add(pageLabel);
+		bar.add(next);
+		return bar;
+	}
+
+	/**
+	 * Create the visual entities of a command group. This method takes the group's scanning node and
+	 * creates its panel and a button for each of its commands.
+	 * @param groupNode Group scanning node
+	 * @param panel Panel that will host the group
+	 */
+	private void handleGroup(ScanNode groupNode, JPanel panel) {
+		JPanel outer = new JPanel();
+		outer.setBorder(BorderFactory.createTitledBorder(groupNode.getLabel()));
+		JPanel inner = new JPanel();
+		outer.add(inner);
+		inner.setLayout(new GridLayout(GUI.GRID_ROWS,GUI.GRID_COLUMNS));
+		panel.add(outer);
+		groupNode.setComponents(inner, outer, panel);
+		addButtons(groupNode, inner);
+	}
+
+	/**
+	 * Create a button for each command under a node, in scanning order
+	 * @param node Group or row scanning node
+	 * @param inner Panel that will host the buttons
+	 */
+	private void addButtons(ScanNode node, JPanel inner) {
+		for (ScanNode child : node.getChildren()) {
+			if (!child.isLeaf()) {
+				addButtons(child, inner);
+				continue;
+			}
+			Command command = child.getCommand();
+			// Macro commands send the macro key, as the scanning does (see ScanNode.toCommand())
+			MyGUIButton jCommand = new MyGUIButton(command.getLabel(),
+					command.getMacro() != null ? command.getMacro() : command.getData(), command.getTts());
+			jCommand.setPreferredSize(new Dimension(metrics.stringWidth(jCommand.getText()) + 50,70));
+			jCommand.setFont(font);
+			jCommand.addActionListener(new GUICommandHandler(jCommand));
+			inner.add(jCommand);
+			child.setComponents(jCommand);
+		}
+	}
+
+	/**
+	 * Drop the components of a node and its children, as their page leaves the screen
+	 * @param node Scanning node
+	 */
+	private void clearComponents(ScanNode node) {
+		node.setComponents();
+		for (ScanNode child : node.getChildren()) {
+			clearComponents(child);
+		}
+	}
+}
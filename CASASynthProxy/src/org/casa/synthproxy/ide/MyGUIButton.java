@@ -36,7 +36,7 @@ public class MyGUIButton extends JButton {
 	 */
 	private static final long serialVersionUID = 3253435648946416440L;
 	
-	/** Command data - this is the data that will be sent to CASAActuator **/
+	/** Command data - this is the data (or the macro key) that will be sent to CASAActuator **/
 	private String data;
 	/** Text to be synthesized when this button is pressed **/
 	private String tts;
@@ -0,0 +1,65 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy.ide;
+
+import org.casa.synthproxy.VoiceSynth;
+
+/**
+ * Scanning view for headless mode: each highlighted node is announced by its label, in the log and,
+ * optionally, spoken - so that commands can be picked without a screen.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class PromptScanView implements ScanView {
+
+	/** Speak the labels, besides logging them **/
+	private final boolean voice;
+
+	/**
+	 * Constructor
+	 * @param voice true to speak the labels, besides logging them
+	 */
+	public PromptScanView(boolean voice) {
+		this.voice = voice;
+	}
+
+	@Override
+	public boolean isOnTV() {
+		return false;
+	}
+
+	@Override
+	public void scanStarted() {
+		GUI.addMessage("Varredura iniciada");
+	}
+
+	@Override
+	public void highlight(ScanNode node) {
+		GUI.addMessage("Opo: " + node.getLabel());
+		if (voice) {
+			new VoiceSynth(node.getLabel()).sayit();
+		}
+	}
+
+	@Override
+	public void unhighlight(ScanNode node) {
+		// Nothing to undo - prompts are not kept
+	}
+}
@@ -0,0 +1,533 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy.ide;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.casa.synthproxy.Clock;
+import org.casa.synthproxy.Command;
+import org.casa.synthproxy.CommandSender;
+import org.casa.synthproxy.config.Config;
+
+/**
+ * This class handles the scanning mechanism of CASASynthProxy IDE: items of a {@link ScanNode} tree are
+ * highlighted one at a time and the user picks one with CASAActuator's button. Picking a group scans
+ * its items; picking a command sends it and ends the scanning.
+ *
+ * Scanning is a state machine run by a single scheduled thread - button presses, highlight timeouts and
+ * command completions are all handled by it, so no locking is needed. Highlighting is shown by a
+ * {@link ScanView} - the GUI paints components on the Swing EDT, while headless mode announces the
+ * highlighted items instead.
+ *
+ * Scanning starts as soon as CASAActuator is done switching the TV set to CASASynthProxy's source, plus
+ * a short settle time for the TV set; sourceTVDelay is only a limit, in case the completion never comes.
+ * Switching back is not waited for, and if scanning is requested again before the switch back was run,
+ * it is dropped and scanning starts at once - the TV set never left CASASynthProxy's source. Views
+ * that are not shown on the TV set skip the switch altogether.
+ *
+ * How long each item stays highlighted (the dwell time) is learned for each level from the user's
+ * reaction times - the time between an item being highlighted and the user picking it. The dwell is
+ * the average reaction time plus four times its mean deviation, kept within the configured bounds.
+ * A press that comes too soon after the highlight moved is credited to the previous item, as nobody
+ * reacts that fast - the user was late for the previous item.
+ *
+ * Picked commands are recorded in a {@link UsageModel}. When scanning starts, the most likely commands
+ * for the time of the day are offered first, in a favorites group, if that lowers the expected time
+ * to reach a command. The favorites group highlights the buttons where they are, so the screen layout
+ * never changes; a favorite on another page brings its page up when it is highlighted.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class ScanEngine extends CommandSender {
+
+	/** Weight of a new reaction time in the average **/
+	private static final double AVERAGE_GAIN = 0.25;
+	/** Weight of a new reaction time in the mean deviation **/
+	private static final double DEVIATION_GAIN = 0.25;
+	/** Mean deviations added to the average reaction time **/
+	private static final int DEVIATION_FACTOR = 4;
+	/** Fastest possible reaction, in milliseconds. Faster presses are meant for the previous item **/
+	private static final long MIN_REACTION = 200;
+	/** Most commands in the favorites group **/
+	private static final int MAX_FAVORITES = 4;
+
+	/** ScanEngine instance **/
+	private static final ScanEngine instance = new ScanEngine();
+
+	/** Scanning tree root - its children are the first level **/
+	private final ScanNode root = new ScanNode("");
+	/** Scanning thread **/
+	private final ScheduledExecutorService scheduler;
+	/** Time source **/
+	private final Clock clock = Clock.getInstance();
+	/** Reaction time average and mean deviation, in milliseconds, by level **/
+	private final Map<Integer, double[]> reactions = new TreeMap<Integer, double[]>();
+	/** Scanning is going on (or about to start) **/
+	private volatile boolean scanning = false;
+	/** Command usage - scanning thread only **/
+	private UsageModel usage;
+	/** Favorites group, first child of the root when there is one - scanning thread only **/
+	private ScanNode favorites;
+	/** When the first item was highlighted (clock.nanoTime()) - scanning thread only **/
+	private long scanStartedAt;
+	/** Commands picked since CASASynthProxy started - scanning thread only **/
+	private long selections = 0;
+	/** Total time to pick those commands, in milliseconds - scanning thread only **/
+	private long selectionTime = 0;
+	/** Estimated total time to pick those commands in configuration order, in milliseconds - scanning thread only **/
+	private long staticSelectionTime = 0;
+
+	/** Node whose children are being scanned - scanning thread only **/
+	private ScanNode level;
+	/** Index of the highlighted child - scanning thread only **/
+	private int index;
+	/** Highlighted node - scanning thread only **/
+	private ScanNode highlighted;
+	/** When the highlighted node was highlighted (clock.nanoTime()) - scanning thread only **/
+	private long highlightedAt;
+	/** Node highlighted before the current one, in the same level - scanning thread only **/
+	private ScanNode previous;
+	/** When the previous node was highlighted (clock.nanoTime()) - scanning thread only **/
+	private long previousAt;
+	/** Next highlight move - scanning thread only **/
+	private ScheduledFuture<?> next;
+	/** Scanning session, so that late events of a finished session are ignored - scanning thread only **/
+	private int session = 0;
+	/** Switch back to the previous TV source, while it was not run - scanning thread only **/
+	private CompletableFuture<Void> switchBack;
+	/** Dwell time used before a level has reaction times, in milliseconds **/
+	private long initialDwell;
+	/** Shortest dwell time, in milliseconds **/
+	private long minDwell;
+	/** Longest dwell time, in milliseconds **/
+	private long maxDwell;
+
+	/** Shows the scanning to the user **/
+	private volatile ScanView view = new PromptScanView(false);
+
+	/**
+	 * Constructor
+	 */
+	private ScanEngine() {
+		scheduler = clock.newScheduler("ScanEngine");
+	}
+
+	/**
+	 * Get the scan engine instance
+	 * @return Scan engine
+	 */
+	public static ScanEngine getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Get the scanning tree root. Command groups are added to it as children.
+	 * @return Scanning tree root
+	 */
+	public ScanNode getRoot() {
+		return root;
+	}
+
+	/**
+	 * Get the view that shows the scanning to the user
+	 * @return Scanning view
+	 */
+	public ScanView getView() {
+		return view;
+	}
+
+	/**
+	 * Set the view that shows the scanning to the user
+	 * @param view Scanning view
+	 */
+	public void setView(ScanView view) {
+		this.view = view;
+	}
+
+	/**
+	 * Check if scanning is going on
+	 * @return true from the moment scanning is requested until a command is picked or all items were scanned
+	 */
+	public boolean isScanning() {
+		return scanning;
+	}
+
+	/**
+	 * CASAActuator's button was pressed. Starts scanning, or picks the highlighted item if scanning
+	 * is already going on.
+	 */
+	public void buttonPressed() {
+		final long pressedAt = clock.nanoTime();
+		scheduler.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (!scanning) {
+					startScanning();
+				} else {
+					select(pressedAt);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Start scanning: switch the TV set to CASASynthProxy screen and start highlighting
+	 * after the TV set had time to switch.
+	 */
+	private void startScanning() {
+		scanning = true;
+		initialDwell = Long.parseLong(Config.getGeneralConfigEntry("cyclingInterval", "2500"));
+		minDwell = Long.parseLong(Config.getGeneralConfigEntry("cyclingMinInterval", "800"));
+		maxDwell = Long.parseLong(Config.getGeneralConfigEntry("cyclingMaxInterval", "6000"));
+		if (usage == null) {
+			usage = new UsageModel(new File(Config.getGeneralConfigEntry("usageFile", "usage.properties")));
+		}
+		arrangeFavorites(clock.currentTimeMillis());
+
+		view.scanStarted();
+
+		final int current = ++session;
+		if (!view.isOnTV()) {
+			beginScan(current);
+			return;
+		}
+		if (switchBack != null && switchBack.cancel(false)) {
+			GUI.addMessage("TV ainda na entrada do CASASynthProxy, iniciando varredura");
+			beginScan(current);
+			return;
+		}
+
+		// Change TV set to menu
+		// TODO: Move the command macro and TTS text to a configurable section
+		Command source = new Command().setCommandTp(Command.TP_STRING).setData("TVIOS;Ol");
+		CompletableFuture<Void> switched = runCommand(source);
+		if (switched == null) {
+			sendCommand(source);
+		} else {
+			final long sentAt = clock.nanoTime();
+			final long settleTime = Long.parseLong(Config.getGeneralConfigEntry("sourceTVSettleTime", "1500"));
+			switched.whenComplete(new BiConsumer<Void, Throwable>() {
+				@Override
+				public void accept(Void result, Throwable e) {
+					// Ignored or failed: the TV set was not switched, so there is nothing to wait for
+					if (e != null) {
+						GUI.addMessage("Entrada da TV no foi chaveada, iniciando varredura");
+					} else {
+						GUI.addMessage("Entrada da TV chaveada em " + TimeUnit.NANOSECONDS.toMillis(clock.nanoTime() - sentAt) + " ms");
+					}
+					scheduler.schedule(new Runnable() {
+						@Override
+						public void run() {
+							beginScan(current);
+						}
+					}, e != null ? 0 : settleTime, TimeUnit.MILLISECONDS);
+				}
+			});
+		}
+
+		// Start anyway if the switch takes too long (or cannot be followed)
+		next = scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				beginScan(current);
+			}
+		}, Long.parseLong(Config.getGeneralConfigEntry("sourceTVDelay", "8000")), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Highlight the first item, once the TV set shows CASASynthProxy. Called when the source switch
+	 * completes and when sourceTVDelay is over - only the first call of the session does anything.
+	 * @param current Scanning session
+	 */
+	private void beginScan(int current) {
+		if (current != session || !scanning || level != null) {
+			return;
+		}
+		if (next != null) {
+			next.cancel(false);
+		}
+		scanStartedAt = clock.nanoTime();
+		enter(root);
+	}
+
+	/**
+	 * Start scanning the children of a node
+	 * @param node Node whose children will be scanned
+	 */
+	private void enter(ScanNode node) {
+		level = node;
+		index = -1;
+		highlighted = null;
+		advance();
+	}
+
+	/**
+	 * Move the highlight to the next item. When a level is over, scanning goes on with the item after
+	 * its parent; when the first level is over, scanning ends.
+	 */
+	private void advance() {
+		if (highlighted != null) {
+			view.unhighlight(highlighted);
+		}
+		previous = highlighted;
+		previousAt = highlightedAt;
+		index++;
+		while (index >= level.getChildren().size()) {
+			if (level == root) {
+				finish();
+				return;
+			}
+			ScanNode done = level;
+			level = level.getParent();
+			index = level.getChildren().indexOf(done) + 1;
+			previous = null;
+		}
+		highlighted = level.getChildren().get(index);
+		highlightedAt = clock.nanoTime();
+		view.highlight(highlighted);
+		next = scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				advance();
+			}
+		}, getDwell(highlighted.getDepth()), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * The user picked an item
+	 * @param pressedAt When the button was pressed (clock.nanoTime())
+	 */
+	private void select(long pressedAt) {
+		if (highlighted == null) {
+			// Still waiting for the TV set
+			return;
+		}
+		ScanNode selected = highlighted;
+		long reaction = TimeUnit.NANOSECONDS.toMillis(pressedAt - highlightedAt);
+		if (reaction < MIN_REACTION && previous != null) {
+			selected = previous;
+			reaction = TimeUnit.NANOSECONDS.toMillis(pressedAt - previousAt);
+		}
+		learn(selected.getDepth(), reaction);
+
+		next.cancel(false);
+		view.unhighlight(highlighted);
+		if (selected.isLeaf()) {
+			if (selected.getCommand() != null) {
+				GUI.addMessage("Selecionado comando -> " + selected);
+				sendCommand(selected.toCommand());
+				reportLatency(selected, pressedAt);
+				usage.record(selected.getLabel(), clock.currentTimeMillis());
+				usage.save();
+			}
+			finish();
+		} else {
+			GUI.addMessage("Grupo selecionado");
+			enter(selected);
+		}
+	}
+
+	/**
+	 * End scanning and switch the TV set back to the previous source
+	 */
+	private void finish() {
+		if (next != null) {
+			next.cancel(false);
+		}
+		level = null;
+		highlighted = null;
+		previous = null;
+		scanning = false;
+
+		StringBuilder dwell = new StringBuilder("Tempo de varredura por nvel:");
+		for (Integer depth : reactions.keySet()) {
+			dwell.append(" ").append(depth).append(" = ").append(getDwell(depth)).append(" ms");
+		}
+		GUI.addMessage(dwell.toString());
+
+		if (!view.isOnTV()) {
+			return;
+		}
+		// Switch back to previous source, without waiting for it
+		// TODO: Move command macro to a configurable place
+		Command source = new Command().setCommandTp(Command.TP_STRING).setData("TVIOD");
+		switchBack = runCommand(source);
+		if (switchBack == null) {
+			sendCommand(source);
+		}
+	}
+
+	/**
+	 * Offer the most likely commands first, in a favorites group. The group gets the number of commands
+	 * (maybe none) that gives the lowest expected time to reach a command - commands are scanned in
+	 * order, so the expected time is the sum of the time to reach each command weighed by its likelihood.
+	 * @param now Current time, in milliseconds
+	 */
+	private void arrangeFavorites(long now) {
+		if (favorites != null) {
+			root.removeChild(favorites);
+			favorites = null;
+		}
+		List<ScanNode> leaves = new ArrayList<ScanNode>();
+		collectLeaves(root, leaves);
+		final Map<ScanNode, Double> scores = new HashMap<ScanNode, Double>();
+		double total = 0;
+		for (ScanNode leaf : leaves) {
+			double score = usage.getScore(leaf.getLabel(), now);
+			scores.put(leaf, score);
+			total += score;
+		}
+		if (total == 0) {
+			return;
+		}
+		Collections.sort(leaves, new Comparator<ScanNode>() {
+			@Override
+			public int compare(ScanNode a, ScanNode b) {
+				return Double.compare(scores.get(b), scores.get(a));
+			}
+		});
+
+		int best = 0;
+		double bestTime = Double.MAX_VALUE;
+		for (int count = 0; count <= MAX_FAVORITES && count <= leaves.size(); count++) {
+			if (count > 0 && scores.get(leaves.get(count - 1)) == 0) {
+				break;
+			}
+			double time = 0;
+			for (int i = 0; i < leaves.size() && scores.get(leaves.get(i)) > 0; i++) {
+				// Favorites are reached right away; the other commands are one group further
+				double reach = i < count ? i * getDwell(2) : getScanTime(leaves.get(i)) + (count > 0 ? getDwell(1) : 0);
+				time += scores.get(leaves.get(i)) / total * reach;
+			}
+			if (time < bestTime) {
+				best = count;
+				bestTime = time;
+			}
+		}
+		if (best == 0) {
+			return;
+		}
+
+		favorites = root.addChild(0, new ScanNode("Favoritos"));
+		StringBuilder names = new StringBuilder("Favoritos:");
+		for (int i = 0; i < best; i++) {
+			ScanNode leaf = leaves.get(i);
+			favorites.addChild(new ScanNode(leaf));
+			names.append(" ").append(leaf.getLabel());
+		}
+		GUI.addMessage(names.toString());
+	}
+
+	/**
+	 * Collect the commands of the scanning tree, in scanning order, leaving the favorites group out
+	 * @param node Node whose commands will be collected
+	 * @param leaves List the commands are added to
+	 */
+	private void collectLeaves(ScanNode node, List<ScanNode> leaves) {
+		for (ScanNode child : node.getChildren()) {
+			if (child == favorites) {
+				continue;
+			}
+			if (!child.isLeaf()) {
+				collectLeaves(child, leaves);
+			} else if (child.getCommand() != null) {
+				leaves.add(child);
+			}
+		}
+	}
+
+	/**
+	 * Get the time spent highlighting the items scanned before a node is reached, with the current dwell times
+	 * @param node Node
+	 * @return Time, in milliseconds, not counting the user's reaction time
+	 */
+	private long getScanTime(ScanNode node) {
+		long time = 0;
+		for (ScanNode n = node; n.getParent() != null; n = n.getParent()) {
+			time += n.getParent().getChildren().indexOf(n) * getDwell(n.getDepth());
+		}
+		return time;
+	}
+
+	/**
+	 * Log the average time to pick a command, and the estimated average if commands were scanned in
+	 * configuration order (without a favorites group)
+	 * @param selected Picked command
+	 * @param pressedAt When the button was pressed (clock.nanoTime())
+	 */
+	private void reportLatency(ScanNode selected, long pressedAt) {
+		long latency = TimeUnit.NANOSECONDS.toMillis(pressedAt - scanStartedAt);
+		long staticLatency = latency;
+		if (favorites != null) {
+			// Find the command in its group
+			List<ScanNode> leaves = new ArrayList<ScanNode>();
+			collectLeaves(root, leaves);
+			for (ScanNode leaf : leaves) {
+				if (leaf.getCommand() == selected.getCommand()) {
+					staticLatency += getScanTime(leaf) - getDwell(1) - getScanTime(selected);
+					break;
+				}
+			}
+		}
+		selections++;
+		selectionTime += latency;
+		staticSelectionTime += staticLatency;
+		GUI.addMessage("Comando selecionado em " + latency + " ms. Tempo mdio de seleo: " + selectionTime / selections
+				+ " ms (sem favoritos: " + staticSelectionTime / selections + " ms)");
+	}
+
+	/**
+	 * Add a reaction time to a level's average and mean deviation
+	 * @param depth Level
+	 * @param reaction Reaction time, in milliseconds
+	 */
+	private void learn(int depth, long reaction) {
+		double r[] = reactions.get(depth);
+		if (r == null) {
+			reactions.put(depth, new double[] {reaction, reaction / 2.0});
+		} else {
+			r[1] += DEVIATION_GAIN * (Math.abs(reaction - r[0]) - r[1]);
+			r[0] += AVERAGE_GAIN * (reaction - r[0]);
+		}
+	}
+
+	/**
+	 * Get the dwell time of a level
+	 * @param depth Level
+	 * @return How long each item of this level stays highlighted, in milliseconds
+	 */
+	private long getDwell(int depth) {
+		double r[] = reactions.get(depth);
+		long dwell = r == null ? initialDwell : Math.round(r[0] + DEVIATION_FACTOR * r[1]);
+		return Math.max(minDwell, Math.min(maxDwell, dwell));
+	}
+}
@@ -0,0 +1,235 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy.ide;
+
+import java.awt.Component;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.casa.synthproxy.config.Command;
+
+/**
+ * Node of the scanning tree used by {@link ScanEngine}. The root node is not shown; its children are
+ * the first scanning level (command groups), their children the second level, and so on. Leaf nodes
+ * are commands.
+ *
+ * A node is shown by a {@link ScanView}. On screen, a node is painted through its components - a command
+ * group, for instance, paints its panel and the panels around it. Nodes without components of their own,
+ * like a row of commands, are painted through their children. Components only exist while the node's
+ * page is on screen ({@link #getPage()}); without a screen, nodes have no components and are announced
+ * by their labels.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class ScanNode {
+
+	/** Label announced when this node is highlighted **/
+	private final String label;
+	/** Command issued when this node is selected, or null if it is not a command **/
+	private final Command command;
+	/** No components **/
+	private static final Component[] NONE = new Component[0];
+
+	/** Components painted when this node is highlighted - EDT only **/
+	private Component[] components = NONE;
+	/** Node this one stands for (favorites), or null **/
+	private final ScanNode target;
+	/** Page this node is shown on, or -1 to use its parent's page **/
+	private int page = -1;
+	/** Child nodes **/
+	private final List<ScanNode> children = new ArrayList<ScanNode>();
+	/** Parent node **/
+	private ScanNode parent;
+
+	/**
+	 * Constructor for nodes that are not commands - the root, pages, command groups and rows
+	 * @param label Label announced when this node is highlighted
+	 */
+	public ScanNode(String label) {
+		this.label = label;
+		this.command = null;
+		this.target = null;
+	}
+
+	/**
+	 * Constructor for commands
+	 * @param command Command issued when this node is selected
+	 */
+	public ScanNode(Command command) {
+		this.label = command.getLabel();
+		this.command = command;
+		this.target = null;
+	}
+
+	/**
+	 * Constructor for a command that stands for another one somewhere else in the tree (favorites).
+	 * It is shown through the other node.
+	 * @param target Command node
+	 */
+	public ScanNode(ScanNode target) {
+		this.label = target.getLabel();
+		this.command = target.getCommand();
+		this.target = target;
+	}
+
+	/**
+	 * Add a child node
+	 * @param child Child node
+	 * @return The child node, so that its own children can be added
+	 */
+	public ScanNode addChild(ScanNode child) {
+		child.parent = this;
+		children.add(child);
+		return child;
+	}
+
+	/**
+	 * Add a child node at a given position
+	 * @param index Position
+	 * @param child Child node
+	 * @return The child node, so that its own children can be added
+	 */
+	public ScanNode addChild(int index, ScanNode child) {
+		child.parent = this;
+		children.add(index, child);
+		return child;
+	}
+
+	/**
+	 * Remove a child node
+	 * @param child Child node
+	 */
+	public void removeChild(ScanNode child) {
+		if (children.remove(child)) {
+			child.parent = null;
+		}
+	}
+
+	/**
+	 * Get the label announced when this node is highlighted
+	 * @return Label
+	 */
+	public String getLabel() {
+		return label;
+	}
+
+	/**
+	 * Get the components painted when this node is highlighted. EDT only.
+	 * @return Components - empty when the node has no components of its own or its page is not on screen
+	 */
+	public Component[] getComponents() {
+		return components;
+	}
+
+	/**
+	 * Set the components painted when this node is highlighted. EDT only.
+	 * @param components Components - none when the node's page leaves the screen
+	 */
+	public void setComponents(Component... components) {
+		this.components = components.length == 0 ? NONE : components;
+	}
+
+	/**
+	 * Get the node shown when this node is highlighted
+	 * @return The node this one stands for, or this node
+	 */
+	public ScanNode getTarget() {
+		return target != null ? target : this;
+	}
+
+	/**
+	 * Get the page this node is shown on
+	 * @return Page index, or -1 if the node is not on a single page (the root, favorites)
+	 */
+	public int getPage() {
+		return page >= 0 || parent == null ? page : parent.getPage();
+	}
+
+	/**
+	 * Set the page this node and its children are shown on
+	 * @param page Page index
+	 */
+	public void setPage(int page) {
+		this.page = page;
+	}
+
+	/**
+	 * Get the child nodes
+	 * @return Child nodes
+	 */
+	public List<ScanNode> getChildren() {
+		return Collections.unmodifiableList(children);
+	}
+
+	/**
+	 * Get the parent node
+	 * @return Parent node, or null for the root
+	 */
+	public ScanNode getParent() {
+		return parent;
+	}
+
+	/**
+	 * Check if this is a command
+	 * @return true if this node has no children
+	 */
+	public boolean isLeaf() {
+		return children.isEmpty();
+	}
+
+	/**
+	 * Get the command issued when this node is selected
+	 * @return Command, or null if this node is not a command
+	 */
+	public Command getCommand() {
+		return command;
+	}
+
+	/**
+	 * Build the command sent to CASAActuator when this node is selected. Commands with a macro send the macro
+	 * key, so that the dispatcher knows what they do to the devices, and not the data it was expanded to.
+	 * @return Command, or null if this node is not a command
+	 */
+	public org.casa.synthproxy.Command toCommand() {
+		if (command == null) {
+			return null;
+		}
+		org.casa.synthproxy.Command c = new org.casa.synthproxy.Command();
+		c.setCommandTp(org.casa.synthproxy.Command.TP_STRING);
+		c.setData(command.getMacro() != null ? command.getMacro() : command.getData());
+		c.setSvoice(command.getTts());
+		return c;
+	}
+
+	/**
+	 * Get the scanning level of this node's children
+	 * @return 0 for the root node, 1 for the first level, and so on
+	 */
+	public int getDepth() {
+		return parent == null ? 0 : parent.getDepth() + 1;
+	}
+
+	@Override
+	public String toString() {
+		return command != null ? "[label : " + label + "],[command : " + command.getData() + "],[tts : " + command.getTts() + "]"
+				: "[label : " + label + "],[level : " + getDepth() + "],[items : " + children.size() + "]";
+	}
+}
@@ -0,0 +1,53 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy.ide;
+
+/**
+ * Shows the scanning done by {@link ScanEngine} to the user - on screen, with spoken prompts or on a
+ * remote display. All methods are called by the scanning thread and must return quickly.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public interface ScanView {
+
+	/**
+	 * Check if this view is shown on the TV set. If it is, the TV set is switched to CASASynthProxy's
+	 * input while scanning; otherwise scanning starts at once and the TV set is left alone.
+	 * @return true if this view is shown on the TV set
+	 */
+	boolean isOnTV();
+
+	/**
+	 * Scanning is about to start - get the view ready (Ex.: turn the screen saver off)
+	 */
+	void scanStarted();
+
+	/**
+	 * Highlight a node
+	 * @param node Node
+	 */
+	void highlight(ScanNode node);
+
+	/**
+	 * Remove the highlight of a node
+	 * @param node Node
+	 */
+	void unhighlight(ScanNode node);
+}
@@ -0,0 +1,129 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy.ide;
+
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.MouseInfo;
+import java.awt.Robot;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Scanning view of the GUI: nodes are highlighted by painting their components yellow, in the Swing EDT.
+ * A node that is not on the page on screen brings its page up first.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class SwingScanView implements ScanView {
+
+	/** Highlight color **/
+	private static final Color YELLOW = new Color(0xFF, 0xFF, 0x00);
+
+	/** Original colors of painted components - EDT only **/
+	private final Map<Component, Color> colors = new HashMap<Component, Color>();
+	/** Main window **/
+	private final MainWindow window;
+
+	/**
+	 * Constructor
+	 * @param window Main window - pages are changed through it
+	 */
+	SwingScanView(MainWindow window) {
+		this.window = window;
+	}
+
+	@Override
+	public boolean isOnTV() {
+		return true;
+	}
+
+	@Override
+	public void scanStarted() {
+		// Move the mouse, so that the screen saver is turned off
+		try {
+			Robot robot = new Robot();
+			robot.mouseMove((int)MouseInfo.getPointerInfo().getLocation().getX()+1,
+					(int)MouseInfo.getPointerInfo().getLocation().getY()+1);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void highlight(ScanNode node) {
+		paint(node, true);
+	}
+
+	@Override
+	public void unhighlight(ScanNode node) {
+		paint(node, false);
+	}
+
+	/**
+	 * Paint or unpaint a node's components, in the Swing EDT
+	 * @param node Node
+	 * @param highlight true to paint it with the highlight color, false to restore its colors
+	 */
+	private void paint(final ScanNode node, final boolean highlight) {
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				ScanNode target = node.getTarget();
+				if (highlight && target.getPage() >= 0 && window.showPage(target.getPage())) {
+					// The painted components left the screen with their page
+					colors.clear();
+				}
+				List<Component> components = new ArrayList<Component>();
+				collectComponents(target, components);
+				for (Component c : components) {
+					if (highlight) {
+						if (!colors.containsKey(c)) {
+							colors.put(c, c.getBackground());
+						}
+						c.setBackground(YELLOW);
+					} else if (colors.containsKey(c)) {
+						c.setBackground(colors.remove(c));
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Collect the components painted for a node: its own, or its children's if it has none
+	 * @param node Node
+	 * @param components List the components are added to
+	 */
+	private void collectComponents(ScanNode node, List<Component> components) {
+		if (node.getComponents().length > 0) {
+			Collections.addAll(components, node.getComponents());
+			return;
+		}
+		for (ScanNode child : node.getChildren()) {
+			collectComponents(child.getTarget(), components);
+		}
+	}
+}
@@ -0,0 +1,163 @@
+/**
+ * CASASynthProxy - Proxy application that receives commands from
+ * the network and send them to CASAActuator in Arduino.
+ *
+ * Copyright (C) 2015  Daniel Parra Tucunduva
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.casa.synthproxy.ide;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Usage model of the commands picked while scanning. It keeps, for each command, how often it was picked,
+ * overall and in each part of the day. Counts decay exponentially, so that recent use weighs more than
+ * old use: a pick is worth half as much after {@link #HALF_LIFE}.
+ *
+ * Counts are updated incrementally - each command keeps its counts as of its last pick, and the decay
+ * since then is applied when they are read. The model is saved to a properties file after each pick.
+ *
+ * @author Daniel Parra Tucunduva
+ */
+public class UsageModel {
+
+	/** Time for a pick to be worth half as much, in milliseconds (one week) **/
+	public static final long HALF_LIFE = 7L * 24 * 60 * 60 * 1000;
+	/** Parts of the day, of the same length **/
+	public static final int BUCKETS = 6;
+	/** Weight of the overall count in the score, against the count of the current part of the day **/
+	private static final double OVERALL_WEIGHT = 0.25;
+
+	/** File the model is saved to **/
+	private final File file;
+	/** Counts by command - last pick time, overall count, then one count per part of the day **/
+	private final Map<String, double[]> usage = new HashMap<String, double[]>();
+
+	/**
+	 * Constructor. Loads the model saved in the file, if there is one.
+	 * @param file File the model is saved to
+	 */
+	public UsageModel(File file) {
+		this.file = file;
+		load();
+	}
+
+	/**
+	 * Record a pick
+	 * @param key Command key
+	 * @param now Pick time, in milliseconds
+	 */
+	public void record(String key, long now) {
+		double counts[] = usage.get(key);
+		if (counts == null) {
+			counts = new double[BUCKETS + 2];
+			usage.put(key, counts);
+		}
+		double decay = getDecay(counts, now);
+		for (int i = 1; i < counts.length; i++) {
+			counts[i] *= decay;
+		}
+		counts[0] = now;
+		counts[1] += 1;
+		counts[2 + getBucket(now)] += 1;
+	}
+
+	/**
+	 * Get how likely a command is to be picked now. Scores are only meaningful against each other.
+	 * @param key Command key
+	 * @param now Current time, in milliseconds
+	 * @return Decayed count of the current part of the day plus a share of the decayed overall count
+	 */
+	public double getScore(String key, long now) {
+		double counts[] = usage.get(key);
+		if (counts == null) {
+			return 0;
+		}
+		return getDecay(counts, now) * (counts[2 + getBucket(now)] + OVERALL_WEIGHT * counts[1]);
+	}
+
+	/**
+	 * Get the decay of a command's counts since its last pick
+	 * @param counts Command counts
+	 * @param now Current time, in milliseconds
+	 * @return Factor the counts have to be multiplied by
+	 */
+	private static double getDecay(double[] counts, long now) {
+		return Math.pow(0.5, Math.max(0, now - counts[0]) / HALF_LIFE);
+	}
+
+	/**
+	 * Get the part of the day of a time
+	 * @param time Time, in milliseconds
+	 * @return Part of the day, from 0 to {@link #BUCKETS} - 1
+	 */
+	private static int getBucket(long time) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		return calendar.get(Calendar.HOUR_OF_DAY) * BUCKETS / 24;
+	}
+
+	/**
+	 * Load the model from its file. A missing file is an empty model.
+	 */
+	private void load() {
+		if (!file.exists()) {
+			return;
+		}
+		Properties properties = new Properties();
+		try (InputStream is = new FileInputStream(file)) {
+			properties.load(is);
+			for (String key : properties.stringPropertyNames()) {
+				String values[] = properties.getProperty(key).split(";");
+				double counts[] = new double[BUCKETS + 2];
+				for (int i = 0; i < counts.length && i < values.length; i++) {
+					counts[i] = Double.parseDouble(values[i]);
+				}
+				usage.put(key, counts);
+			}
+		} catch (Exception e) {
+			GUI.addMessage("Erro lendo histrico de uso - " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Save the model to its file
+	 */
+	public void save() {
+		Properties properties = new Properties();
+		for (Map.Entry<String, double[]> entry : usage.entrySet()) {
+			StringBuilder values = new StringBuilder();
+			for (double count : entry.getValue()) {
+				values.append(values.length() == 0 ? "" : ";").append(count);
+			}
+			properties.setProperty(entry.getKey(), values.toString());
+		}
+		try (OutputStream os = new FileOutputStream(file)) {
+			properties.store(os, "CASASynthProxy - command usage");
+		} catch (Exception e) {
+			GUI.addMessage("Erro gravando histrico de uso - " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+}